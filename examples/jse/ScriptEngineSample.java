@@ -24,7 +24,6 @@ import org.luaj.vm2.lib.OneArgFunction;
  * 
  * <p>Configuration is via system properties:
  * <ul><li><b>"org.luaj.luajc"</b> - set to "true" to use the LuaJC lua-to-Java-bytecode compiling.  
- * Requires the bcel library to be on the class path.
  * </li><li><b>"org.luaj.debug"</b> - set to "true" to load the debug library, 
  * which may provide better stack traces for closures.
  * </li></ul>
@@ -41,8 +40,7 @@ public class ScriptEngineSample {
     	// System.setProperty("org.luaj.debug", "true");
 
         // Set the property 'org.luaj.luajc' before getting the engine to enable 
-    	// the lua-to-java bytecode compiler, which requires the bcel library 
-    	// to be on the class path.
+    	// the lua-to-java bytecode compiler.
     	// This can also be set on the command line using -Dorg.luaj.luajc=true
         // org.luaj.vm2.luajc.LuaJC.install();
     	
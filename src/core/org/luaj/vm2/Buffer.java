@@ -105,11 +105,15 @@ public final class Buffer {
 	
 	/** 
 	 * Convert the buffer to a {@link LuaString}
+	 * <p>
+	 * The bytes are trimmed to their length and the array is used by the string 
+	 * without another copy.  Since it is then full, appending more to the buffer 
+	 * moves its bytes to a new array first. 
 	 * @return the value as a {@link LuaString}
 	 */
 	public final LuaString tostring() {
 		realloc( length, 0 );
-		return LuaString.valueOf( bytes, offset, length );
+		return LuaString.valueUsing( bytes, offset, length );
 	}
 	
 	/** 
@@ -152,9 +156,20 @@ public final class Buffer {
 	 * @return {@code this} to allow call chaining
 	 */
 	public final Buffer append( LuaString str ) {
-		final int n = str.m_length;
+		return append( str, 0, str.m_length );
+	}
+	
+	/** 
+	 * Append a range of bytes of a {@link LuaString} to the buffer, 
+	 * without making a substring for them.
+	 * @param str the string holding the bytes
+	 * @param strOffset offset of the first byte in the string
+	 * @param n number of bytes to append
+	 * @return {@code this} to allow call chaining
+	 */
+	public final Buffer append( LuaString str, int strOffset, int n ) {
 		makeroom( 0, n );
-		str.copyInto( 0, bytes, offset + length, n );
+		str.copyInto( strOffset, bytes, offset + length, n );
 		length += n;
 		return this;
 	}
@@ -187,7 +202,15 @@ public final class Buffer {
 	 * @return {@link Buffer} for use in call chaining.
 	 */
 	public Buffer concatTo(LuaString lhs) {
-		return value!=null&&!value.isstring()? setvalue(lhs.concat(value)): prepend(lhs);
+		if ( value!=null&&!value.isstring() )
+			return setvalue(lhs.concat(value));
+		if ( value!=null ) {
+			LuaString s = value.strvalue();
+			return lhs.m_length+s.m_length >= LuaString.CONCAT_EXTENT_MIN_LENGTH? 
+					setvalue(lhs.append(s.m_bytes, s.m_offset, s.m_length)): prepend(lhs);
+		}
+		return lhs.m_length+length >= LuaString.CONCAT_EXTENT_MIN_LENGTH? 
+				setvalue(lhs.append(bytes, offset, length)): prepend(lhs);
 	}
 
 	/** Concatenate this buffer onto a {@link LuaNumber}
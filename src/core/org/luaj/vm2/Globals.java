@@ -86,6 +86,8 @@ import org.luaj.vm2.lib.ResourceFinder;
  * <li>{@link #compiler} Current loaded {@link Compiler}, if any.
  * <li>{@link #undumper} Current loaded {@link Undumper}, if any.
  * <li>{@link #loader} Current loaded {@link Loader}, if any.
+ * <li>{@link #promoter} Current loaded {@link Promoter}, if any.
+ * <li>{@link #optimizer} Current loaded {@link Optimizer}, if any.
  * </ul>
  * 
  * <h3>Lua Environment Variables</h3>
@@ -138,6 +140,15 @@ public class Globals extends LuaTable {
 	/** The DebugLib instance loaded into this Globals, or null if debugging is not enabled */
 	public DebugLib debuglib;
 
+	/** True once a debug hook has been set in this Globals, or when {@link DebugLib#TRACE} is on.  
+	 * Until then lua closures only record their current instruction for the debug library 
+	 * rather than checking for hooks on each one. 
+	 * <p>
+	 * It only ever changes from false to true.  It is volatile so that scripts already running 
+	 * see a hook set from another thread, such as a watchdog that stops a script on a timeout.  
+	 * Running closures read it after each call and on each backward jump. */
+	public volatile boolean hooked;
+
 	/** Interface for module that converts a Prototype into a LuaFunction with an environment. */
 	public interface Loader {
 		/** Convert the prototype into a LuaFunction with the supplied environment. */
@@ -155,6 +166,21 @@ public class Globals extends LuaTable {
 		/** Load the supplied input stream into a prototype. */
 		Prototype undump(InputStream stream, String chunkname) throws IOException;
 	}
+
+	/** Interface for module that compiles prototypes that have become hot while interpreted. */
+	public interface Promoter {
+		/** Called once when a prototype has run for {@link LuaClosure#promote_threshold} 
+		 * calls and backward jumps.  It may set {@link Prototype#promoted}, 
+		 * now or later from another thread, after which closures of the prototype
+		 * call the promoted function instead of interpreting the prototype. */
+		void promote(Prototype prototype);
+	}
+
+	/** Interface for module that optimizes the bytecode of prototypes compiled from lua source. */
+	public interface Optimizer {
+		/** Optimize a prototype and its nested prototypes, in place or as a new prototype which is returned. */
+		Prototype optimize(Prototype prototype);
+	}
 	
 	/** Check that this object is a Globals object, and return it, otherwise throw an error. */
 	public Globals checkglobals() {
@@ -173,6 +199,14 @@ public class Globals extends LuaTable {
 	 * @see Undumper */
 	public Undumper undumper;
 
+	/** The installed promoter, or null if interpreted code is never promoted.
+	 * @see Promoter */
+	public Promoter promoter;
+
+	/** The installed optimizer, or null if compiled prototypes are used as they are.
+	 * @see Optimizer */
+	public Optimizer optimizer;
+
 	/** Convenience function for loading a file that is either binary lua or lua source.
 	 * @param filename Name of the file to load.
 	 * @return LuaValue that can be call()'ed or invoke()'ed.
@@ -301,7 +335,8 @@ public class Globals extends LuaTable {
 	public Prototype compilePrototype(InputStream stream, String chunkname) throws IOException {
 		if (compiler == null)
 			error("No compiler.");
-		return compiler.compile(stream, chunkname);
+		final Prototype p = compiler.compile(stream, chunkname);
+		return optimizer != null? optimizer.optimize(p): p;
 	}
 
 	/** Function which yields the current thread. 
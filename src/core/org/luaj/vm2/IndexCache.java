@@ -0,0 +1,181 @@
+/*******************************************************************************
+* Copyright (c) 2015 Luaj.org. All rights reserved.
+*
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+*
+* The above copyright notice and this permission notice shall be included in
+* all copies or substantial portions of the Software.
+* 
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+* THE SOFTWARE.
+******************************************************************************/
+package org.luaj.vm2;
+
+/**
+ * Inline cache for a table lookup with a constant string key made by one instruction 
+ * of a {@link Prototype}, such as a global lookup via {@link Lua#OP_GETTABUP} or a 
+ * method lookup via {@link Lua#OP_SELF}.
+ * <p>
+ * The cache holds where the value was found the last time the instruction ran, 
+ * either in the table being indexed or, for objects that inherit through a metatable, 
+ * in the table that is the {@link LuaValue#INDEX} field of the metatable.  
+ * For a table that keeps its keys in a {@link Shape} this is the position of the key 
+ * in the shape, which is valid for any table with that shape.  Otherwise it is the 
+ * hash entry for the key, which is updated in place when the value changes, so it is 
+ * valid as long as the version of the table holding it has not changed.
+ * <p>
+ * Caches are immutable and replaced as a whole, so they can be shared by threads 
+ * running the same {@link Prototype}.  An instruction whose cache keeps missing 
+ * stops being cached after {@link #MAX_FILLS} attempts.
+ * 
+ * @see LuaClosure
+ * @see LuaTable
+ */
+final class IndexCache {
+
+	/** Number of times the cache for one instruction is filled before giving up on it. */
+	static final int MAX_FILLS = 8;
+	
+	/** table indexed when found directly in its hash part, 
+	 * or the metatable of the table indexed when found through __index */
+	private final LuaTable table;
+	
+	/** location of the key, or of __index in the metatable, as a shape position or a hash entry */
+	private final Shape shape;
+	private final int field;
+	private final int version;
+	private final LuaTable.Entry entry;
+	
+	/** table referenced by __index when found through a metatable, otherwise null */
+	private final LuaTable index;
+	
+	/** location of the key in the table referenced by __index */
+	private final Shape indexshape;
+	private final int indexfield;
+	private final int indexversion;
+	private final LuaTable.Entry indexentry;
+	
+	/** shape of the table indexed when found through __index, if it does not have the key */
+	private final Shape instanceshape;
+
+	/** number of times the cache for this instruction has been filled */
+	private final int fills;
+	
+	private IndexCache(LuaTable table, Shape shape, int field, LuaTable.Entry entry, 
+			LuaTable index, Shape indexshape, int indexfield, LuaTable.Entry indexentry, 
+			Shape instanceshape, int fills) {
+		this.table = table;
+		this.shape = shape;
+		this.field = field;
+		this.version = table != null? table.version: 0;
+		this.entry = entry;
+		this.index = index;
+		this.indexshape = indexshape;
+		this.indexfield = indexfield;
+		this.indexversion = index != null? index.version: 0;
+		this.indexentry = indexentry;
+		this.instanceshape = instanceshape;
+		this.fills = fills;
+	}
+	
+	/** 
+	 * Get a value from a table for an instruction, using the cache for that instruction if possible.
+	 * @param p the prototype containing the instruction
+	 * @param pc the program counter of the instruction
+	 * @param t the value being indexed
+	 * @param key the constant key
+	 * @return the value, as returned by {@code t.get(key)}
+	 */
+	static LuaValue get(Prototype p, int pc, LuaValue t, LuaValue key) {
+		final IndexCache[] caches = p.indexcaches;
+		final IndexCache c = caches != null? caches[pc]: null;
+		LuaValue v;
+		if ( c != null ) {
+			if ( c.index == null ) {
+				if ( c.shape != null ) {
+					if ( t instanceof LuaTable && ((LuaTable) t).shape == c.shape 
+							&& (v = ((LuaTable) t).fields[c.field]) != null )
+						return v;
+				} else if ( c.table == t && c.version == c.table.version ) {
+					return c.entry.value();
+				}
+			} else if ( t instanceof LuaTable ) {
+				final LuaTable tt = (LuaTable) t;
+				if ( tt.m_metatable == c.table
+						&& value(c.table, c.shape, c.field, c.version, c.entry) == c.index
+						&& (v = value(c.index, c.indexshape, c.indexfield, c.indexversion, c.indexentry)) != null
+						&& ( (tt.shape != null && tt.shape == c.instanceshape) || tt.hashget(key).isnil() ) )
+					return v;
+			}
+		}
+		v = t.get(key);
+		if ( c == null || c.fills < MAX_FILLS )
+			fill(p, pc, t, key, c != null? c.fills + 1: 1);
+		return v;
+	}
+
+	/** Get the value at a cached location in a table, or null if it is no longer there. */
+	private static LuaValue value(LuaTable t, Shape shape, int field, int version, LuaTable.Entry entry) {
+		if ( shape != null )
+			return t.shape == shape? t.fields[field]: null;
+		return t.version == version? entry.value(): null;
+	}
+	
+	private static void fill(Prototype p, int pc, LuaValue t, LuaValue key, int fills) {
+		IndexCache c = null;
+		if ( key instanceof LuaString && isplain(t) ) {
+			final LuaTable tt = (LuaTable) t;
+			int i;
+			LuaTable.Entry e = null;
+			if ( tt.shape != null ) {
+				if ( (i = tt.shape.find(key)) >= 0 && tt.fields[i] != null )
+					c = new IndexCache(null, tt.shape, i, null, null, null, 0, null, null, fills);
+			} else if ( (e = tt.hashentry(key)) != null ) {
+				c = new IndexCache(tt, null, 0, e, null, null, 0, null, null, fills);
+			}
+			if ( c == null && isplain(tt.m_metatable) && tt.hashget(key).isnil() ) {
+				final LuaTable mt = (LuaTable) tt.m_metatable;
+				int mi = -1;
+				LuaTable.Entry me = null;
+				LuaValue it = null;
+				if ( mt.shape != null ) {
+					if ( (mi = mt.shape.find(LuaValue.INDEX)) >= 0 )
+						it = mt.fields[mi];
+				} else if ( (me = mt.hashentry(LuaValue.INDEX)) != null ) {
+					it = me.value();
+				}
+				if ( isplain(it) ) {
+					final LuaTable ti = (LuaTable) it;
+					final Shape instanceshape = tt.shape != null && tt.shape.find(key) < 0? tt.shape: null;
+					if ( ti.shape != null ) {
+						if ( (i = ti.shape.find(key)) >= 0 && ti.fields[i] != null )
+							c = new IndexCache(mt, me == null? mt.shape: null, mi, me, ti, ti.shape, i, null, instanceshape, fills);
+					} else if ( (e = ti.hashentry(key)) != null ) {
+						c = new IndexCache(mt, me == null? mt.shape: null, mi, me, ti, null, 0, e, instanceshape, fills);
+					}
+				}
+			}
+		}
+		if ( c == null )
+			c = new IndexCache(null, null, 0, null, null, null, 0, null, null, fills);
+		IndexCache[] caches = p.indexcaches;
+		if ( caches == null )
+			p.indexcaches = caches = new IndexCache[p.code.length];
+		caches[pc] = c;
+	}
+	
+	/** Check if lookups on an object are plain {@link LuaTable} lookups that can be cached. */
+	private static boolean isplain(Object o) {
+		return o != null && ( o.getClass() == LuaTable.class || o.getClass() == Globals.class ); 
+	}
+}
@@ -21,6 +21,8 @@
 ******************************************************************************/
 package org.luaj.vm2;
 
+import org.luaj.vm2.lib.DebugLib;
+
 /**
  * Extension of {@link LuaFunction} which executes lua bytecode. 
  * <p>
@@ -84,12 +86,28 @@ package org.luaj.vm2;
 public class LuaClosure extends LuaFunction {
 	private static final UpValue[] NOUPVALUES = new UpValue[0];
 	
+	/** Number of calls and backward jumps after which a prototype is handed 
+	 * to the {@link Globals#promoter}, if there is one.
+	 * This can be changed by Java startup code if desired.
+	 */
+	public static int promote_threshold = 10000;
+	
+	/** Interpret the specialized instructions of {@link QuickCode} in place of 
+	 * the standard bytecode of each prototype.
+	 * This can be changed by Java startup code if desired.
+	 */
+	public static boolean use_superinstructions = true;
+	
 	public final Prototype p;
 
 	public UpValue[] upValues;
 	
 	final Globals globals;
 	
+	/** Instance of the promoted function bound to the environment it was created for. */
+	private LuaFunction promoted;
+	private LuaValue promotedenv;
+	
 	/** Create a closure around a Prototype with a specific environment.
 	 * If the prototype has upvalues, the environment will be written into the first upvalue.
 	 * @param p the Prototype to construct this Closure for. 
@@ -132,43 +150,55 @@ public class LuaClosure extends LuaFunction {
 	}
 	
 	public final LuaValue call() {
-		LuaValue[] stack = new LuaValue[p.maxstacksize];
+		final LuaFunction f = promoted();
+		if (f != null) return f.call();
+		final LuaThread.RegisterStack r = registers();
+		LuaValue[] stack = r != null? r.push(p.maxstacksize): new LuaValue[p.maxstacksize];
 		for (int i = 0; i < p.numparams; ++i )
 			stack[i] = NIL;
-		return execute(stack,NONE).arg1();
+		return execute(stack,NONE,r).arg1();
 	}
 
 	public final LuaValue call(LuaValue arg) {
-		LuaValue[] stack = new LuaValue[p.maxstacksize];
+		final LuaFunction f = promoted();
+		if (f != null) return f.call(arg);
+		final LuaThread.RegisterStack r = registers();
+		LuaValue[] stack = r != null? r.push(p.maxstacksize): new LuaValue[p.maxstacksize];
 		System.arraycopy(NILS, 0, stack, 0, p.maxstacksize);
 		for (int i = 1; i < p.numparams; ++i )
 			stack[i] = NIL;
 		switch ( p.numparams ) {
-		default: stack[0]=arg; return execute(stack,NONE).arg1();
-		case 0: return execute(stack,arg).arg1();
+		default: stack[0]=arg; return execute(stack,NONE,r).arg1();
+		case 0: return execute(stack,arg,r).arg1();
 		}
 	}
 	
 	public final LuaValue call(LuaValue arg1, LuaValue arg2) {
-		LuaValue[] stack = new LuaValue[p.maxstacksize];
+		final LuaFunction f = promoted();
+		if (f != null) return f.call(arg1, arg2);
+		final LuaThread.RegisterStack r = registers();
+		LuaValue[] stack = r != null? r.push(p.maxstacksize): new LuaValue[p.maxstacksize];
 		for (int i = 2; i < p.numparams; ++i )
 			stack[i] = NIL;
 		switch ( p.numparams ) {
-		default: stack[0]=arg1; stack[1]=arg2; return execute(stack,NONE).arg1();
-		case 1: stack[0]=arg1; return execute(stack,arg2).arg1();
-		case 0: return execute(stack,p.is_vararg!=0? varargsOf(arg1,arg2): NONE).arg1();
+		default: stack[0]=arg1; stack[1]=arg2; return execute(stack,NONE,r).arg1();
+		case 1: stack[0]=arg1; return execute(stack,arg2,r).arg1();
+		case 0: return execute(stack,p.is_vararg!=0? varargsOf(arg1,arg2): NONE,r).arg1();
 		}
 	}
 
 	public final LuaValue call(LuaValue arg1, LuaValue arg2, LuaValue arg3) {
-		LuaValue[] stack = new LuaValue[p.maxstacksize];
+		final LuaFunction f = promoted();
+		if (f != null) return f.call(arg1, arg2, arg3);
+		final LuaThread.RegisterStack r = registers();
+		LuaValue[] stack = r != null? r.push(p.maxstacksize): new LuaValue[p.maxstacksize];
 		for (int i = 3; i < p.numparams; ++i )
 			stack[i] = NIL;
 		switch ( p.numparams ) {
-		default: stack[0]=arg1; stack[1]=arg2; stack[2]=arg3; return execute(stack,NONE).arg1();
-		case 2: stack[0]=arg1; stack[1]=arg2; return execute(stack,arg3).arg1();
-		case 1: stack[0]=arg1; return execute(stack,p.is_vararg!=0? varargsOf(arg2,arg3): NONE).arg1();
-		case 0: return execute(stack,p.is_vararg!=0? varargsOf(arg1,arg2,arg3): NONE).arg1();
+		default: stack[0]=arg1; stack[1]=arg2; stack[2]=arg3; return execute(stack,NONE,r).arg1();
+		case 2: stack[0]=arg1; stack[1]=arg2; return execute(stack,arg3,r).arg1();
+		case 1: stack[0]=arg1; return execute(stack,p.is_vararg!=0? varargsOf(arg2,arg3): NONE,r).arg1();
+		case 0: return execute(stack,p.is_vararg!=0? varargsOf(arg1,arg2,arg3): NONE,r).arg1();
 		}
 	}
 
@@ -177,33 +207,121 @@ public class LuaClosure extends LuaFunction {
 	}
 	
 	public final Varargs onInvoke(Varargs varargs) {
-		LuaValue[] stack = new LuaValue[p.maxstacksize];
+		final LuaFunction f = promoted();
+		if (f != null) return f.onInvoke(varargs);
+		final LuaThread.RegisterStack r = registers();
+		LuaValue[] stack = r != null? r.push(p.maxstacksize): new LuaValue[p.maxstacksize];
 		for ( int i=0; i<p.numparams; i++ )
 			stack[i] = varargs.arg(i+1);		
-		return execute(stack,p.is_vararg!=0? varargs.subargs(p.numparams+1): NONE);
+		return execute(stack,p.is_vararg!=0? varargs.subargs(p.numparams+1): NONE,r);
+	}
+	
+	/** Get the function to call in place of interpreting this closure, 
+	 * or null if the prototype has not been promoted.  The instance is created 
+	 * when first needed, and again if the environment upvalue changes. 
+	 */
+	private LuaFunction promoted() {
+		final LuaFunction t = p.promoted;
+		if (t == null)
+			return null;
+		final LuaValue env = upValues.length > 0? upValues[0].getValue(): NIL;
+		LuaFunction f = promoted;
+		if (f == null || promotedenv != env) {
+			try {
+				f = (LuaFunction) t.getClass().newInstance();
+			} catch (Exception e) {
+				p.promoted = null;
+				return null;
+			}
+			f.initupvalue1(env);
+			promoted = f;
+			promotedenv = env;
+		}
+		return f;
+	}
+
+	/** Count a call or backward jump of a prototype that may be promoted. 
+	 * The count is not synchronized, so it is compared with {@code >=} in case 
+	 * concurrent calls step past the threshold, and restarted so that a prototype 
+	 * the promoter rejects is offered again only once per threshold.
+	 */
+	private void hot(Globals.Promoter promoter) {
+		if (++p.hotness >= promote_threshold) {
+			p.hotness = 0;
+			promoter.promote(p);
+		}
+	}
+
+	/** Get the register stack of the running thread to take the frame for a call from, 
+	 * or null if the call should allocate its own registers.
+	 */
+	private LuaThread.RegisterStack registers() {
+		if (globals == null || !LuaThread.reuse_register_frames)
+			return null;
+		final LuaThread.RegisterStack r = globals.running.registers;
+		return r.available()? r: null;
 	}
 	
 	protected Varargs execute( LuaValue[] stack, Varargs varargs ) {
+		return execute(stack, varargs, null);
+	}
+	
+	/** Execute the bytecode using the supplied registers.
+	 * @param stack the registers for this call, with the parameters filled in. 
+	 * @param varargs the variable arguments beyond the fixed parameters. 
+	 * @param registers the register stack that {@code stack} was taken from, 
+	 * or null if it was allocated for this call.  
+	 */
+	private Varargs execute( LuaValue[] stack, Varargs varargs, LuaThread.RegisterStack registers ) {
 		// loop through instructions
 		int i,a,b,c,pc=0,top=0;
-		LuaValue o;
+		LuaValue o,r;
 		Varargs v = NONE;
-		int[] code = p.code;
+		int[] code = use_superinstructions? QuickCode.of(p): p.code;
 		LuaValue[] k = p.k;
 		
 		// upvalues are only possible when closures create closures
 		// TODO: use linked list.
-		UpValue[] openups = p.p.length>0? new UpValue[stack.length]: null;
+		UpValue[] openups = p.p.length>0? 
+				(registers != null? registers.openups(stack.length): new UpValue[stack.length]): 
+				null;
 		
-		// allow for debug hooks
-		if (globals != null && globals.debuglib != null)
-			globals.debuglib.onCall( this, varargs, stack ); 
+		// allow for debug hooks.  The debug library is fixed for the duration of the call, 
+		// so without one the interpreter loop does no debug work at all, and with one 
+		// it only records the program counter until a hook is first set on the globals.
+		// Globals.hooked is volatile, so it is read into a local here and read again 
+		// only after calls and on backward jumps, which is where a hook set by a callee 
+		// or by another thread is first seen.
+		final DebugLib debuglib = globals != null? globals.debuglib: null;
+		// the call hook and promotion can throw, so the frame is returned here until the loop is entered
+		final DebugLib.CallFrame frame;
+		final Globals.Promoter promoter;
+		boolean hooked;
+		boolean entered = false;
+		try {
+			frame = debuglib != null? debuglib.onCall( this, varargs, stack ): null;
+			hooked = frame != null && globals.hooked;
+
+			// count calls and loops towards promotion, unless hooked or already promoted
+			promoter = globals != null && !globals.hooked && p.promoted == null? 
+					globals.promoter: null;
+			if (promoter != null)
+				hot(promoter);
+			entered = true;
+		} finally {
+			if (!entered && registers != null)
+				registers.pop(stack, p.maxstacksize);
+		}
 
 		// process instructions
 		try {
 			for (; true; ++pc) {
-				if (globals != null && globals.debuglib != null)
-					globals.debuglib.onInstruction( pc, v, top ); 
+				if (frame != null) {
+					if (hooked)
+						debuglib.onInstruction( pc, v, top );
+					else
+						frame.instr( pc );
+				}
 				
 				// pull out instruction
 				i = code[pc];
@@ -236,11 +354,15 @@ public class LuaClosure extends LuaFunction {
 	                continue;
 					
 				case Lua.OP_GETTABUP: /*	A B C	R(A) := UpValue[B][RK(C)]			*/
-					stack[a] = upValues[i>>>23].getValue().get((c=(i>>14)&0x1ff)>0xff? k[c&0x0ff]: stack[c]);
+					stack[a] = (c=(i>>14)&0x1ff)>0xff? 
+							IndexCache.get(p, pc, upValues[i>>>23].getValue(), k[c&0x0ff]):
+							upValues[i>>>23].getValue().get(stack[c]);
 					continue;
 	                
 				case Lua.OP_GETTABLE: /*	A B C	R(A):= R(B)[RK(C)]				*/
-	                stack[a] = stack[i>>>23].get((c=(i>>14)&0x1ff)>0xff? k[c&0x0ff]: stack[c]);
+	                stack[a] = (c=(i>>14)&0x1ff)>0xff? 
+	                		IndexCache.get(p, pc, stack[i>>>23], k[c&0x0ff]):
+	                		stack[i>>>23].get(stack[c]);
 					continue;
 					
 				case Lua.OP_SETTABUP: /*	A B C	UpValue[A][RK(B)] := RK(C)			*/
@@ -256,32 +378,93 @@ public class LuaClosure extends LuaFunction {
 					continue;
 					
 				case Lua.OP_NEWTABLE: /*	A B C	R(A):= {} (size = B,C)				*/
-					stack[a] = new LuaTable(i>>>23,(i>>14)&0x1ff);
+					stack[a] = LuaTable.shapedTable(i>>>23,(i>>14)&0x1ff);
 					continue;
 					
 				case Lua.OP_SELF: /*	A B C	R(A+1):= R(B): R(A):= R(B)[RK(C)]		*/
 					stack[a+1] = (o = stack[i>>>23]);
-					stack[a] = o.get((c=(i>>14)&0x1ff)>0xff? k[c&0x0ff]: stack[c]);
+					stack[a] = (c=(i>>14)&0x1ff)>0xff? 
+							IndexCache.get(p, pc, o, k[c&0x0ff]):
+							o.get(stack[c]);
+					continue;
+					
+				case QuickCode.OP_GETTABLE_K: /*	A B C	R(A):= R(B)[K(C)]		*/
+					stack[a] = IndexCache.get(p, pc, stack[i>>>23], k[(i>>14)&0xff]);
+					continue;
+					
+				case QuickCode.OP_GETTABUP_K: /*	A B C	R(A):= UpValue[B][K(C)]		*/
+					stack[a] = IndexCache.get(p, pc, upValues[i>>>23].getValue(), k[(i>>14)&0xff]);
+					continue;
+					
+				case QuickCode.OP_SELF_K: /*	A B C	R(A+1):= R(B): R(A):= R(B)[K(C)]		*/
+					stack[a+1] = (o = stack[i>>>23]);
+					stack[a] = IndexCache.get(p, pc, o, k[(i>>14)&0xff]);
 					continue;
 					
 				case Lua.OP_ADD: /*	A B C	R(A):= RK(B) + RK(C)				*/
-					stack[a] = ((b=i>>>23)>0xff? k[b&0x0ff]: stack[b]).add((c=(i>>14)&0x1ff)>0xff? k[c&0x0ff]: stack[c]);
+					o = (b=i>>>23)>0xff? k[b&0x0ff]: stack[b];
+					r = (c=(i>>14)&0x1ff)>0xff? k[c&0x0ff]: stack[c];
+					stack[a] = o instanceof LuaInteger && r instanceof LuaInteger? 
+							LuaInteger.valueOf(((LuaInteger)o).v + (long)((LuaInteger)r).v):
+							o instanceof LuaNumber && r instanceof LuaNumber?
+							LuaDouble.valueOf(o.todouble() + r.todouble()):
+							o.add(r);
 					continue;
 					
 				case Lua.OP_SUB: /*	A B C	R(A):= RK(B) - RK(C)				*/
-					stack[a] = ((b=i>>>23)>0xff? k[b&0x0ff]: stack[b]).sub((c=(i>>14)&0x1ff)>0xff? k[c&0x0ff]: stack[c]);
+					o = (b=i>>>23)>0xff? k[b&0x0ff]: stack[b];
+					r = (c=(i>>14)&0x1ff)>0xff? k[c&0x0ff]: stack[c];
+					stack[a] = o instanceof LuaInteger && r instanceof LuaInteger? 
+							LuaInteger.valueOf(((LuaInteger)o).v - (long)((LuaInteger)r).v):
+							o instanceof LuaNumber && r instanceof LuaNumber?
+							LuaDouble.valueOf(o.todouble() - r.todouble()):
+							o.sub(r);
+					continue;
+					
+				case QuickCode.OP_ADD_RK_NUM: /*	A B C	R(A):= R(B) + K(C)				*/
+					o = stack[i>>>23];
+					r = k[(i>>14)&0xff];
+					stack[a] = o instanceof LuaInteger && r instanceof LuaInteger? 
+							LuaInteger.valueOf(((LuaInteger)o).v + (long)((LuaInteger)r).v):
+							o instanceof LuaNumber?
+							LuaDouble.valueOf(o.todouble() + r.todouble()):
+							o.add(r);
+					continue;
+					
+				case QuickCode.OP_SUB_RK_NUM: /*	A B C	R(A):= R(B) - K(C)				*/
+					o = stack[i>>>23];
+					r = k[(i>>14)&0xff];
+					stack[a] = o instanceof LuaInteger && r instanceof LuaInteger? 
+							LuaInteger.valueOf(((LuaInteger)o).v - (long)((LuaInteger)r).v):
+							o instanceof LuaNumber?
+							LuaDouble.valueOf(o.todouble() - r.todouble()):
+							o.sub(r);
 					continue;
 					
 				case Lua.OP_MUL: /*	A B C	R(A):= RK(B) * RK(C)				*/
-					stack[a] = ((b=i>>>23)>0xff? k[b&0x0ff]: stack[b]).mul((c=(i>>14)&0x1ff)>0xff? k[c&0x0ff]: stack[c]);
+					o = (b=i>>>23)>0xff? k[b&0x0ff]: stack[b];
+					r = (c=(i>>14)&0x1ff)>0xff? k[c&0x0ff]: stack[c];
+					stack[a] = o instanceof LuaInteger && r instanceof LuaInteger? 
+							LuaInteger.valueOf(((LuaInteger)o).v * (long)((LuaInteger)r).v):
+							o instanceof LuaNumber && r instanceof LuaNumber?
+							LuaDouble.valueOf(o.todouble() * r.todouble()):
+							o.mul(r);
 					continue;
 					
 				case Lua.OP_DIV: /*	A B C	R(A):= RK(B) / RK(C)				*/
-					stack[a] = ((b=i>>>23)>0xff? k[b&0x0ff]: stack[b]).div((c=(i>>14)&0x1ff)>0xff? k[c&0x0ff]: stack[c]);
+					o = (b=i>>>23)>0xff? k[b&0x0ff]: stack[b];
+					r = (c=(i>>14)&0x1ff)>0xff? k[c&0x0ff]: stack[c];
+					stack[a] = o instanceof LuaNumber && r instanceof LuaNumber?
+							LuaDouble.ddiv(o.todouble(), r.todouble()):
+							o.div(r);
 					continue;
 					
 				case Lua.OP_MOD: /*	A B C	R(A):= RK(B) % RK(C)				*/
-					stack[a] = ((b=i>>>23)>0xff? k[b&0x0ff]: stack[b]).mod((c=(i>>14)&0x1ff)>0xff? k[c&0x0ff]: stack[c]);
+					o = (b=i>>>23)>0xff? k[b&0x0ff]: stack[b];
+					r = (c=(i>>14)&0x1ff)>0xff? k[c&0x0ff]: stack[c];
+					stack[a] = o instanceof LuaNumber && r instanceof LuaNumber?
+							LuaDouble.dmod(o.todouble(), r.todouble()):
+							o.mod(r);
 					continue;
 					
 				case Lua.OP_POW: /*	A B C	R(A):= RK(B) ^ RK(C)				*/
@@ -316,7 +499,13 @@ public class LuaClosure extends LuaFunction {
 					continue;
 					
 				case Lua.OP_JMP: /*	sBx	pc+=sBx					*/
-					pc  += (i>>>14)-0x1ffff;
+					pc  += (b=(i>>>14)-0x1ffff);
+					if (b < 0) {
+						if (promoter != null)
+							hot(promoter);
+						if (frame != null)
+							hooked = globals.hooked;
+					}
 					if (a > 0) {
 						for (--a, b = openups.length; --b>=0; )
 							if (openups[b] != null && openups[b].index >= a) {
@@ -332,12 +521,20 @@ public class LuaClosure extends LuaFunction {
 					continue;
 					
 				case Lua.OP_LT: /*	A B C	if ((RK(B) <  RK(C)) ~= A) then pc++  		*/
-					if ( ((b=i>>>23)>0xff? k[b&0x0ff]: stack[b]).lt_b((c=(i>>14)&0x1ff)>0xff? k[c&0x0ff]: stack[c]) != (a!=0) ) 
+					o = (b=i>>>23)>0xff? k[b&0x0ff]: stack[b];
+					r = (c=(i>>14)&0x1ff)>0xff? k[c&0x0ff]: stack[c];
+					if ( (o instanceof LuaNumber && r instanceof LuaNumber? 
+							o.todouble() < r.todouble(): 
+							o.lt_b(r)) != (a!=0) ) 
 						++pc;
 					continue;
 					
 				case Lua.OP_LE: /*	A B C	if ((RK(B) <= RK(C)) ~= A) then pc++  		*/
-					if ( ((b=i>>>23)>0xff? k[b&0x0ff]: stack[b]).lteq_b((c=(i>>14)&0x1ff)>0xff? k[c&0x0ff]: stack[c]) != (a!=0) ) 
+					o = (b=i>>>23)>0xff? k[b&0x0ff]: stack[b];
+					r = (c=(i>>14)&0x1ff)>0xff? k[c&0x0ff]: stack[c];
+					if ( (o instanceof LuaNumber && r instanceof LuaNumber? 
+							o.todouble() <= r.todouble(): 
+							o.lteq_b(r)) != (a!=0) ) 
 						++pc;
 					continue;
 					
@@ -346,6 +543,51 @@ public class LuaClosure extends LuaFunction {
 						++pc;
 					continue;
 					
+				// comparisons and tests that take the forward jump that follows them, 
+				// unless hooks must see the jump
+				case QuickCode.OP_EQ_K: /*	A B C	if ((R(B) == K(C)) ~= A) then pc++ else jump	*/
+					if ( k[(i>>14)&0xff].raweq(stack[i>>>23]) != (a!=0) ) 
+						++pc;
+					else if (!hooked)
+						pc += (code[pc+1]>>>14)-0x1ffff+1;
+					continue;
+					
+				case QuickCode.OP_EQ_JMP: /*	A B C	if ((RK(B) == RK(C)) ~= A) then pc++ else jump	*/
+					if ( ((b=i>>>23)>0xff? k[b&0x0ff]: stack[b]).eq_b((c=(i>>14)&0x1ff)>0xff? k[c&0x0ff]: stack[c]) != (a!=0) ) 
+						++pc;
+					else if (!hooked)
+						pc += (code[pc+1]>>>14)-0x1ffff+1;
+					continue;
+					
+				case QuickCode.OP_LT_JMP: /*	A B C	if ((RK(B) <  RK(C)) ~= A) then pc++ else jump	*/
+					o = (b=i>>>23)>0xff? k[b&0x0ff]: stack[b];
+					r = (c=(i>>14)&0x1ff)>0xff? k[c&0x0ff]: stack[c];
+					if ( (o instanceof LuaNumber && r instanceof LuaNumber? 
+							o.todouble() < r.todouble(): 
+							o.lt_b(r)) != (a!=0) ) 
+						++pc;
+					else if (!hooked)
+						pc += (code[pc+1]>>>14)-0x1ffff+1;
+					continue;
+					
+				case QuickCode.OP_LE_JMP: /*	A B C	if ((RK(B) <= RK(C)) ~= A) then pc++ else jump	*/
+					o = (b=i>>>23)>0xff? k[b&0x0ff]: stack[b];
+					r = (c=(i>>14)&0x1ff)>0xff? k[c&0x0ff]: stack[c];
+					if ( (o instanceof LuaNumber && r instanceof LuaNumber? 
+							o.todouble() <= r.todouble(): 
+							o.lteq_b(r)) != (a!=0) ) 
+						++pc;
+					else if (!hooked)
+						pc += (code[pc+1]>>>14)-0x1ffff+1;
+					continue;
+					
+				case QuickCode.OP_TEST_JMP: /*	A C	if not (R(A) <=> C) then pc++ else jump	*/ 
+					if ( stack[a].toboolean() != ((i&(0x1ff<<14))!=0) ) 
+						++pc;
+					else if (!hooked)
+						pc += (code[pc+1]>>>14)-0x1ffff+1;
+					continue;
+					
 				case Lua.OP_TESTSET: /*	A B C	if (R(B) <=> C) then R(A):= R(B) else pc++	*/
 					/* note: doc appears to be reversed */
 					if ( (o=stack[i>>>23]).toboolean() != ((i&(0x1ff<<14))!=0) ) 
@@ -356,22 +598,25 @@ public class LuaClosure extends LuaFunction {
 					
 				case Lua.OP_CALL: /*	A B C	R(A), ... ,R(A+C-2):= R(A)(R(A+1), ... ,R(A+B-1)) */
 					switch ( i & (Lua.MASK_B | Lua.MASK_C) ) {
-					case (1<<Lua.POS_B) | (0<<Lua.POS_C): v=stack[a].invoke(NONE); top=a+v.narg(); continue;
-					case (2<<Lua.POS_B) | (0<<Lua.POS_C): v=stack[a].invoke(stack[a+1]); top=a+v.narg(); continue;
-					case (1<<Lua.POS_B) | (1<<Lua.POS_C): stack[a].call(); continue;
-					case (2<<Lua.POS_B) | (1<<Lua.POS_C): stack[a].call(stack[a+1]); continue;
-					case (3<<Lua.POS_B) | (1<<Lua.POS_C): stack[a].call(stack[a+1],stack[a+2]); continue;
-					case (4<<Lua.POS_B) | (1<<Lua.POS_C): stack[a].call(stack[a+1],stack[a+2],stack[a+3]); continue;
-					case (1<<Lua.POS_B) | (2<<Lua.POS_C): stack[a] = stack[a].call(); continue;
-					case (2<<Lua.POS_B) | (2<<Lua.POS_C): stack[a] = stack[a].call(stack[a+1]); continue;
-					case (3<<Lua.POS_B) | (2<<Lua.POS_C): stack[a] = stack[a].call(stack[a+1],stack[a+2]); continue;
-					case (4<<Lua.POS_B) | (2<<Lua.POS_C): stack[a] = stack[a].call(stack[a+1],stack[a+2],stack[a+3]); continue;
+					case (1<<Lua.POS_B) | (0<<Lua.POS_C): v=stack[a].invoke(NONE); top=a+v.narg(); break;
+					case (2<<Lua.POS_B) | (0<<Lua.POS_C): v=stack[a].invoke(stack[a+1]); top=a+v.narg(); break;
+					case (1<<Lua.POS_B) | (1<<Lua.POS_C): stack[a].call(); break;
+					case (2<<Lua.POS_B) | (1<<Lua.POS_C): stack[a].call(stack[a+1]); break;
+					case (3<<Lua.POS_B) | (1<<Lua.POS_C): stack[a].call(stack[a+1],stack[a+2]); break;
+					case (4<<Lua.POS_B) | (1<<Lua.POS_C): stack[a].call(stack[a+1],stack[a+2],stack[a+3]); break;
+					case (1<<Lua.POS_B) | (2<<Lua.POS_C): stack[a] = stack[a].call(); break;
+					case (2<<Lua.POS_B) | (2<<Lua.POS_C): stack[a] = stack[a].call(stack[a+1]); break;
+					case (3<<Lua.POS_B) | (2<<Lua.POS_C): stack[a] = stack[a].call(stack[a+1],stack[a+2]); break;
+					case (4<<Lua.POS_B) | (2<<Lua.POS_C): stack[a] = stack[a].call(stack[a+1],stack[a+2],stack[a+3]); break;
 					default:
 						b = i>>>23;
 						c = (i>>14)&0x1ff;
-						v = stack[a].invoke(b>0? 
+						v = b>0? 
 							varargsOf(stack, a+1, b-1): // exact arg count
-							varargsOf(stack, a+1, top-v.narg()-(a+1), v));  // from prev top 
+							varargsOf(stack, a+1, top-v.narg()-(a+1), v);  // from prev top 
+						if (registers != null && !(stack[a] instanceof LuaClosure))
+							v = v.dealias(); // java functions may keep their arguments after the frame is reused
+						v = stack[a].invoke(v);
 						if ( c > 0 ) {
 							v.copyto(stack, a, c-1);
 							v = NONE;
@@ -379,8 +624,33 @@ public class LuaClosure extends LuaFunction {
 							top = a + v.narg();
 							v = v.dealias();
 						}
-						continue;
+						break;
+					}
+					if (frame != null)
+						hooked = globals.hooked;
+					continue;
+					
+				case QuickCode.OP_CALL_FIXED0: /*	A B	R(A)(R(A+1), ... ,R(A+B-1))	*/
+					switch ( i>>>23 ) {
+					case 1: stack[a].call(); break;
+					case 2: stack[a].call(stack[a+1]); break;
+					case 3: stack[a].call(stack[a+1],stack[a+2]); break;
+					default: stack[a].call(stack[a+1],stack[a+2],stack[a+3]); break;
 					}
+					if (frame != null)
+						hooked = globals.hooked;
+					continue;
+					
+				case QuickCode.OP_CALL_FIXED1: /*	A B	R(A):= R(A)(R(A+1), ... ,R(A+B-1))	*/
+					switch ( i>>>23 ) {
+					case 1: stack[a] = stack[a].call(); break;
+					case 2: stack[a] = stack[a].call(stack[a+1]); break;
+					case 3: stack[a] = stack[a].call(stack[a+1],stack[a+2]); break;
+					default: stack[a] = stack[a].call(stack[a+1],stack[a+2],stack[a+3]); break;
+					}
+					if (frame != null)
+						hooked = globals.hooked;
+					continue;
 					
 				case Lua.OP_TAILCALL: /*	A B C	return R(A)(R(A+1), ... ,R(A+B-1))		*/
 					switch ( i & Lua.MASK_B ) {
@@ -391,30 +661,68 @@ public class LuaClosure extends LuaFunction {
 					default:
 						b = i>>>23;
 						v = b>0? 
-							varargsOf(stack,a+1,b-1): // exact arg count
-							varargsOf(stack, a+1, top-v.narg()-(a+1), v); // from prev top 
+							frameargs(stack,a+1,b-1,NONE,registers): // exact arg count
+							frameargs(stack, a+1, top-v.narg()-(a+1), v, registers); // from prev top 
+						if (registers != null && !(stack[a] instanceof LuaClosure))
+							v = v.dealias(); // varargs may still refer to the caller's frame
 						return new TailcallVarargs( stack[a], v );
 					}
 					
 				case Lua.OP_RETURN: /*	A B	return R(A), ... ,R(A+B-2)	(see note)	*/
 					b = i>>>23;
 					switch ( b ) {
-					case 0: return varargsOf(stack, a, top-v.narg()-a, v); 
+					case 0: return frameargs(stack, a, top-v.narg()-a, v, registers); 
 					case 1: return NONE;
 					case 2: return stack[a]; 
 					default:
-						return varargsOf(stack, a, b-1);
+						return frameargs(stack, a, b-1, NONE, registers);
+					}
+					
+				case QuickCode.OP_FORLOOP_INT: /*	A sBx	R(A)+=R(A+2): if R(A) <?= R(A+1) then { pc+=sBx: R(A+3)=R(A) }*/
+					if ((o = stack[a]) instanceof LuaInteger && (r = stack[a + 2]) instanceof LuaInteger 
+							&& stack[a + 1] instanceof LuaInteger) {
+						c = ((LuaInteger)r).v;
+						long n = ((LuaInteger)o).v + (long)c;
+						if (c>0? n<=((LuaInteger)stack[a + 1]).v: n>=((LuaInteger)stack[a + 1]).v) {
+							stack[a] = stack[a + 3] = LuaInteger.valueOf(n);
+							pc += (i>>>14)-0x1ffff;
+							if (promoter != null)
+								hot(promoter);
+							if (frame != null)
+								hooked = globals.hooked;
+						}
+						continue;
 					}
+					// the index overflowed or the loop was changed, so run it as a plain loop
+					code[pc] = QuickCode.op(i, Lua.OP_FORLOOP);
 					
 				case Lua.OP_FORLOOP: /*	A sBx	R(A)+=R(A+2): if R(A) <?= R(A+1) then { pc+=sBx: R(A+3)=R(A) }*/
 					{
 			            LuaValue limit = stack[a + 1];
 						LuaValue step  = stack[a + 2];
-						LuaValue idx   = step.add(stack[a]);
+						if ((o = stack[a]) instanceof LuaInteger && limit instanceof LuaInteger && step instanceof LuaInteger) {
+							// integer loops, the common case, compare without boxing the next index first
+							c = ((LuaInteger)step).v;
+							long n = ((LuaInteger)o).v + (long)c;
+							if (c>0? n<=((LuaInteger)limit).v: n>=((LuaInteger)limit).v) {
+								stack[a] = stack[a + 3] = LuaInteger.valueOf(n);
+								pc += (i>>>14)-0x1ffff;
+								if (promoter != null)
+									hot(promoter);
+								if (frame != null)
+									hooked = globals.hooked;
+							}
+							continue;
+						}
+						LuaValue idx   = step.add(o);
 			            if (step.gt_b(0)? idx.lteq_b(limit): idx.gteq_b(limit)) {
 		                    stack[a] = idx;
 		                    stack[a + 3] = idx;
 		                    pc += (i>>>14)-0x1ffff;
+							if (promoter != null)
+								hot(promoter);
+							if (frame != null)
+								hooked = globals.hooked;
 			            }
 					}
 					continue;
@@ -428,6 +736,13 @@ public class LuaClosure extends LuaFunction {
 						stack[a + 1] = limit;
 						stack[a + 2] = step;
 						pc += (i>>>14)-0x1ffff;
+						if (code != p.code) {
+							// quicken the loop for the types of this run
+							b = init instanceof LuaInteger && limit instanceof LuaInteger && step instanceof LuaInteger?
+									QuickCode.OP_FORLOOP_INT: Lua.OP_FORLOOP;
+							if ((code[pc+1] & 0x3f) != b)
+								code[pc+1] = QuickCode.op(code[pc+1], b);
+						}
 					}
 					continue;
 
@@ -437,12 +752,18 @@ public class LuaClosure extends LuaFunction {
 					while (--c >= 0)
 						stack[a+3+c] = v.arg(c+1);
 					v = NONE;
+					if (frame != null)
+						hooked = globals.hooked;
 					continue;
 
 				case Lua.OP_TFORLOOP: /* A sBx	if R(A+1) ~= nil then { R(A)=R(A+1); pc += sBx */
 					if (!stack[a+1].isnil()) { /* continue loop? */
 						stack[a] = stack[a+1];  /* save control varible. */
 						pc += (i>>>14)-0x1ffff;
+						if (promoter != null)
+							hot(promoter);
+						if (frame != null)
+							hooked = globals.hooked;
 					}
 					continue;
 					
@@ -512,11 +833,31 @@ public class LuaClosure extends LuaFunction {
 		} finally {
 			if ( openups != null )
 				for ( int u=openups.length; --u>=0; )
-					if ( openups[u] != null )
+					if ( openups[u] != null ) {
 						openups[u].close();
-			if (globals != null && globals.debuglib != null)
-				globals.debuglib.onReturn();
+						openups[u] = null;
+					}
+			if (debuglib != null)
+				debuglib.onReturn();
+			if (registers != null)
+				registers.pop(stack, p.maxstacksize);
+		}
+	}
+
+	/** Construct a Varargs from a range of registers that is returned from the frame. 
+	 * When the frame is reused after the call the values are copied out of it.
+	 */
+	private static Varargs frameargs(LuaValue[] stack, int offset, int length, Varargs more, LuaThread.RegisterStack registers) {
+		if (registers == null)
+			return varargsOf(stack, offset, length, more);
+		switch ( length ) {
+		case 0: return more;
+		case 1: return varargsOf(stack[offset], more);
+		case 2: if (more.narg() == 0) return varargsOf(stack[offset], stack[offset+1]);
 		}
+		LuaValue[] v = new LuaValue[length];
+		System.arraycopy(stack, offset, v, 0, length);
+		return varargsOf(v, more);
 	}
 
 	/**
@@ -27,6 +27,7 @@ import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.PrintStream;
+import java.lang.ref.WeakReference;
 
 import org.luaj.vm2.lib.MathLib;
 
@@ -84,6 +85,38 @@ public class LuaString extends LuaValue {
 	/** The hashcode for this string.  Computed at construct time. */
 	private final int m_hashcode;
 
+	/** True if this is the instance held in the intern table for its bytes. */
+	private final boolean m_interned;
+
+	/** Used part of the backing array when it was made by concatenation with room to grow, or null. 
+	 * @see #append(byte[], int, int) */
+	private final Extent m_extent;
+
+	/** Minimum length of a concatenation result that is given a backing array it can grow into.
+	 * Shorter strings are copied exactly, and may be cached or interned. */
+	static final int CONCAT_EXTENT_MIN_LENGTH = 64;
+
+	/** End of the bytes in use in a backing array shared by the results of repeated concatenation.
+	 * Only the string ending there may append in place, and the bytes after it are not part 
+	 * of any string, so no string ever sees its bytes change.  */
+	private static final class Extent {
+		int end;
+		Extent(int end) {
+			this.end = end;
+		}
+	}
+
+	/** Set to true to intern short strings in a global table of weak references, 
+	 * so that all live short strings with the same bytes are the same object, 
+	 * and two different interned strings can be compared by identity alone. 
+	 * <p>
+	 * This is off by default.  It can be changed by Java startup code if desired,
+	 * strings created while it is off simply compare by their bytes. 
+	 * @see #getInternHits()
+	 * @see #getInternMisses()
+	 */
+	public static boolean intern_short_strings = false;
+
 	/** Size of cache of recent short strings. This is the maximum number of LuaStrings that 
 	 * will be retained in the cache of recent short strings.  Exposed to package for testing. */
 	static final int RECENT_STRINGS_CACHE_SIZE = 128;
@@ -104,6 +137,100 @@ public class LuaString extends LuaValue {
 				new LuaString[RECENT_STRINGS_CACHE_SIZE];
 	}
 
+	/** Table of all live interned short strings, used when {@link #intern_short_strings} is true.
+	 * Entries are weak references chained by hash code, and entries whose strings have been 
+	 * collected are removed as they are encountered or when the table is resized.  
+	 * It is only consulted on a miss in the recent short strings cache. */
+	private static final class InternTable {
+		private static Entry[] buckets = new Entry[256];
+		private static int size;
+		private static long hits;
+		private static long misses;
+		
+		private static final class Entry extends WeakReference {
+			final int hash;
+			Entry next;
+			Entry(LuaString s, Entry next) {
+				super(s);
+				this.hash = s.m_hashcode;
+				this.next = next;
+			}
+		}
+
+		static synchronized LuaString intern(byte[] bytes, int off, int len, int hash, boolean copy) {
+			final int b = hash & (buckets.length - 1);
+			Entry prev = null;
+			for ( Entry e = buckets[b]; e != null; e = e.next ) {
+				final LuaString s = (LuaString) e.get();
+				if ( s == null ) {
+					if ( prev == null ) buckets[b] = e.next; else prev.next = e.next;
+					--size;
+					continue;
+				}
+				if ( e.hash == hash && s.byteseq(bytes, off, len) ) {
+					++hits;
+					return s;
+				}
+				prev = e;
+			}
+			++misses;
+			if ( copy ) {
+				final byte[] c = new byte[len];
+				System.arraycopy(bytes, off, c, 0, len);
+				bytes = c;
+				off = 0;
+			}
+			final LuaString s = new LuaString(bytes, off, len, true);
+			if ( ++size > buckets.length - (buckets.length >> 2) )
+				resize();
+			final int i = hash & (buckets.length - 1);
+			buckets[i] = new Entry(s, buckets[i]);
+			return s;
+		}
+
+		private static void resize() {
+			Entry[] old = buckets;
+			int live = 0;
+			for ( int i = 0; i < old.length; ++i )
+				for ( Entry e = old[i]; e != null; e = e.next )
+					if ( e.get() != null )
+						++live;
+			final int n = live > old.length >> 1? old.length << 1: old.length;
+			final Entry[] t = new Entry[n];
+			for ( int i = 0; i < old.length; ++i ) {
+				for ( Entry e = old[i], next; e != null; e = next ) {
+					next = e.next;
+					if ( e.get() != null ) {
+						final int j = e.hash & (n - 1);
+						e.next = t[j];
+						t[j] = e;
+					}
+				}
+			}
+			buckets = t;
+			size = live;
+		}
+	}
+
+	/** Get the number of lookups in the intern table that found an existing string.
+	 * Lookups satisfied by the recent short strings cache are not counted.
+	 * @see #intern_short_strings
+	 */
+	public static long getInternHits() {
+		synchronized ( InternTable.class ) {
+			return InternTable.hits;
+		}
+	}
+
+	/** Get the number of lookups in the intern table that added a new string. 
+	 * @see #intern_short_strings
+	 */
+	public static long getInternMisses() {
+		synchronized ( InternTable.class ) {
+			return InternTable.misses;
+		}
+	}
+
 	/**
 	 * Get a {@link LuaString} instance whose bytes match 
 	 * the supplied Java String using the UTF8 encoding. 
@@ -136,7 +263,9 @@ public class LuaString extends LuaValue {
 		final int bucket = hash & (RECENT_STRINGS_CACHE_SIZE - 1);
 		final LuaString t = RecentShortStrings.recent_short_strings[bucket];
 		if (t != null && t.m_hashcode == hash && t.byteseq(bytes, off, len)) return t;
-		final LuaString s = valueFromCopy(bytes, off, len);
+		final LuaString s = intern_short_strings? 
+				InternTable.intern(bytes, off, len, hash, true): 
+				valueFromCopy(bytes, off, len);
 		RecentShortStrings.recent_short_strings[bucket] = s;
 		return s;
 	}
@@ -165,7 +294,9 @@ public class LuaString extends LuaValue {
 		final int bucket = hash & (RECENT_STRINGS_CACHE_SIZE - 1);
 		final LuaString t = RecentShortStrings.recent_short_strings[bucket];
 		if (t != null && t.m_hashcode == hash && t.byteseq(bytes, off, len)) return t;
-		final LuaString s = new LuaString(bytes, off, len);
+		final LuaString s = intern_short_strings? 
+				InternTable.intern(bytes, off, len, hash, false): 
+				new LuaString(bytes, off, len);
 		RecentShortStrings.recent_short_strings[bucket] = s;
 		return s;
 	}
@@ -234,10 +365,25 @@ public class LuaString extends LuaValue {
 	 * @return {@link LuaString} wrapping the byte buffer
 	 */
 	private LuaString(byte[] bytes, int offset, int length) {
+		this(bytes, offset, length, false);
+	}
+
+	private LuaString(byte[] bytes, int offset, int length, boolean interned) {
+		this.m_bytes = bytes;
+		this.m_offset = offset;
+		this.m_length = length;
+		this.m_hashcode = hashCode(bytes, offset, length);
+		this.m_interned = interned;
+		this.m_extent = null;
+	}
+
+	private LuaString(byte[] bytes, int offset, int length, Extent extent) {
 		this.m_bytes = bytes;
 		this.m_offset = offset;
 		this.m_length = length;
 		this.m_hashcode = hashCode(bytes, offset, length);
+		this.m_interned = false;
+		this.m_extent = extent;
 	}
 
 	public boolean isstring() {
@@ -311,12 +457,48 @@ public class LuaString extends LuaValue {
 	public Buffer   concat(Buffer rhs)        { return rhs.concatTo(this); }
 	public LuaValue concatTo(LuaNumber lhs)   { return concatTo(lhs.strvalue()); }
 	public LuaValue concatTo(LuaString lhs)   { 
+		if ( lhs.m_length+this.m_length >= CONCAT_EXTENT_MIN_LENGTH )
+			return lhs.append(m_bytes, m_offset, m_length);
 		byte[] b = new byte[lhs.m_length+this.m_length];
 		System.arraycopy(lhs.m_bytes, lhs.m_offset, b, 0, lhs.m_length);
 		System.arraycopy(this.m_bytes, this.m_offset, b, lhs.m_length, this.m_length);
 		return valueUsing(b, 0, b.length);
 	}
 
+	/** Concatenate bytes onto this string, for results of at least {@link #CONCAT_EXTENT_MIN_LENGTH} bytes.
+	 * <p>
+	 * The result is backed by an array with an {@link Extent}.  When this string was made 
+	 * the same way, is the last one appended to its array, and the array has room, the bytes 
+	 * are copied after it and the array is shared, so that building a string by repeatedly 
+	 * appending to it takes time linear in its length.  Otherwise the bytes are copied into 
+	 * a new array, which is given room to grow when this string already had an extent. 
+	 * @param bytes array holding the bytes to append
+	 * @param offset offset of the bytes in the array
+	 * @param length number of bytes to append
+	 * @return {@link LuaString} with the bytes of this string followed by the appended bytes 
+	 */
+	LuaString append(byte[] bytes, int offset, int length) {
+		final int end = m_offset + m_length;
+		final int n = m_length + length;
+		final Extent e = m_extent;
+		if ( e != null ) {
+			synchronized ( e ) {
+				if ( e.end == end && m_bytes.length - end >= length ) {
+					System.arraycopy(bytes, offset, m_bytes, end, length);
+					e.end = end + length;
+					return new LuaString(m_bytes, m_offset, n, e);
+				}
+			}
+		}
+		int capacity = e != null? n + (n >> 1): n;
+		if ( capacity < n )
+			capacity = n;
+		final byte[] b = new byte[capacity];
+		System.arraycopy(m_bytes, m_offset, b, 0, m_length);
+		System.arraycopy(bytes, offset, b, m_length, length);
+		return new LuaString(b, 0, n, new Extent(n));
+	}
+
 	// string comparison 
 	public int strcmp(LuaValue lhs)           { return -lhs.strcmp(this); }
 	public int strcmp(LuaString rhs) {
@@ -479,6 +661,8 @@ public class LuaString extends LuaValue {
 	public boolean raweq( LuaString s ) { 
 		if ( this == s )
 			return true;
+		if ( m_interned && s.m_interned )
+			return false;
 		if ( s.m_length != m_length )
 			return false;
 		if ( s.m_bytes == m_bytes && s.m_offset == m_offset )
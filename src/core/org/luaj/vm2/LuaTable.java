@@ -77,6 +77,15 @@ public class LuaTable extends LuaValue implements Metatable {
 	/** the array values */
 	protected LuaValue[] array;
 	
+	/** the array values while they are all integers, in place of {@link #array}, or null */
+	private int[] ints;
+	
+	/** the array values while they are all numbers, in place of {@link #array}, or null */
+	private double[] doubles;
+	
+	/** number of values at the start of {@link #ints} or {@link #doubles}, the rest are nil */
+	private int count;
+	
 	/** the hash part */
 	protected Slot[] hash;
 	
@@ -86,6 +95,30 @@ public class LuaTable extends LuaValue implements Metatable {
 	/** metatable for this table, or null */
 	protected Metatable m_metatable;
 	
+	/** incremented when hash entries are removed or replaced, so cached entries can be validated */
+	int version;
+	
+	/** shape of the string keys when they are kept in {@link #fields} instead of the hash part, or null */
+	Shape shape;
+	
+	/** values of the string keys of the shape by position, null for keys that were removed */
+	LuaValue[] fields;
+	
+	/** Whether tables created by lua table constructors keep their string keys in shared 
+	 * {@link Shape}s, with the values in a flat array, until a key is added that does not fit. 
+	 * Such tables are iterated by {@link #next(LuaValue)} in the order their keys were added. 
+	 * This can be changed by Java startup code if desired.
+	 */
+	public static boolean use_shapes = true;
+	
+	/** Whether the array part of a table that holds only numbers, stored without gaps 
+	 * from index 1, keeps them unboxed in an {@code int[]} or {@code double[]}.  
+	 * The values are boxed when read, and the array part is converted back to 
+	 * {@link LuaValue}s when any other value is stored in it.  
+	 * This can be changed by Java startup code if desired.
+	 */
+	public static boolean use_numeric_arrays = true;
+	
 	/** Construct empty table */
 	public LuaTable() {
 		array = NOVALS;
@@ -101,6 +134,22 @@ public class LuaTable extends LuaValue implements Metatable {
 		presize(narray, nhash);
 	}
 
+	/**
+	 * Construct table for a lua table constructor with preset capacity, 
+	 * which keeps string keys in a {@link Shape} if {@link #use_shapes} is set.
+	 * @param narray capacity of array part
+	 * @param nhash capacity of hash part
+	 * @return new table
+	 */
+	public static LuaTable shapedTable(int narray, int nhash) {
+		if ( !use_shapes )
+			return new LuaTable(narray, nhash);
+		LuaTable t = new LuaTable(narray, 0);
+		t.shape = Shape.ROOT;
+		t.fields = nhash > 0? new LuaValue[Math.min(nhash, Shape.MAX_KEYS)]: NOVALS;
+		return t;
+	}
+
 	/**
 	 * Construct table with named and unnamed parts. 
 	 * @param named Named elements in order {@code key-a, value-a, key-b, value-b, ... }
@@ -165,8 +214,20 @@ public class LuaTable extends LuaValue implements Metatable {
 	}
 	
 	public void presize( int narray ) {
-		if ( narray > array.length )
-			array = resize( array, 1 << log2(narray) );
+		if ( narray > getArrayLength() ) {
+			final int n = 1 << log2(narray);
+			if ( ints != null ) {
+				int[] a = new int[n];
+				System.arraycopy(ints, 0, a, 0, count);
+				ints = a;
+			} else if ( doubles != null ) {
+				double[] a = new double[n];
+				System.arraycopy(doubles, 0, a, 0, count);
+				doubles = a;
+			} else {
+				array = resize( array, n );
+			}
+		}
 	}
 
 	public void presize(int narray, int nhash) {
@@ -174,8 +235,14 @@ public class LuaTable extends LuaValue implements Metatable {
 			nhash = MIN_HASH_CAPACITY;
 		// Size of both parts must be a power of two.
 		array = (narray>0? new LuaValue[1 << log2(narray)]: NOVALS);
+		ints = null;
+		doubles = null;
+		count = 0;
 		hash = (nhash>0? new Slot[1 << log2(nhash)]: NOBUCKETS);
 		hashEntries = 0;
+		shape = null;
+		fields = null;
+		++version;
 	}
 
 	/** Resize the table */
@@ -190,7 +257,7 @@ public class LuaTable extends LuaValue implements Metatable {
 	 * @return length of the array part, does not relate to count of objects in the table. 
 	 */
 	protected int getArrayLength() {
-		return array.length;
+		return ints != null? ints.length: doubles != null? doubles.length: array.length;
 	}
 
 	/** 
@@ -198,9 +265,54 @@ public class LuaTable extends LuaValue implements Metatable {
 	 * @return length of the hash part, does not relate to count of objects in the table. 
 	 */
 	protected int getHashLength() {
-		return hash.length;
+		return shape != null? fields.length: hash.length;
 	}
-	
+
+	/**
+	 * Get the layout of the string keys of this table, for code that caches
+	 * where a key is found, such as the call sites linked by luajc.
+	 * Tables with the same layout keep the same keys at the same positions,
+	 * as returned by {@link #layoutIndex(LuaValue)}.
+	 * @return an object identifying the layout, or null if the keys are kept in the hash part
+	 */
+	public Object layout() {
+		return shape;
+	}
+
+	/**
+	 * Get the position of a key in the layout of this table.
+	 * @param key the key to look for
+	 * @return position of the key, or -1 if the table has no layout or the key is not in it
+	 * @see #layout()
+	 */
+	public int layoutIndex(LuaValue key) {
+		return shape != null? shape.find(key): -1;
+	}
+
+	/**
+	 * Get the value at a position of the layout of this table, without metatag processing.
+	 * @param index position of a key in the layout, as returned by {@link #layoutIndex(LuaValue)}
+	 * @return the value, or null if the key was removed
+	 */
+	public LuaValue layoutGet(int index) {
+		return fields[index];
+	}
+
+	/**
+	 * Replace the value at a position of the layout of this table, without metatag processing.
+	 * Only a key that holds a value is replaced, since adding or removing a key changes the layout
+	 * and may require __newindex processing.
+	 * @param index position of a key in the layout, as returned by {@link #layoutIndex(LuaValue)}
+	 * @param value the new value
+	 * @return true if the value was replaced, false if the key holds no value or the value is nil
+	 */
+	public boolean layoutSet(int index, LuaValue value) {
+		if ( fields[index] == null || value.isnil() )
+			return false;
+		fields[index] = value;
+		return true;
+	}
+
 	public LuaValue getmetatable() {
 		return ( m_metatable != null ) ? m_metatable.toLuaValue() : null;
 	}
@@ -209,6 +321,9 @@ public class LuaTable extends LuaValue implements Metatable {
 		boolean hadWeakKeys = m_metatable != null && m_metatable.useWeakKeys();
 		boolean hadWeakValues = m_metatable != null && m_metatable.useWeakValues();
 		m_metatable = metatableOf( metatable );
+		++version;
+		if ( shape != null && m_metatable != null && ( m_metatable.useWeakKeys() || m_metatable.useWeakValues() ) )
+			unshape();
 		if ( ( hadWeakKeys != ( m_metatable != null && m_metatable.useWeakKeys() )) ||
 			 ( hadWeakValues != ( m_metatable != null && m_metatable.useWeakValues() ))) {
 			// force a rehash
@@ -232,6 +347,8 @@ public class LuaTable extends LuaValue implements Metatable {
 			LuaValue v = m_metatable == null ? array[key-1] : m_metatable.arrayget(array, key-1);
 			return v != null ? v : NIL;
 		}
+		if ( key>0 && key<=count )
+			return numberget(key-1);
 		return hashget( LuaInteger.valueOf(key) );
 	}
 
@@ -243,11 +360,23 @@ public class LuaTable extends LuaValue implements Metatable {
 						? array[ikey-1] : m_metatable.arrayget(array, ikey-1);
 				return v != null ? v : NIL;
 			}
+			if ( ikey>0 && ikey<=count )
+				return numberget(ikey-1);
 		}
 		return hashget( key );
 	}
 
+	/** Box a value of the numeric array part */
+	private LuaValue numberget( int index ) {
+		return ints != null? LuaInteger.valueOf(ints[index]): LuaDouble.valueOf(doubles[index]);
+	}
+
 	protected LuaValue hashget(LuaValue key) {
+		if ( shape != null ) {
+			final int i = shape.find(key);
+			final LuaValue v = i >= 0? fields[i]: null;
+			return v != null? v: NIL;
+		}
 		if ( hashEntries > 0 ) {
 			for ( Slot slot = hash[ hashSlot(key) ]; slot != null; slot = slot.rest() ) {
 				StrongSlot foundSlot;
@@ -259,6 +388,25 @@ public class LuaTable extends LuaValue implements Metatable {
 		return NIL;
 	}
 
+	/** 
+	 * Find the entry for a key in the hash part, if it is one whose value is updated in place.
+	 * The entry stays in the table until {@link #version} changes.
+	 * @param key the key to look for
+	 * @return the entry, or null if not found or not a strong entry.
+	 */
+	Entry hashentry(LuaValue key) {
+		if ( hashEntries > 0 && shape == null ) {
+			for ( Slot slot = hash[ hashSlot(key) ]; slot != null; slot = slot.rest() ) {
+				StrongSlot foundSlot;
+				if ( ( foundSlot = slot.find(key) ) != null ) {
+					foundSlot = foundSlot.first();
+					return foundSlot instanceof NormalEntry? (Entry) foundSlot: null;
+				}
+			}
+		}
+		return null;
+	}
+
 	public void set( int key, LuaValue value ) {
 		if ( m_metatable==null || ! rawget(key).isnil() || ! settable(this,LuaInteger.valueOf(key),value) )
 			rawset(key, value);
@@ -286,13 +434,97 @@ public class LuaTable extends LuaValue implements Metatable {
 	/** Set an array element */
 	private boolean arrayset( int key, LuaValue value ) {
 		if ( key>0 && key<=array.length ) {
+			if ( key == 1 && array[0] == null && value instanceof LuaNumber && use_numeric_arrays && pack(value) )
+				return true;
 			array[key - 1] = value.isnil() ? null :
 				(m_metatable != null ? m_metatable.wrap(value) : value);
 			return true;
 		}
+		if ( ints != null || doubles != null )
+			return numberset(key, value);
 		return false;
 	}
 
+	/** 
+	 * Start keeping the array part as numbers, if it has no values yet.  
+	 * @param value the number being stored at index 1
+	 * @return true if the value was stored
+	 */
+	private boolean pack( LuaValue value ) {
+		if ( m_metatable != null && m_metatable.useWeakValues() )
+			return false;
+		final int n = array.length;
+		for ( int i = 1; i < n; ++i )
+			if ( array[i] != null )
+				return false;
+		if ( value instanceof LuaInteger ) {
+			ints = new int[n];
+			ints[0] = ((LuaInteger) value).v;
+		} else {
+			doubles = new double[n];
+			doubles[0] = value.todouble();
+		}
+		count = 1;
+		array = NOVALS;
+		return true;
+	}
+
+	/** 
+	 * Set an element of the numeric array part, growing it when a number is 
+	 * appended at its end, or converting it back to {@link #array} when a 
+	 * value is stored that is not a number or that leaves a gap.
+	 * @return false if the key is not in the array part
+	 */
+	private boolean numberset( int key, LuaValue value ) {
+		final int n = getArrayLength();
+		if ( key <= 0 || key > n + 1 )
+			return false;
+		if ( value instanceof LuaNumber && key <= count + 1 ) {
+			if ( key > n ) {
+				// grow like a rehash would, if no integer keys can be in the hash part 
+				if ( hashEntries > 0 )
+					return false;
+				presize( n * 2 );
+			}
+			if ( ints != null ) {
+				if ( value instanceof LuaInteger ) {
+					ints[key - 1] = ((LuaInteger) value).v;
+				} else {
+					doubles = new double[ints.length];
+					for ( int i = 0; i < count; ++i )
+						doubles[i] = ints[i];
+					ints = null;
+					doubles[key - 1] = value.todouble();
+				}
+			} else {
+				doubles[key - 1] = value.todouble();
+			}
+			if ( key > count )
+				count = key;
+			return true;
+		}
+		if ( key > n )
+			return false;
+		if ( value.isnil() && key >= count ) {
+			if ( key == count )
+				--count;
+			return true;
+		}
+		box();
+		return arrayset(key, value);
+	}
+
+	/** Box the values of the numeric array part into {@link #array}. */
+	private void box() {
+		final LuaValue[] a = new LuaValue[getArrayLength()];
+		for ( int i = 0; i < count; ++i )
+			a[i] = numberget(i);
+		ints = null;
+		doubles = null;
+		count = 0;
+		array = a;
+	}
+
 	/** Remove the element at a position in a list-table
 	 *  
 	 * @param pos the position to remove
@@ -359,6 +591,8 @@ public class LuaTable extends LuaValue implements Metatable {
 
 	public int rawlen() { 
 		int a = getArrayLength();
+		if ( ( ints != null || doubles != null ) && count < a )
+			return count;
 		int n = a+1,m=0;
 		while ( !rawget(n).isnil() ) {
 			m = n;
@@ -379,16 +613,23 @@ public class LuaTable extends LuaValue implements Metatable {
 	 * @return key,value or nil
 	 */
 	public Varargs next( LuaValue key ) {
+		final int n = getArrayLength();
 		int i = 0;
 		do {
 			// find current key index
 			if ( ! key.isnil() ) {
 				if ( key.isinttype() ) {
 					i = key.toint();
-					if ( i>0 && i<=array.length ) {
+					if ( i>0 && i<=n ) {
 						break;
 					}
 				}
+				if ( shape != null ) {
+					if ( ( i = shape.find( key ) ) < 0 )
+						error( "invalid key to 'next'" );
+					i += 1+n;
+					break;
+				}
 				if ( hash.length == 0 )
 					error( "invalid key to 'next'" );
 				i = hashSlot( key );
@@ -406,11 +647,13 @@ public class LuaTable extends LuaValue implements Metatable {
 				if ( !found ) {
 					error( "invalid key to 'next'" );
 				}
-				i += 1+array.length;
+				i += 1+n;
 			}
 		} while ( false );
 
 		// check array part
+		if ( i < count )
+			return varargsOf(LuaInteger.valueOf(i+1),numberget(i));
 		for ( ; i<array.length; ++i ) {
 			if ( array[i] != null ) {
 				LuaValue value = m_metatable == null ? array[i] : m_metatable.arrayget(array, i);
@@ -419,9 +662,19 @@ public class LuaTable extends LuaValue implements Metatable {
 				}
 			}
 		}
+		if ( i < n )
+			i = n;
+
+		// check shape fields
+		if ( shape != null ) {
+			for ( i -= n; i < shape.keys.length; ++i )
+				if ( fields[i] != null )
+					return varargsOf(shape.keys[i], fields[i]);
+			return NIL;
+		}
 
 		// check hash part
-		for ( i -= array.length; i < hash.length; ++i ) {
+		for ( i -= n; i < hash.length; ++i ) {
 			Slot slot = hash[i];
 			while ( slot != null ) {
 				StrongSlot first = slot.first();
@@ -452,6 +705,14 @@ public class LuaTable extends LuaValue implements Metatable {
 	 * @param value value to set
 	 */
 	public void hashset(LuaValue key, LuaValue value) {
+		if ( shape != null ) {
+			if ( !shapeset(key, value) ) {
+				// moving the fields may resize the array part, so the key may now go there
+				unshape();
+				rawset(key, value);
+			}
+			return;
+		}
 		if ( value.isnil() )
 			hashRemove(key);
 		else {
@@ -485,6 +746,48 @@ public class LuaTable extends LuaValue implements Metatable {
 		}
 	}
 
+	/**
+	 * Set a value in the shape fields, adding the key to the shape if needed.  
+	 * Removed keys stay in the shape with no value, so that traversal with 
+	 * {@link #next(LuaValue)} is not disturbed when fields are cleared.
+	 * @return false if the key does not fit the shape, and the table must use the hash part.
+	 */
+	private boolean shapeset(LuaValue key, LuaValue value) {
+		int i = shape.find(key);
+		if ( i >= 0 ) {
+			fields[i] = value.isnil()? null: value;
+			return true;
+		}
+		if ( value.isnil() )
+			return true;
+		if ( !(key instanceof LuaString) )
+			return false;
+		final Shape s = shape.child((LuaString) key);
+		if ( s == null )
+			return false;
+		i = shape.keys.length;
+		if ( i >= fields.length ) {
+			LuaValue[] f = new LuaValue[Math.min(Math.max(4, i * 2), Shape.MAX_KEYS)];
+			System.arraycopy(fields, 0, f, 0, i);
+			fields = f;
+		}
+		fields[i] = value;
+		shape = s;
+		return true;
+	}
+
+	/** Move the values of the shape fields into the hash part, to hold keys that do not fit a shape. */
+	private void unshape() {
+		final LuaString[] keys = shape.keys;
+		final LuaValue[] values = fields;
+		shape = null;
+		fields = null;
+		++version;
+		for ( int i = 0; i < keys.length; ++i )
+			if ( values[i] != null )
+				hashset(keys[i], values[i]);
+	}
+
 	public static int hashpow2( int hashCode, int mask ) {
 		return hashCode & mask;
 	}
@@ -529,6 +832,7 @@ public class LuaTable extends LuaValue implements Metatable {
 				if ( ( foundSlot = slot.find( key ) ) != null ) {
 					hash[index] = hash[index].remove( foundSlot );
 					--hashEntries;
+					++version;
 					return;
 				}
 			}
@@ -634,6 +938,9 @@ public class LuaTable extends LuaValue implements Metatable {
 	 * newKey < 0 next key will go in hash part
 	 */
 	private void rehash(int newKey) {
+		++version;
+		if ( ints != null || doubles != null )
+			box();
 		if ( m_metatable != null && ( m_metatable.useWeakKeys() || m_metatable.useWeakValues() )) {
 			// If this table has weak entries, hashEntries is just an upper bound.
 			hashEntries = countHashKeys();
@@ -783,9 +1090,12 @@ public class LuaTable extends LuaValue implements Metatable {
 		if (m_metatable != null && m_metatable.useWeakValues()) {
 			dropWeakArrayValues();
 		}
-		int n = array.length;
-		while ( n > 0 && array[n-1] == null )
-			--n;
+		int n = count;
+		if ( ints == null && doubles == null ) {
+			n = array.length;
+			while ( n > 0 && array[n-1] == null )
+				--n;
+		}
 		if ( n > 1 ) 
 			heapSort(n, comparator);
 	}
@@ -818,7 +1128,14 @@ public class LuaTable extends LuaValue implements Metatable {
 
 	private boolean compare(int i, int j, LuaValue cmpfunc) {
 		LuaValue a, b;
-		if (m_metatable == null) {
+		if (ints != null || doubles != null) {
+			if ( j >= count || i >= count )
+				return false;
+			if ( cmpfunc.isnil() )
+				return ints != null? ints[i] < ints[j]: doubles[i] < doubles[j];
+			a = numberget(i);
+			b = numberget(j);
+		} else if (m_metatable == null) {
 			a = array[i];
 			b = array[j];
 		} else {
@@ -835,9 +1152,19 @@ public class LuaTable extends LuaValue implements Metatable {
 	}
 	
 	private void swap(int i, int j) {
-		LuaValue a = array[i];
-		array[i] = array[j];
-		array[j] = a;
+		if (ints != null) {
+			int a = ints[i];
+			ints[i] = ints[j];
+			ints[j] = a;
+		} else if (doubles != null) {
+			double a = doubles[i];
+			doubles[i] = doubles[j];
+			doubles[j] = a;
+		} else {
+			LuaValue a = array[i];
+			array[i] = array[j];
+			array[j] = a;
+		}
 	}
 	
 	/** This may be deprecated in a future release.  
@@ -47,6 +47,9 @@ import java.lang.ref.WeakReference;
  * Each Java thread wakes up at regular intervals and checks a weak reference
  * to determine if it can ever be resumed.  If not, it throws 
  * {@link OrphanedThread} which is an {@link java.lang.Error}. 
+ * When the {@link #coroutine_executor} watches for unreferenced threads, 
+ * as the one installed by {@link org.luaj.vm2.lib.jse.JsePlatform} does, 
+ * the Java thread is instead woken as soon as the garbage collector clears the reference.
  * Applications should not catch {@link OrphanedThread}, because it can break
  * the thread safety of luaj.  The value controlling the polling interval 
  * is {@link #thread_orphan_check_interval} and may be set by the user.
@@ -73,14 +76,42 @@ public class LuaThread extends LuaValue {
 	/** The current number of coroutines.  Should not be set. */
 	public static int coroutine_count = 0;
 
+	/** Counts of coroutine bodies running or suspended on Java threads, 
+	 * of those that are suspended, and of those ended because they were orphaned. 
+	 * @see #getLiveCount()
+	 * @see #getSuspendedCount()
+	 * @see #getReclaimedCount()
+	 */
+	private static int live_count, suspended_count, reclaimed_count;
+
 	/** Polling interval, in milliseconds, which each thread uses while waiting to
 	 * return from a yielded state to check if the lua threads is no longer
 	 * referenced and therefore should be garbage collected.  
 	 * A short polling interval for many threads will consume server resources. 
 	 * Orphaned threads cannot be detected and collected unless garbage
-	 * collection is run.  This can be changed by Java startup code if desired.
+	 * collection is run.  Not used for threads whose {@link State#watched} is set. 
+	 * This can be changed by Java startup code if desired.
 	 */
 	public static long thread_orphan_check_interval = 5000;
+
+	/** Whether calls to {@link LuaClosure} reuse register frames from a stack kept 
+	 * by the running lua thread, rather than allocating new register arrays for each call. 
+	 * Frames are recycled when the call returns, so arguments passed from a frame 
+	 * to any function that is not a {@link LuaClosure} are copied out of the frame, 
+	 * and Java functions may keep the {@link Varargs} they are called with.  
+	 * Setting this to false restores the per-call allocation behavior.
+	 * This can be changed by Java startup code if desired.
+	 */
+	public static boolean reuse_register_frames = true;
+
+	/** Starts the Java threads that run the bodies of coroutines.  
+	 * The default starts a new Java thread for each coroutine.  
+	 * {@link org.luaj.vm2.lib.jse.JsePlatform} installs an executor that uses 
+	 * virtual threads when the JVM has them, or otherwise reuses idle threads.
+	 * This can be changed by Java startup code if desired.
+	 * @see Executor
+	 */
+	public static Executor coroutine_executor = Executor.THREAD_PER_COROUTINE;
 	
 	public static final int STATUS_INITIAL       = 0;
 	public static final int STATUS_SUSPENDED     = 1;
@@ -106,6 +137,9 @@ public class LuaThread extends LuaValue {
 
 	/** Error message handler for this thread, if any.  */
 	public LuaValue errorfunc;
+
+	/** Register frames reused by {@link LuaClosure} calls made on this thread. */
+	final RegisterStack registers = new RegisterStack();
 	
 	/** Private constructor for main thread only */
 	public LuaThread(Globals globals) {
@@ -153,7 +187,8 @@ public class LuaThread extends LuaValue {
 	}
 
 	public boolean isMainThread() {
-		return this.state.function == null;
+		// a coroutine drops its function when it ends
+		return this.state.function == null && this.state.status != STATUS_DEAD;
 	}
 
 	public Varargs resume(Varargs args) {
@@ -164,10 +199,61 @@ public class LuaThread extends LuaValue {
 		return s.lua_resume(this, args);
 	}
 
+	/** Get the number of coroutines whose body has started and not yet ended, 
+	 * each of which holds a Java thread. */
+	public static synchronized int getLiveCount() {
+		return live_count;
+	}
+
+	/** Get the number of live coroutines that are currently suspended in a yield. */
+	public static synchronized int getSuspendedCount() {
+		return suspended_count;
+	}
+
+	/** Get the total number of coroutines that were ended because their 
+	 * {@link LuaThread} was no longer referenced while they were suspended. */
+	public static synchronized int getReclaimedCount() {
+		return reclaimed_count;
+	}
+
+	private static synchronized void count(int live, int suspended, int reclaimed) {
+		live_count += live;
+		suspended_count += suspended;
+		reclaimed_count += reclaimed;
+	}
+
+	/** Interface for starting the Java thread that runs a coroutine body.
+	 * <p>
+	 * The body is resumed and yielded by handing control between the Java threads 
+	 * with {@code wait()} and {@code notify()}, so it must run on a thread of its own
+	 * that may block for as long as the coroutine is suspended.
+	 * <p>
+	 * An executor that can tell when the {@link LuaThread} is no longer referenced, 
+	 * for example with a reference queue, may set {@link State#watched} and call 
+	 * {@link State#orphan()} at that point, so a suspended body does not need to poll.
+	 * @see LuaThread#coroutine_executor
+	 */
+	public interface Executor {
+		/** Run the body of a coroutine, which is {@code thread.state}, on a new or idle Java thread.
+		 * The executor must not keep {@code thread} strongly reachable.
+		 * @param thread the coroutine to run
+		 * @param name name for the Java thread, if the executor names its threads
+		 */
+		void execute(LuaThread thread, String name);
+
+		/** Executor that starts a new Java thread for each coroutine, the default. */
+		Executor THREAD_PER_COROUTINE = new Executor() {
+			public void execute(LuaThread thread, String name) {
+				new Thread(thread.state, name).start();
+			}
+		};
+	}
+
 	public static class State implements Runnable {
 		private final Globals globals;
 		final WeakReference lua_thread;
-		public final LuaValue function;
+		/** The body of the coroutine, null for the main thread and once the body has ended. */
+		public LuaValue function;
 		Varargs args = LuaValue.NONE;
 		Varargs result = LuaValue.NONE;
 		String error = null;
@@ -185,6 +271,10 @@ public class LuaThread extends LuaValue {
 		
 		public int status = LuaThread.STATUS_INITIAL;
 
+		/** True when the executor will call {@link #orphan()} once the lua thread 
+		 * is no longer referenced, so a suspended body waits without polling. */
+		public volatile boolean watched;
+
 		State(Globals globals, LuaThread lua_thread, LuaValue function) {
 			this.globals = globals;
 			this.lua_thread = new WeakReference(lua_thread);
@@ -192,26 +282,42 @@ public class LuaThread extends LuaValue {
 		}
 		
 		public synchronized void run() {
+			int reclaimed = 0;
+			count(1, 0, 0);
 			try {
 				Varargs a = this.args;
 				this.args = LuaValue.NONE;
 				this.result = function.invoke(a);
 			} catch (Throwable t) {
 				this.error = t.getMessage();
+				if (t instanceof OrphanedThread && this.lua_thread.get() == null)
+					reclaimed = 1;
 			} finally {
 				this.status = LuaThread.STATUS_DEAD;
+				// a dead coroutine must not keep its body, or what the body refers to, reachable
+				this.function = null;
+				this.args = LuaValue.NONE;
+				count(-1, 0, reclaimed);
 				this.notify();
 			}
 		}
 
+		/** Wake the body if it is suspended, so it ends with {@link OrphanedThread} 
+		 * if the lua thread is no longer referenced. */
+		public synchronized void orphan() {
+			if (this.status == STATUS_SUSPENDED)
+				this.notify();
+		}
+
 		public synchronized Varargs lua_resume(LuaThread new_thread, Varargs args) {
 			LuaThread previous_thread = globals.running;
 			try {
 				globals.running = new_thread;
-				this.args = args;
+				// initial arguments may refer to registers of a frame that is reused before they are read
+				this.args = this.status == STATUS_INITIAL? args.dealias(): args;
 				if (this.status == STATUS_INITIAL) {
 					this.status = STATUS_RUNNING; 
-					new Thread(this, "Coroutine-"+(++coroutine_count)).start();
+					coroutine_executor.execute(new_thread, "Coroutine-"+(++coroutine_count));
 				} else {
 					this.notify();
 				}
@@ -238,9 +344,10 @@ public class LuaThread extends LuaValue {
 			try {
 				this.result = args;
 				this.status = STATUS_SUSPENDED;
+				count(0, 1, 0);
 				this.notify();
 				do {
-					this.wait(thread_orphan_check_interval);
+					this.wait(watched? 0: thread_orphan_check_interval);
 					if (this.lua_thread.get() == null) {
 						this.status = STATUS_DEAD;
 						throw new OrphanedThread();
@@ -251,10 +358,75 @@ public class LuaThread extends LuaValue {
 				this.status = STATUS_DEAD;
 				throw new OrphanedThread();
 			} finally {
+				count(0, -1, 0);
 				this.args = LuaValue.NONE;
 				this.result = LuaValue.NONE;
 			}
 		}
 	}
-		
+
+	/** Stack of register frames used by {@link LuaClosure} calls on one lua thread. 
+	 * <p>
+	 * Calls take frames from and return them to the stack in strict nesting order, 
+	 * so the register array and open upvalue array used at one call depth are 
+	 * reused by every later call at the same depth.  Frames are cleared when returned 
+	 * so they do not keep values reachable.  
+	 * <p>
+	 * The stack may only be used by one Java thread at a time, which is the thread 
+	 * that takes the outermost frame.  Calls from other Java threads, and calls 
+	 * nested deeper than {@link LuaThread#MAX_CALLSTACK}, allocate their own frames.
+	 */
+	static final class RegisterStack {
+		private static final LuaValue[] NULLS = new LuaValue[256];
+		private LuaValue[][] stacks = new LuaValue[8][];
+		private UpValue[][] openups = new UpValue[8][];
+		private int depth = 0;
+		private Thread owner;
+
+		/** Check if a frame can be taken by the current Java thread. */
+		boolean available() {
+			final Thread t = Thread.currentThread();
+			if (depth == 0)
+				owner = t;
+			else if (owner != t)
+				return false;
+			return depth < MAX_CALLSTACK;
+		}
+
+		/** Take the frame for the next call depth, with at least n registers, all null. */
+		LuaValue[] push(int n) {
+			if (depth >= stacks.length) {
+				LuaValue[][] s = new LuaValue[depth * 2][];
+				UpValue[][] u = new UpValue[depth * 2][];
+				System.arraycopy(stacks, 0, s, 0, depth);
+				System.arraycopy(openups, 0, u, 0, depth);
+				stacks = s;
+				openups = u;
+			}
+			LuaValue[] stack = stacks[depth];
+			if (stack == null || stack.length < n)
+				stacks[depth] = stack = new LuaValue[n];
+			++depth;
+			return stack;
+		}
+
+		/** Number of frames currently taken. */
+		int depth() {
+			return depth;
+		}
+
+		/** Open upvalue array of at least n entries, all null, for the frame at the top of the stack. */
+		UpValue[] openups(int n) {
+			UpValue[] u = openups[depth-1];
+			if (u == null || u.length < n)
+				openups[depth-1] = u = new UpValue[n];
+			return u;
+		}
+
+		/** Return the frame at the top of the stack, clearing the first n registers. */
+		void pop(LuaValue[] stack, int n) {
+			System.arraycopy(NULLS, 0, stack, 0, n);
+			--depth;
+		}
+	}
 }
@@ -100,6 +100,14 @@ public class Prototype {
 	public int numparams;
 	public int is_vararg;
 	public int maxstacksize;
+	/* inline caches for table lookups with constant keys, by pc, created when first used */
+	IndexCache[] indexcaches;
+	/* internal code run by the interpreter, created when first used */
+	int[] quickcode;
+	/* number of calls and backward jumps interpreted while a promoter is installed */
+	public int hotness;
+	/* compiled function to use in place of this prototype, set by a Globals.Promoter */
+	public volatile LuaFunction promoted;
 	private static final Upvaldesc[] NOUPVALUES = {};
 	private static final Prototype[] NOSUBPROTOS = {};
 
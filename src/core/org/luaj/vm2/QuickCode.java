@@ -0,0 +1,159 @@
+/*******************************************************************************
+* Copyright (c) 2015 Luaj.org. All rights reserved.
+*
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+*
+* The above copyright notice and this permission notice shall be included in
+* all copies or substantial portions of the Software.
+* 
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+* THE SOFTWARE.
+******************************************************************************/
+package org.luaj.vm2;
+
+/**
+ * Internal instruction set executed by the interpreter in {@link LuaClosure}.
+ * <p>
+ * The code of a {@link Prototype} is copied once, when it is first interpreted, 
+ * with instructions replaced by specialized variants that use the opcodes 
+ * above {@link Lua#OP_EXTRAARG}.  Variants know the kind of their operands, 
+ * such as a constant key or a constant number, so they need fewer decodes and 
+ * tests, and comparisons and tests that are followed by a forward jump 
+ * take the jump themselves instead of dispatching it.  The copy has the same 
+ * length as {@link Prototype#code}, so program counters, line info and 
+ * inline caches are shared, and {@link Prototype#code} itself stays standard 
+ * lua bytecode for the debug library, {@link org.luaj.vm2.compiler.DumpState} and luajc.
+ * <p>
+ * Some instructions are also quickened while they run: a {@link Lua#OP_FORPREP} whose 
+ * initial value, limit and step are integers turns its loop into {@link #OP_FORLOOP_INT}, 
+ * which turns itself back into a {@link Lua#OP_FORLOOP} when they are not.
+ * <p>
+ * The internal code is used when {@link LuaClosure#use_superinstructions} is true.
+ * 
+ * @see LuaClosure
+ * @see Prototype
+ */
+final class QuickCode {
+
+	/** A B C	R(A):= R(B)[K(C)]	*/
+	static final int OP_GETTABLE_K = 40;
+	/** A B C	R(A):= UpValue[B][K(C)]	*/
+	static final int OP_GETTABUP_K = 41;
+	/** A B C	R(A+1):= R(B): R(A):= R(B)[K(C)]	*/
+	static final int OP_SELF_K = 42;
+	/** A B C	R(A):= R(B) + K(C), K(C) a number	*/
+	static final int OP_ADD_RK_NUM = 43;
+	/** A B C	R(A):= R(B) - K(C), K(C) a number	*/
+	static final int OP_SUB_RK_NUM = 44;
+	/** A B C	if ((R(B) == K(C)) ~= A) then pc++ else jump, K(C) a string or number	*/
+	static final int OP_EQ_K = 45;
+	/** A B C	if ((RK(B) == RK(C)) ~= A) then pc++ else jump	*/
+	static final int OP_EQ_JMP = 46;
+	/** A B C	if ((RK(B) <  RK(C)) ~= A) then pc++ else jump	*/
+	static final int OP_LT_JMP = 47;
+	/** A B C	if ((RK(B) <= RK(C)) ~= A) then pc++ else jump	*/
+	static final int OP_LE_JMP = 48;
+	/** A C	if not (R(A) <=> C) then pc++ else jump	*/
+	static final int OP_TEST_JMP = 49;
+	/** A sBx	R(A)+=R(A+2): if R(A) <?= R(A+1) then { pc+=sBx: R(A+3)=R(A) }, all integers	*/
+	static final int OP_FORLOOP_INT = 50;
+	/** A B	R(A)(R(A+1), ... ,R(A+B-1)), 1 <= B <= 4	*/
+	static final int OP_CALL_FIXED0 = 51;
+	/** A B	R(A):= R(A)(R(A+1), ... ,R(A+B-1)), 1 <= B <= 4	*/
+	static final int OP_CALL_FIXED1 = 52;
+
+	private QuickCode() {}
+	
+	/** Get the internal code for a prototype, creating it if needed. 
+	 * @param p the prototype to be interpreted
+	 * @return the internal code, with the same length as {@code p.code}
+	 */
+	static int[] of(Prototype p) {
+		int[] q = p.quickcode;
+		if ( q == null )
+			p.quickcode = q = build(p);
+		return q;
+	}
+	
+	private static int[] build(Prototype p) {
+		final int[] code = p.code;
+		final int[] q = new int[code.length];
+		System.arraycopy(code, 0, q, 0, code.length);
+		for ( int pc = 0; pc < code.length; ++pc ) {
+			final int i = code[pc];
+			final int b = Lua.GETARG_B(i), c = Lua.GETARG_C(i);
+			switch ( Lua.GET_OPCODE(i) ) {
+			case Lua.OP_GETTABLE:
+				if ( Lua.ISK(c) ) q[pc] = op(i, OP_GETTABLE_K);
+				break;
+			case Lua.OP_GETTABUP:
+				if ( Lua.ISK(c) ) q[pc] = op(i, OP_GETTABUP_K);
+				break;
+			case Lua.OP_SELF:
+				if ( Lua.ISK(c) ) q[pc] = op(i, OP_SELF_K);
+				break;
+			case Lua.OP_ADD: case Lua.OP_SUB:
+				if ( !Lua.ISK(b) && Lua.ISK(c) && p.k[Lua.INDEXK(c)] instanceof LuaNumber )
+					q[pc] = op(i, Lua.GET_OPCODE(i) == Lua.OP_ADD? OP_ADD_RK_NUM: OP_SUB_RK_NUM);
+				break;
+			case Lua.OP_EQ:
+				if ( !jumps(code, pc + 1) )
+					break;
+				if ( Lua.ISK(b) != Lua.ISK(c) && isconstant(p.k[Lua.INDEXK(Lua.ISK(b)? b: c)]) )
+					q[pc] = Lua.ISK(b)? // equality is symmetric, so put the constant in C
+							op(i & ~(Lua.MASK_B | Lua.MASK_C), OP_EQ_K) | (c << Lua.POS_B) | (b << Lua.POS_C): 
+							op(i, OP_EQ_K);
+				else 
+					q[pc] = op(i, OP_EQ_JMP);
+				break;
+			case Lua.OP_LT:
+				if ( jumps(code, pc + 1) ) q[pc] = op(i, OP_LT_JMP);
+				break;
+			case Lua.OP_LE:
+				if ( jumps(code, pc + 1) ) q[pc] = op(i, OP_LE_JMP);
+				break;
+			case Lua.OP_TEST:
+				if ( jumps(code, pc + 1) ) q[pc] = op(i, OP_TEST_JMP);
+				break;
+			case Lua.OP_CALL:
+				if ( b >= 1 && b <= 4 && (c == 1 || c == 2) )
+					q[pc] = op(i, c == 1? OP_CALL_FIXED0: OP_CALL_FIXED1);
+				break;
+			case Lua.OP_LOADKX:
+				++pc;
+				break;
+			case Lua.OP_SETLIST:
+				if ( c == 0 ) ++pc;
+				break;
+			}
+		}
+		return q;
+	}
+	
+	/** Replace the opcode of an instruction. */
+	static int op(int i, int op) {
+		return (i & ~Lua.MASK_OP) | (op << Lua.POS_OP);
+	}
+	
+	/** Check if an instruction is a forward jump that closes no upvalues, 
+	 * which can be taken by the instruction before it. */
+	private static boolean jumps(int[] code, int pc) {
+		return pc < code.length && Lua.GET_OPCODE(code[pc]) == Lua.OP_JMP 
+			&& Lua.GETARG_A(code[pc]) == 0 && Lua.GETARG_sBx(code[pc]) >= 0;
+	}
+
+	/** Check if a constant compares equal only by raw equality, with no metamethods involved. */
+	private static boolean isconstant(LuaValue k) {
+		return k instanceof LuaString || k instanceof LuaNumber;
+	}
+}
@@ -0,0 +1,112 @@
+/*******************************************************************************
+* Copyright (c) 2015 Luaj.org. All rights reserved.
+*
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+*
+* The above copyright notice and this permission notice shall be included in
+* all copies or substantial portions of the Software.
+* 
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+* THE SOFTWARE.
+******************************************************************************/
+package org.luaj.vm2;
+
+/**
+ * Layout of the string keys of a record-like {@link LuaTable}.
+ * <p>
+ * Tables created by lua table constructors start with the empty shape {@link #ROOT}, 
+ * and each new string key moves the table to the child shape that adds that key.  
+ * Tables that are given the same keys in the same order therefore share one shape, 
+ * and keep only a flat array of values indexed by the position of each key in it.
+ * <p>
+ * Shapes are shared by all tables and threads.  To bound the memory they hold, a shape 
+ * has a limited number of keys and children, and the total number of shapes is limited.
+ * A table that needs a shape beyond these limits falls back to the hash representation.
+ * 
+ * @see LuaTable
+ */
+final class Shape {
+	
+	/** Maximum number of keys in a shape. */
+	static final int MAX_KEYS = 16;
+	
+	/** Maximum number of child shapes of one shape. */
+	static final int MAX_CHILDREN = 8;
+
+	/** Maximum number of shapes created in total. */
+	static final int MAX_SHAPES = 4096;
+	
+	private static final LuaString[] NOKEYS = {};
+	private static final Shape[] NOCHILDREN = {};
+
+	/** The shape with no keys. */
+	static final Shape ROOT = new Shape(NOKEYS);
+	
+	private static int count = 1;
+	
+	/** keys in order of position */
+	final LuaString[] keys;
+	
+	/** shapes that add one key to this shape */
+	private volatile Shape[] children = NOCHILDREN;
+	
+	private Shape(LuaString[] keys) {
+		this.keys = keys;
+	}
+	
+	/** Get the position of a key in this shape, or -1 if it is not one of the keys */
+	int find(LuaValue key) {
+		if ( key instanceof LuaString ) {
+			final LuaString[] k = keys;
+			for ( int i = 0; i < k.length; ++i )
+				if ( k[i].raweq((LuaString) key) )
+					return i;
+		}
+		return -1;
+	}
+	
+	/** Get the shape with the keys of this shape followed by another key, 
+	 * or null if the key is too long or limits on shapes prevent it. */
+	Shape child(LuaString key) {
+		if ( key.m_length > LuaString.RECENT_STRINGS_MAX_LENGTH )
+			return null;
+		Shape[] c = children;
+		for ( int i = 0; i < c.length; ++i )
+			if ( c[i].keys[keys.length].raweq(key) )
+				return c[i];
+		synchronized ( Shape.class ) {
+			c = children;
+			for ( int i = 0; i < c.length; ++i )
+				if ( c[i].keys[keys.length].raweq(key) )
+					return c[i];
+			if ( keys.length >= MAX_KEYS || c.length >= MAX_CHILDREN || count >= MAX_SHAPES )
+				return null;
+			if ( key.m_offset != 0 || key.m_bytes.length != key.m_length ) {
+				// do not keep a larger backing array reachable from the shape
+				final byte[] b = new byte[key.m_length];
+				key.copyInto(0, b, 0, b.length);
+				key = LuaString.valueUsing(b);
+			}
+			final LuaString[] k = new LuaString[keys.length + 1];
+			System.arraycopy(keys, 0, k, 0, keys.length);
+			k[keys.length] = key;
+			final Shape s = new Shape(k);
+			final Shape[] d = new Shape[c.length + 1];
+			System.arraycopy(c, 0, d, 0, c.length);
+			d[c.length] = s;
+			children = d;
+			++count;
+			return s;
+		}
+	}
+}
@@ -0,0 +1,698 @@
+/*******************************************************************************
+* Copyright (c) 2015 Luaj.org. All rights reserved.
+*
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+*
+* The above copyright notice and this permission notice shall be included in
+* all copies or substantial portions of the Software.
+* 
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+* THE SOFTWARE.
+******************************************************************************/
+package org.luaj.vm2.compiler;
+
+import org.luaj.vm2.Globals;
+import org.luaj.vm2.LocVars;
+import org.luaj.vm2.LuaError;
+import org.luaj.vm2.LuaValue;
+import org.luaj.vm2.Prototype;
+
+/**
+ * Optimizer of the lua bytecode produced by {@link LuaC}, run by {@link Globals#compilePrototype(java.io.InputStream, String)} 
+ * when installed as the {@link Globals#optimizer}.  The result is still standard lua 5.2 bytecode, 
+ * so it benefits both the interpreter in {@link org.luaj.vm2.LuaClosure} and the classes generated by luajc, 
+ * and can be dumped and loaded as usual.
+ * <p>
+ * The optimizer is a pipeline of {@link Pass}es that are applied in order to each prototype 
+ * and its nested prototypes, repeatedly until none of them changes the code.  The default passes are 
+ * <ul>
+ * <li>{@link #FOLD_CONSTANTS} which folds arithmetic and comparisons on numbers known to be constant, 
+ * including numbers held in locals, and uses constants in place of such registers.
+ * <li>{@link #REMOVE_REDUNDANT_MOVES} which removes moves of a register to itself or back to where it was moved from.
+ * <li>{@link #REMOVE_DEAD_STORES} which removes loads of registers that are never read before they are written again.
+ * <li>{@link #REMOVE_DEAD_JUMPS} which redirects jumps to jumps, and removes jumps to the next instruction 
+ * and code that can not be reached.
+ * </ul>
+ * Registers that are captured as upvalues are left alone, and named locals keep their values 
+ * for {@code debug.getlocal}, but uses of a local folded to a constant do not see changes made 
+ * by {@code debug.setlocal}, so the optimizer is not installed by default.  
+ * To use it: 
+ * <pre> {@code
+ * Globals globals = JsePlatform.standardGlobals();
+ * BytecodeOptimizer.install(globals);
+ * } </pre>
+ * 
+ * @see Globals#optimizer
+ * @see LuaC
+ */
+public class BytecodeOptimizer extends Constants implements Globals.Optimizer {
+
+	/** One transformation of the code of a single prototype. */
+	public interface Pass {
+		/** Transform the code of a prototype in place.
+		 * @return true if the code was changed */
+		boolean apply(Prototype p);
+	}
+	
+	/** Pass that folds arithmetic and comparisons on constant numbers. */
+	public static final Pass FOLD_CONSTANTS = new Pass() {
+		public boolean apply(Prototype p) { return foldConstants(p); }
+	};
+	
+	/** Pass that removes moves that do not change any register. */
+	public static final Pass REMOVE_REDUNDANT_MOVES = new Pass() {
+		public boolean apply(Prototype p) { return removeRedundantMoves(p); }
+	};
+	
+	/** Pass that removes loads of registers whose values are never read. */
+	public static final Pass REMOVE_DEAD_STORES = new Pass() {
+		public boolean apply(Prototype p) { return removeDeadStores(p); }
+	};
+	
+	/** Pass that threads jumps to jumps, and removes empty jumps and unreachable code. */
+	public static final Pass REMOVE_DEAD_JUMPS = new Pass() {
+		public boolean apply(Prototype p) { return removeDeadJumps(p); }
+	};
+
+	/** A sharable instance of the optimizer with the default passes. */
+	public static final BytecodeOptimizer instance = new BytecodeOptimizer(new Pass[] {
+		FOLD_CONSTANTS, REMOVE_REDUNDANT_MOVES, REMOVE_DEAD_STORES, REMOVE_DEAD_JUMPS,
+	});
+	
+	/** Maximum number of times the passes are applied to one prototype. */
+	private static final int MAX_ROUNDS = 4;
+	
+	/** Install the optimizer with the default passes, so that prototypes compiled 
+	 * from source by the globals are optimized.
+	 * @param globals the Globals into which this is to be installed.
+	 */
+	public static void install(Globals globals) {
+		globals.optimizer = instance;
+	}
+
+	private final Pass[] passes;
+	
+	/** Construct an optimizer that applies a pipeline of passes. 
+	 * @param passes the passes to apply in order 
+	 */
+	public BytecodeOptimizer(Pass[] passes) {
+		this.passes = passes;
+	}
+	
+	public Prototype optimize(Prototype p) {
+		for ( int i = 0; i < p.p.length; ++i )
+			optimize(p.p[i]);
+		for ( int round = 0; round < MAX_ROUNDS; ++round ) {
+			boolean changed = false;
+			for ( int i = 0; i < passes.length; ++i )
+				changed |= passes[i].apply(p);
+			if ( !changed )
+				break;
+		}
+		return p;
+	}
+	
+	// ------------------- instructions -------------------
+	
+	/** Check if an instruction may skip the next one. */
+	private static boolean skipsNext(int i) {
+		switch ( GET_OPCODE(i) ) {
+		case OP_EQ: case OP_LT: case OP_LE: case OP_TEST: case OP_TESTSET: 
+			return true;
+		case OP_LOADBOOL:
+			return GETARG_C(i) != 0;
+		default:
+			return false;
+		}
+	}
+
+	/** Check if an instruction may skip the next one, or uses it as an argument, 
+	 * or is always followed by it, so the two must stay together. */
+	private static boolean pairedWithNext(int i) {
+		switch ( GET_OPCODE(i) ) {
+		case OP_LOADKX: case OP_TFORCALL:
+			return true;
+		case OP_SETLIST:
+			return GETARG_C(i) == 0;
+		default:
+			return skipsNext(i);
+		}
+	}
+
+	/** Get the target of a jump instruction, or -1 if it is not a jump. */
+	private static int target(int[] code, int pc) {
+		switch ( GET_OPCODE(code[pc]) ) {
+		case OP_JMP: case OP_FORLOOP: case OP_FORPREP: case OP_TFORLOOP:
+			return pc + 1 + GETARG_sBx(code[pc]);
+		default:
+			return -1;
+		}
+	}
+	
+	/** Check if execution can continue with the next instruction. */
+	private static boolean fallsThrough(int i) {
+		switch ( GET_OPCODE(i) ) {
+		case OP_JMP: case OP_FORPREP: case OP_RETURN:
+			return false;
+		default:
+			return true;
+		}
+	}
+	
+	/** Get the instruction that follows one in the code, skipping an extra argument. */
+	private static int next(int[] code, int pc) {
+		final int i = code[pc];
+		final int o = GET_OPCODE(i);
+		return o == OP_LOADKX || (o == OP_SETLIST && GETARG_C(i) == 0)? pc + 2: pc + 1;
+	}
+	
+	/** Find the instructions that may be reached other than by falling through from the previous one. */
+	private static boolean[] findLeaders(int[] code) {
+		final boolean[] leader = new boolean[code.length + 2];
+		leader[0] = true;
+		for ( int pc = 0; pc < code.length; ++pc ) {
+			final int t = target(code, pc);
+			if ( t >= 0 )
+				leader[t] = true;
+			if ( skipsNext(code[pc]) )
+				leader[pc + 2] = true;
+		}
+		return leader;
+	}
+	
+	/** Find the registers captured as upvalues by closures created in a prototype. */
+	private static boolean[] findCaptured(Prototype p) {
+		final boolean[] captured = new boolean[p.maxstacksize + 1];
+		final int[] code = p.code;
+		for ( int pc = 0; pc < code.length; ++pc ) {
+			if ( GET_OPCODE(code[pc]) == OP_CLOSURE ) {
+				final Prototype np = p.p[GETARG_Bx(code[pc])];
+				for ( int j = 0; j < np.upvalues.length; ++j )
+					if ( np.upvalues[j].instack )
+						captured[np.upvalues[j].idx] = true;
+			}
+		}
+		return captured;
+	}
+	
+	/** Find the registers holding named locals at each instruction, which the 
+	 * debug library can read, using the same numbering as {@link Prototype#getlocalname(int, int)}. */
+	private static boolean[][] findVisible(Prototype p) {
+		final boolean[][] visible = new boolean[p.code.length][p.maxstacksize + 1];
+		final LocVars[] locvars = p.locvars;
+		for ( int pc = 0; pc < visible.length; ++pc ) 
+			for ( int i = 0, r = 0; i < locvars.length && locvars[i].startpc <= pc; ++i )
+				if ( pc < locvars[i].endpc && r < visible[pc].length )
+					visible[pc][r++] = true;
+		return visible;
+	}
+	
+	// ------------------- constant folding -------------------
+	
+	static boolean foldConstants(Prototype p) {
+		final int[] code = p.code;
+		final LuaValue[][] in = findConstants(p);
+		boolean changed = false;
+		for ( int pc = 0; pc < code.length; pc = next(code, pc) ) {
+			final LuaValue[] known = in[pc];
+			if ( known == null )
+				continue;
+			final int i = code[pc];
+			final int o = GET_OPCODE(i);
+			final int a = GETARG_A(i);
+			switch ( o ) {
+			case OP_MOVE: case OP_UNM: case OP_ADD: case OP_SUB: case OP_MUL: case OP_DIV: case OP_MOD: case OP_POW: {
+				final int b = GETARG_B(i), c = GETARG_C(i);
+				final LuaValue vb = rk(p, known, b), vc = o == OP_MOVE || o == OP_UNM? null: rk(p, known, c);
+				final LuaValue r = o == OP_MOVE? vb: vb != null && (vc != null || o == OP_UNM)? fold(o, vb, vc): null;
+				final int k = r != null? constant(p, r, MAXARG_Bx): -1;
+				if ( k >= 0 ) {
+					code[pc] = CREATE_ABx(OP_LOADK, a, k);
+					changed = true;
+				} else if ( o != OP_MOVE && o != OP_UNM ) {
+					changed |= propagate(p, code, pc, vb, vc);
+				}
+				continue;
+			}
+			case OP_EQ: case OP_LT: case OP_LE: {
+				final int b = GETARG_B(i), c = GETARG_C(i);
+				final LuaValue vb = rk(p, known, b), vc = rk(p, known, c);
+				if ( vb != null && vc != null ) {
+					final boolean r = o == OP_EQ? vb.eq_b(vc): o == OP_LT? vb.lt_b(vc): vb.lteq_b(vc);
+					// the next instruction is skipped when the result differs from A
+					code[pc] = CREATE_ABx(OP_JMP, 0, (r != (a != 0)? 1: 0) + MAXARG_sBx);
+					changed = true;
+				} else {
+					changed |= propagate(p, code, pc, vb, vc);
+				}
+				continue;
+			}
+			default:
+				continue;
+			}
+		}
+		return changed;
+	}
+	
+	/** Find the registers known to hold the same constant number on every path 
+	 * to each instruction, or null for instructions that can not be reached. */
+	private static LuaValue[][] findConstants(Prototype p) {
+		final int[] code = p.code;
+		final boolean[] captured = findCaptured(p);
+		final LuaValue[][] in = new LuaValue[code.length + 2][];
+		in[0] = new LuaValue[p.maxstacksize + 1];
+		boolean changed = true;
+		while ( changed ) {
+			changed = false;
+			for ( int pc = 0; pc < code.length; pc = next(code, pc) ) {
+				if ( in[pc] == null )
+					continue;
+				final int i = code[pc];
+				final LuaValue[] out = (LuaValue[]) in[pc].clone();
+				step(p, i, out, captured);
+				if ( fallsThrough(i) )
+					changed |= merge(in, next(code, pc), out);
+				if ( skipsNext(i) )
+					changed |= merge(in, pc + 2, out);
+				final int t = target(code, pc);
+				if ( t >= 0 )
+					changed |= merge(in, t, out);
+			}
+		}
+		return in;
+	}
+	
+	/** Merge the registers known on one path into those known at an instruction, 
+	 * keeping only the constants that are the same on both. */
+	private static boolean merge(LuaValue[][] in, int pc, LuaValue[] known) {
+		final LuaValue[] to = in[pc];
+		if ( to == null ) {
+			in[pc] = (LuaValue[]) known.clone();
+			return true;
+		}
+		boolean changed = false;
+		for ( int r = 0; r < to.length; ++r ) {
+			if ( to[r] != null && (known[r] == null || 
+					Double.doubleToLongBits(to[r].todouble()) != Double.doubleToLongBits(known[r].todouble())) ) {
+				to[r] = null;
+				changed = true;
+			}
+		}
+		return changed;
+	}
+	
+	/** Update the registers known to hold constant numbers for the effect of an instruction. */
+	private static void step(Prototype p, int i, LuaValue[] known, boolean[] captured) {
+		final int o = GET_OPCODE(i);
+		final int a = GETARG_A(i);
+		LuaValue r;
+		switch ( o ) {
+		case OP_LOADK: r = p.k[GETARG_Bx(i)]; if ( r.type() != LuaValue.TNUMBER ) r = null; break;
+		case OP_MOVE: r = known[GETARG_B(i)]; break;
+		case OP_UNM: r = known[GETARG_B(i)]; if ( r != null ) r = fold(o, r, null); break;
+		case OP_ADD: case OP_SUB: case OP_MUL: case OP_DIV: case OP_MOD: case OP_POW: {
+			final LuaValue vb = rk(p, known, GETARG_B(i)), vc = rk(p, known, GETARG_C(i));
+			r = vb != null && vc != null? fold(o, vb, vc): null;
+			break;
+		}
+		default:
+			forget(i, known);
+			return;
+		}
+		known[a] = captured[a]? null: r;
+	}
+
+	/** Get the constant number of a register or constant operand, or null if it is not known. */
+	private static LuaValue rk(Prototype p, LuaValue[] known, int rk) {
+		if ( ISK(rk) ) {
+			final LuaValue v = p.k[INDEXK(rk)];
+			return v.type() == LuaValue.TNUMBER? v: null;
+		}
+		return known[rk];
+	}
+
+	/** Use constants in place of the register operands of an instruction whose values are known. */
+	private static boolean propagate(Prototype p, int[] code, int pc, LuaValue vb, LuaValue vc) {
+		final int i = code[pc];
+		final int b = GETARG_B(i), c = GETARG_C(i);
+		final int nb = operand(p, vb, b), nc = operand(p, vc, c);
+		if ( nb == b && nc == c )
+			return false;
+		code[pc] = CREATE_ABC(GET_OPCODE(i), GETARG_A(i), nb, nc);
+		return true;
+	}
+
+	/** Get the operand to use for a register or constant operand whose constant value may be known. */
+	private static int operand(Prototype p, LuaValue v, int rk) {
+		if ( v == null || ISK(rk) )
+			return rk;
+		final int k = constant(p, v, MAXINDEXRK);
+		return k >= 0? RKASK(k): rk;
+	}
+	
+	/** Compute an operation on constant numbers, or return null if it should not be folded 
+	 * since it divides by zero or does not have a plain numeric result, as in lua's own constant folding. */
+	private static LuaValue fold(int o, LuaValue b, LuaValue c) {
+		try {
+			LuaValue r;
+			switch ( o ) {
+			case OP_ADD: r = b.add(c); break;
+			case OP_SUB: r = b.sub(c); break;
+			case OP_MUL: r = b.mul(c); break;
+			case OP_DIV: if ( c.todouble() == 0 ) return null; r = b.div(c); break;
+			case OP_MOD: if ( c.todouble() == 0 ) return null; r = b.mod(c); break;
+			case OP_POW: r = b.pow(c); break;
+			case OP_UNM: r = b.neg(); break;
+			default: return null;
+			}
+			final double d = r.todouble();
+			if ( Double.isNaN(d) || (d == 0 && 1 / d < 0) )
+				return null;
+			return r;
+		} catch ( LuaError e ) {
+			return null;
+		}
+	}
+
+	/** Get the index of a number in the constants, adding it if needed, or -1 if the index would exceed a limit. */
+	private static int constant(Prototype p, LuaValue v, int limit) {
+		final LuaValue[] k = p.k;
+		final long bits = Double.doubleToLongBits(v.todouble());
+		for ( int i = 0; i < k.length && i <= limit; ++i )
+			if ( k[i].type() == LuaValue.TNUMBER && Double.doubleToLongBits(k[i].todouble()) == bits )
+				return i;
+		if ( k.length > limit )
+			return -1;
+		final LuaValue[] nk = new LuaValue[k.length + 1];
+		System.arraycopy(k, 0, nk, 0, k.length);
+		nk[k.length] = v;
+		p.k = nk;
+		return k.length;
+	}
+	
+	/** Forget the constant values of the registers an instruction may write. */
+	private static void forget(int i, LuaValue[] known) {
+		final int a = GETARG_A(i);
+		int from = a, to = a;
+		switch ( GET_OPCODE(i) ) {
+		case OP_SETTABUP: case OP_SETUPVAL: case OP_SETTABLE: case OP_JMP: case OP_TEST:
+		case OP_RETURN: case OP_SETLIST: case OP_EXTRAARG:
+			return;
+		case OP_LOADNIL: to = a + GETARG_B(i); break;
+		case OP_SELF: to = a + 1; break;
+		case OP_FORLOOP: to = a + 3; break;
+		case OP_TFORCALL: to = known.length - 1; break;
+		case OP_CALL: case OP_TAILCALL: case OP_VARARG: to = known.length - 1; break;
+		}
+		for ( int r = from; r <= to && r < known.length; ++r )
+			known[r] = null;
+	}
+
+	// ------------------- moves -------------------
+	
+	static boolean removeRedundantMoves(Prototype p) {
+		final int[] code = p.code;
+		final boolean[] leader = findLeaders(code);
+		final boolean[] remove = new boolean[code.length];
+		boolean changed = false;
+		for ( int pc = 0; pc < code.length; ++pc ) {
+			final int i = code[pc];
+			if ( GET_OPCODE(i) != OP_MOVE || !removable(code, pc) )
+				continue;
+			final int a = GETARG_A(i), b = GETARG_B(i);
+			if ( a == b ) {
+				remove[pc] = changed = true;
+			} else if ( pc > 0 && !leader[pc] && !remove[pc-1] && code[pc-1] == CREATE_ABC(OP_MOVE, b, a, 0) ) {
+				remove[pc] = changed = true;
+			}
+		}
+		if ( changed )
+			compact(p, remove);
+		return changed;
+	}
+
+	/** Check if an instruction may be removed without separating it from the one before it. */
+	private static boolean removable(int[] code, int pc) {
+		return pc == 0 || !pairedWithNext(code[pc-1]);
+	}
+	
+	// ------------------- dead stores -------------------
+
+	static boolean removeDeadStores(Prototype p) {
+		final int[] code = p.code;
+		final int n = code.length;
+		final int nregs = p.maxstacksize + 1;
+		final boolean[] captured = findCaptured(p);
+		final boolean[][] visible = findVisible(p);
+		
+		// registers live before each instruction, computed backwards to a fixed point,
+		// treating named locals as read by every instruction in their scope
+		final boolean[][] live = new boolean[n + 2][nregs];
+		boolean changed = true;
+		while ( changed ) {
+			changed = false;
+			for ( int pc = n - 1; pc >= 0; --pc ) {
+				final boolean[] in = new boolean[nregs];
+				final int i = code[pc];
+				final int o = GET_OPCODE(i);
+				if ( o == OP_EXTRAARG )
+					continue;
+				if ( fallsThrough(i) )
+					union(in, live[next(code, pc)]);
+				if ( skipsNext(i) )
+					union(in, live[pc + 2]);
+				final int t = target(code, pc);
+				if ( t >= 0 ) {
+					// loops set the loop variable only when they jump back
+					final int v = o == OP_FORLOOP? GETARG_A(i) + 3: o == OP_TFORLOOP? GETARG_A(i): -1;
+					final boolean keep = v >= 0 && v < nregs && in[v];
+					union(in, live[t]);
+					if ( v >= 0 && v < nregs )
+						in[v] = keep;
+				}
+				kill(i, in);
+				read(p, i, in);
+				union(in, visible[pc]);
+				for ( int r = 0; r < nregs; ++r ) {
+					if ( in[r] && !live[pc][r] ) {
+						live[pc][r] = true;
+						changed = true;
+					}
+				}
+			}
+		}
+		
+		// remove side effect free loads of registers that are dead after them
+		final boolean[] remove = new boolean[n];
+		boolean removed = false;
+		for ( int pc = 0; pc < n; ++pc ) {
+			final int i = code[pc];
+			final int a = GETARG_A(i);
+			int to;
+			switch ( GET_OPCODE(i) ) {
+			case OP_MOVE: case OP_LOADK: case OP_GETUPVAL: case OP_NOT: to = a; break;
+			case OP_LOADBOOL: if ( GETARG_C(i) != 0 ) continue; to = a; break;
+			case OP_LOADNIL: to = a + GETARG_B(i); break;
+			default: continue;
+			}
+			if ( !removable(code, pc) )
+				continue;
+			final boolean[] after = live[pc + 1];
+			boolean dead = true;
+			for ( int r = a; r <= to && dead; ++r )
+				dead = !after[r] && !captured[r];
+			if ( dead )
+				remove[pc] = removed = true;
+		}
+		if ( removed )
+			compact(p, remove);
+		return removed;
+	}
+	
+	private static void union(boolean[] a, boolean[] b) {
+		for ( int r = 0; r < a.length; ++r )
+			a[r] |= b[r];
+	}
+
+	/** Remove the registers that an instruction always writes from a set of live registers. */
+	private static void kill(int i, boolean[] live) {
+		final int a = GETARG_A(i);
+		int to = a;
+		switch ( GET_OPCODE(i) ) {
+		case OP_MOVE: case OP_LOADK: case OP_LOADKX: case OP_LOADBOOL: case OP_GETUPVAL: 
+		case OP_GETTABUP: case OP_GETTABLE: case OP_NEWTABLE: case OP_ADD: case OP_SUB: 
+		case OP_MUL: case OP_DIV: case OP_MOD: case OP_POW: case OP_UNM: case OP_NOT: 
+		case OP_LEN: case OP_CONCAT: case OP_CLOSURE: case OP_FORPREP: case OP_FORLOOP:
+			break;
+		case OP_LOADNIL: to = a + GETARG_B(i); break;
+		case OP_SELF: to = a + 1; break;
+		case OP_CALL: if ( GETARG_C(i) == 0 ) return; to = a + GETARG_C(i) - 2; break;
+		case OP_VARARG: if ( GETARG_B(i) == 0 ) return; to = a + GETARG_B(i) - 2; break;
+		case OP_TFORCALL: clear(live, a + 3, a + 2 + GETARG_C(i)); return;
+		default: return;
+		}
+		clear(live, a, to);
+	}
+	
+	private static void clear(boolean[] live, int from, int to) {
+		for ( int r = from; r <= to && r < live.length; ++r )
+			live[r] = false;
+	}
+
+	/** Add the registers that an instruction reads to a set of live registers. */
+	private static void read(Prototype p, int i, boolean[] live) {
+		final int a = GETARG_A(i), b = GETARG_B(i), c = GETARG_C(i);
+		final int top = live.length - 1;
+		switch ( GET_OPCODE(i) ) {
+		case OP_MOVE: case OP_UNM: case OP_NOT: case OP_LEN: case OP_TESTSET: 
+			live[b] = true; break;
+		case OP_GETTABUP: 
+			readrk(c, live); break;
+		case OP_GETTABLE: case OP_SELF: 
+			live[b] = true; readrk(c, live); break;
+		case OP_SETTABUP: case OP_ADD: case OP_SUB: case OP_MUL: case OP_DIV: case OP_MOD: case OP_POW:
+		case OP_EQ: case OP_LT: case OP_LE:
+			readrk(b, live); readrk(c, live); break;
+		case OP_SETTABLE:
+			live[a] = true; readrk(b, live); readrk(c, live); break;
+		case OP_SETUPVAL: case OP_TEST: 
+			live[a] = true; break;
+		case OP_CONCAT:
+			range(live, b, c); break;
+		case OP_CALL: case OP_TAILCALL: 
+			range(live, a, b == 0? top: a + b - 1); break;
+		case OP_RETURN: 
+			range(live, a, b == 0? top: a + b - 2); break;
+		case OP_SETLIST: 
+			range(live, a, b == 0? top: a + b); break;
+		case OP_FORLOOP: case OP_FORPREP: case OP_TFORCALL: 
+			range(live, a, a + 2); break;
+		case OP_TFORLOOP: 
+			live[a + 1] = true; break;
+		case OP_CLOSURE: {
+			final Prototype np = p.p[GETARG_Bx(i)];
+			for ( int j = 0; j < np.upvalues.length; ++j )
+				if ( np.upvalues[j].instack )
+					live[np.upvalues[j].idx] = true;
+			break;
+		}
+		}
+	}
+	
+	private static void readrk(int rk, boolean[] live) {
+		if ( !ISK(rk) )
+			live[rk] = true;
+	}
+	
+	private static void range(boolean[] live, int from, int to) {
+		for ( int r = from; r <= to && r < live.length; ++r )
+			live[r] = true;
+	}
+	
+	// ------------------- jumps -------------------
+	
+	static boolean removeDeadJumps(Prototype p) {
+		final int[] code = p.code;
+		final int n = code.length;
+		boolean changed = false;
+		
+		// redirect jumps to unconditional jumps that do not close upvalues
+		for ( int pc = 0; pc < n; ++pc ) {
+			if ( GET_OPCODE(code[pc]) != OP_JMP )
+				continue;
+			int t = target(code, pc);
+			for ( int hops = 0; hops < 8 && t < n && GET_OPCODE(code[t]) == OP_JMP 
+					&& GETARG_A(code[t]) == 0 && target(code, t) != t; ++hops )
+				t = target(code, t);
+			if ( t != target(code, pc) ) {
+				code[pc] = CREATE_ABx(OP_JMP, GETARG_A(code[pc]), t - pc - 1 + MAXARG_sBx);
+				changed = true;
+			}
+		}
+		
+		// find the reachable code
+		final boolean[] reached = new boolean[n + 2];
+		final int[] work = new int[n + 2];
+		int nwork = 0;
+		work[nwork++] = 0;
+		reached[0] = true;
+		while ( nwork > 0 ) {
+			final int pc = work[--nwork];
+			if ( pc >= n )
+				continue;
+			final int i = code[pc];
+			final int t = target(code, pc);
+			for ( int s = 0; s < 3; ++s ) {
+				final int succ = s == 0? (fallsThrough(i)? next(code, pc): -1): 
+					s == 1? t: (skipsNext(i)? pc + 2: -1);
+				if ( succ >= 0 && !reached[succ] ) {
+					reached[succ] = true;
+					work[nwork++] = succ;
+				}
+			}
+			if ( GET_OPCODE(i) == OP_LOADKX || (GET_OPCODE(i) == OP_SETLIST && GETARG_C(i) == 0) )
+				reached[pc + 1] = true;
+		}
+
+		// remove unreachable code and jumps to the next instruction, but keep the last instruction 
+		final boolean[] remove = new boolean[n];
+		boolean removed = false;
+		for ( int pc = 0; pc < n - 1; ++pc ) {
+			final int i = code[pc];
+			if ( !reached[pc] || (GET_OPCODE(i) == OP_JMP && GETARG_A(i) == 0 && GETARG_sBx(i) == 0 && removable(code, pc)) )
+				remove[pc] = removed = true;
+		}
+		if ( removed )
+			compact(p, remove);
+		return changed || removed;
+	}
+	
+	// ------------------- compaction -------------------
+	
+	/** Remove instructions from the code of a prototype, adjusting jumps, line info and local variable ranges. 
+	 * Jumps to a removed instruction go to the next instruction that is kept. */
+	private static void compact(Prototype p, boolean[] remove) {
+		final int[] code = p.code;
+		final int n = code.length;
+		final int[] newpc = new int[n + 1];
+		int m = 0;
+		for ( int pc = 0; pc < n; ++pc ) {
+			newpc[pc] = m;
+			if ( !remove[pc] )
+				++m;
+		}
+		newpc[n] = m;
+		final int[] ncode = new int[m];
+		final int[] nline = p.lineinfo != null && p.lineinfo.length == n? new int[m]: p.lineinfo;
+		for ( int pc = 0; pc < n; ++pc ) {
+			if ( remove[pc] )
+				continue;
+			int i = code[pc];
+			final int t = target(code, pc);
+			if ( t >= 0 )
+				i = (i & MASK_NOT_Bx) | ((newpc[t] - newpc[pc] - 1 + MAXARG_sBx) << POS_Bx);
+			ncode[newpc[pc]] = i;
+			if ( nline != p.lineinfo )
+				nline[newpc[pc]] = p.lineinfo[pc];
+		}
+		p.code = ncode;
+		p.lineinfo = nline;
+		if ( p.locvars != null ) {
+			for ( int j = 0; j < p.locvars.length; ++j ) {
+				final LocVars v = p.locvars[j];
+				v.startpc = newpc[Math.min(Math.max(v.startpc, 0), n)];
+				v.endpc = newpc[Math.min(Math.max(v.endpc, 0), n)];
+			}
+		}
+	}
+}
@@ -0,0 +1,398 @@
+/*******************************************************************************
+* Copyright (c) 2015 Luaj.org. All rights reserved.
+*
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+*
+* The above copyright notice and this permission notice shall be included in
+* all copies or substantial portions of the Software.
+* 
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+* THE SOFTWARE.
+******************************************************************************/
+package org.luaj.vm2.lib;
+
+import org.luaj.vm2.LuaString;
+import org.luaj.vm2.Varargs;
+
+/**
+ * Lua pattern compiled into a sequence of items for {@link StringLib}.
+ * <p>
+ * The pattern is parsed once into single character classes with their repetition, 
+ * captures, balances, frontiers and back references, with each character class 
+ * expanded into a table of the 256 byte values it matches, so matching does not 
+ * decode the pattern again.  Matching backtracks exactly like {@link StringLib.MatchState}, 
+ * and uses a prefix of the pattern to skip positions where a match can not start: 
+ * a literal string is searched for with {@link StringSearch}, otherwise the bytes that can not begin a match 
+ * are passed over.
+ * <p>
+ * Patterns that are malformed are not compiled, so that their errors are raised 
+ * by {@link StringLib.MatchState} only when matching reaches them, as before.
+ * A compiled pattern is immutable and can be shared by threads.
+ * 
+ * @see PatternCache
+ * @see StringLib
+ */
+final class CompiledPattern {
+
+	// kinds of items
+	private static final int SINGLE    = 0;
+	private static final int OPEN      = 1;
+	private static final int POSITION  = 2;
+	private static final int CLOSE     = 3;
+	private static final int BALANCE   = 4;
+	private static final int FRONTIER  = 5;
+	private static final int BACKREF   = 6;
+	private static final int END       = 7;
+
+	// repetitions of single character classes
+	private static final int ONE       = 0;
+	private static final int OPTIONAL  = 1;
+	private static final int GREEDY    = 2;
+	private static final int PLUS      = 3;
+	private static final int LAZY      = 4;
+
+	private static final boolean[] ANY = new boolean[256];
+	static {
+		for ( int c = 0; c < 256; ++c )
+			ANY[c] = true;
+	}
+	
+	/** kind, repetition and byte or capture argument of each item */
+	private final int[] kind;
+	private final int[] rep;
+	private final int[] arg;
+	
+	/** bytes matched by each class item, or null for a literal byte in {@link #arg} */
+	private final boolean[][] set;
+	
+	/** number of items, and of captures that can be open at once */
+	private final int n;
+	private final int ncaptures;
+	
+	/** search for the literal string every match starts with, or null */
+	private final StringSearch prefix;
+	
+	/** bytes that can start a match, or null if any position may start one */
+	private final boolean[] first;
+
+	private CompiledPattern(int[] kind, int[] rep, int[] arg, boolean[][] set, int n, int ncaptures) {
+		this.kind = kind;
+		this.rep = rep;
+		this.arg = arg;
+		this.set = set;
+		this.n = n;
+		this.ncaptures = ncaptures;
+		
+		// leading literal bytes and the class of the first byte, ignoring captures opened before them
+		int i = 0;
+		while ( i < n && (kind[i] == OPEN || kind[i] == POSITION) )
+			++i;
+		this.first = i < n && kind[i] == SINGLE && (rep[i] == ONE || rep[i] == PLUS)? 
+				(set[i] != null? set[i]: literal(arg[i])): null;
+		int len = 0;
+		final byte[] bytes = new byte[n];
+		for ( ; i < n && (kind[i] == OPEN || kind[i] == POSITION || 
+				(kind[i] == SINGLE && set[i] == null && (rep[i] == ONE || rep[i] == PLUS))); ++i ) {
+			if ( kind[i] == SINGLE ) {
+				bytes[len++] = (byte) arg[i];
+				if ( rep[i] == PLUS )
+					break;
+			}
+		}
+		this.prefix = len > 1? new StringSearch(LuaString.valueOf(bytes, 0, len)): null;
+	}
+	
+	private static boolean[] literal(int c) {
+		final boolean[] s = new boolean[256];
+		s[c] = true;
+		return s;
+	}
+	
+	/**
+	 * Compile a pattern from an offset.
+	 * @param p the pattern
+	 * @param poffset offset in the pattern where matching starts, after any anchor
+	 * @return the compiled pattern, or null if the pattern is malformed or has too many captures
+	 */
+	static CompiledPattern compile(LuaString p, int poffset) {
+		final int plen = p.length();
+		final int[] kind = new int[plen], rep = new int[plen], arg = new int[plen];
+		final boolean[][] set = new boolean[plen][];
+		final StringLib.MatchState classes = new StringLib.MatchState(null, null, p, 0);
+		int n = 0, ncaptures = 0;
+		while ( poffset < plen ) {
+			final int c = p.luaByte(poffset);
+			switch ( c ) {
+			case '(':
+				if ( poffset + 1 < plen && p.luaByte(poffset + 1) == ')' ) {
+					kind[n++] = POSITION;
+					poffset += 2;
+				} else {
+					kind[n++] = OPEN;
+					poffset += 1;
+				}
+				if ( ++ncaptures > StringLib.MAX_CAPTURES )
+					return null;
+				continue;
+			case ')':
+				kind[n++] = CLOSE;
+				poffset += 1;
+				continue;
+			case '$':
+				if ( poffset + 1 == plen ) {
+					kind[n++] = END;
+					poffset += 1;
+					continue;
+				}
+				break;
+			case StringLib.L_ESC:
+				if ( poffset + 1 == plen )
+					return null;
+				final int d = p.luaByte(poffset + 1);
+				if ( d == 'b' ) {
+					if ( poffset + 3 >= plen )
+						return null;
+					kind[n] = BALANCE;
+					arg[n++] = (p.luaByte(poffset + 2) << 8) | p.luaByte(poffset + 3);
+					poffset += 4;
+					continue;
+				}
+				if ( d == 'f' ) {
+					poffset += 2;
+					final int ep = poffset < plen && p.luaByte(poffset) == '['? classend(p, poffset): -1;
+					if ( ep < 0 )
+						return null;
+					kind[n] = FRONTIER;
+					set[n++] = bracket(classes, poffset, ep);
+					poffset = ep;
+					continue;
+				}
+				if ( Character.isDigit((char) d) ) {
+					kind[n] = BACKREF;
+					arg[n++] = d;
+					poffset += 2;
+					continue;
+				}
+				break;
+			}
+			
+			// single character class, with the repetition that follows it
+			final int ep = classend(p, poffset);
+			if ( ep < 0 )
+				return null;
+			kind[n] = SINGLE;
+			switch ( c ) {
+			case '.':
+				set[n] = ANY;
+				break;
+			case StringLib.L_ESC: {
+				final int cl = p.luaByte(poffset + 1);
+				final boolean[] s = new boolean[256];
+				for ( int b = 0; b < 256; ++b )
+					s[b] = StringLib.MatchState.match_class(b, cl);
+				set[n] = s;
+				break;
+			}
+			case '[':
+				set[n] = bracket(classes, poffset, ep);
+				break;
+			default:
+				arg[n] = c;
+				break;
+			}
+			switch ( ep < plen? p.luaByte(ep): '\0' ) {
+			case '?': rep[n] = OPTIONAL; poffset = ep + 1; break;
+			case '*': rep[n] = GREEDY; poffset = ep + 1; break;
+			case '+': rep[n] = PLUS; poffset = ep + 1; break;
+			case '-': rep[n] = LAZY; poffset = ep + 1; break;
+			default: rep[n] = ONE; poffset = ep; break;
+			}
+			++n;
+		}
+		return new CompiledPattern(kind, rep, arg, set, n, ncaptures);
+	}
+	
+	/** Find the end of the single character class at an offset, or -1 if it is malformed. */
+	private static int classend(LuaString p, int poffset) {
+		final int plen = p.length();
+		switch ( p.luaByte(poffset++) ) {
+		case StringLib.L_ESC:
+			return poffset < plen? poffset + 1: -1;
+		case '[':
+			if ( poffset < plen && p.luaByte(poffset) == '^' ) poffset++;
+			do {
+				if ( poffset >= plen )
+					return -1;
+				if ( p.luaByte(poffset++) == StringLib.L_ESC && poffset < plen )
+					poffset++;
+			} while ( poffset >= plen || p.luaByte(poffset) != ']' );
+			return poffset + 1;
+		default:
+			return poffset;
+		}
+	}
+	
+	/** Expand the bracket class from an offset to its end into the bytes it matches. */
+	private static boolean[] bracket(StringLib.MatchState classes, int poffset, int ep) {
+		final boolean[] s = new boolean[256];
+		for ( int b = 0; b < 256; ++b )
+			s[b] = classes.matchbracketclass(b, poffset, ep - 1);
+		return s;
+	}
+	
+	/** Create the state for matching a subject against this pattern. */
+	StringLib.MatchState matcher(Varargs args, LuaString s, LuaString p) {
+		return new Matcher(args, s, p);
+	}
+	
+	/** Match state that runs the compiled items, sharing capture handling with the interpreter. */
+	private final class Matcher extends StringLib.MatchState {
+
+		Matcher(Varargs args, LuaString s, LuaString p) {
+			super(args, s, p, ncaptures);
+		}
+		
+		int skip(int soffset) {
+			if ( prefix != null )
+				return prefix.indexOf(s, soffset);
+			if ( first != null ) {
+				final int len = s.length();
+				for ( ; soffset < len; ++soffset )
+					if ( first[s.luaByte(soffset)] )
+						return soffset;
+				return -1;
+			}
+			return soffset;
+		}
+
+		/** Match from the start of the compiled pattern, which already accounts for the pattern offset. */
+		int match(int soffset, int poffset) {
+			return run(soffset, 0);
+		}
+		
+		private boolean single(int i, int c) {
+			final boolean[] s = set[i];
+			return s != null? s[c]: c == arg[i];
+		}
+		
+		private int run(int soffset, int i) {
+			final int len = s.length();
+			while ( true ) {
+				if ( i == n )
+					return soffset;
+				switch ( kind[i] ) {
+				case OPEN: 
+					return start(soffset, i + 1, StringLib.CAP_UNFINISHED);
+				case POSITION: 
+					return start(soffset, i + 1, StringLib.CAP_POSITION);
+				case CLOSE: {
+					final int l = capture_to_close();
+					clen[l] = soffset - cinit[l];
+					final int res = run(soffset, i + 1);
+					if ( res == -1 )
+						clen[l] = StringLib.CAP_UNFINISHED;
+					return res;
+				}
+				case BALANCE:
+					if ( (soffset = balance(soffset, arg[i] >> 8, arg[i] & 0xff)) == -1 )
+						return -1;
+					++i;
+					continue;
+				case FRONTIER: {
+					final int previous = soffset == 0? 0: s.luaByte(soffset - 1);
+					final int current = soffset < len? s.luaByte(soffset): 0;
+					if ( set[i][previous] || !set[i][current] )
+						return -1;
+					++i;
+					continue;
+				}
+				case BACKREF:
+					if ( (soffset = match_capture(soffset, arg[i])) == -1 )
+						return -1;
+					++i;
+					continue;
+				case END:
+					return soffset == len? soffset: -1;
+				}
+				final boolean m = soffset < len && single(i, s.luaByte(soffset));
+				switch ( rep[i] ) {
+				case OPTIONAL: {
+					final int res;
+					if ( m && (res = run(soffset + 1, i + 1)) != -1 )
+						return res;
+					++i;
+					continue;
+				}
+				case GREEDY:
+					return expand(soffset, i);
+				case PLUS:
+					return m? expand(soffset + 1, i): -1;
+				case LAZY:
+					for ( ;; ) {
+						final int res = run(soffset, i + 1);
+						if ( res != -1 )
+							return res;
+						else if ( soffset < len && single(i, s.luaByte(soffset)) )
+							soffset++;
+						else 
+							return -1;
+					}
+				default:
+					if ( !m )
+						return -1;
+					++soffset;
+					++i;
+					continue;
+				}
+			}
+		}
+		
+		private int expand(int soffset, int i) {
+			final int len = s.length();
+			int k = 0;
+			while ( soffset + k < len && single(i, s.luaByte(soffset + k)) )
+				k++;
+			for ( ; k >= 0; --k ) {
+				final int res = run(soffset + k, i + 1);
+				if ( res != -1 )
+					return res;
+			}
+			return -1;
+		}
+		
+		private int start(int soffset, int i, int what) {
+			cinit[level] = soffset;
+			clen[level] = what;
+			++level;
+			final int res = run(soffset, i);
+			if ( res == -1 )
+				--level;
+			return res;
+		}
+		
+		private int balance(int soffset, int b, int e) {
+			final int len = s.length();
+			if ( soffset >= len || s.luaByte(soffset) != b )
+				return -1;
+			int cont = 1;
+			while ( ++soffset < len ) {
+				final int c = s.luaByte(soffset);
+				if ( c == e ) {
+					if ( --cont == 0 ) return soffset + 1;
+				}
+				else if ( c == b ) cont++;
+			}
+			return -1;
+		}
+	}
+}
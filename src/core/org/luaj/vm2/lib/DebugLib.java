@@ -117,6 +117,8 @@ public class DebugLib extends TwoArgFunction {
 	public LuaValue call(LuaValue modname, LuaValue env) {
 		globals = env.checkglobals();
 		globals.debuglib = this;
+		if (TRACE)
+			globals.hooked = true; // so every instruction is traced by onInstruction
 		LuaTable debug = new LuaTable();
 		debug.set("debug", new debug());
 		debug.set("gethook", new gethook());
@@ -293,6 +295,8 @@ public class DebugLib extends TwoArgFunction {
 			s.hookline = line;
 			s.hookcount = count;
 			s.hookrtrn = rtrn;
+			if (func != null)
+				globals.hooked = true;
 			return NONE;
 		}
 	}
@@ -407,11 +411,15 @@ public class DebugLib extends TwoArgFunction {
 		if (s.hookcall) callHook(s, CALL, NIL);
 	}
 
-	public void onCall(LuaClosure c, Varargs varargs, LuaValue[] stack) {
+	/** Called by {@link LuaClosure} on entry to push a frame for the call onto the call stack.
+	 * @return the frame pushed, for the interpreter to update as it executes, or null if a hook is running. 
+	 */
+	public CallFrame onCall(LuaClosure c, Varargs varargs, LuaValue[] stack) {
 		LuaThread.State s = globals.running.state;
-		if (s.inhook) return;
-		callstack().onCall(c, varargs, stack);
+		if (s.inhook) return null;
+		CallFrame frame = callstack().onCall(c, varargs, stack);
 		if (s.hookcall) callHook(s, CALL, NIL);
+		return frame;
 	}
 
 	public void onInstruction(int pc, Varargs v, int top) {
@@ -528,8 +536,10 @@ public class DebugLib extends TwoArgFunction {
 			pushcall().set(function);
 		}
 
-		final synchronized void onCall(LuaClosure function, Varargs varargs, LuaValue[] stack) {
-			pushcall().set(function, varargs, stack);
+		final synchronized CallFrame onCall(LuaClosure function, Varargs varargs, LuaValue[] stack) {
+			CallFrame f = pushcall();
+			f.set(function, varargs, stack);
+			return f;
 		}
 		
 		final synchronized void onReturn() {
@@ -641,7 +651,8 @@ public class DebugLib extends TwoArgFunction {
 
 	}
 
-	static class CallFrame {
+	/** Entry in the {@link CallStack} for one active call. */
+	public static class CallFrame {
 		LuaFunction f;
 		int pc;
 		int top;
@@ -664,6 +675,10 @@ public class DebugLib extends TwoArgFunction {
 			this.v = null;
 			this.stack = null;
 		}
+		/** Record the current instruction of a lua closure, called by the interpreter while no hooks are set. */
+		public void instr(int pc) {
+			this.pc = pc;
+		}
 		void instr(int pc, Varargs v, int top) {
 			this.pc = pc;
 			this.v = v;
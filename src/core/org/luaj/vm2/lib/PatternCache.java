@@ -0,0 +1,141 @@
+/*******************************************************************************
+* Copyright (c) 2015 Luaj.org. All rights reserved.
+*
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+*
+* The above copyright notice and this permission notice shall be included in
+* all copies or substantial portions of the Software.
+* 
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+* THE SOFTWARE.
+******************************************************************************/
+package org.luaj.vm2.lib;
+
+import java.util.Hashtable;
+
+import org.luaj.vm2.LuaString;
+import org.luaj.vm2.Varargs;
+
+/**
+ * Bounded cache of {@link CompiledPattern}s used by the pattern matching functions 
+ * of one {@link StringLib}, keyed by pattern and offset where matching starts, 
+ * of {@link StringSearch}es for plain {@code string.find}, and of format strings 
+ * parsed for {@code string.format}.
+ * <p>
+ * When the cache is full the least recently used pattern is dropped.  Patterns 
+ * that do not compile are remembered too, so they go straight to the interpreter 
+ * in {@link StringLib.MatchState}.  The cache is synchronized, since the string 
+ * metatable, and with it the library functions, can be shared by several {@link org.luaj.vm2.Globals}.
+ * 
+ * @see StringLib#pattern_cache_size
+ */
+final class PatternCache {
+
+	/** Entry in the hash table and in the list of entries from most to least recently used. */
+	private static final class Entry {
+		final LuaString pattern;
+		final CompiledPattern[] compiled = new CompiledPattern[2];
+		final boolean[] failed = new boolean[2];
+		StringSearch search;
+		StringLib.FormatString format;
+		boolean formatFailed;
+		Entry prev, next;
+		Entry(LuaString pattern) {
+			this.pattern = pattern;
+		}
+	}
+
+	private final int capacity;
+	private final Hashtable entries = new Hashtable();
+	private final Entry head = new Entry(null);
+
+	/** Create a cache. 
+	 * @param capacity maximum number of patterns to keep 
+	 */
+	PatternCache(int capacity) {
+		this.capacity = capacity;
+		head.prev = head.next = head;
+	}
+
+	/** Get the match state for matching a subject against a pattern, 
+	 * compiling the pattern if it is not in the cache.
+	 * @param args the arguments of the calling function
+	 * @param s the subject
+	 * @param p the pattern
+	 * @param poffset offset in the pattern where matching starts, 0 or 1 after an anchor
+	 * @return state for a compiled pattern, or for interpreting the pattern if it does not compile
+	 */
+	StringLib.MatchState matcher(Varargs args, LuaString s, LuaString p, int poffset) {
+		final CompiledPattern c = get(p, poffset);
+		return c != null? c.matcher(args, s, p): new StringLib.MatchState(args, s, p);
+	}
+
+	/** Get the search for a literal needle, building its skip table if it is not in the cache.
+	 * @param needle the bytes to search for
+	 * @return search for the needle
+	 */
+	synchronized StringSearch search(LuaString needle) {
+		final Entry e = entry(needle);
+		if ( e.search == null )
+			e.search = new StringSearch(needle);
+		return e.search;
+	}
+
+	/** Get a parsed format string, parsing it if it is not in the cache.
+	 * @param fmt the format string
+	 * @return the parsed format, or null if it does not parse and must be interpreted
+	 */
+	synchronized StringLib.FormatString format(LuaString fmt) {
+		final Entry e = entry(fmt);
+		if ( e.format == null && !e.formatFailed ) {
+			e.format = StringLib.FormatString.parse(fmt);
+			e.formatFailed = e.format == null;
+		}
+		return e.format;
+	}
+
+	private synchronized CompiledPattern get(LuaString p, int poffset) {
+		final Entry e = entry(p);
+		if ( e.compiled[poffset] == null && !e.failed[poffset] ) {
+			e.compiled[poffset] = CompiledPattern.compile(p, poffset);
+			e.failed[poffset] = e.compiled[poffset] == null;
+		}
+		return e.compiled[poffset];
+	}
+
+	/** Find or add the entry for a pattern and make it the most recently used. */
+	private Entry entry(LuaString p) {
+		Entry e = (Entry) entries.get(p);
+		if ( e == null ) {
+			if ( entries.size() >= capacity ) {
+				final Entry last = head.prev;
+				unlink(last);
+				entries.remove(last.pattern);
+			}
+			e = new Entry(p);
+			entries.put(p, e);
+		} else {
+			unlink(e);
+		}
+		e.next = head.next;
+		e.prev = head;
+		head.next.prev = e;
+		head.next = e;
+		return e;
+	}
+
+	private static void unlink(Entry e) {
+		e.prev.next = e.next;
+		e.next.prev = e.prev;
+	}
+}
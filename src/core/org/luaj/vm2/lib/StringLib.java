@@ -26,6 +26,7 @@ import java.io.IOException;
 
 import org.luaj.vm2.LuaClosure;
 import org.luaj.vm2.Buffer;
+import org.luaj.vm2.LuaError;
 import org.luaj.vm2.LuaString;
 import org.luaj.vm2.LuaTable;
 import org.luaj.vm2.LuaValue;
@@ -61,6 +62,14 @@ import org.luaj.vm2.compiler.DumpState;
  */
 public class StringLib extends TwoArgFunction {
 
+	/** Number of compiled patterns kept by each loaded library for 
+	 * {@code find}, {@code match}, {@code gmatch} and {@code gsub}, and of parsed 
+	 * format strings for {@code format}, or 0 to interpret patterns and format 
+	 * strings each time they are used.
+	 * This can be changed by Java startup code if desired.
+	 */
+	public static int pattern_cache_size = 128;
+	
 	/** Construct a StringLib, which can be initialized by calling it with a 
 	 * modname string, and a global environment table as arguments using 
 	 * {@link #call(LuaValue, LuaValue)}. */
@@ -83,16 +92,17 @@ public class StringLib extends TwoArgFunction {
 	 */
 	public LuaValue call(LuaValue modname, LuaValue env) {
 		LuaTable string = new LuaTable();
+		PatternCache patterns = pattern_cache_size > 0? new PatternCache(pattern_cache_size): null;
 		string.set("byte", new byte_());
 		string.set("char", new char_());
 		string.set("dump", new dump());
-		string.set("find", new find());
-		string.set("format", new format());
-		string.set("gmatch", new gmatch());
-		string.set("gsub", new gsub());
+		string.set("find", new find(patterns));
+		string.set("format", new format(patterns));
+		string.set("gmatch", new gmatch(patterns));
+		string.set("gsub", new gsub(patterns));
 		string.set("len", new len());
 		string.set("lower", new lower());
-		string.set("match", new match());
+		string.set("match", new match(patterns));
 		string.set("rep", new rep());
 		string.set("reverse", new reverse());
 		string.set("sub", new sub());
@@ -200,8 +210,12 @@ public class StringLib extends TwoArgFunction {
 	 * are also returned, after the two indices.
 	 */
 	static final class find extends VarArgFunction {
+		private final PatternCache patterns;
+		find(PatternCache patterns) {
+			this.patterns = patterns;
+		}
 		public Varargs invoke(Varargs args) {
-			return str_find_aux( args, true );
+			return str_find_aux( args, true, patterns );
 		}
 	}
 
@@ -229,8 +243,15 @@ public class StringLib extends TwoArgFunction {
 	 * except as arguments to the q option. 
 	 */
 	static final class format extends VarArgFunction {
+		private final PatternCache formats;
+		format(PatternCache formats) {
+			this.formats = formats;
+		}
 		public Varargs invoke(Varargs args) {
 			LuaString fmt = args.checkstring( 1 );
+			final FormatString parsed = formats != null? formats.format( fmt ): null;
+			if ( parsed != null )
+				return parsed.format( args );
 			final int n = fmt.length();
 			Buffer result = new Buffer(n);
 			int arg = 1;
@@ -239,7 +260,7 @@ public class StringLib extends TwoArgFunction {
 			for ( int i = 0; i < n; ) {
 				switch ( c = fmt.luaByte( i++ ) ) {
 				case '\n':
-					result.append( "\n" );
+					result.append( (byte) '\n' );
 					break;
 				default:
 					result.append( (byte) c );
@@ -253,42 +274,7 @@ public class StringLib extends TwoArgFunction {
 							arg++;
 							FormatDesc fdsc = new FormatDesc(args, fmt, i );
 							i += fdsc.length;
-							switch ( fdsc.conversion ) {
-							case 'c':
-								fdsc.format( result, (byte)args.checkint( arg ) );
-								break;
-							case 'i':
-							case 'd':
-								fdsc.format( result, args.checkint( arg ) );
-								break;
-							case 'o':
-							case 'u':
-							case 'x':
-							case 'X':
-								fdsc.format( result, args.checklong( arg ) );
-								break;
-							case 'e':
-							case 'E':
-							case 'f':
-							case 'g':
-							case 'G':
-								fdsc.format( result, args.checkdouble( arg ) );
-								break;
-							case 'q':
-								addquoted( result, args.checkstring( arg ) );
-								break;
-							case 's': {
-								LuaString s = args.checkstring( arg );
-								if ( fdsc.precision == -1 && s.length() >= 100 ) {
-									result.append( s );
-								} else {
-									fdsc.format( result, s );
-								}
-							}	break;
-							default:
-								error("invalid option '%"+(char)fdsc.conversion+"' to 'format'");
-								break;
-							}
+							fdsc.format( result, args, arg );
 						}
 					}
 				}
@@ -298,6 +284,91 @@ public class StringLib extends TwoArgFunction {
 		}
 	}
 	
+	/**
+	 * Format string parsed into runs of literal bytes and conversions.
+	 * <p>
+	 * It holds no state of a call, so it is kept in the {@link PatternCache} of 
+	 * the library and shared by all calls with the same format string.
+	 */
+	static final class FormatString {
+		
+		private final LuaString fmt;
+		
+		/** Offset and length in the format string of the literal bytes of each item. */
+		private final int[] offset, length;
+		
+		/** Conversion of each item, or null where the item is literal bytes. */
+		private final FormatDesc[] desc;
+		
+		private final int nitems;
+		
+		private FormatString(LuaString fmt, int[] offset, int[] length, FormatDesc[] desc, int nitems) {
+			this.fmt = fmt;
+			this.offset = offset;
+			this.length = length;
+			this.desc = desc;
+			this.nitems = nitems;
+		}
+		
+		/** Parse a format string.
+		 * @param fmt the format string
+		 * @return the parsed format, or null if a conversion is malformed, 
+		 * so that the error is raised when formatting reaches it
+		 */
+		static FormatString parse(LuaString fmt) {
+			final int n = fmt.length();
+			final int[] offset = new int[n + 1];
+			final int[] length = new int[n + 1];
+			final FormatDesc[] desc = new FormatDesc[n + 1];
+			int nitems = 0;
+			int start = 0;
+			for ( int i = 0; i < n; ) {
+				if ( fmt.luaByte( i++ ) != L_ESC )
+					continue;
+				if ( i < n && fmt.luaByte( i ) == L_ESC ) {
+					// keep the first escape with the literal bytes before it
+					offset[nitems] = start;
+					length[nitems++] = i - start;
+					start = ++i;
+					continue;
+				}
+				if ( i - 1 > start ) {
+					offset[nitems] = start;
+					length[nitems++] = i - 1 - start;
+				}
+				if ( i < n ) {
+					try {
+						desc[nitems] = new FormatDesc( null, fmt, i );
+					} catch ( LuaError e ) {
+						return null;
+					}
+					i += desc[nitems++].length;
+				}
+				start = i;
+			}
+			if ( n > start ) {
+				offset[nitems] = start;
+				length[nitems++] = n - start;
+			}
+			return new FormatString(fmt, offset, length, desc, nitems);
+		}
+		
+		/** Format arguments.
+		 * @param args the arguments of {@code string.format}, with this format string first
+		 * @return the formatted string
+		 */
+		LuaString format(Varargs args) {
+			Buffer result = new Buffer(fmt.length());
+			for ( int i = 0, arg = 1; i < nitems; ++i ) {
+				if ( desc[i] == null )
+					result.append( fmt, offset[i], length[i] );
+				else
+					desc[i].format( result, args, ++arg );
+			}
+			return result.tostring();
+		}
+	}
+	
 	private static void addquoted(Buffer buf, LuaString s) {
 		int c;
 		buf.append( (byte) '"' );
@@ -311,7 +382,11 @@ public class StringLib extends TwoArgFunction {
 				if (c <= 0x1F || c == 0x7F) {
 					buf.append( (byte) '\\' );
 					if (i+1 == n || s.luaByte(i+1) < '0' || s.luaByte(i+1) > '9') {
-						buf.append(Integer.toString(c));
+						if (c >= 100)
+							buf.append( (byte) (char) ('0' + c / 100) );
+						if (c >= 10)
+							buf.append( (byte) (char) ('0' + c / 10 % 10) );
+						buf.append( (byte) (char) ('0' + c % 10) );
 					} else {
 						buf.append( (byte) '0' );
 						buf.append( (byte) (char) ('0' + c / 10) );
@@ -392,42 +467,67 @@ public class StringLib extends TwoArgFunction {
 			length = p - start;
 		}
 		
+		/** Format the argument of this conversion.
+		 * @param buf buffer to append to
+		 * @param args the arguments of {@code string.format}
+		 * @param arg index of the argument to format
+		 */
+		public void format(Buffer buf, Varargs args, int arg) {
+			switch ( conversion ) {
+			case 'c':
+				format( buf, (byte)args.checkint( arg ) );
+				break;
+			case 'i':
+			case 'd':
+				format( buf, args.checkint( arg ) );
+				break;
+			case 'o':
+			case 'u':
+			case 'x':
+			case 'X':
+				format( buf, args.checklong( arg ) );
+				break;
+			case 'e':
+			case 'E':
+			case 'f':
+			case 'g':
+			case 'G':
+				format( buf, args.checkdouble( arg ) );
+				break;
+			case 'q':
+				addquoted( buf, args.checkstring( arg ) );
+				break;
+			case 's': {
+				LuaString s = args.checkstring( arg );
+				if ( precision == -1 && s.length() >= 100 ) {
+					buf.append( s );
+				} else {
+					format( buf, s );
+				}
+			}	break;
+			default:
+				error("invalid option '%"+(char)conversion+"' to 'format'");
+				break;
+			}
+		}
+		
 		public void format(Buffer buf, byte c) {
 			// TODO: not clear that any of width, precision, or flags apply here.
 			buf.append(c);
 		}
 		
 		public void format(Buffer buf, long number) {
-			String digits;
-			
-			if ( number == 0 && precision == 0 ) {
-				digits = "";
-			} else {
-				int radix;
-				switch ( conversion ) {
-				case 'x':
-				case 'X':
-					radix = 16;
-					break;
-				case 'o':
-					radix = 8;
-					break;
-				default:
-					radix = 10;
-					break;
-				}
-				digits = Long.toString( number, radix );
-				if ( conversion == 'X' )
-					digits = digits.toUpperCase();
-			}
+			final int radix = conversion == 'x' || conversion == 'X'? 16: conversion == 'o'? 8: 10;
+			final long negative = number < 0? number: -number;
+			final long place = number == 0 && precision == 0? 0: place( negative, radix );
 			
-			int minwidth = digits.length();
-			int ndigits = minwidth;
+			int ndigits = 0;
+			for ( long q = place; q != 0; q /= radix )
+				ndigits++;
+			int minwidth = ndigits;
 			int nzeros;
 			
-			if ( number < 0 ) {
-				ndigits--;
-			} else if ( explicitPlus || space ) {
+			if ( number < 0 || explicitPlus || space ) {
 				minwidth++;
 			}
 			
@@ -445,10 +545,7 @@ public class StringLib extends TwoArgFunction {
 				pad( buf, ' ', nspaces );
 			
 			if ( number < 0 ) {
-				if ( nzeros > 0 ) {
-					buf.append( (byte)'-' );
-					digits = digits.substring( 1 );
-				}
+				buf.append( (byte)'-' );
 			} else if ( explicitPlus ) {
 				buf.append( (byte)'+' );
 			} else if ( space ) {
@@ -458,7 +555,7 @@ public class StringLib extends TwoArgFunction {
 			if ( nzeros > 0 )
 				pad( buf, '0', nzeros );
 			
-			buf.append( digits );
+			digits( buf, negative, place, radix, conversion == 'X' );
 			
 			if ( leftAdjust )
 				pad( buf, ' ', nspaces );
@@ -466,14 +563,51 @@ public class StringLib extends TwoArgFunction {
 		
 		public void format(Buffer buf, double x) {
 			// TODO
-			buf.append( String.valueOf( x ) );
+			final long l = (long) x;
+			if ( l == x && l > -10000000L && l < 10000000L && ( l != 0 || 1 / x > 0 ) ) {
+				// integral values that String.valueOf(x) writes without an exponent
+				final long negative = l < 0? l: -l;
+				if ( l < 0 )
+					buf.append( (byte)'-' );
+				digits( buf, negative, place( negative, 10 ), 10, false );
+				buf.append( (byte)'.' );
+				buf.append( (byte)'0' );
+			} else {
+				buf.append( String.valueOf( x ) );
+			}
+		}
+		
+		/** Get the place value of the leading digit of a number, as a negative number 
+		 * so that the magnitude of {@link Long#MIN_VALUE} can be represented.
+		 * @param negative the number, or its negation if it is positive
+		 * @param radix the radix
+		 * @return the negated place value of the leading digit
+		 */
+		private static long place(long negative, int radix) {
+			long place = -1;
+			for ( long q = negative / radix; q != 0; q /= radix )
+				place *= radix;
+			return place;
+		}
+		
+		/** Append the digits of a number from the leading digit down, without sign.
+		 * @param buf buffer to append to
+		 * @param negative the number, or its negation if it is positive
+		 * @param place negated place value of the leading digit, or 0 for no digits
+		 * @param radix the radix
+		 * @param upper true for upper case hexadecimal digits
+		 */
+		private static void digits(Buffer buf, long negative, long place, int radix, boolean upper) {
+			for ( ; place != 0; place /= radix ) {
+				final int d = (int) ( negative / place );
+				negative -= d * place;
+				buf.append( (byte) ( d < 10? '0' + d: ( upper? 'A': 'a' ) + d - 10 ) );
+			}
 		}
 		
 		public void format(Buffer buf, LuaString s) {
 			int nullindex = s.indexOf( (byte)'\0', 0 );
-			if ( nullindex != -1 )
-				s = s.substring( 0, nullindex );
-			buf.append(s);
+			buf.append( s, 0, nullindex != -1? nullindex: s.length() );
 		}
 		
 		public static final void pad(Buffer buf, char c, int n) {
@@ -508,10 +642,14 @@ public class StringLib extends TwoArgFunction {
 	 * as this would prevent the iteration.
 	 */
 	static final class gmatch extends VarArgFunction {
+		private final PatternCache patterns;
+		gmatch(PatternCache patterns) {
+			this.patterns = patterns;
+		}
 		public Varargs invoke(Varargs args) {
 			LuaString src = args.checkstring( 1 );
 			LuaString pat = args.checkstring( 2 );
-			return new GMatchAux(args, src, pat);
+			return new GMatchAux(matcher(patterns, args, src, pat, 0), src);
 		}
 	}
 
@@ -519,13 +657,17 @@ public class StringLib extends TwoArgFunction {
 		private final int srclen;
 		private final MatchState ms;
 		private int soffset;
-		public GMatchAux(Varargs args, LuaString src, LuaString pat) {
+		public GMatchAux(MatchState ms, LuaString src) {
 			this.srclen = src.length();
-			this.ms = new MatchState(args, src, pat);
+			this.ms = ms;
 			this.soffset = 0;
 		}
 		public Varargs invoke(Varargs args) {
 			for ( ; soffset<srclen; soffset++ ) {
+				if ( (soffset = ms.skip( soffset )) < 0 ) {
+					soffset = srclen;
+					break;
+				}
 				ms.reset();
 				int res = ms.match(soffset, 0);
 				if ( res >=0 ) {
@@ -585,6 +727,10 @@ public class StringLib extends TwoArgFunction {
 	 *	     --> x="lua-5.1.tar.gz"
 	 */
 	static final class gsub extends VarArgFunction {
+		private final PatternCache patterns;
+		gsub(PatternCache patterns) {
+			this.patterns = patterns;
+		}
 		public Varargs invoke(Varargs args) {
 			LuaString src = args.checkstring( 1 );
 			final int srclen = src.length();
@@ -594,11 +740,19 @@ public class StringLib extends TwoArgFunction {
 			final boolean anchor = p.length() > 0 && p.charAt( 0 ) == '^';
 			
 			Buffer lbuf = new Buffer( srclen );
-			MatchState ms = new MatchState( args, src, p );
+			MatchState ms = matcher( patterns, args, src, p, anchor ? 1 : 0 );
 			
 			int soffset = 0;
 			int n = 0;
 			while ( n < max_s ) {
+				if ( !anchor ) {
+					// copy the part of the source where no match can start
+					int next = ms.skip( soffset );
+					if ( next < 0 )
+						break;
+					lbuf.append( src, soffset, next - soffset );
+					soffset = next;
+				}
 				ms.reset();
 				int res = ms.match( soffset, anchor ? 1 : 0 );
 				if ( res != -1 ) {
@@ -614,7 +768,7 @@ public class StringLib extends TwoArgFunction {
 				if ( anchor )
 					break;
 			}
-			lbuf.append( src.substring( soffset, srclen ) );
+			lbuf.append( src, soffset, srclen - soffset );
 			return varargsOf(lbuf.tostring(), valueOf(n));
 		}
 	}
@@ -654,8 +808,12 @@ public class StringLib extends TwoArgFunction {
 	 * search; its default value is 1 and may be negative.
 	 */
 	static final class match extends VarArgFunction {
+		private final PatternCache patterns;
+		match(PatternCache patterns) {
+			this.patterns = patterns;
+		}
 		public Varargs invoke(Varargs args) {
-			return str_find_aux( args, false );
+			return str_find_aux( args, false, patterns );
 		}
 	}
 	
@@ -668,11 +826,14 @@ public class StringLib extends TwoArgFunction {
 		public Varargs invoke(Varargs args) {
 			LuaString s = args.checkstring( 1 );
 			int n = args.checkint( 2 );
+			if ( n <= 0 )
+				return EMPTYSTRING;
 			final byte[] bytes = new byte[ s.length() * n ];
-			int len = s.length();
-			for ( int offset = 0; offset < bytes.length; offset += len ) {
-				s.copyInto( 0, bytes, offset, len );
-			}
+			int len = Math.min( s.length(), bytes.length );
+			s.copyInto( 0, bytes, 0, len );
+			// double the copied part until it is filled, so large counts take few copies
+			for ( ; len < bytes.length; len += len )
+				System.arraycopy( bytes, 0, bytes, len, Math.min( len, bytes.length - len ) );
 			return LuaString.valueUsing( bytes );
 		}
 	}
@@ -741,7 +902,7 @@ public class StringLib extends TwoArgFunction {
 	/**
 	 * This utility method implements both string.find and string.match.
 	 */
-	static Varargs str_find_aux( Varargs args, boolean find ) {
+	static Varargs str_find_aux( Varargs args, boolean find, PatternCache patterns ) {
 		LuaString s = args.checkstring( 1 );
 		LuaString pat = args.checkstring( 2 );
 		int init = args.optint( 3, 1 );
@@ -755,23 +916,24 @@ public class StringLib extends TwoArgFunction {
 		boolean fastMatch = find && ( args.arg(4).toboolean() || pat.indexOfAny( SPECIALS ) == -1 );
 		
 		if ( fastMatch ) {
-			int result = s.indexOf( pat, init );
+			int result = indexOf( patterns, s, pat, init );
 			if ( result != -1 ) {
 				return varargsOf( valueOf(result+1), valueOf(result+pat.length()) );
 			}
 		} else {
-			MatchState ms = new MatchState( args, s, pat );
-			
 			boolean anchor = false;
 			int poff = 0;
-			if ( pat.luaByte( 0 ) == '^' ) {
+			if ( pat.length() > 0 && pat.luaByte( 0 ) == '^' ) {
 				anchor = true;
 				poff = 1;
 			}
 			
+			MatchState ms = matcher( patterns, args, s, pat, poff );
 			int soff = init;
 			do {
 				int res;
+				if ( !anchor && ( soff = ms.skip( soff ) ) < 0 )
+					break;
 				ms.reset();
 				if ( ( res = ms.match( soff, poff ) ) != -1 ) {
 					if ( find ) {
@@ -785,18 +947,43 @@ public class StringLib extends TwoArgFunction {
 		return NIL;
 	}
 	
+	/** Get the state for matching a subject against a pattern, compiled if there is a cache of patterns. */
+	static MatchState matcher( PatternCache patterns, Varargs args, LuaString s, LuaString p, int poffset ) {
+		return patterns != null? patterns.matcher( args, s, p, poffset ): new MatchState( args, s, p );
+	}
+	
+	/** Find a literal needle in a subject.  Only searches long enough to pay for a skip table 
+	 * use {@link StringSearch}, which is cached for short needles and built for the call otherwise, 
+	 * so that needles that change on every call do not fill the cache of patterns. */
+	static int indexOf( PatternCache patterns, LuaString s, LuaString pat, int init ) {
+		final int n = pat.length();
+		if ( n == 1 )
+			return s.indexOf( (byte) pat.luaByte( 0 ), init );
+		if ( n == 0 || s.length() - init < SEARCH_MIN_LENGTH )
+			return s.indexOf( pat, init );
+		if ( patterns != null && n <= SEARCH_MAX_CACHED_LENGTH )
+			return patterns.search( pat ).indexOf( s, init );
+		return new StringSearch( pat ).indexOf( s, init );
+	}
+	
 	private static int posrelat( int pos, int len ) {
 		return ( pos >= 0 ) ? pos : len + pos + 1;
 	}
 	
 	// Pattern matching implementation
 	
-	private static final int L_ESC = '%';
+	static final int L_ESC = '%';
 	private static final LuaString SPECIALS = valueOf("^$*+?.([%-");
-	private static final int MAX_CAPTURES = 32;
 	
-	private static final int CAP_UNFINISHED = -1;
-	private static final int CAP_POSITION = -2;
+	/** Shortest part of a subject after the start of a plain find that is searched with a skip table. */
+	private static final int SEARCH_MIN_LENGTH = 256;
+	
+	/** Longest needle of a plain find whose skip table is kept in the cache of patterns. */
+	private static final int SEARCH_MAX_CACHED_LENGTH = 32;
+	static final int MAX_CAPTURES = 32;
+	
+	static final int CAP_UNFINISHED = -1;
+	static final int CAP_POSITION = -2;
 	
 	private static final byte MASK_ALPHA		= 0x01;
 	private static final byte MASK_LOWERCASE	= 0x02;
@@ -846,18 +1033,27 @@ public class StringLib extends TwoArgFunction {
 		int[] clen;
 		
 		MatchState( Varargs args, LuaString s, LuaString pattern ) {
+			this( args, s, pattern, MAX_CAPTURES );
+		}
+		
+		MatchState( Varargs args, LuaString s, LuaString pattern, int ncaptures ) {
 			this.s = s;
 			this.p = pattern;
 			this.args = args;
 			this.level = 0;
-			this.cinit = new int[ MAX_CAPTURES ];
-			this.clen = new int[ MAX_CAPTURES ];
+			this.cinit = new int[ ncaptures ];
+			this.clen = new int[ ncaptures ];
 		}
 		
 		void reset() {
 			level = 0;
 		}
 		
+		/** Get the first offset from which a match may start, or -1 if there is none. */
+		int skip( int soffset ) {
+			return soffset;
+		}
+		
 		private void add_s( Buffer lbuf, LuaString news, int soff, int e ) {
 			int l = news.length();
 			for ( int i = 0; i < l; ++i ) {
@@ -870,9 +1066,9 @@ public class StringLib extends TwoArgFunction {
 					if ( !Character.isDigit( (char) b ) ) {
 						lbuf.append( b );
 					} else if ( b == '0' ) {
-						lbuf.append( s.substring( soff, e ) );
+						lbuf.append( s, soff, e - soff );
 					} else {
-						lbuf.append( push_onecapture( b - '1', soff, e ).strvalue() );
+						add_onecapture( lbuf, b - '1', soff, e );
 					}
 				}
 			}
@@ -900,7 +1096,8 @@ public class StringLib extends TwoArgFunction {
 			}
 			
 			if ( !repl.toboolean() ) {
-				repl = s.substring( soffset, end );
+				lbuf.append( s, soffset, end - soffset );
+				return;
 			} else if ( ! repl.isstring() ) {
 				error( "invalid replacement value (a "+repl.typename()+")" );
 			}
@@ -919,6 +1116,16 @@ public class StringLib extends TwoArgFunction {
 			return varargsOf(v);
 		}
 		
+		/** Append a capture to a buffer, copying the bytes of a string capture from the subject. */
+		private void add_onecapture( Buffer lbuf, int i, int soff, int end ) {
+			if ( i < this.level && clen[i] >= 0 )
+				lbuf.append( s, cinit[i], clen[i] );
+			else if ( i >= this.level && i == 0 )
+				lbuf.append( s, soff, end - soff );
+			else
+				lbuf.append( push_onecapture( i, soff, end ).strvalue() );
+		}
+		
 		private LuaValue push_onecapture( int i, int soff, int end ) {
 			if ( i >= this.level ) {
 				if ( i == 0 ) {
@@ -948,7 +1155,7 @@ public class StringLib extends TwoArgFunction {
 			return l;
 		}
 		
-		private int capture_to_close() {
+		int capture_to_close() {
 			int level = this.level;
 			for ( level--; level >= 0; level-- )
 				if ( clen[level] == CAP_UNFINISHED )
@@ -973,7 +1180,7 @@ public class StringLib extends TwoArgFunction {
 					}
 					if ( p.luaByte( poffset++ ) == L_ESC && poffset != p.length() )
 						poffset++;
-				} while ( p.luaByte( poffset ) != ']' );
+				} while ( poffset == p.length() || p.luaByte( poffset ) != ']' );
 				return poffset + 1;
 			default:
 				return poffset;
@@ -1066,9 +1273,10 @@ public class StringLib extends TwoArgFunction {
 							error("Missing [ after %f in pattern");
 						}
 						int ep = classend( poffset );
-						int previous = ( soffset == 0 ) ? -1 : s.luaByte( soffset - 1 );
+						int previous = ( soffset == 0 ) ? '\0' : s.luaByte( soffset - 1 );
+						int current = ( soffset < s.length() ) ? s.luaByte( soffset ) : '\0';
 						if ( matchbracketclass( previous, poffset, ep - 1 ) ||
-							 matchbracketclass( s.luaByte( soffset ), poffset, ep - 1 ) )
+							 !matchbracketclass( current, poffset, ep - 1 ) )
 							return -1;
 						poffset = ep;
 						continue;
@@ -1165,7 +1373,7 @@ public class StringLib extends TwoArgFunction {
 		int match_capture( int soff, int l ) {
 			l = check_capture( l );
 			int len = clen[ l ];
-			if ( ( s.length() - soff ) >= len &&
+			if ( len >= 0 && ( s.length() - soff ) >= len &&
 				 LuaString.equals( s, cinit[l], s, soff, len ) )
 				return soff + len;
 			else
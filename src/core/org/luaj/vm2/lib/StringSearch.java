@@ -0,0 +1,88 @@
+/*******************************************************************************
+* Copyright (c) 2015 Luaj.org. All rights reserved.
+*
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+*
+* The above copyright notice and this permission notice shall be included in
+* all copies or substantial portions of the Software.
+* 
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+* THE SOFTWARE.
+******************************************************************************/
+package org.luaj.vm2.lib;
+
+import org.luaj.vm2.LuaString;
+
+/**
+ * Search for a literal byte string, using the Boyer-Moore-Horspool algorithm.
+ * <p>
+ * The skip table is built once for the needle, so instances are kept with the 
+ * patterns in {@link PatternCache} for the literal prefix of compiled patterns and 
+ * for short needles of plain {@code string.find} on long subjects.  A needle of one 
+ * byte is a plain scan.
+ * 
+ * @see StringLib#pattern_cache_size
+ */
+final class StringSearch {
+
+	private final byte[] needle;
+	private final int[] skip;
+
+	/** Create a search for a needle.
+	 * @param needle bytes to search for
+	 */
+	StringSearch(LuaString needle) {
+		final int n = needle.length();
+		this.needle = new byte[n];
+		needle.copyInto(0, this.needle, 0, n);
+		if ( n > 1 ) {
+			skip = new int[256];
+			for ( int b = 0; b < 256; ++b )
+				skip[b] = n;
+			for ( int i = 0; i < n - 1; ++i )
+				skip[this.needle[i] & 0xff] = n - 1 - i;
+		} else {
+			skip = null;
+		}
+	}
+
+	/** Find the first occurrence of the needle.
+	 * @param s the subject to search
+	 * @param start offset in the subject where searching starts
+	 * @return offset of the first occurrence at or after start, or -1 if there is none
+	 */
+	int indexOf(LuaString s, int start) {
+		final byte[] a = s.m_bytes;
+		final int off = s.m_offset;
+		final int n = needle.length;
+		final int limit = s.m_length - n;
+		if ( n == 0 )
+			return start <= s.m_length? start: -1;
+		if ( skip == null ) {
+			final byte b = needle[0];
+			for ( int i = off + start, end = off + limit; i <= end; ++i )
+				if ( a[i] == b )
+					return i - off;
+			return -1;
+		}
+		final int last = n - 1;
+		final byte lastb = needle[last];
+		for ( int i = start; i <= limit; ) {
+			final byte b = a[off + i + last];
+			if ( b == lastb && LuaString.equals(a, off + i, needle, 0, last) )
+				return i;
+			i += skip[b & 0xff];
+		}
+		return -1;
+	}
+}
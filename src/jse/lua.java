@@ -35,6 +35,7 @@ import org.luaj.vm2.LuaTable;
 import org.luaj.vm2.LuaValue;
 import org.luaj.vm2.Print;
 import org.luaj.vm2.Varargs;
+import org.luaj.vm2.compiler.BytecodeOptimizer;
 import org.luaj.vm2.lib.jse.JsePlatform;
 import org.luaj.vm2.luajc.LuaJC;
 
@@ -52,8 +53,9 @@ public class lua {
 		"  -l name  require library 'name'\n" +
 		"  -i       enter interactive mode after executing 'script'\n" +
 		"  -v       show version information\n" +
-		"  -b      	use luajc bytecode-to-bytecode compiler (requires bcel on class path)\n" +
+		"  -b      	use luajc bytecode-to-bytecode compiler\n" +
 		"  -n      	nodebug - do not load debug library by default\n" +
+		"  -O      	optimize the bytecode of compiled scripts\n" +
 		"  -p      	print the prototype\n" +
 		"  -c enc  	use the supplied encoding 'enc' for input files\n" +
 		"  --       stop handling options\n" +
@@ -76,6 +78,7 @@ public class lua {
 		boolean processing = true;
 		boolean nodebug = false;
 		boolean luajc = false;
+		boolean optimize = false;
 		Vector libs = null;
 		try {
 			// stateful argument processing
@@ -111,6 +114,9 @@ public class lua {
 					case 'n':
 						nodebug = true;
 						break;
+					case 'O':
+						optimize = true;
+						break;
 					case 'p':
 						print = true;
 						break;
@@ -138,6 +144,7 @@ public class lua {
 			// new lua state
 			globals = nodebug? JsePlatform.standardGlobals(): JsePlatform.debugGlobals();
 			if ( luajc ) LuaJC.install(globals);
+			if ( optimize ) BytecodeOptimizer.install(globals);
 			for ( int i=0, n=libs!=null? libs.size(): 0; i<n; i++ )
 				loadLibrary( (String) libs.elementAt(i) );
 			
@@ -20,15 +20,20 @@
 * THE SOFTWARE.
 ******************************************************************************/
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.util.ArrayList;
 import java.util.Enumeration;
 import java.util.Hashtable;
 import java.util.List;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.JarOutputStream;
 
 import org.luaj.vm2.Globals;
 import org.luaj.vm2.Lua;
@@ -37,12 +42,18 @@ import org.luaj.vm2.luajc.LuaJC;
 
 /**
  * Compiler for lua files to compile lua sources or lua binaries into java classes. 
+ * <p>
+ * Files are compiled in parallel by a number of worker threads, each with its own globals.
+ * Files whose classes are newer than the source are not compiled again unless 
+ * the -f option is given.  With the -o option all classes are written into a single
+ * jar with an index, and classes of files that are older than the jar are copied 
+ * from the previous jar.
  */
 public class luajc {
 	private static final String version = Lua._VERSION + " Copyright (C) 2012 luaj.org";
 
 	private static final String usage = 
-		"usage: java -cp luaj-jse.jar,bcel-5.2.jar luajc [options] fileordir [, fileordir ...]\n" +
+		"usage: java -cp luaj-jse.jar luajc [options] fileordir [, fileordir ...]\n" +
 		"Available options are:\n" +
 		"  -        process stdin\n" +
 		"  -s src	source directory\n" +
@@ -50,7 +61,11 @@ public class luajc {
 		"  -p pkg	package prefix to apply to all classes\n" +
 		"  -m		generate main(String[]) function for JSE\n" +
 		"  -r		recursively compile all\n" +
+		"  -f		force compiling files whose classes are up to date\n" +
+		"  -j n		compile using n threads\n" +
+		"  -o jar	write all classes into one jar file\n" +
 		"  -l		load classes to verify generated bytecode\n" +
+		"  -i		use invokedynamic call sites, for java 7 or later\n" +
 		"  -c enc  	use the supplied encoding 'enc' for input files\n" +
 		"  -v   	verbose\n";
 	
@@ -67,8 +82,16 @@ public class luajc {
 	private boolean loadclasses = false;
 	private String encoding = null;
 	private String pkgprefix = null;
+	private boolean force = false;
+	private int nthreads = Runtime.getRuntime().availableProcessors();
+	private String jarname = null;
 	private List files = new ArrayList();
-	private Globals globals;
+	private int nextfile = 0;
+	
+	// classes to write to the jar, and classes in the jar before this run
+	private final Hashtable jarclasses = new Hashtable();
+	private Hashtable oldjarclasses = null;
+	private long oldjartime = 0;
 
 	public static void main( String[] args ) throws IOException {
 		new luajc( args );
@@ -98,6 +121,9 @@ public class luajc {
 				case 'l':
 					loadclasses = true;
 					break;
+				case 'i':
+					LuaJC.use_invokedynamic = true;
+					break;
 				case 'p':
 					if ( ++i >= args.length )
 						usageExit();
@@ -109,6 +135,19 @@ public class luajc {
 				case 'r':
 					recurse = true;
 					break;
+				case 'f':
+					force = true;
+					break;
+				case 'j':
+					if ( ++i >= args.length )
+						usageExit();
+					nthreads = Math.max(1, Integer.parseInt(args[i]));
+					break;
+				case 'o':
+					if ( ++i >= args.length )
+						usageExit();
+					jarname = args[i];
+					break;
 				case 'c':
 					if ( ++i >= args.length )
 						usageExit();
@@ -149,10 +188,39 @@ public class luajc {
 			System.exit(-1);
 		}
 		
+		// classes of the previous jar, to be reused for files that did not change
+		if ( jarname != null && !force && new File(jarname).exists() ) {
+			oldjarclasses = readJar(jarname);
+			oldjartime = new File(jarname).lastModified();
+		}
+		
 		// process input files
-		globals = JsePlatform.standardGlobals();
-		for ( int i=0,n=files.size(); i<n; i++ )
-			processFile( (InputFile) files.get(i) );
+		Thread[] workers = new Thread[Math.min(nthreads, files.size())];
+		for ( int i=0; i<workers.length; i++ ) {
+			workers[i] = new Thread("luajc-"+i) {
+				public void run() {
+					Globals globals = JsePlatform.standardGlobals();
+					for ( InputFile inf; (inf = nextFile()) != null; )
+						processFile( inf, globals );
+				}
+			};
+			workers[i].start();
+		}
+		for ( int i=0; i<workers.length; i++ ) {
+			try {
+				workers[i].join();
+			} catch ( InterruptedException e ) {
+				throw new IOException("interrupted");
+			}
+		}
+		
+		// write the jar
+		if ( jarname != null )
+			writeJar(jarname);
+	}
+	
+	private synchronized InputFile nextFile() {
+		return nextfile < files.size()? (InputFile) files.get(nextfile++): null;
 	}
 	
 	private void collectFiles(String path) {
@@ -214,7 +282,33 @@ public class luajc {
 		}
 	}
 		
-	private void processFile( InputFile inf ) {
+	private boolean isUpToDate( InputFile inf ) {
+		if ( force )
+			return false;
+		String classname = LuaJC.toStandardJavaClassName( inf.luachunkname );
+		long srctime = inf.infile.lastModified();
+		if ( jarname == null ) {
+			File f = new File( destdir, classname+".class" );
+			return f.exists() && f.lastModified() >= srctime;
+		}
+		if ( oldjarclasses == null || !oldjarclasses.containsKey(classname) || oldjartime < srctime )
+			return false;
+		synchronized ( jarclasses ) {
+			for ( Enumeration e = oldjarclasses.keys(); e.hasMoreElements(); ) {
+				String key = (String) e.nextElement();
+				if ( key.equals(classname) || key.startsWith(classname+"$") )
+					jarclasses.put(key, oldjarclasses.get(key));
+			}
+		}
+		return true;
+	}
+		
+	private void processFile( InputFile inf, Globals globals ) {
+		if ( isUpToDate(inf) ) {
+			if ( verbose ) 
+				System.out.println("chunk="+inf.luachunkname+" is up to date");
+			return;
+		}
 		inf.outdir.mkdirs();
 		try {
 			if ( verbose ) 
@@ -228,7 +322,11 @@ public class luajc {
 			fis.close();
 			
 	        // write out the chunk
-        	for ( Enumeration e = t.keys(); e.hasMoreElements(); ) {
+			if ( jarname != null ) {
+				synchronized ( jarclasses ) {
+					jarclasses.putAll(t);
+				}
+			} else for ( Enumeration e = t.keys(); e.hasMoreElements(); ) {
         		String key = (String) e.nextElement();
         		byte[] bytes = (byte[]) t.get(key);
         		if ( key.indexOf('/')>=0 ) {
@@ -267,4 +365,70 @@ public class luajc {
 			System.err.flush();
 		}
 	}
+
+	private static Hashtable readJar( String jarname ) throws IOException {
+		Hashtable t = new Hashtable();
+		JarFile jar = new JarFile( jarname );
+		try {
+			for ( Enumeration e = jar.entries(); e.hasMoreElements(); ) {
+				JarEntry entry = (JarEntry) e.nextElement();
+				String name = entry.getName();
+				if ( !name.endsWith(".class") )
+					continue;
+				InputStream is = jar.getInputStream(entry);
+				ByteArrayOutputStream baos = new ByteArrayOutputStream();
+				byte[] buf = new byte[4096];
+				for ( int n; (n = is.read(buf)) > 0; )
+					baos.write(buf, 0, n);
+				is.close();
+				t.put(name.substring(0, name.length()-6), baos.toByteArray());
+			}
+		} finally {
+			jar.close();
+		}
+		return t;
+	}
+
+	/** Write all classes into a jar, with an index listing its classes and packages */
+	private void writeJar( String jarname ) throws IOException {
+		String[] names = new String[jarclasses.size()];
+		int n = 0;
+		for ( Enumeration e = jarclasses.keys(); e.hasMoreElements(); )
+			names[n++] = (String) e.nextElement();
+		java.util.Arrays.sort(names);
+		
+		// index lists the directory of each class, or the class itself in the root
+		StringBuffer index = new StringBuffer("JarIndex-Version: 1.0\n\n");
+		index.append(new File(jarname).getName()).append('\n');
+		Hashtable dirs = new Hashtable();
+		for ( int i=0; i<n; i++ ) {
+			int slash = names[i].lastIndexOf('/');
+			String entry = slash >= 0? names[i].substring(0, slash): names[i]+".class";
+			if ( dirs.put(entry, entry) == null )
+				index.append(entry).append('\n');
+		}
+		index.append('\n');
+		
+		File tmp = new File( jarname+".tmp" );
+		JarOutputStream jos = new JarOutputStream( new FileOutputStream( tmp ) );
+		try {
+			jos.putNextEntry( new JarEntry("META-INF/INDEX.LIST") );
+			jos.write( index.toString().getBytes("UTF-8") );
+			jos.closeEntry();
+			for ( int i=0; i<n; i++ ) {
+				byte[] bytes = (byte[]) jarclasses.get(names[i]);
+				if ( verbose )
+					System.out.println( "  "+jarname+"!"+names[i]+".class ("+bytes.length+" bytes)");
+				jos.putNextEntry( new JarEntry(names[i]+".class") );
+				jos.write( bytes );
+				jos.closeEntry();
+			}
+		} finally {
+			jos.close();
+		}
+		File f = new File( jarname );
+		f.delete();
+		if ( !tmp.renameTo(f) )
+			throw new IOException("can't write "+jarname);
+	}
 }
@@ -0,0 +1,279 @@
+/*******************************************************************************
+* Copyright (c) 2015 Luaj.org. All rights reserved.
+*
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+*
+* The above copyright notice and this permission notice shall be included in
+* all copies or substantial portions of the Software.
+* 
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+* THE SOFTWARE.
+******************************************************************************/
+package org.luaj.vm2.lib.jse;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.ThreadFactory;
+
+import org.luaj.vm2.LuaThread;
+
+/**
+ * {@link LuaThread.Executor} for the JSE platform that avoids the cost of 
+ * starting a new platform thread for each coroutine.  
+ * <p>
+ * On JVMs where virtual threads can block in {@code wait()} without pinning 
+ * their carrier thread, which is Java 24 and later, coroutine bodies run on 
+ * virtual threads, so the number of live coroutines is not limited by the 
+ * number of native threads.  
+ * <p>
+ * Otherwise coroutine bodies run on daemon platform threads that are kept for 
+ * {@link #keep_alive} milliseconds after the coroutine finishes, and are reused 
+ * for the next coroutine started in that time.
+ * <p>
+ * Coroutines started by this executor are watched with a reference queue, so when 
+ * a suspended coroutine's {@link LuaThread} is garbage collected its body is woken 
+ * at once and ends with {@link org.luaj.vm2.OrphanedThread}, freeing the Java thread, 
+ * instead of polling every {@link LuaThread#thread_orphan_check_interval} milliseconds.
+ * <p>
+ * {@link JsePlatform} installs an instance as {@link LuaThread#coroutine_executor}
+ * unless the application has already installed its own.
+ * 
+ * @see LuaThread#coroutine_executor
+ * @see JsePlatform
+ */
+public class JseCoroutineExecutor implements LuaThread.Executor {
+
+	/** Milliseconds an idle pooled thread waits for another coroutine before exiting.  
+	 * This can be changed by Java startup code if desired. */
+	public static long keep_alive = 10000;
+
+	/** Factory for virtual threads, or null if they are not used. */
+	private final ThreadFactory virtual;
+
+	/** Idle pooled threads, most recently used last. */
+	private Worker[] idle = new Worker[8];
+	private int nidle = 0;
+
+	public JseCoroutineExecutor() {
+		this(true);
+	}
+
+	/** 
+	 * Construct an executor.
+	 * @param usevirtual true to use virtual threads if the JVM supports them well, false to always use pooled threads
+	 */
+	public JseCoroutineExecutor(boolean usevirtual) {
+		this.virtual = usevirtual? virtualThreadFactory(): null;
+	}
+
+	/** Return true if coroutines are run on virtual threads. */
+	public boolean isVirtual() {
+		return virtual != null;
+	}
+
+	public void execute(LuaThread thread, String name) {
+		Runnable body = Watch.watch(thread);
+		if (virtual != null) {
+			Thread t = virtual.newThread(body);
+			t.setName(name);
+			t.start();
+			return;
+		}
+		synchronized (this) {
+			while (nidle > 0) {
+				Worker w = idle[--nidle];
+				idle[nidle] = null;
+				if (w.offer(body, name))
+					return;
+			}
+		}
+		new Worker(body, name).start();
+	}
+
+	/** Put a worker that finished its coroutine on the idle list. */
+	private synchronized void idle(Worker w) {
+		if (nidle >= idle.length) {
+			Worker[] a = new Worker[nidle * 2];
+			System.arraycopy(idle, 0, a, 0, nidle);
+			idle = a;
+		}
+		idle[nidle++] = w;
+	}
+
+	/** Remove a worker that timed out from the idle list. */
+	private synchronized void retire(Worker w) {
+		for (int i = 0; i < nidle; ++i) {
+			if (idle[i] == w) {
+				System.arraycopy(idle, i+1, idle, i, --nidle - i);
+				idle[nidle] = null;
+				return;
+			}
+		}
+	}
+
+	/** Pooled thread that runs coroutine bodies one after another. */
+	private final class Worker extends Thread {
+		private Runnable body;
+		private boolean retired;
+
+		Worker(Runnable body, String name) {
+			super(name);
+			this.body = body;
+			setDaemon(true);
+		}
+
+		/** Hand an idle worker its next body, or return false if it has already timed out. */
+		synchronized boolean offer(Runnable body, String name) {
+			if (retired)
+				return false;
+			setName(name);
+			this.body = body;
+			notify();
+			return true;
+		}
+
+		public void run() {
+			for (Runnable r = body; r != null; r = next()) {
+				body = null;
+				try {
+					r.run();
+				} catch (Throwable t) {
+					// the body records its own errors, and an orphaned body just ends 
+				}
+				// an idle thread must not keep the finished coroutine reachable
+				r = null;
+			}
+		}
+
+		/** Wait on the idle list for the next body, or return null when keep_alive runs out. */
+		private Runnable next() {
+			idle(this);
+			synchronized (this) {
+				long until = System.currentTimeMillis() + keep_alive;
+				for (long wait = keep_alive; body == null && wait > 0; wait = until - System.currentTimeMillis()) {
+					try {
+						wait(wait);
+					} catch (InterruptedException e) {
+						break;
+					}
+				}
+				if (body == null)
+					retired = true;
+				else
+					return body;
+			}
+			retire(this);
+			return null;
+		}
+	}
+
+	/** Weak reference to the lua thread of a started coroutine, that orphans the 
+	 * coroutine body when the lua thread is collected.  
+	 * <p>
+	 * Watches are kept in a linked list until the body ends or they are taken 
+	 * from the queue, and a single daemon thread takes them from the queue.  
+	 * The watch is the runnable given to the Java thread, so it can unlink itself 
+	 * when the body ends, since a finished body whose function refers to its own 
+	 * coroutine would otherwise keep the lua thread reachable from the list.
+	 */
+	private static final class Watch extends WeakReference implements Runnable {
+		private static final ReferenceQueue queue = new ReferenceQueue();
+		private static final Watch list = new Watch();
+		private static Thread reaper;
+
+		private final LuaThread.State state;
+		private Watch prev, next;
+
+		private Watch() {
+			super(null);
+			this.state = null;
+			this.prev = this.next = this;
+		}
+
+		private Watch(LuaThread thread) {
+			super(thread, queue);
+			this.state = thread.state;
+		}
+
+		/** Start watching a lua thread, and return the runnable that runs its body. */
+		static Watch watch(LuaThread thread) {
+			Watch w = new Watch(thread);
+			synchronized (list) {
+				w.next = list.next;
+				w.prev = list;
+				list.next.prev = w;
+				list.next = w;
+				if (reaper == null) {
+					reaper = new Thread("Coroutine-reaper") {
+						public void run() {
+							reap();
+						}
+					};
+					reaper.setDaemon(true);
+					reaper.start();
+				}
+			}
+			thread.state.watched = true;
+			return w;
+		}
+
+		public void run() {
+			try {
+				state.run();
+			} finally {
+				unlink(this);
+			}
+		}
+
+		/** Remove a watch from the list, returning false if it was already removed. */
+		private static boolean unlink(Watch w) {
+			synchronized (list) {
+				if (w.prev == null)
+					return false;
+				w.prev.next = w.next;
+				w.next.prev = w.prev;
+				w.prev = w.next = null;
+				return true;
+			}
+		}
+
+		private static void reap() {
+			for (;;) {
+				Watch w;
+				try {
+					w = (Watch) queue.remove();
+				} catch (InterruptedException e) {
+					continue;
+				}
+				if (unlink(w))
+					w.state.orphan();
+			}
+		}
+	}
+
+	/** Get a factory for virtual threads using reflection, or null if they are 
+	 * not available or would pin their carrier threads while a coroutine is suspended. 
+	 */
+	private static ThreadFactory virtualThreadFactory() {
+		try {
+			String version = System.getProperty("java.specification.version");
+			if (version == null || version.indexOf('.') >= 0 || Integer.parseInt(version) < 24)
+				return null;
+			Object builder = Thread.class.getMethod("ofVirtual", new Class[0]).invoke(null, new Object[0]);
+			return (ThreadFactory) Class.forName("java.lang.Thread$Builder")
+				.getMethod("factory", new Class[0]).invoke(builder, new Object[0]);
+		} catch (Exception e) {
+			return null;
+		}
+	}
+}
@@ -77,6 +77,9 @@ import org.luaj.vm2.lib.TableLib;
  * <p> 
  * The debug globals are simply the standard globals plus the {@code debug} library {@link DebugLib}.
  * <p>
+ * Coroutines are run by a {@link JseCoroutineExecutor}, unless another 
+ * {@link LuaThread#coroutine_executor} was installed before this class was first used.
+ * <p>
  * The class ensures that initialization is done in the correct order.
  * 
  * @see Globals
@@ -84,6 +87,11 @@ import org.luaj.vm2.lib.TableLib;
  */
 public class JsePlatform {
 
+	static {
+		if (LuaThread.coroutine_executor == LuaThread.Executor.THREAD_PER_COROUTINE)
+			LuaThread.coroutine_executor = new JseCoroutineExecutor();
+	}
+
 	/**
 	 * Create a standard set of globals for JSE including all the libraries.
 	 * 
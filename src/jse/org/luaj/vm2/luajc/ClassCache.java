@@ -0,0 +1,249 @@
+/*******************************************************************************
+* Copyright (c) 2015 Luaj.org. All rights reserved.
+*
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+*
+* The above copyright notice and this permission notice shall be included in
+* all copies or substantial portions of the Software.
+* 
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+* THE SOFTWARE.
+******************************************************************************/
+package org.luaj.vm2.luajc;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Enumeration;
+import java.util.Hashtable;
+
+import org.luaj.vm2.Lua;
+import org.luaj.vm2.Prototype;
+import org.luaj.vm2.compiler.DumpState;
+
+/**
+ * Cache of classes generated by {@link LuaJC} in a directory on disk, 
+ * so that chunks loaded again, including after a restart of the JVM, 
+ * do not have to go through {@link JavaGen}. 
+ * <p>
+ * Entries are content addressed: the key computed by {@link #key(Prototype, String, String)}
+ * is a digest of the dumped prototype, the luaj version, the format of generated code, 
+ * and the class and file names used to generate the classes.  
+ * Each entry is one file holding all the classes generated for a chunk.
+ * <p>
+ * Files are written to a temporary file and renamed into place, so that 
+ * readers, possibly in other processes sharing the directory, never see a 
+ * partial entry.  Entries are read through a memory mapping of the file. 
+ * An entry that can not be read is deleted and treated as missing.  
+ * <p>
+ * The total size of the directory is bounded by evicting the least 
+ * recently used entries, as given by their last modified time which is 
+ * updated on each hit.  
+ * <p>
+ * Typically used via {@link LuaJC#install(org.luaj.vm2.Globals, ClassCache)}:
+ * <pre> {@code
+ * Globals globals = JsePlatform.standardGlobals();
+ * LuaJC.install(globals, new ClassCache(new File("luajc-cache"), 64*1024*1024));
+ * globals.loadfile("main.lua").call();
+ * } </pre>
+ * 
+ * @see LuaJC
+ */
+public class ClassCache {
+
+	/** Version of the generated code, to change whenever JavaGen or JavaBuilder generate different code */
+	public static final int FORMAT = 4;
+	
+	private static final int MAGIC = 0x4c75616a; // "Luaj"
+	private static final String SUFFIX = ".luajc";
+
+	private final File dir;
+	private final long maxbytes;
+	private int hits;
+	private int misses;
+	private int tmpcount;
+	
+	/** 
+	 * Construct a cache in a directory 
+	 * @param dir directory to hold the entries, created if it does not exist
+	 * @param maxbytes maximum total size of the entries 
+	 */
+	public ClassCache(File dir, long maxbytes) {
+		this.dir = dir;
+		this.maxbytes = maxbytes;
+		dir.mkdirs();
+	}
+	
+	/** 
+	 * Compute the key of the classes generated for a prototype. 
+	 * @param p the prototype of the chunk
+	 * @param classname the name of the main class of the chunk
+	 * @param filename the source file name recorded in the classes
+	 * @return key to use for {@link #get(String)} and {@link #put(String, Hashtable)}
+	 */
+	public static String key(Prototype p, String classname, String filename) throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		DataOutputStream dos = new DataOutputStream(baos);
+		dos.writeUTF(Lua._VERSION);
+		dos.writeInt(FORMAT);
+		dos.writeBoolean(LuaJC.use_invokedynamic);
+		dos.writeUTF(classname);
+		dos.writeUTF(filename);
+		DumpState.dump(p, dos, false);
+		dos.flush();
+		byte[] digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-1").digest(baos.toByteArray());
+		} catch ( NoSuchAlgorithmException e ) {
+			throw new IOException("no SHA-1: "+e);
+		}
+		StringBuffer sb = new StringBuffer();
+		for ( int i=0; i<digest.length; i++ ) {
+			sb.append(Character.forDigit((digest[i] >> 4) & 0xf, 16));
+			sb.append(Character.forDigit(digest[i] & 0xf, 16));
+		}
+		return sb.toString();
+	}
+
+	/** 
+	 * Get the classes of an entry 
+	 * @param key key of the entry
+	 * @return {@link Hashtable} of class name to class bytes, or null if there is no entry
+	 */
+	public Hashtable get(String key) {
+		File f = new File(dir, key + SUFFIX);
+		Hashtable classes = null;
+		if ( f.exists() ) {
+			try {
+				classes = read(f);
+				f.setLastModified(System.currentTimeMillis());
+			} catch ( Exception e ) {
+				f.delete();
+			}
+		}
+		synchronized ( this ) {
+			if ( classes != null ) ++hits; else ++misses;
+		}
+		return classes;
+	}
+
+	/** 
+	 * Add an entry, and evict the least recently used entries if the cache is too large.
+	 * Failure to write is ignored, as the cache is only an optimization.
+	 * @param key key of the entry
+	 * @param classes {@link Hashtable} of class name to class bytes
+	 */
+	public void put(String key, Hashtable classes) {
+		File tmp;
+		synchronized ( this ) {
+			tmp = new File(dir, key + "." + System.currentTimeMillis() + "." + (++tmpcount) + ".tmp");
+		}
+		try {
+			DataOutputStream dos = new DataOutputStream(new FileOutputStream(tmp));
+			try {
+				dos.writeInt(MAGIC);
+				dos.writeInt(classes.size());
+				for ( Enumeration e = classes.keys(); e.hasMoreElements(); ) {
+					String name = (String) e.nextElement();
+					byte[] bytes = (byte[]) classes.get(name);
+					byte[] utf8 = name.getBytes("UTF-8");
+					dos.writeShort(utf8.length);
+					dos.write(utf8);
+					dos.writeInt(bytes.length);
+					dos.write(bytes);
+				}
+			} finally {
+				dos.close();
+			}
+			File f = new File(dir, key + SUFFIX);
+			if ( !tmp.renameTo(f) )
+				tmp.delete();
+			evict();
+		} catch ( IOException e ) {
+			tmp.delete();
+		}
+	}
+
+	/** Get the number of calls to {@link #get(String)} that found an entry */
+	public synchronized int getHits() {
+		return hits;
+	}
+
+	/** Get the number of calls to {@link #get(String)} that found no entry */
+	public synchronized int getMisses() {
+		return misses;
+	}
+
+	private static Hashtable read(File f) throws IOException {
+		FileInputStream fis = new FileInputStream(f);
+		try {
+			FileChannel fc = fis.getChannel();
+			ByteBuffer b = fc.map(FileChannel.MapMode.READ_ONLY, 0, fc.size());
+			if ( b.getInt() != MAGIC )
+				throw new IOException("not a class cache entry: "+f);
+			int n = b.getInt();
+			Hashtable classes = new Hashtable();
+			for ( int i=0; i<n; i++ ) {
+				byte[] name = new byte[b.getShort() & 0xffff];
+				b.get(name);
+				byte[] bytes = new byte[b.getInt()];
+				b.get(bytes);
+				classes.put(new String(name, "UTF-8"), bytes);
+			}
+			return classes;
+		} finally {
+			fis.close();
+		}
+	}
+
+	/** Delete the least recently used entries until the total size is within bounds */
+	private synchronized void evict() {
+		File[] files = dir.listFiles();
+		if ( files == null )
+			return;
+		long total = 0;
+		for ( int i=0; i<files.length; i++ )
+			total += files[i].length();
+		if ( total <= maxbytes )
+			return;
+		final long[] modified = new long[files.length];
+		for ( int i=0; i<files.length; i++ )
+			modified[i] = files[i].lastModified();
+		Integer[] order = new Integer[files.length];
+		for ( int i=0; i<files.length; i++ )
+			order[i] = new Integer(i);
+		Arrays.sort(order, new Comparator() {
+			public int compare(Object a, Object b) {
+				long ma = modified[((Integer) a).intValue()], mb = modified[((Integer) b).intValue()];
+				return ma < mb? -1: ma > mb? 1: 0;
+			}
+		});
+		for ( int i=0; i<order.length && total > maxbytes; i++ ) {
+			File f = files[order[i].intValue()];
+			if ( !f.getName().endsWith(SUFFIX) )
+				continue;
+			long length = f.length();
+			if ( f.delete() )
+				total -= length;
+		}
+	}
+}
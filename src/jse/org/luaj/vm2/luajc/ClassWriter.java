@@ -0,0 +1,411 @@
+/*******************************************************************************
+* Copyright (c) 2015 Luaj.org. All rights reserved.
+*
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+*
+* The above copyright notice and this permission notice shall be included in
+* all copies or substantial portions of the Software.
+* 
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+* THE SOFTWARE.
+******************************************************************************/
+package org.luaj.vm2.luajc;
+
+import java.util.Hashtable;
+import java.util.Vector;
+
+/**
+ * Minimal class file writer used by {@link JavaBuilder} to produce the bytes 
+ * of a generated class without any third party bytecode library.
+ * <p>
+ * A writer holds the constant pool, fields and methods of a single class, 
+ * and {@link #toByteArray()} serializes them in the class file format.  
+ * Method bodies are written with a {@link MethodWriter} obtained from 
+ * {@link #newMethod(int, String, String, String[])}, which also computes 
+ * max stack, max locals and the StackMapTable frames, so generated classes 
+ * are checked by the type checking verifier.
+ * <p>
+ * Names of classes are internal names such as "org/luaj/vm2/LuaValue", 
+ * and types of fields and methods are descriptors such as 
+ * "Lorg/luaj/vm2/LuaValue;" or "(I)Lorg/luaj/vm2/Varargs;". 
+ * 
+ * @see MethodWriter
+ * @see JavaBuilder
+ */
+public class ClassWriter {
+
+	public static final int ACC_PUBLIC = 0x0001;
+	public static final int ACC_STATIC = 0x0008;
+	public static final int ACC_FINAL  = 0x0010;
+	public static final int ACC_SUPER  = 0x0020;
+
+	/** Class file version 50 (java 6) is the first to carry StackMapTable frames */
+	private static final int MAJOR_VERSION = 50;
+	
+	/** Class file version 51 (java 7) is the first to allow invokedynamic */
+	private static final int MAJOR_VERSION_INDY = 51;
+
+	private static final int CONSTANT_UTF8         = 1;
+	private static final int CONSTANT_INTEGER      = 3;
+	private static final int CONSTANT_DOUBLE       = 6;
+	private static final int CONSTANT_CLASS        = 7;
+	private static final int CONSTANT_STRING       = 8;
+	private static final int CONSTANT_FIELDREF     = 9;
+	private static final int CONSTANT_METHODREF    = 10;
+	private static final int CONSTANT_NAMEANDTYPE  = 12;
+	private static final int CONSTANT_METHODHANDLE = 15;
+	private static final int CONSTANT_INVOKEDYNAMIC = 18;
+	
+	private static final int REF_INVOKESTATIC = 6;
+
+	/** Internal name of the class being written */
+	final String name;
+
+	private final int access;
+	private final String superName;
+	private final String sourceFile;
+	
+	// constant pool, keyed by a tag character and the constant
+	private final Hashtable constants = new Hashtable();
+	private final ByteVector pool = new ByteVector(256);
+	private int poolCount = 1;
+
+	private final ByteVector fields = new ByteVector(64);
+	private int fieldCount;
+	private final Vector methods = new Vector();
+	
+	// contents of the BootstrapMethods attribute
+	private final ByteVector bootstrapMethods = new ByteVector(16);
+	private int bootstrapMethodCount;
+
+	/** 
+	 * Construct a writer for a class
+	 * @param access access flags of the class
+	 * @param name internal name of the class 
+	 * @param superName internal name of the super class 
+	 * @param sourceFile name of the source file, or null 
+	 */
+	public ClassWriter(int access, String name, String superName, String sourceFile) {
+		this.access = access;
+		this.name = name;
+		this.superName = superName;
+		this.sourceFile = sourceFile;
+	}
+	
+	/** Convert a class name such as "org.luaj.vm2.LuaValue" into an internal name */
+	public static String internalName(String classname) {
+		return classname.replace('.', '/');
+	}
+
+	/** Add a field to the class 
+	 * @param access access flags of the field
+	 * @param name name of the field
+	 * @param desc type descriptor of the field
+	 */
+	public void addField(int access, String name, String desc) {
+		fields.putShort(access);
+		fields.putShort(newUTF8(name));
+		fields.putShort(newUTF8(desc));
+		fields.putShort(0);
+		++fieldCount;
+	}
+
+	/** 
+	 * Start a method of the class.  
+	 * <p>
+	 * The method is added to the class when {@link MethodWriter#complete()} is called. 
+	 * @param access access flags of the method
+	 * @param name name of the method
+	 * @param desc method descriptor 
+	 * @param argNames names of the arguments for the local variable table
+	 * @return {@link MethodWriter} to write the code of the method 
+	 */
+	public MethodWriter newMethod(int access, String name, String desc, String[] argNames) {
+		return new MethodWriter(this, access, name, desc, argNames);
+	}
+
+	/** Add the serialized form of a completed method */
+	void addMethod(ByteVector method) {
+		methods.addElement(method);
+	}
+
+	/** Get the bytes of the class in the class file format */
+	public byte[] toByteArray() {
+		int thisClass = newClass(name);
+		int superClass = newClass(superName);
+		int sourceFileAttr = sourceFile != null? newUTF8("SourceFile"): 0;
+		int sourceFileName = sourceFile != null? newUTF8(sourceFile): 0;
+		int bootstrapAttr = bootstrapMethodCount > 0? newUTF8("BootstrapMethods"): 0;
+		ByteVector out = new ByteVector(pool.length + fields.length + 1024);
+		out.putInt(0xCAFEBABE);
+		out.putShort(0);
+		out.putShort(bootstrapMethodCount > 0? MAJOR_VERSION_INDY: MAJOR_VERSION);
+		out.putShort(poolCount);
+		out.putBytes(pool.data, 0, pool.length);
+		out.putShort(access);
+		out.putShort(thisClass);
+		out.putShort(superClass);
+		out.putShort(0); // interfaces
+		out.putShort(fieldCount);
+		out.putBytes(fields.data, 0, fields.length);
+		out.putShort(methods.size());
+		for ( int i=0, n=methods.size(); i<n; i++ ) {
+			ByteVector m = (ByteVector) methods.elementAt(i);
+			out.putBytes(m.data, 0, m.length);
+		}
+		out.putShort((sourceFile != null? 1: 0) + (bootstrapMethodCount > 0? 1: 0));
+		if ( sourceFile != null ) {
+			out.putShort(sourceFileAttr);
+			out.putInt(2);
+			out.putShort(sourceFileName);
+		}
+		if ( bootstrapMethodCount > 0 ) {
+			out.putShort(bootstrapAttr);
+			out.putInt(2 + bootstrapMethods.length);
+			out.putShort(bootstrapMethodCount);
+			out.putBytes(bootstrapMethods.data, 0, bootstrapMethods.length);
+		}
+		byte[] b = new byte[out.length];
+		System.arraycopy(out.data, 0, b, 0, out.length);
+		return b;
+	}
+
+	// ------------------- constant pool ----------------------
+
+	private int lookup(String key) {
+		Integer i = (Integer) constants.get(key);
+		return i != null? i.intValue(): 0;
+	}
+	
+	private int add(String key, int slots) {
+		int index = poolCount;
+		constants.put(key, new Integer(index));
+		poolCount += slots;
+		if ( poolCount > 0xffff )
+			throw new IllegalStateException("too many constants in "+name);
+		return index;
+	}
+	
+	int newUTF8(String value) {
+		String key = "U" + value;
+		int index = lookup(key);
+		if ( index == 0 ) {
+			pool.putByte(CONSTANT_UTF8);
+			pool.putUTF8(value);
+			index = add(key, 1);
+		}
+		return index;
+	}
+
+	int newClass(String internalName) {
+		String key = "C" + internalName;
+		int index = lookup(key);
+		if ( index == 0 ) {
+			int u = newUTF8(internalName);
+			pool.putByte(CONSTANT_CLASS);
+			pool.putShort(u);
+			index = add(key, 1);
+		}
+		return index;
+	}
+
+	int newString(String value) {
+		String key = "S" + value;
+		int index = lookup(key);
+		if ( index == 0 ) {
+			int u = newUTF8(value);
+			pool.putByte(CONSTANT_STRING);
+			pool.putShort(u);
+			index = add(key, 1);
+		}
+		return index;
+	}
+
+	int newInteger(int value) {
+		String key = "I" + value;
+		int index = lookup(key);
+		if ( index == 0 ) {
+			pool.putByte(CONSTANT_INTEGER);
+			pool.putInt(value);
+			index = add(key, 1);
+		}
+		return index;
+	}
+
+	int newDouble(double value) {
+		long bits = Double.doubleToLongBits(value);
+		String key = "D" + bits;
+		int index = lookup(key);
+		if ( index == 0 ) {
+			pool.putByte(CONSTANT_DOUBLE);
+			pool.putInt((int) (bits >>> 32));
+			pool.putInt((int) bits);
+			index = add(key, 2);
+		}
+		return index;
+	}
+
+	private int newNameAndType(String name, String desc) {
+		String key = "N" + name + ' ' + desc;
+		int index = lookup(key);
+		if ( index == 0 ) {
+			int n = newUTF8(name);
+			int d = newUTF8(desc);
+			pool.putByte(CONSTANT_NAMEANDTYPE);
+			pool.putShort(n);
+			pool.putShort(d);
+			index = add(key, 1);
+		}
+		return index;
+	}
+
+	int newField(String owner, String name, String desc) {
+		return newMember(CONSTANT_FIELDREF, "F", owner, name, desc);
+	}
+
+	int newMethod(String owner, String name, String desc) {
+		return newMember(CONSTANT_METHODREF, "M", owner, name, desc);
+	}
+	
+	private int newMember(int tag, String prefix, String owner, String name, String desc) {
+		String key = prefix + owner + '.' + name + ' ' + desc;
+		int index = lookup(key);
+		if ( index == 0 ) {
+			int c = newClass(owner);
+			int nt = newNameAndType(name, desc);
+			pool.putByte(tag);
+			pool.putShort(c);
+			pool.putShort(nt);
+			index = add(key, 1);
+		}
+		return index;
+	}
+
+	/** 
+	 * Add a constant for an invokedynamic instruction, whose call site is made by 
+	 * a static bootstrap method without additional arguments.
+	 * @param name name of the call site
+	 * @param desc method descriptor of the call site
+	 * @param bsmOwner internal name of the class declaring the bootstrap method
+	 * @param bsmName name of the bootstrap method
+	 * @param bsmDesc method descriptor of the bootstrap method
+	 * @return index of the CONSTANT_InvokeDynamic constant
+	 */
+	int newInvokeDynamic(String name, String desc, String bsmOwner, String bsmName, String bsmDesc) {
+		String key = "Y" + bsmOwner + '.' + bsmName + ' ' + bsmDesc + ' ' + name + ' ' + desc;
+		int index = lookup(key);
+		if ( index == 0 ) {
+			int bsm = newBootstrapMethod(bsmOwner, bsmName, bsmDesc);
+			int nt = newNameAndType(name, desc);
+			pool.putByte(CONSTANT_INVOKEDYNAMIC);
+			pool.putShort(bsm);
+			pool.putShort(nt);
+			index = add(key, 1);
+		}
+		return index;
+	}
+	
+	/** Get the index in the BootstrapMethods attribute of a static bootstrap method */
+	private int newBootstrapMethod(String owner, String name, String desc) {
+		String key = "B" + owner + '.' + name + ' ' + desc;
+		Integer i = (Integer) constants.get(key);
+		if ( i != null )
+			return i.intValue();
+		int m = newMember(CONSTANT_METHODREF, "M", owner, name, desc);
+		String hkey = "H" + owner + '.' + name + ' ' + desc;
+		int handle = lookup(hkey);
+		if ( handle == 0 ) {
+			pool.putByte(CONSTANT_METHODHANDLE);
+			pool.putByte(REF_INVOKESTATIC);
+			pool.putShort(m);
+			handle = add(hkey, 1);
+		}
+		bootstrapMethods.putShort(handle);
+		bootstrapMethods.putShort(0);
+		constants.put(key, new Integer(bootstrapMethodCount));
+		return bootstrapMethodCount++;
+	}
+
+	/** Growable byte array with big-endian writers for the class file format */
+	static final class ByteVector {
+		byte[] data;
+		int length;
+
+		ByteVector(int capacity) {
+			data = new byte[capacity];
+		}
+		
+		private void ensure(int n) {
+			if ( length + n > data.length ) {
+				byte[] b = new byte[Math.max(data.length * 2, length + n)];
+				System.arraycopy(data, 0, b, 0, length);
+				data = b;
+			}
+		}
+
+		void putByte(int b) {
+			ensure(1);
+			data[length++] = (byte) b;
+		}
+
+		void putShort(int s) {
+			ensure(2);
+			data[length++] = (byte) (s >>> 8);
+			data[length++] = (byte) s;
+		}
+
+		void putInt(int i) {
+			ensure(4);
+			data[length++] = (byte) (i >>> 24);
+			data[length++] = (byte) (i >>> 16);
+			data[length++] = (byte) (i >>> 8);
+			data[length++] = (byte) i;
+		}
+
+		void setShort(int offset, int s) {
+			data[offset] = (byte) (s >>> 8);
+			data[offset+1] = (byte) s;
+		}
+
+		void putBytes(byte[] b, int off, int len) {
+			ensure(len);
+			System.arraycopy(b, off, data, length, len);
+			length += len;
+		}
+
+		/** Put a string in the modified utf-8 encoding of the class file format, preceded by its length */
+		void putUTF8(String s) {
+			int n = s.length();
+			int start = length;
+			ensure(2 + n);
+			length += 2;
+			for ( int i=0; i<n; i++ ) {
+				char c = s.charAt(i);
+				if ( c >= 0x01 && c <= 0x7f ) {
+					putByte(c);
+				} else if ( c <= 0x7ff ) {
+					putByte(0xc0 | (c >> 6));
+					putByte(0x80 | (c & 0x3f));
+				} else {
+					putByte(0xe0 | (c >> 12));
+					putByte(0x80 | ((c >> 6) & 0x3f));
+					putByte(0x80 | (c & 0x3f));
+				}
+			}
+			int len = length - start - 2;
+			if ( len > 0xffff )
+				throw new IllegalArgumentException("string constant too long: "+len+" bytes");
+			setShort(start, len);
+		}
+	}
+}
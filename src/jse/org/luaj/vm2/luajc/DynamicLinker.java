@@ -0,0 +1,181 @@
+/*******************************************************************************
+* Copyright (c) 2015 Luaj.org. All rights reserved.
+*
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+*
+* The above copyright notice and this permission notice shall be included in
+* all copies or substantial portions of the Software.
+* 
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+* THE SOFTWARE.
+******************************************************************************/
+package org.luaj.vm2.luajc;
+
+import java.lang.invoke.CallSite;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.invoke.MutableCallSite;
+
+import org.luaj.vm2.LuaTable;
+import org.luaj.vm2.LuaValue;
+
+/**
+ * Linker for the invokedynamic call sites of classes generated by {@link JavaGen}
+ * when {@link LuaJC#use_invokedynamic} is set.
+ * <p>
+ * Each call site invokes a method of {@link LuaValue}, such as call(), invoke(), 
+ * get(), set() or an arithmetic operator, on the value that is its first argument.  
+ * Instead of a virtual call that is megamorphic across all the places that call it, 
+ * the site is linked to the method of the actual class of the values it sees, 
+ * behind a guard on that class, so the JIT can inline the target into the caller.  
+ * Sites named {@link #GETFIELD} and {@link #SETFIELD} index with a constant string key, 
+ * and for a {@link LuaTable} whose keys are kept in a layout are linked to read or 
+ * write the position of the key in the layout, behind a guard on the layout.
+ * <p>
+ * When a value fails all guards of a site, the site is relinked with a guard and target 
+ * for that value added in front of the others.  A site that has seen more than 
+ * {@link #MAX_TARGETS} classes or layouts is linked to the plain virtual call instead.
+ * <p>
+ * This class needs java 7 or later, and is only referenced by generated code.
+ * 
+ * @see LuaJC#use_invokedynamic
+ * @see JavaBuilder
+ * @see LuaTable#layout()
+ */
+public class DynamicLinker {
+
+	/** Name of call sites that get a value with a constant string key */
+	public static final String GETFIELD = "getfield";
+	
+	/** Name of call sites that set a value with a constant string key */
+	public static final String SETFIELD = "setfield";
+	
+	/** Number of targets a call site is linked to before it uses plain virtual calls */
+	public static final int MAX_TARGETS = 4;
+
+	private static final MethodHandle FALLBACK;
+	private static final MethodHandle IS_CLASS;
+	private static final MethodHandle HAS_LAYOUT;
+	private static final MethodHandle GET_FIELD;
+	private static final MethodHandle SET_FIELD;
+	
+	static {
+		try {
+			MethodHandles.Lookup lookup = MethodHandles.lookup();
+			FALLBACK = lookup.findVirtual(Site.class, "fallback", 
+					MethodType.methodType(Object.class, Object[].class));
+			IS_CLASS = lookup.findStatic(DynamicLinker.class, "isClass", 
+					MethodType.methodType(boolean.class, new Class[] { Class.class, LuaValue.class }));
+			HAS_LAYOUT = lookup.findStatic(DynamicLinker.class, "hasLayout", 
+					MethodType.methodType(boolean.class, new Class[] { Object.class, LuaValue.class }));
+			GET_FIELD = lookup.findStatic(DynamicLinker.class, "getField", 
+					MethodType.methodType(LuaValue.class, new Class[] { int.class, LuaValue.class, LuaValue.class }));
+			SET_FIELD = lookup.findStatic(DynamicLinker.class, "setField", 
+					MethodType.methodType(void.class, new Class[] { int.class, LuaValue.class, LuaValue.class, LuaValue.class }));
+		} catch ( Exception e ) {
+			throw new IllegalStateException("can't initialize linker: "+e);
+		}
+	}
+	
+	/** Bootstrap method of the invokedynamic instructions of generated classes */
+	public static CallSite bootstrap(MethodHandles.Lookup lookup, String name, MethodType type) {
+		return new Site(name, type);
+	}
+
+	/** Guard on the class of a value */
+	static boolean isClass(Class c, LuaValue value) {
+		return value.getClass() == c;
+	}
+
+	/** Guard on the layout of a plain {@link LuaTable} */
+	static boolean hasLayout(Object layout, LuaValue value) {
+		return value.getClass() == LuaTable.class && ((LuaTable) value).layout() == layout;
+	}
+
+	/** Get the value of a key at a position of the layout of a table */
+	static LuaValue getField(int index, LuaValue table, LuaValue key) {
+		LuaValue v = ((LuaTable) table).layoutGet(index);
+		return v != null? v: table.get(key);
+	}
+
+	/** Set the value of a key at a position of the layout of a table */
+	static void setField(int index, LuaValue table, LuaValue key, LuaValue value) {
+		if ( !((LuaTable) table).layoutSet(index, value) )
+			table.set(key, value);
+	}
+
+	/** Call site of a generated class, linked to targets for the values it has seen */
+	static final class Site extends MutableCallSite {
+		
+		/** name of the {@link LuaValue} method invoked */
+		private final String method;
+		
+		/** true if the second argument is a constant string key */
+		private final boolean field;
+		
+		private int ntargets;
+		
+		Site(String name, MethodType type) {
+			super(type);
+			this.field = name.equals(GETFIELD) || name.equals(SETFIELD);
+			this.method = name.equals(GETFIELD)? "get": name.equals(SETFIELD)? "set": name;
+			setTarget(FALLBACK.bindTo(this).asCollector(Object[].class, type.parameterCount()).asType(type));
+		}
+		
+		/** Called when a value fails all guards, to link a target for it and call it */
+		Object fallback(Object[] args) throws Throwable {
+			return link((LuaValue) args[0], args).invokeWithArguments(args);
+		}
+		
+		private synchronized MethodHandle link(LuaValue value, Object[] args) {
+			final MethodType type = type();
+			if ( ntargets >= MAX_TARGETS ) {
+				MethodHandle target = virtual(LuaValue.class);
+				setTarget(target);
+				return target;
+			}
+			MethodHandle test, target;
+			if ( field && value.getClass() == LuaTable.class && ((LuaTable) value).layout() != null ) {
+				final LuaTable t = (LuaTable) value;
+				final int i = t.layoutIndex((LuaValue) args[1]);
+				test = MethodHandles.insertArguments(HAS_LAYOUT, 0, new Object[] { t.layout() });
+				target = i < 0? virtual(LuaTable.class): 
+					MethodHandles.insertArguments(method.equals("get")? GET_FIELD: SET_FIELD, 0, new Object[] { new Integer(i) }).asType(type);
+			} else {
+				test = MethodHandles.insertArguments(IS_CLASS, 0, new Object[] { value.getClass() });
+				target = virtual(value.getClass());
+			}
+			test = MethodHandles.dropArguments(test.asType(MethodType.methodType(boolean.class, type.parameterType(0))), 
+					1, type.dropParameterTypes(0, 1).parameterArray());
+			setTarget(MethodHandles.guardWithTest(test, target, getTarget()));
+			++ntargets;
+			return target;
+		}
+		
+		/** 
+		 * Get a handle for a call of the method of this site on values of a class.  
+		 * The value is cast to the class, so the JIT can bind the call to the method 
+		 * of that class even when the class itself is not accessible.
+		 */
+		private MethodHandle virtual(Class c) {
+			final MethodType type = type();
+			try {
+				return MethodHandles.publicLookup().findVirtual(LuaValue.class, method, type.dropParameterTypes(0, 1))
+						.asType(type.changeParameterType(0, c)).asType(type);
+			} catch ( Exception e ) {
+				throw new IllegalStateException("can't link "+method+type+": "+e);
+			}
+		}
+	}
+}
@@ -21,38 +21,13 @@
 ******************************************************************************/
 package org.luaj.vm2.luajc;
 
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
 import java.util.HashMap;
 import java.util.Map;
 
-import org.apache.bcel.Constants;
-import org.apache.bcel.generic.AASTORE;
-import org.apache.bcel.generic.ALOAD;
-import org.apache.bcel.generic.ANEWARRAY;
-import org.apache.bcel.generic.ASTORE;
-import org.apache.bcel.generic.ArrayType;
-import org.apache.bcel.generic.BranchInstruction;
-import org.apache.bcel.generic.ClassGen;
-import org.apache.bcel.generic.CompoundInstruction;
-import org.apache.bcel.generic.ConstantPoolGen;
-import org.apache.bcel.generic.FieldGen;
-import org.apache.bcel.generic.GOTO;
-import org.apache.bcel.generic.IFEQ;
-import org.apache.bcel.generic.IFNE;
-import org.apache.bcel.generic.Instruction;
-import org.apache.bcel.generic.InstructionConstants;
-import org.apache.bcel.generic.InstructionFactory;
-import org.apache.bcel.generic.InstructionHandle;
-import org.apache.bcel.generic.InstructionList;
-import org.apache.bcel.generic.LocalVariableGen;
-import org.apache.bcel.generic.MethodGen;
-import org.apache.bcel.generic.ObjectType;
-import org.apache.bcel.generic.PUSH;
-import org.apache.bcel.generic.Type;
 import org.luaj.vm2.Buffer;
 import org.luaj.vm2.Lua;
 import org.luaj.vm2.LuaBoolean;
+import org.luaj.vm2.LuaDouble;
 import org.luaj.vm2.LuaInteger;
 import org.luaj.vm2.LuaNumber;
 import org.luaj.vm2.LuaString;
@@ -60,6 +35,7 @@ import org.luaj.vm2.LuaTable;
 import org.luaj.vm2.LuaValue;
 import org.luaj.vm2.Prototype;
 import org.luaj.vm2.Varargs;
+import org.luaj.vm2.lib.MathLib;
 import org.luaj.vm2.lib.OneArgFunction;
 import org.luaj.vm2.lib.ThreeArgFunction;
 import org.luaj.vm2.lib.TwoArgFunction;
@@ -68,63 +44,74 @@ import org.luaj.vm2.lib.ZeroArgFunction;
 
 public class JavaBuilder {
 	
-	private static final String STR_VARARGS = Varargs.class.getName();
-	private static final String STR_LUAVALUE = LuaValue.class.getName();
-	private static final String STR_LUASTRING = LuaString.class.getName();
-	private static final String STR_LUAINTEGER = LuaInteger.class.getName();
-	private static final String STR_LUANUMBER = LuaNumber.class.getName();
-	private static final String STR_LUABOOLEAN = LuaBoolean.class.getName();
-	private static final String STR_LUATABLE = LuaTable.class.getName();
-	private static final String STR_BUFFER = Buffer.class.getName();
-	private static final String STR_STRING = String.class.getName();
-	private static final String STR_JSEPLATFORM = "org.luaj.vm2.lib.jse.JsePlatform";
-
-	private static final ObjectType TYPE_VARARGS = new ObjectType(STR_VARARGS);
-	private static final ObjectType TYPE_LUAVALUE = new ObjectType(STR_LUAVALUE);
-	private static final ObjectType TYPE_LUASTRING = new ObjectType(STR_LUASTRING);
-	private static final ObjectType TYPE_LUAINTEGER = new ObjectType(STR_LUAINTEGER);
-	private static final ObjectType TYPE_LUANUMBER = new ObjectType(STR_LUANUMBER);
-	private static final ObjectType TYPE_LUABOOLEAN = new ObjectType(STR_LUABOOLEAN);
-	private static final ObjectType TYPE_LUATABLE = new ObjectType(STR_LUATABLE);
-	private static final ObjectType TYPE_BUFFER = new ObjectType(STR_BUFFER);
-	private static final ObjectType TYPE_STRING = new ObjectType(STR_STRING);
-	
-	private static final ArrayType TYPE_LOCALUPVALUE = new ArrayType( TYPE_LUAVALUE, 1 );
-	private static final ArrayType TYPE_CHARARRAY = new ArrayType( Type.CHAR, 1 );
-	private static final ArrayType TYPE_STRINGARRAY = new ArrayType( TYPE_STRING, 1 );
-
-
-	private static final String STR_FUNCV = VarArgFunction.class.getName();
-	private static final String STR_FUNC0 = ZeroArgFunction.class.getName();
-	private static final String STR_FUNC1 = OneArgFunction.class.getName();
-	private static final String STR_FUNC2 = TwoArgFunction.class.getName();
-	private static final String STR_FUNC3 = ThreeArgFunction.class.getName();
+	private static final String STR_VARARGS = ClassWriter.internalName(Varargs.class.getName());
+	private static final String STR_LUAVALUE = ClassWriter.internalName(LuaValue.class.getName());
+	private static final String STR_LUASTRING = ClassWriter.internalName(LuaString.class.getName());
+	private static final String STR_LUAINTEGER = ClassWriter.internalName(LuaInteger.class.getName());
+	private static final String STR_LUANUMBER = ClassWriter.internalName(LuaNumber.class.getName());
+	private static final String STR_LUABOOLEAN = ClassWriter.internalName(LuaBoolean.class.getName());
+	private static final String STR_LUATABLE = ClassWriter.internalName(LuaTable.class.getName());
+	private static final String STR_BUFFER = ClassWriter.internalName(Buffer.class.getName());
+	private static final String STR_LUADOUBLE = ClassWriter.internalName(LuaDouble.class.getName());
+	private static final String STR_MATHLIB = ClassWriter.internalName(MathLib.class.getName());
+	private static final String STR_STRING = "java/lang/String";
+	private static final String STR_JSEPLATFORM = "org/luaj/vm2/lib/jse/JsePlatform";
+	private static final String STR_LINKER = "org/luaj/vm2/luajc/DynamicLinker";
+
+	// type descriptors
+	private static final String TYPE_VOID = "V";
+	private static final String TYPE_BOOLEAN = "Z";
+	private static final String TYPE_DOUBLE = "D";
+	private static final String TYPE_VARARGS = "L"+STR_VARARGS+";";
+	private static final String TYPE_LUAVALUE = "L"+STR_LUAVALUE+";";
+	private static final String TYPE_LUASTRING = "L"+STR_LUASTRING+";";
+	private static final String TYPE_LUAINTEGER = "L"+STR_LUAINTEGER+";";
+	private static final String TYPE_LUANUMBER = "L"+STR_LUANUMBER+";";
+	private static final String TYPE_LUABOOLEAN = "L"+STR_LUABOOLEAN+";";
+	private static final String TYPE_LUATABLE = "L"+STR_LUATABLE+";";
+	private static final String TYPE_BUFFER = "L"+STR_BUFFER+";";
+	private static final String TYPE_STRING = "L"+STR_STRING+";";
+	
+	private static final String TYPE_LOCALUPVALUE = "["+TYPE_LUAVALUE;
+	private static final String TYPE_CHARARRAY = "[C";
+	private static final String TYPE_STRINGARRAY = "["+TYPE_STRING;
+
+
+	private static final String STR_FUNCV = ClassWriter.internalName(VarArgFunction.class.getName());
+	private static final String STR_FUNC0 = ClassWriter.internalName(ZeroArgFunction.class.getName());
+	private static final String STR_FUNC1 = ClassWriter.internalName(OneArgFunction.class.getName());
+	private static final String STR_FUNC2 = ClassWriter.internalName(TwoArgFunction.class.getName());
+	private static final String STR_FUNC3 = ClassWriter.internalName(ThreeArgFunction.class.getName());
 
 	// argument list types
-	private static final Type[] ARG_TYPES_NONE = {};
-	private static final Type[] ARG_TYPES_INT =  { Type.INT };
-	private static final Type[] ARG_TYPES_DOUBLE = { Type.DOUBLE };
-	private static final Type[] ARG_TYPES_STRING = { Type.STRING };
-	private static final Type[] ARG_TYPES_CHARARRAY = { TYPE_CHARARRAY };
-	private static final Type[] ARG_TYPES_INT_LUAVALUE = { Type.INT, TYPE_LUAVALUE };
-	private static final Type[] ARG_TYPES_INT_VARARGS = { Type.INT, TYPE_VARARGS };
-	private static final Type[] ARG_TYPES_LUAVALUE_VARARGS = { TYPE_LUAVALUE, TYPE_VARARGS };
-	private static final Type[] ARG_TYPES_LUAVALUE_LUAVALUE_VARARGS = { TYPE_LUAVALUE, TYPE_LUAVALUE, TYPE_VARARGS };
-	private static final Type[] ARG_TYPES_LUAVALUEARRAY = { new ArrayType( TYPE_LUAVALUE, 1 ) };
-	private static final Type[] ARG_TYPES_LUAVALUEARRAY_VARARGS = { new ArrayType( TYPE_LUAVALUE, 1 ), TYPE_VARARGS };
-	private static final Type[] ARG_TYPES_LUAVALUE_LUAVALUE_LUAVALUE = { TYPE_LUAVALUE, TYPE_LUAVALUE, TYPE_LUAVALUE };
-	private static final Type[] ARG_TYPES_VARARGS = { TYPE_VARARGS };
-	private static final Type[] ARG_TYPES_LUAVALUE_LUAVALUE = { TYPE_LUAVALUE, TYPE_LUAVALUE };
-	private static final Type[] ARG_TYPES_INT_INT = { Type.INT, Type.INT };
-	private static final Type[] ARG_TYPES_LUAVALUE = { TYPE_LUAVALUE };
-	private static final Type[] ARG_TYPES_BUFFER = { TYPE_BUFFER };
-	private static final Type[] ARG_TYPES_STRINGARRAY = { TYPE_STRINGARRAY };
-	private static final Type[] ARG_TYPES_LUAVALUE_STRINGARRAY = { TYPE_LUAVALUE, TYPE_STRINGARRAY };
+	private static final String ARG_TYPES_NONE = "";
+	private static final String ARG_TYPES_INT =  "I";
+	private static final String ARG_TYPES_DOUBLE = "D";
+	private static final String ARG_TYPES_DOUBLE_DOUBLE = "DD";
+	private static final String ARG_TYPES_STRING = TYPE_STRING;
+	private static final String ARG_TYPES_CHARARRAY = TYPE_CHARARRAY;
+	private static final String ARG_TYPES_INT_LUAVALUE = "I"+TYPE_LUAVALUE;
+	private static final String ARG_TYPES_INT_VARARGS = "I"+TYPE_VARARGS;
+	private static final String ARG_TYPES_LUAVALUE_VARARGS = TYPE_LUAVALUE+TYPE_VARARGS;
+	private static final String ARG_TYPES_LUAVALUE_LUAVALUE_VARARGS = TYPE_LUAVALUE+TYPE_LUAVALUE+TYPE_VARARGS;
+	private static final String ARG_TYPES_LUAVALUEARRAY = TYPE_LOCALUPVALUE;
+	private static final String ARG_TYPES_LUAVALUEARRAY_VARARGS = TYPE_LOCALUPVALUE+TYPE_VARARGS;
+	private static final String ARG_TYPES_LUAVALUE_LUAVALUE_LUAVALUE = TYPE_LUAVALUE+TYPE_LUAVALUE+TYPE_LUAVALUE;
+	private static final String ARG_TYPES_VARARGS = TYPE_VARARGS;
+	private static final String ARG_TYPES_LUAVALUE_LUAVALUE = TYPE_LUAVALUE+TYPE_LUAVALUE;
+	private static final String ARG_TYPES_INT_INT = "II";
+	private static final String ARG_TYPES_LUAVALUE = TYPE_LUAVALUE;
+	private static final String ARG_TYPES_BUFFER = TYPE_BUFFER;
+	private static final String ARG_TYPES_STRINGARRAY = TYPE_STRINGARRAY;
+	private static final String ARG_TYPES_LUAVALUE_STRINGARRAY = TYPE_LUAVALUE+TYPE_STRINGARRAY;
+	
+	// bootstrap method of invokedynamic call sites
+	private static final String SIG_BOOTSTRAP = "(Ljava/lang/invoke/MethodHandles$Lookup;Ljava/lang/String;Ljava/lang/invoke/MethodType;)Ljava/lang/invoke/CallSite;";
 
 	// names, arg types for main prototype classes
 	private static final String[]     SUPER_NAME_N   = { STR_FUNC0, STR_FUNC1, STR_FUNC2, STR_FUNC3, STR_FUNCV, };
-	private static final ObjectType[] RETURN_TYPE_N  = { TYPE_LUAVALUE, TYPE_LUAVALUE, TYPE_LUAVALUE, TYPE_LUAVALUE, TYPE_VARARGS, };
-	private static final Type[][]     ARG_TYPES_N    = { ARG_TYPES_NONE, ARG_TYPES_LUAVALUE, ARG_TYPES_LUAVALUE_LUAVALUE, ARG_TYPES_LUAVALUE_LUAVALUE_LUAVALUE, ARG_TYPES_VARARGS,  };
+	private static final String[]     RETURN_TYPE_N  = { TYPE_LUAVALUE, TYPE_LUAVALUE, TYPE_LUAVALUE, TYPE_LUAVALUE, TYPE_VARARGS, };
+	private static final String[]     ARG_TYPES_N    = { ARG_TYPES_NONE, ARG_TYPES_LUAVALUE, ARG_TYPES_LUAVALUE_LUAVALUE, ARG_TYPES_LUAVALUE_LUAVALUE_LUAVALUE, ARG_TYPES_VARARGS,  };
 	private static final String[][]   ARG_NAMES_N    = { {}, {"arg"}, {"arg1","arg2"}, {"arg1","arg2","arg3"}, {"args"}, };
 	private static final String[]     METH_NAME_N    = { "call", "call", "call", "call", "onInvoke", };
 	
@@ -135,6 +122,7 @@ public class JavaBuilder {
 	private static final String PREFIX_UPVALUE      = "u";
 	private static final String PREFIX_PLAIN_SLOT   = "s";
 	private static final String PREFIX_UPVALUE_SLOT = "a";
+	private static final String PREFIX_NUMERIC_SLOT = "d";
 	private static final String NAME_VARRESULT      = "v";
 	
 	// basic info
@@ -142,110 +130,139 @@ public class JavaBuilder {
 	private final Prototype p;
 	private final String classname;
 	
-	// bcel variables
-	private final ClassGen cg;
-	private final ConstantPoolGen cp;
-	private final InstructionFactory factory;
+	// whether to call LuaValue methods through invokedynamic call sites
+	private final boolean indy;
 	
-	// main instruction list for the main function of this class
-	private final InstructionList init;
-	private final InstructionList main;
-	private final MethodGen mg;
+	// class file writers
+	private final ClassWriter cw;
+	
+	// static initializer and main function of this class
+	private MethodWriter init;
+	private final MethodWriter main;
 	
 	// the superclass arg count, 0-3 args, 4=varargs
 	private int superclassType;
-	private static int SUPERTYPE_VARARGS = 4;
+	public static final int SUPERTYPE_VARARGS = 4;
 	
 	// storage for goto locations
 	private final int[] targets;
-	private final BranchInstruction[] branches;
-	private final InstructionHandle[] branchDestHandles;
-	private final InstructionHandle[] lastInstrHandles;
-	private InstructionHandle beginningOfLuaInstruction;
+	private final int[] branches;
+	private final int[] branchDestOffsets;
+	private final int[] lastInstrOffsets;
+	private int beginningOfLuaInstruction;
 	
 	// hold vararg result
-	private LocalVariableGen varresult = null;
+	private int varresult = -1;
 	private int prev_line = -1;
 	
 	public JavaBuilder(ProtoInfo pi, String classname, String filename) {
 		this.pi = pi;
 		this.p = pi.prototype;
 		this.classname = classname;
+		this.indy = LuaJC.use_invokedynamic;
 		
 		// what class to inherit from
-		superclassType = p.numparams;
-		if ( p.is_vararg != 0 || superclassType >= SUPERTYPE_VARARGS )
-			superclassType = SUPERTYPE_VARARGS;
-		for ( int i=0, n=p.code.length; i<n; i++ ) {
-			int inst = p.code[i];
-			int o = Lua.GET_OPCODE(inst);
-			if ( (o == Lua.OP_TAILCALL) ||
-			     ((o == Lua.OP_RETURN) && (Lua.GETARG_B(inst) < 1 || Lua.GETARG_B(inst) > 2)) ) {
-				superclassType = SUPERTYPE_VARARGS;
-				break;
-			}
-		}
+		superclassType = getSuperclassType(p);
 		
-		// create class generator
-		cg = new ClassGen(classname, SUPER_NAME_N[superclassType], filename,
-				Constants.ACC_PUBLIC | Constants.ACC_SUPER, null);
-		cp = cg.getConstantPool(); // cg creates constant pool
-
-		// main instruction lists
-		factory = new InstructionFactory(cg);
-		init = new InstructionList();
-		main = new InstructionList();
+		// create class writer
+		cw = new ClassWriter(ClassWriter.ACC_PUBLIC | ClassWriter.ACC_SUPER, 
+				ClassWriter.internalName(classname), SUPER_NAME_N[superclassType], filename);
 
 		// create the fields
 		for ( int i=0; i<p.upvalues.length; i++ ) {
 			boolean isrw = pi.isReadWriteUpvalue( pi.upvals[i] ); 
-			Type uptype = isrw? (Type) TYPE_LOCALUPVALUE: (Type) TYPE_LUAVALUE;
-			FieldGen fg = new FieldGen(0, uptype, upvalueName(i), cp);
-			cg.addField(fg.getField());
+			String uptype = isrw? TYPE_LOCALUPVALUE: TYPE_LUAVALUE;
+			cw.addField(0, upvalueName(i), uptype);
 		}
 		
 		// create the method
-		mg = new MethodGen( Constants.ACC_PUBLIC | Constants.ACC_FINAL, // access flags
-				RETURN_TYPE_N[superclassType], // return type
-				ARG_TYPES_N[superclassType], // argument types
-				ARG_NAMES_N[superclassType], // arg names
+		main = cw.newMethod( ClassWriter.ACC_PUBLIC | ClassWriter.ACC_FINAL, // access flags
 				METH_NAME_N[superclassType], 
-				STR_LUAVALUE, // method, defining class
-				main, cp);
+				sig(ARG_TYPES_N[superclassType], RETURN_TYPE_N[superclassType]), 
+				ARG_NAMES_N[superclassType]);
 		
 		// initialize the values in the slots
+		beginningOfLuaInstruction = main.getOffset();
 		initializeSlots();	
 
 		// initialize branching
 		int nc = p.code.length;
 		targets = new int[nc];
-		branches = new BranchInstruction[nc];
-		branchDestHandles = new InstructionHandle[nc];
-		lastInstrHandles = new InstructionHandle[nc];
+		branches = new int[nc];
+		branchDestOffsets = new int[nc];
+		lastInstrOffsets = new int[nc];
+		for ( int i=0; i<nc; i++ )
+			branches[i] = branchDestOffsets[i] = -1;
+	}
+
+	/** 
+	 * Get the superclass a prototype is compiled to extend.
+	 * @return the number of arguments 0-3 of the call() method it implements, 
+	 * or {@link #SUPERTYPE_VARARGS} if it implements onInvoke(Varargs)
+	 */
+	public static int getSuperclassType(Prototype p) {
+		if ( p.is_vararg != 0 || p.numparams >= SUPERTYPE_VARARGS )
+			return SUPERTYPE_VARARGS;
+		for ( int i=0, n=p.code.length; i<n; i++ ) {
+			int inst = p.code[i];
+			int o = Lua.GET_OPCODE(inst);
+			if ( (o == Lua.OP_TAILCALL) ||
+			     ((o == Lua.OP_RETURN) && (Lua.GETARG_B(inst) < 1 || Lua.GETARG_B(inst) > 2)) )
+				return SUPERTYPE_VARARGS;
+		}
+		return p.numparams;
+	}
+
+	/** Make a method descriptor from argument types and return type */
+	private static String sig(String args, String ret) {
+		return "(" + args + ")" + ret;
 	}
 	
+	private void invoke(int opcode, String owner, String name, String ret, String args) {
+		main.methodInsn(opcode, owner, name, sig(args, ret));
+	}
+
+	private void invokevirtual(String owner, String name, String ret, String args) {
+		invoke(MethodWriter.INVOKEVIRTUAL, owner, name, ret, args);
+	}
+
+	private void invokestatic(String owner, String name, String ret, String args) {
+		invoke(MethodWriter.INVOKESTATIC, owner, name, ret, args);
+	}
+
+	/** 
+	 * Invoke a method of LuaValue on the value under its arguments on the stack, 
+	 * through a call site linked by {@link DynamicLinker} when using invokedynamic.
+	 */
+	private void dispatch(String name, String ret, String args) {
+		if ( indy )
+			main.invokeDynamicInsn(name, sig(TYPE_LUAVALUE+args, ret), STR_LINKER, "bootstrap", SIG_BOOTSTRAP);
+		else
+			invokevirtual(STR_LUAVALUE, name, ret, args);
+	}
+
 	public void initializeSlots() {
 		int slot = 0;
 		createUpvalues(-1, 0, p.maxstacksize);
 		if ( superclassType == SUPERTYPE_VARARGS ) {
 			for ( slot=0; slot<p.numparams; slot++ ) {
 				if ( pi.isInitialValueUsed(slot) ) {
-					append(new ALOAD(1));
-					append(new PUSH(cp, slot+1));
-					append(factory.createInvoke(STR_VARARGS, "arg", TYPE_LUAVALUE, ARG_TYPES_INT, Constants.INVOKEVIRTUAL));
+					main.varInsn(MethodWriter.ALOAD, 1);
+					main.push(slot+1);
+					invokevirtual(STR_VARARGS, "arg", TYPE_LUAVALUE, ARG_TYPES_INT);
 					storeLocal(-1, slot);
 				}
 			}
-			append(new ALOAD(1));
-			append(new PUSH(cp, 1 + p.numparams));
-			append(factory.createInvoke(STR_VARARGS, "subargs", TYPE_VARARGS, ARG_TYPES_INT, Constants.INVOKEVIRTUAL));
-			append(new ASTORE(1));
+			main.varInsn(MethodWriter.ALOAD, 1);
+			main.push(1 + p.numparams);
+			invokevirtual(STR_VARARGS, "subargs", TYPE_VARARGS, ARG_TYPES_INT);
+			main.varInsn(MethodWriter.ASTORE, 1);
 		} else {
 			// fixed arg function between 0 and 3 arguments
 			for ( slot=0; slot<p.numparams; slot++ ) {
 				this.plainSlotVars.put( Integer.valueOf(slot), Integer.valueOf(1+slot) );
 				if ( pi.isUpvalueCreate(-1, slot) ) {
-					append(new ALOAD(1+slot));
+					main.varInsn(MethodWriter.ALOAD, 1+slot);
 					storeLocal(-1, slot);
 				}
 			}
@@ -264,113 +281,94 @@ public class JavaBuilder {
 	public byte[] completeClass(boolean genmain) {
 
 		// add class initializer 
-		if ( ! init.isEmpty() ) {
-			MethodGen mg = new MethodGen(Constants.ACC_STATIC, Type.VOID,
-					ARG_TYPES_NONE, new String[] {}, "<clinit>", 
-					cg.getClassName(), init, cg.getConstantPool());
-			init.append(InstructionConstants.RETURN);
-			mg.setMaxStack();
-			cg.addMethod(mg.getMethod());
-			init.dispose();
+		if ( init != null ) {
+			init.insn(MethodWriter.RETURN);
+			init.complete();
 		}
 
 		// add default constructor
-		cg.addEmptyConstructor(Constants.ACC_PUBLIC);
+		MethodWriter mw = cw.newMethod(ClassWriter.ACC_PUBLIC, "<init>", sig(ARG_TYPES_NONE, TYPE_VOID), new String[] {});
+		mw.varInsn(MethodWriter.ALOAD, 0);
+		mw.methodInsn(MethodWriter.INVOKESPECIAL, SUPER_NAME_N[superclassType], "<init>", sig(ARG_TYPES_NONE, TYPE_VOID));
+		mw.insn(MethodWriter.RETURN);
+		mw.complete();
 		
 		// gen method
 		resolveBranches();
-		mg.setMaxStack();
-		cg.addMethod(mg.getMethod());
-		main.dispose();
-
-		// add initupvalue1(LuaValue env) to initialize environment for main chunk 
-		if (p.upvalues.length == 1 && superclassType == SUPERTYPE_VARARGS) {
-			MethodGen mg = new MethodGen( Constants.ACC_PUBLIC | Constants.ACC_FINAL, // access flags
-					Type.VOID, // return type
-					ARG_TYPES_LUAVALUE, // argument types
-					new String[] { "env" }, // arg names
+		main.complete();
+
+		// add initupvalue1(LuaValue env) to initialize environment for main chunk, 
+		// or for a function promoted from the interpreter by TieredCompiler
+		if (p.upvalues.length == 1) {
+			mw = cw.newMethod( ClassWriter.ACC_PUBLIC | ClassWriter.ACC_FINAL, // access flags
 					"initupvalue1", 
-					STR_LUAVALUE, // method, defining class
-					main, cp);
+					sig(ARG_TYPES_LUAVALUE, TYPE_VOID), 
+					new String[] { "env" });
 			boolean isrw = pi.isReadWriteUpvalue( pi.upvals[0] ); 
-			append(InstructionConstants.THIS);
-			append(new ALOAD(1));
+			mw.varInsn(MethodWriter.ALOAD, 0);
+			mw.varInsn(MethodWriter.ALOAD, 1);
 			if ( isrw ) {
-				append(factory.createInvoke(classname, "newupl", TYPE_LOCALUPVALUE,  ARG_TYPES_LUAVALUE, Constants.INVOKESTATIC));
-				append(factory.createFieldAccess(classname, upvalueName(0), TYPE_LOCALUPVALUE, Constants.PUTFIELD));
+				mw.methodInsn(MethodWriter.INVOKESTATIC, cw.name, "newupl", sig(ARG_TYPES_LUAVALUE, TYPE_LOCALUPVALUE));
+				mw.fieldInsn(MethodWriter.PUTFIELD, cw.name, upvalueName(0), TYPE_LOCALUPVALUE);
 			} else {
-				append(factory.createFieldAccess(classname, upvalueName(0), TYPE_LUAVALUE, Constants.PUTFIELD));
+				mw.fieldInsn(MethodWriter.PUTFIELD, cw.name, upvalueName(0), TYPE_LUAVALUE);
 			}
-			append(InstructionConstants.RETURN);
-			mg.setMaxStack();
-			cg.addMethod(mg.getMethod());
-			main.dispose();
+			mw.insn(MethodWriter.RETURN);
+			mw.complete();
 		}
 		
 		// add main function so class is invokable from the java command line 
 		if (genmain) {
-			MethodGen mg = new MethodGen( Constants.ACC_PUBLIC | Constants.ACC_STATIC, // access flags
-					Type.VOID, // return type
-					ARG_TYPES_STRINGARRAY, // argument types
-					new String[] { "arg" }, // arg names
+			mw = cw.newMethod( ClassWriter.ACC_PUBLIC | ClassWriter.ACC_STATIC, // access flags
 					"main", 
-					classname, // method, defining class
-					main, cp);
-			append(factory.createNew(classname));
-			append(InstructionConstants.DUP);
-            append(factory.createInvoke(classname, Constants.CONSTRUCTOR_NAME, Type.VOID, ARG_TYPES_NONE, Constants.INVOKESPECIAL));
-			append(new ALOAD(0));
-			append(factory.createInvoke(STR_JSEPLATFORM, "luaMain", Type.VOID,  ARG_TYPES_LUAVALUE_STRINGARRAY, Constants.INVOKESTATIC));
-			append(InstructionConstants.RETURN);
-			mg.setMaxStack();
-			cg.addMethod(mg.getMethod());
-			main.dispose();
+					sig(ARG_TYPES_STRINGARRAY, TYPE_VOID), 
+					new String[] { "arg" });
+			mw.typeInsn(MethodWriter.NEW, cw.name);
+			mw.insn(MethodWriter.DUP);
+			mw.methodInsn(MethodWriter.INVOKESPECIAL, cw.name, "<init>", sig(ARG_TYPES_NONE, TYPE_VOID));
+			mw.varInsn(MethodWriter.ALOAD, 0);
+			mw.methodInsn(MethodWriter.INVOKESTATIC, STR_JSEPLATFORM, "luaMain", sig(ARG_TYPES_LUAVALUE_STRINGARRAY, TYPE_VOID));
+			mw.insn(MethodWriter.RETURN);
+			mw.complete();
 		}
-		
 
 		// convert to class bytes
-		try {
-			ByteArrayOutputStream baos = new ByteArrayOutputStream();
-			cg.getJavaClass().dump(baos);
-			return baos.toByteArray();
-		} catch ( IOException ioe ) {
-			throw new RuntimeException("JavaClass.dump() threw "+ioe);
-		}
+		return cw.toByteArray();
 	}
 
 	public void dup() {
-		append(InstructionConstants.DUP);
+		main.insn(MethodWriter.DUP);
 	}
 
 	public void pop() {
-		append(InstructionConstants.POP);
+		main.insn(MethodWriter.POP);
 	}
 
 	public void loadNil() {
-		append(factory.createFieldAccess(STR_LUAVALUE, "NIL", TYPE_LUAVALUE, Constants.GETSTATIC));
+		main.fieldInsn(MethodWriter.GETSTATIC, STR_LUAVALUE, "NIL", TYPE_LUAVALUE);
 	}
 	
 	public void loadNone() {
-		append(factory.createFieldAccess(STR_LUAVALUE, "NONE", TYPE_LUAVALUE, Constants.GETSTATIC));
+		main.fieldInsn(MethodWriter.GETSTATIC, STR_LUAVALUE, "NONE", TYPE_LUAVALUE);
 	}
 
 	public void loadBoolean(boolean b) {
 		String field = (b? "TRUE": "FALSE");
-		append(factory.createFieldAccess(STR_LUAVALUE, field, TYPE_LUABOOLEAN, Constants.GETSTATIC));
+		main.fieldInsn(MethodWriter.GETSTATIC, STR_LUAVALUE, field, TYPE_LUABOOLEAN);
 	}
 	
 	private Map<Integer,Integer> plainSlotVars = new HashMap<Integer,Integer>();
 	private Map<Integer,Integer> upvalueSlotVars = new HashMap<Integer,Integer>();
-	private Map<Integer,LocalVariableGen> localVarGenBySlot = new HashMap<Integer,LocalVariableGen>();
-	private int findSlot( int slot, Map<Integer,Integer> map, String prefix, Type type ) {
+	private Map<Integer,Integer> numericSlotVars = new HashMap<Integer,Integer>();
+	private Map<Integer,Integer> localVarIndexBySlot = new HashMap<Integer,Integer>();
+	private int findSlot( int slot, Map<Integer,Integer> map, String prefix, String type ) {
 		Integer islot = Integer.valueOf(slot);
 		if ( map.containsKey(islot) )
 			return ((Integer)map.get(islot)).intValue();
 		String name = prefix+slot;
-		LocalVariableGen local = mg.addLocalVariable(name, type, null, null);
-		int index = local.getIndex();
+		int index = main.newLocal(name, type);
 		map.put(islot, Integer.valueOf(index));
-		localVarGenBySlot.put(islot, local);
+		localVarIndexBySlot.put(islot, Integer.valueOf(index));
 		return index;
 	}
 	private int findSlotIndex( int slot, boolean isupvalue ) {
@@ -379,34 +377,177 @@ public class JavaBuilder {
 				findSlot( slot, plainSlotVars, PREFIX_PLAIN_SLOT, TYPE_LUAVALUE );
 	}
 
+	private int findNumericSlotIndex( int slot ) {
+		return findSlot( slot, numericSlotVars, PREFIX_NUMERIC_SLOT, TYPE_DOUBLE );
+	}
+
 	public void loadLocal(int pc, int slot) {
+		if ( pi.isNumericSlot(slot) ) {
+			main.varInsn(MethodWriter.DLOAD, findNumericSlotIndex(slot));
+			box();
+			return;
+		}
 		boolean isupval = pi.isUpvalueRefer(pc, slot);
 		int index = findSlotIndex( slot, isupval );
-		append(new ALOAD(index));
+		main.varInsn(MethodWriter.ALOAD, index);
 		if (isupval) {
-			append(new PUSH(cp, 0));
-			append(InstructionConstants.AALOAD);
+			main.push(0);
+			main.insn(MethodWriter.AALOAD);
 		}
 	}
 
 	public void storeLocal(int pc, int slot) {
+		if ( pi.isNumericSlot(slot) ) {
+			invokevirtual(STR_LUAVALUE, "todouble", TYPE_DOUBLE, ARG_TYPES_NONE);
+			main.varInsn(MethodWriter.DSTORE, findNumericSlotIndex(slot));
+			return;
+		}
 		boolean isupval = pi.isUpvalueAssign(pc, slot);
 		int index = findSlotIndex( slot, isupval );
 		if (isupval) {
 			boolean isupcreate = pi.isUpvalueCreate(pc, slot);
 			if ( isupcreate ) {
-				append(factory.createInvoke(classname, "newupe", TYPE_LOCALUPVALUE, ARG_TYPES_NONE, Constants.INVOKESTATIC));
-				append(InstructionConstants.DUP);
-				append(new ASTORE(index));
+				invokestatic(cw.name, "newupe", TYPE_LOCALUPVALUE, ARG_TYPES_NONE);
+				main.insn(MethodWriter.DUP);
+				main.varInsn(MethodWriter.ASTORE, index);
 			} else {
-				append(new ALOAD(index));
+				main.varInsn(MethodWriter.ALOAD, index);
 			}
-			append(InstructionConstants.SWAP);
-			append(new PUSH(cp, 0));
-			append(InstructionConstants.SWAP);
-			append(InstructionConstants.AASTORE);
+			main.insn(MethodWriter.SWAP);
+			main.push(0);
+			main.insn(MethodWriter.SWAP);
+			main.insn(MethodWriter.AASTORE);
+		} else {
+			main.varInsn(MethodWriter.ASTORE, index);
+		}
+	}
+
+	// ------------------------ numbers ------------------------
+
+	/** Load the value of a slot known to hold a number as a double */
+	public void loadNumber(int pc, int slot) {
+		if ( pi.isNumericSlot(slot) ) {
+			main.varInsn(MethodWriter.DLOAD, findNumericSlotIndex(slot));
+		} else {
+			loadLocal(pc, slot);
+			invokevirtual(STR_LUAVALUE, "todouble", TYPE_DOUBLE, ARG_TYPES_NONE);
+		}
+	}
+
+	/** Store a double into a slot, boxing it unless the slot is held as a double */
+	public void storeNumber(int pc, int slot) {
+		if ( pi.isNumericSlot(slot) ) {
+			main.varInsn(MethodWriter.DSTORE, findNumericSlotIndex(slot));
+		} else {
+			box();
+			storeLocal(pc, slot);
+		}
+	}
+
+	public void loadNumber(double value) {
+		main.push(value);
+	}
+
+	/** Load the initial value of a numeric for loop control variable as a double, 
+	 * or throw the error message if it is not a number */
+	public void loadForValue(int pc, int slot, String msg) {
+		if ( pi.isNumericSlot(slot) ) {
+			main.varInsn(MethodWriter.DLOAD, findNumericSlotIndex(slot));
+			return;
+		}
+		loadLocal(pc, slot);
+		if ( !pi.isNumericInput(pc, slot) ) {
+			main.push(msg);
+			invokevirtual(STR_LUAVALUE, "checknumber", TYPE_LUANUMBER, ARG_TYPES_STRING);
+		}
+		invokevirtual(STR_LUAVALUE, "todouble", TYPE_DOUBLE, ARG_TYPES_NONE);
+	}
+
+	/** Load a control variable of a numeric for loop, which is always held as a double */
+	public void loadForControl(int slot) {
+		main.varInsn(MethodWriter.DLOAD, findNumericSlotIndex(slot));
+	}
+
+	public void storeForControl(int slot) {
+		main.varInsn(MethodWriter.DSTORE, findNumericSlotIndex(slot));
+	}
+
+	public void box() {
+		invokestatic(STR_LUAVALUE, "valueOf", TYPE_LUANUMBER, ARG_TYPES_DOUBLE);
+	}
+
+	public void dup2() {
+		main.insn(MethodWriter.DUP2);
+	}
+
+	public void numericNegate() {
+		main.insn(MethodWriter.DNEG);
+		normalizeZero();
+	}
+
+	public void numericBinaryop(int o) {
+		switch (o) {
+			default: 
+			case Lua.OP_ADD: main.insn(MethodWriter.DADD); return;
+			case Lua.OP_SUB: main.insn(MethodWriter.DSUB); return;
+			case Lua.OP_MUL: main.insn(MethodWriter.DMUL); break;
+			case Lua.OP_DIV: invokestatic(STR_LUADOUBLE, "ddiv_d", TYPE_DOUBLE, ARG_TYPES_DOUBLE_DOUBLE); break;
+			case Lua.OP_MOD: invokestatic(STR_LUADOUBLE, "dmod_d", TYPE_DOUBLE, ARG_TYPES_DOUBLE_DOUBLE); break;
+			case Lua.OP_POW: invokestatic(STR_MATHLIB, "dpow_d", TYPE_DOUBLE, ARG_TYPES_DOUBLE_DOUBLE); break;
+		}
+		normalizeZero();
+	}
+
+	/** Turn a negative zero result into zero, as boxing the result as a LuaInteger would */
+	private void normalizeZero() {
+		main.push(0.0);
+		main.insn(MethodWriter.DADD);
+	}
+
+	/** Compare two doubles, leaving an int that is zero, negative or positive 
+	 * when the comparison is true for OP_EQ, OP_LT and OP_LE respectively. 
+	 * Comparisons with NaN leave a value for which the comparison is false. */
+	public void numericCompareop(int o) {
+		main.insn(o == Lua.OP_EQ? MethodWriter.DCMPL: MethodWriter.DCMPG);
+	}
+
+	/** 
+	 * Test a numeric for loop held in double control variables, leaving an int 
+	 * that is zero or negative if the loop continues.  
+	 * @param a slot of the loop index, followed by the limit and the step 
+	 * @param stepsign sign of the step if it is constant, or 0 if it is not known 
+	 */
+	public void testNumericForLoop(int a, int stepsign) {
+		if ( stepsign > 0 ) {
+			// index <= limit
+			loadForControl(a);
+			loadForControl(a+1);
+			main.insn(MethodWriter.DCMPG);
+		} else if ( stepsign < 0 ) {
+			// limit <= index
+			loadForControl(a+1);
+			loadForControl(a);
+			main.insn(MethodWriter.DCMPG);
 		} else {
-			append(new ASTORE(index));
+			// step>0? index<=limit: limit<=index, as r2 + (step>0)*(r1 - r2) 
+			// where r1 compares index to limit and r2 compares limit to index
+			loadForControl(a);
+			loadForControl(a+1);
+			main.insn(MethodWriter.DCMPG);
+			loadForControl(a+1);
+			loadForControl(a);
+			main.insn(MethodWriter.DCMPG);
+			main.insn(MethodWriter.DUP_X1);
+			main.insn(MethodWriter.ISUB);
+			loadForControl(a+2);
+			main.push(0.0);
+			main.insn(MethodWriter.DCMPL);
+			main.push(1);
+			main.insn(MethodWriter.IADD);
+			main.push(1);
+			main.insn(MethodWriter.ISHR);
+			main.insn(MethodWriter.IMUL);
+			main.insn(MethodWriter.IADD);
 		}
 	}
 
@@ -416,8 +557,8 @@ public class JavaBuilder {
 			boolean isupcreate = pi.isUpvalueCreate(pc, slot);
 			if ( isupcreate ) {
 				int index = findSlotIndex( slot, true );
-				append(factory.createInvoke(classname, "newupn", TYPE_LOCALUPVALUE, ARG_TYPES_NONE, Constants.INVOKESTATIC));
-				append(new ASTORE(index));
+				invokestatic(cw.name, "newupn", TYPE_LOCALUPVALUE, ARG_TYPES_NONE);
+				main.varInsn(MethodWriter.ASTORE, index);
 			}
 		}
 	}
@@ -426,10 +567,10 @@ public class JavaBuilder {
 		boolean isupassign = pi.isUpvalueAssign(pc, slot);
 		if ( isupassign ) {
 			int index = findSlotIndex( slot, false );
-			append(new ALOAD(index));
-			append(factory.createInvoke(classname, "newupl", TYPE_LOCALUPVALUE,  ARG_TYPES_LUAVALUE, Constants.INVOKESTATIC));
+			main.varInsn(MethodWriter.ALOAD, index);
+			invokestatic(cw.name, "newupl", TYPE_LOCALUPVALUE, ARG_TYPES_LUAVALUE);
 			int upindex = findSlotIndex( slot, true );
-			append(new ASTORE(upindex));
+			main.varInsn(MethodWriter.ASTORE, upindex);
 		}
 	}
 	
@@ -439,39 +580,39 @@ public class JavaBuilder {
 	
 	public void loadUpvalue(int upindex) {
 		boolean isrw = pi.isReadWriteUpvalue( pi.upvals[upindex] ); 
-		append(InstructionConstants.THIS);
+		main.varInsn(MethodWriter.ALOAD, 0);
 		if ( isrw ) {
-			append(factory.createFieldAccess(classname, upvalueName(upindex), TYPE_LOCALUPVALUE, Constants.GETFIELD));
-			append(new PUSH(cp,0));
-			append(InstructionConstants.AALOAD);
+			main.fieldInsn(MethodWriter.GETFIELD, cw.name, upvalueName(upindex), TYPE_LOCALUPVALUE);
+			main.push(0);
+			main.insn(MethodWriter.AALOAD);
 		} else {
-			append(factory.createFieldAccess(classname, upvalueName(upindex), TYPE_LUAVALUE, Constants.GETFIELD));
+			main.fieldInsn(MethodWriter.GETFIELD, cw.name, upvalueName(upindex), TYPE_LUAVALUE);
 		}
 	}
 
 	public void storeUpvalue(int pc, int upindex, int slot) {
 		boolean isrw = pi.isReadWriteUpvalue( pi.upvals[upindex] ); 
-		append(InstructionConstants.THIS);
+		main.varInsn(MethodWriter.ALOAD, 0);
 		if ( isrw ) {
-			append(factory.createFieldAccess(classname, upvalueName(upindex), TYPE_LOCALUPVALUE, Constants.GETFIELD));
-			append(new PUSH(cp,0));
+			main.fieldInsn(MethodWriter.GETFIELD, cw.name, upvalueName(upindex), TYPE_LOCALUPVALUE);
+			main.push(0);
 			loadLocal(pc, slot);
-			append(InstructionConstants.AASTORE);
+			main.insn(MethodWriter.AASTORE);
 		} else {
 			loadLocal(pc, slot);
-			append(factory.createFieldAccess(classname, upvalueName(upindex), TYPE_LUAVALUE, Constants.PUTFIELD));
+			main.fieldInsn(MethodWriter.PUTFIELD, cw.name, upvalueName(upindex), TYPE_LUAVALUE);
 		}
 	}
 
 	
 	public void newTable( int b, int c ) {
-		append(new PUSH(cp, b));
-		append(new PUSH(cp, c));
-		append(factory.createInvoke(STR_LUAVALUE, "tableOf", TYPE_LUATABLE, ARG_TYPES_INT_INT, Constants.INVOKESTATIC));
+		main.push(b);
+		main.push(c);
+		invokestatic(STR_LUATABLE, "shapedTable", TYPE_LUATABLE, ARG_TYPES_INT_INT);
 	}
 
 	public void loadVarargs() {
-		append(new ALOAD(1));
+		main.varInsn(MethodWriter.ALOAD, 1);
 	}
 	
 	public void loadVarargs(int argindex) {
@@ -481,38 +622,48 @@ public class JavaBuilder {
 
 	public void arg(int argindex) {
 		if ( argindex == 1 ) {
-			append(factory.createInvoke(STR_VARARGS, "arg1", TYPE_LUAVALUE, ARG_TYPES_NONE, Constants.INVOKEVIRTUAL));
+			invokevirtual(STR_VARARGS, "arg1", TYPE_LUAVALUE, ARG_TYPES_NONE);
 		} else {
-			append(new PUSH(cp, argindex));
-			append(factory.createInvoke(STR_VARARGS, "arg", TYPE_LUAVALUE, ARG_TYPES_INT, Constants.INVOKEVIRTUAL));
+			main.push(argindex);
+			invokevirtual(STR_VARARGS, "arg", TYPE_LUAVALUE, ARG_TYPES_INT);
 		}
 	}
 
 	private int getVarresultIndex() {
-		if ( varresult == null )
-			varresult = mg.addLocalVariable(NAME_VARRESULT, TYPE_VARARGS, null, null);
-		return varresult.getIndex();
+		if ( varresult < 0 )
+			varresult = main.newLocal(NAME_VARRESULT, TYPE_VARARGS);
+		return varresult;
 	}
 	
 	public void loadVarresult() {
-		append(new ALOAD(getVarresultIndex()));
+		main.varInsn(MethodWriter.ALOAD, getVarresultIndex());
 	}
 	
 	public void storeVarresult() {
-		append(new ASTORE(getVarresultIndex()));
+		main.varInsn(MethodWriter.ASTORE, getVarresultIndex());
 	}
 
 	public void subargs(int firstarg) {
-		append(new PUSH(cp, firstarg));
-		append(factory.createInvoke(STR_VARARGS, "subargs", TYPE_VARARGS, ARG_TYPES_INT, Constants.INVOKEVIRTUAL));
+		main.push(firstarg);
+		invokevirtual(STR_VARARGS, "subargs", TYPE_VARARGS, ARG_TYPES_INT);
 	}
 	
 	public void getTable() {
-        append(factory.createInvoke(STR_LUAVALUE, "get", TYPE_LUAVALUE, ARG_TYPES_LUAVALUE, Constants.INVOKEVIRTUAL));
+        dispatch("get", TYPE_LUAVALUE, ARG_TYPES_LUAVALUE);
 	}
 	
 	public void setTable() {
-        append(factory.createInvoke(STR_LUAVALUE, "set", Type.VOID, ARG_TYPES_LUAVALUE_LUAVALUE, Constants.INVOKEVIRTUAL));
+        dispatch("set", TYPE_VOID, ARG_TYPES_LUAVALUE_LUAVALUE);
+	}
+
+	/** Get a value from a table with a constant string key */
+	public void getField() {
+		dispatch(indy? DynamicLinker.GETFIELD: "get", TYPE_LUAVALUE, ARG_TYPES_LUAVALUE);
+	}
+	
+	/** Set a value in a table with a constant string key */
+	public void setField() {
+		dispatch(indy? DynamicLinker.SETFIELD: "set", TYPE_VOID, ARG_TYPES_LUAVALUE_LUAVALUE);
 	}
 
 	public void unaryop(int o) {
@@ -523,7 +674,7 @@ public class JavaBuilder {
 			case Lua.OP_NOT: op = "not"; break;
 			case Lua.OP_LEN: op = "len"; break;
 		}
-        append(factory.createInvoke(STR_LUAVALUE, op, TYPE_LUAVALUE, Type.NO_ARGS, Constants.INVOKEVIRTUAL));
+        dispatch(op, TYPE_LUAVALUE, ARG_TYPES_NONE);
 	}
 	
 	public void binaryop(int o) {
@@ -537,7 +688,7 @@ public class JavaBuilder {
 			case Lua.OP_MOD: op = "mod"; break;
 			case Lua.OP_POW: op = "pow"; break;
 		}
-        append(factory.createInvoke(STR_LUAVALUE, op, TYPE_LUAVALUE, ARG_TYPES_LUAVALUE, Constants.INVOKEVIRTUAL));
+        dispatch(op, TYPE_LUAVALUE, ARG_TYPES_LUAVALUE);
 	}
 
 	public void compareop(int o) {
@@ -548,37 +699,37 @@ public class JavaBuilder {
 			case Lua.OP_LT: op = "lt_b"; break;
 			case Lua.OP_LE: op = "lteq_b"; break;
 		}
-        append(factory.createInvoke(STR_LUAVALUE, op, Type.BOOLEAN, ARG_TYPES_LUAVALUE, Constants.INVOKEVIRTUAL));
+        invokevirtual(STR_LUAVALUE, op, TYPE_BOOLEAN, ARG_TYPES_LUAVALUE);
 	}
 
 	public void areturn() {
-		append(InstructionConstants.ARETURN);
+		main.insn(MethodWriter.ARETURN);
 	}
 	
 	public void toBoolean() {
-        append(factory.createInvoke(STR_LUAVALUE, "toboolean", Type.BOOLEAN, Type.NO_ARGS, Constants.INVOKEVIRTUAL));
+        invokevirtual(STR_LUAVALUE, "toboolean", TYPE_BOOLEAN, ARG_TYPES_NONE);
 	}
 
 	public void tostring() {
-        append(factory.createInvoke(STR_BUFFER, "tostring", TYPE_LUASTRING, Type.NO_ARGS, Constants.INVOKEVIRTUAL));
+        invokevirtual(STR_BUFFER, "tostring", TYPE_LUASTRING, ARG_TYPES_NONE);
 	}
 
 	public void isNil() {
-        append(factory.createInvoke(STR_LUAVALUE, "isnil", Type.BOOLEAN, Type.NO_ARGS, Constants.INVOKEVIRTUAL));
+        invokevirtual(STR_LUAVALUE, "isnil", TYPE_BOOLEAN, ARG_TYPES_NONE);
 	}
 
 	public void testForLoop() {
-		append(factory.createInvoke(STR_LUAVALUE, "testfor_b", Type.BOOLEAN, ARG_TYPES_LUAVALUE_LUAVALUE, Constants.INVOKEVIRTUAL));
+		invokevirtual(STR_LUAVALUE, "testfor_b", TYPE_BOOLEAN, ARG_TYPES_LUAVALUE_LUAVALUE);
 	}
 
 	public void loadArrayArgs(int pc, int firstslot, int nargs) {
-		append(new PUSH(cp, nargs));
-		append(new ANEWARRAY(cp.addClass(STR_LUAVALUE)));
+		main.push(nargs);
+		main.typeInsn(MethodWriter.ANEWARRAY, STR_LUAVALUE);
 		for ( int i=0; i<nargs; i++ ) {
-			append(InstructionConstants.DUP);
-			append(new PUSH(cp, i));
+			main.insn(MethodWriter.DUP);
+			main.push(i);
 			loadLocal(pc, firstslot++);
-			append(new AASTORE());
+			main.insn(MethodWriter.AASTORE);
 		}	
 	}
 	
@@ -589,14 +740,14 @@ public class JavaBuilder {
 		case 1: loadLocal(pc, firstslot); 
 			break;
 		case 2: loadLocal(pc, firstslot); loadLocal(pc, firstslot+1); 
-			append(factory.createInvoke(STR_LUAVALUE, "varargsOf", TYPE_VARARGS, ARG_TYPES_LUAVALUE_VARARGS, Constants.INVOKESTATIC));
+			invokestatic(STR_LUAVALUE, "varargsOf", TYPE_VARARGS, ARG_TYPES_LUAVALUE_VARARGS);
 			break;
 		case 3: loadLocal(pc, firstslot); loadLocal(pc, firstslot+1); loadLocal(pc, firstslot+2); 
-			append(factory.createInvoke(STR_LUAVALUE, "varargsOf", TYPE_VARARGS, ARG_TYPES_LUAVALUE_LUAVALUE_VARARGS, Constants.INVOKESTATIC));
+			invokestatic(STR_LUAVALUE, "varargsOf", TYPE_VARARGS, ARG_TYPES_LUAVALUE_LUAVALUE_VARARGS);
 			break;
 		default:
 			loadArrayArgs(pc, firstslot, nargs);
-			append(factory.createInvoke(STR_LUAVALUE, "varargsOf", TYPE_VARARGS, ARG_TYPES_LUAVALUEARRAY, Constants.INVOKESTATIC));
+			invokestatic(STR_LUAVALUE, "varargsOf", TYPE_VARARGS, ARG_TYPES_LUAVALUEARRAY);
 			break;
 		}
 	}
@@ -604,30 +755,51 @@ public class JavaBuilder {
 	public void newVarargsVarresult(int pc, int firstslot, int nslots) {
 		loadArrayArgs(pc, firstslot, nslots );
 		loadVarresult();
-		append(factory.createInvoke(STR_LUAVALUE, "varargsOf", TYPE_VARARGS, ARG_TYPES_LUAVALUEARRAY_VARARGS, Constants.INVOKESTATIC));
+		invokestatic(STR_LUAVALUE, "varargsOf", TYPE_VARARGS, ARG_TYPES_LUAVALUEARRAY_VARARGS);
 	}
 	
 	public void call(int nargs) {
 		switch ( nargs ) {
-		case 0: append(factory.createInvoke(STR_LUAVALUE, "call", TYPE_LUAVALUE, ARG_TYPES_NONE, Constants.INVOKEVIRTUAL)); break;
-		case 1: append(factory.createInvoke(STR_LUAVALUE, "call", TYPE_LUAVALUE, ARG_TYPES_LUAVALUE, Constants.INVOKEVIRTUAL)); break;
-		case 2: append(factory.createInvoke(STR_LUAVALUE, "call", TYPE_LUAVALUE, ARG_TYPES_LUAVALUE_LUAVALUE, Constants.INVOKEVIRTUAL)); break;
-		case 3: append(factory.createInvoke(STR_LUAVALUE, "call", TYPE_LUAVALUE, ARG_TYPES_LUAVALUE_LUAVALUE_LUAVALUE, Constants.INVOKEVIRTUAL)); break;
+		case 0: dispatch("call", TYPE_LUAVALUE, ARG_TYPES_NONE); break;
+		case 1: dispatch("call", TYPE_LUAVALUE, ARG_TYPES_LUAVALUE); break;
+		case 2: dispatch("call", TYPE_LUAVALUE, ARG_TYPES_LUAVALUE_LUAVALUE); break;
+		case 3: dispatch("call", TYPE_LUAVALUE, ARG_TYPES_LUAVALUE_LUAVALUE_LUAVALUE); break;
 		default: throw new IllegalArgumentException("can't call with "+nargs+" args");
 		}
 	}
 
+	/** Cast the function on the stack to the class of the closure it is known to be */
+	public void checkClosure(String protoname) {
+		main.typeInsn(MethodWriter.CHECKCAST, ClassWriter.internalName(protoname));
+	}
+
+	/** 
+	 * Call a closure of a known class directly, with the arguments of its 
+	 * superclass type on the stack, a LuaValue for each argument of call(), 
+	 * or Varargs for onInvoke(Varargs).  Leaves the LuaValue result of call(), 
+	 * or the evaluated Varargs result of onInvoke().
+	 */
+	public void callClosure(String protoname, int superclassType) {
+		String type = ClassWriter.internalName(protoname);
+		if ( superclassType == SUPERTYPE_VARARGS ) {
+			invokevirtual(type, METH_NAME_N[superclassType], TYPE_VARARGS, ARG_TYPES_VARARGS);
+			invokevirtual(STR_VARARGS, "eval", TYPE_VARARGS, ARG_TYPES_NONE);
+		} else {
+			invokevirtual(type, METH_NAME_N[superclassType], TYPE_LUAVALUE, ARG_TYPES_N[superclassType]);
+		}
+	}
+
 	public void newTailcallVarargs() {
-		append(factory.createInvoke(STR_LUAVALUE, "tailcallOf", TYPE_VARARGS, ARG_TYPES_LUAVALUE_VARARGS, Constants.INVOKESTATIC));
+		invokestatic(STR_LUAVALUE, "tailcallOf", TYPE_VARARGS, ARG_TYPES_LUAVALUE_VARARGS);
 	}
 	
 	public void invoke(int nargs) {
 		switch ( nargs ) {
-		case -1: append(factory.createInvoke(STR_LUAVALUE, "invoke", TYPE_VARARGS, ARG_TYPES_VARARGS, Constants.INVOKEVIRTUAL)); break;
-		case 0: append(factory.createInvoke(STR_LUAVALUE, "invoke", TYPE_VARARGS, ARG_TYPES_NONE, Constants.INVOKEVIRTUAL)); break;
-		case 1: append(factory.createInvoke(STR_LUAVALUE, "invoke", TYPE_VARARGS, ARG_TYPES_VARARGS, Constants.INVOKEVIRTUAL)); break;
-		case 2: append(factory.createInvoke(STR_LUAVALUE, "invoke", TYPE_VARARGS, ARG_TYPES_LUAVALUE_VARARGS, Constants.INVOKEVIRTUAL)); break;
-		case 3: append(factory.createInvoke(STR_LUAVALUE, "invoke", TYPE_VARARGS, ARG_TYPES_LUAVALUE_LUAVALUE_VARARGS, Constants.INVOKEVIRTUAL)); break;
+		case -1: dispatch("invoke", TYPE_VARARGS, ARG_TYPES_VARARGS); break;
+		case 0: dispatch("invoke", TYPE_VARARGS, ARG_TYPES_NONE); break;
+		case 1: dispatch("invoke", TYPE_VARARGS, ARG_TYPES_VARARGS); break;
+		case 2: dispatch("invoke", TYPE_VARARGS, ARG_TYPES_LUAVALUE_VARARGS); break;
+		case 3: dispatch("invoke", TYPE_VARARGS, ARG_TYPES_LUAVALUE_LUAVALUE_VARARGS); break;
 		default: throw new IllegalArgumentException("can't invoke with "+nargs+" args");
 		}
 	}
@@ -636,28 +808,29 @@ public class JavaBuilder {
 	// ------------------------ closures ------------------------
 	
 	public void closureCreate(String protoname) {
-		append(factory.createNew(new ObjectType(protoname)));
-		append(InstructionConstants.DUP);
-		append(factory.createInvoke(protoname, "<init>", Type.VOID, Type.NO_ARGS, Constants.INVOKESPECIAL));
+		String type = ClassWriter.internalName(protoname);
+		main.typeInsn(MethodWriter.NEW, type);
+		main.insn(MethodWriter.DUP);
+		main.methodInsn(MethodWriter.INVOKESPECIAL, type, "<init>", sig(ARG_TYPES_NONE, TYPE_VOID));
 	}
 
 	public void closureInitUpvalueFromUpvalue(String protoname, int newup, int upindex) {
 		boolean isrw = pi.isReadWriteUpvalue( pi.upvals[upindex] ); 
-		Type uptype = isrw? (Type) TYPE_LOCALUPVALUE: (Type) TYPE_LUAVALUE;
+		String uptype = isrw? TYPE_LOCALUPVALUE: TYPE_LUAVALUE;
 		String srcname = upvalueName(upindex);
 		String destname = upvalueName(newup);
-		append(InstructionConstants.THIS);
-		append(factory.createFieldAccess(classname, srcname, uptype, Constants.GETFIELD));
-		append(factory.createFieldAccess(protoname, destname, uptype, Constants.PUTFIELD));
+		main.varInsn(MethodWriter.ALOAD, 0);
+		main.fieldInsn(MethodWriter.GETFIELD, cw.name, srcname, uptype);
+		main.fieldInsn(MethodWriter.PUTFIELD, ClassWriter.internalName(protoname), destname, uptype);
 	}
 
 	public void closureInitUpvalueFromLocal(String protoname, int newup, int pc, int srcslot) {
 		boolean isrw = pi.isReadWriteUpvalue( pi.vars[srcslot][pc].upvalue ); 
-		Type uptype = isrw? (Type) TYPE_LOCALUPVALUE: (Type) TYPE_LUAVALUE;
+		String uptype = isrw? TYPE_LOCALUPVALUE: TYPE_LUAVALUE;
 		String destname = upvalueName(newup);
 		int index = findSlotIndex( srcslot, isrw );
-		append(new ALOAD(index));
-		append(factory.createFieldAccess(protoname, destname, uptype, Constants.PUTFIELD));
+		main.varInsn(MethodWriter.ALOAD, index);
+		main.fieldInsn(MethodWriter.PUTFIELD, ClassWriter.internalName(protoname), destname, uptype);
 	}
 	
 	private Map<LuaValue,String> constants = new HashMap<LuaValue,String>();
@@ -681,60 +854,59 @@ public class JavaBuilder {
 						createLuaStringField(value.checkstring());
 				constants.put(value, name);
 			}
-			append(factory.createGetStatic(classname, name, TYPE_LUAVALUE));
+			main.fieldInsn(MethodWriter.GETSTATIC, cw.name, name, TYPE_LUAVALUE);
 			break;
 		default:
 			throw new IllegalArgumentException("bad constant type: "+value.type());
 		}
 	}
 
-	private String createLuaIntegerField(int value) {
+	private MethodWriter init() {
+		if ( init == null )
+			init = cw.newMethod(ClassWriter.ACC_STATIC, "<clinit>", sig(ARG_TYPES_NONE, TYPE_VOID), new String[] {});
+		return init;
+	}
+
+	private String createConstantField() {
 		String name = PREFIX_CONSTANT+constants.size();
-		FieldGen fg = new FieldGen(Constants.ACC_STATIC | Constants.ACC_FINAL, 
-				TYPE_LUAVALUE, name, cp);
-		cg.addField(fg.getField());
-		init.append(new PUSH(cp, value));
-		init.append(factory.createInvoke(STR_LUAVALUE, "valueOf",
-				TYPE_LUAINTEGER, ARG_TYPES_INT, Constants.INVOKESTATIC));
-		init.append(factory.createPutStatic(classname, name, TYPE_LUAVALUE));
+		cw.addField(ClassWriter.ACC_STATIC | ClassWriter.ACC_FINAL, name, TYPE_LUAVALUE);
+		return name;
+	}
+	
+	private String createLuaIntegerField(int value) {
+		String name = createConstantField();
+		MethodWriter init = init();
+		init.push(value);
+		init.methodInsn(MethodWriter.INVOKESTATIC, STR_LUAVALUE, "valueOf", sig(ARG_TYPES_INT, TYPE_LUAINTEGER));
+		init.fieldInsn(MethodWriter.PUTSTATIC, cw.name, name, TYPE_LUAVALUE);
 		return name;
 	}
 	
 	private String createLuaDoubleField(double value) {
-		String name = PREFIX_CONSTANT+constants.size();
-		FieldGen fg = new FieldGen(Constants.ACC_STATIC | Constants.ACC_FINAL, 
-				TYPE_LUAVALUE, name, cp);
-		cg.addField(fg.getField());
-		init.append(new PUSH(cp, value));
-		init.append(factory.createInvoke(STR_LUAVALUE, "valueOf",
-				TYPE_LUANUMBER, ARG_TYPES_DOUBLE, Constants.INVOKESTATIC));
-		init.append(factory.createPutStatic(classname, name, TYPE_LUAVALUE));			
+		String name = createConstantField();
+		MethodWriter init = init();
+		init.push(value);
+		init.methodInsn(MethodWriter.INVOKESTATIC, STR_LUAVALUE, "valueOf", sig(ARG_TYPES_DOUBLE, TYPE_LUANUMBER));
+		init.fieldInsn(MethodWriter.PUTSTATIC, cw.name, name, TYPE_LUAVALUE);
 		return name;
 	}
 
 	private String createLuaStringField(LuaString value) {
-		String name = PREFIX_CONSTANT+constants.size();
-		FieldGen fg = new FieldGen(Constants.ACC_STATIC | Constants.ACC_FINAL, 
-				TYPE_LUAVALUE, name, cp);
-		cg.addField(fg.getField());
+		String name = createConstantField();
+		MethodWriter init = init();
 		LuaString ls = value.checkstring();
 		if ( ls.isValidUtf8() ) {
-			init.append(new PUSH(cp, value.tojstring()));
-			init.append(factory.createInvoke(STR_LUASTRING, "valueOf",
-					TYPE_LUASTRING, ARG_TYPES_STRING, Constants.INVOKESTATIC));
+			init.push(value.tojstring());
+			init.methodInsn(MethodWriter.INVOKESTATIC, STR_LUASTRING, "valueOf", sig(ARG_TYPES_STRING, TYPE_LUASTRING));
 		} else {
 			char[] c = new char[ls.m_length];
 			for ( int j=0; j<ls.m_length; j++ ) 
 				c[j] = (char) (0xff & (int) (ls.m_bytes[ls.m_offset+j]));
-			init.append(new PUSH(cp, new String(c)));
-			init.append(factory.createInvoke(STR_STRING, "toCharArray",
-					TYPE_CHARARRAY, Type.NO_ARGS,
-					Constants.INVOKEVIRTUAL));
-			init.append(factory.createInvoke(STR_LUASTRING, "valueOf",
-					TYPE_LUASTRING, ARG_TYPES_CHARARRAY,
-					Constants.INVOKESTATIC));
-		}
-		init.append(factory.createPutStatic(classname, name, TYPE_LUAVALUE));			
+			init.push(new String(c));
+			init.methodInsn(MethodWriter.INVOKEVIRTUAL, STR_STRING, "toCharArray", sig(ARG_TYPES_NONE, TYPE_CHARARRAY));
+			init.methodInsn(MethodWriter.INVOKESTATIC, STR_LUASTRING, "valueOf", sig(ARG_TYPES_CHARARRAY, TYPE_LUASTRING));
+		}
+		init.fieldInsn(MethodWriter.PUTSTATIC, cw.name, name, TYPE_LUAVALUE);
 		return name;
 	}
 
@@ -742,66 +914,58 @@ public class JavaBuilder {
 	public static final int BRANCH_GOTO = 1;
 	public static final int BRANCH_IFNE = 2;
 	public static final int BRANCH_IFEQ = 3;
+	public static final int BRANCH_IFLT = 4;
+	public static final int BRANCH_IFGE = 5;
+	public static final int BRANCH_IFGT = 6;
+	public static final int BRANCH_IFLE = 7;
 	
 	public void addBranch( int pc, int branchType, int targetpc ) {
 		switch ( branchType ) {
 		default: 
-		case BRANCH_GOTO: branches[pc]  = new GOTO(null); break;
-		case BRANCH_IFNE:  branches[pc] = new IFNE(null); break;
-		case BRANCH_IFEQ:  branches[pc] = new IFEQ(null); break;
+		case BRANCH_GOTO: branches[pc] = main.jumpInsn(MethodWriter.GOTO); break;
+		case BRANCH_IFNE: branches[pc] = main.jumpInsn(MethodWriter.IFNE); break;
+		case BRANCH_IFEQ: branches[pc] = main.jumpInsn(MethodWriter.IFEQ); break;
+		case BRANCH_IFLT: branches[pc] = main.jumpInsn(MethodWriter.IFLT); break;
+		case BRANCH_IFGE: branches[pc] = main.jumpInsn(MethodWriter.IFGE); break;
+		case BRANCH_IFGT: branches[pc] = main.jumpInsn(MethodWriter.IFGT); break;
+		case BRANCH_IFLE: branches[pc] = main.jumpInsn(MethodWriter.IFLE); break;
 		}
 		targets[pc] = targetpc;
-		append(branches[pc]);
-	}
-
-
-	private void append( Instruction i ) {
-		conditionalSetBeginningOfLua( main.append(i) );
-	}
-	
-	private void append( CompoundInstruction i ) {
-		conditionalSetBeginningOfLua( main.append(i) );
-	}
-	
-	private void append( BranchInstruction i ) {
-		conditionalSetBeginningOfLua( main.append(i) );
-	}
-	
-	private void conditionalSetBeginningOfLua(InstructionHandle ih) {
-		if ( beginningOfLuaInstruction == null )
-			beginningOfLuaInstruction = ih;
 	}
 
 	public void onEndOfLuaInstruction(int pc, int line) {
-		branchDestHandles[pc] = beginningOfLuaInstruction;
-		lastInstrHandles[pc] = main.getEnd();
-		if (line != prev_line)
-			mg.addLineNumber(beginningOfLuaInstruction, prev_line = line);
-		beginningOfLuaInstruction = null;
+		if ( main.getStackDepth() != 0 )
+			throw new IllegalStateException("stack not empty after lua instruction "+pc+" in "+classname);
+		int end = main.getOffset();
+		if ( end > beginningOfLuaInstruction ) {
+			branchDestOffsets[pc] = beginningOfLuaInstruction;
+			if (line != prev_line)
+				main.lineNumber(beginningOfLuaInstruction, prev_line = line);
+		}
+		lastInstrOffsets[pc] = end;
+		beginningOfLuaInstruction = end;
 	}
 	
 	public void setVarStartEnd(int slot, int start_pc, int end_pc, String name) {
 		Integer islot = Integer.valueOf(slot);
-		if (localVarGenBySlot.containsKey(islot)) {
+		if (localVarIndexBySlot.containsKey(islot)) {
 			name = name.replaceAll("[^a-zA-Z0-9]", "_");
-			LocalVariableGen l = (LocalVariableGen)localVarGenBySlot.get(islot);
-			l.setEnd(lastInstrHandles[end_pc-1]);
-			if (start_pc > 1)
-				l.setStart(lastInstrHandles[start_pc-2]);
-			l.setName(name);
+			int index = ((Integer)localVarIndexBySlot.get(islot)).intValue();
+			int start = start_pc > 1? lastInstrOffsets[start_pc-2]: 0;
+			main.setLocalVariable(index, name, start, lastInstrOffsets[end_pc-1]);
 		}
 	}
 	
 	private void resolveBranches() {
 		int nc = p.code.length; 
 		for (int pc = 0; pc < nc; pc++) {
-			if (branches[pc] != null) {
+			if (branches[pc] >= 0) {
 				int t=targets[pc];
-				while ( t<branchDestHandles.length && branchDestHandles[t] == null )
+				while ( t<branchDestOffsets.length && branchDestOffsets[t] < 0 )
 					t++;
-				if ( t>= branchDestHandles.length )
+				if ( t>= branchDestOffsets.length )
 					 throw new IllegalArgumentException("no target at or after "+targets[pc]+" op="+Lua.GET_OPCODE(p.code[targets[pc]]));
-				branches[pc].setTarget(branchDestHandles[t]);
+				main.setJumpTarget(branches[pc], branchDestOffsets[t]);
 			}
 		}
 	}
@@ -809,44 +973,44 @@ public class JavaBuilder {
 	public void setlistStack(int pc, int a0, int index0, int nvals) {
 		for ( int i=0; i<nvals; i++ ) {
 			dup();
-			append(new PUSH(cp, index0+i));
+			main.push(index0+i);
 			loadLocal( pc, a0+i );
-	        append(factory.createInvoke(STR_LUAVALUE, "rawset", Type.VOID, ARG_TYPES_INT_LUAVALUE, Constants.INVOKEVIRTUAL));
+	        invokevirtual(STR_LUAVALUE, "rawset", TYPE_VOID, ARG_TYPES_INT_LUAVALUE);
     	}
 	}
 
 	public void setlistVarargs(int index0, int vresultbase) {
-		append(new PUSH(cp, index0));
+		main.push(index0);
 		loadVarresult();
-		append(factory.createInvoke(STR_LUAVALUE, "rawsetlist", Type.VOID, ARG_TYPES_INT_VARARGS, Constants.INVOKEVIRTUAL));
+		invokevirtual(STR_LUAVALUE, "rawsetlist", TYPE_VOID, ARG_TYPES_INT_VARARGS);
 	}
 
 	public void concatvalue() {
-        append(factory.createInvoke(STR_LUAVALUE, "concat", TYPE_LUAVALUE, ARG_TYPES_LUAVALUE, Constants.INVOKEVIRTUAL));
+        invokevirtual(STR_LUAVALUE, "concat", TYPE_LUAVALUE, ARG_TYPES_LUAVALUE);
 	}
 	
 	public void concatbuffer() {
-        append(factory.createInvoke(STR_LUAVALUE, "concat", TYPE_BUFFER, ARG_TYPES_BUFFER, Constants.INVOKEVIRTUAL));
+        invokevirtual(STR_LUAVALUE, "concat", TYPE_BUFFER, ARG_TYPES_BUFFER);
 	}
 
 	public void tobuffer() {
-        append(factory.createInvoke(STR_LUAVALUE, "buffer", TYPE_BUFFER, Type.NO_ARGS, Constants.INVOKEVIRTUAL));
+        invokevirtual(STR_LUAVALUE, "buffer", TYPE_BUFFER, ARG_TYPES_NONE);
 	}
 
 	public void tovalue() {
-        append(factory.createInvoke(STR_BUFFER, "value", TYPE_LUAVALUE, Type.NO_ARGS, Constants.INVOKEVIRTUAL));
+        invokevirtual(STR_BUFFER, "value", TYPE_LUAVALUE, ARG_TYPES_NONE);
 	}
 
 	public void closeUpvalue(int pc, int upindex) {
 		// TODO: assign the upvalue location the value null;
 		/*
 		boolean isrw = pi.isReadWriteUpvalue( pi.upvals[upindex] ); 
-		append(InstructionConstants.THIS);
-		append(InstructionConstants.ACONST_NULL);
+		main.varInsn(MethodWriter.ALOAD, 0);
+		main.insn(MethodWriter.ACONST_NULL);
 		if ( isrw ) {
-			append(factory.createFieldAccess(classname, upvalueName(upindex), TYPE_LUAVALUEARRAY, Constants.PUTFIELD));
+			main.fieldInsn(MethodWriter.PUTFIELD, cw.name, upvalueName(upindex), TYPE_LOCALUPVALUE);
 		} else {
-			append(factory.createFieldAccess(classname, upvalueName(upindex), TYPE_LUAVALUE, Constants.PUTFIELD));
+			main.fieldInsn(MethodWriter.PUTFIELD, cw.name, upvalueName(upindex), TYPE_LUAVALUE);
 		}
 		*/
 	}
@@ -23,6 +23,7 @@ package org.luaj.vm2.luajc;
 
 import org.luaj.vm2.LocVars;
 import org.luaj.vm2.Lua;
+import org.luaj.vm2.LuaValue;
 import org.luaj.vm2.Prototype;
 import org.luaj.vm2.Upvaldesc;
 
@@ -107,11 +108,22 @@ public class JavaGen {
 	                break;
 	                
 				case Lua.OP_MOVE:/*	A B	R(A):= R(B)					*/
+					if ( pi.isNumericSlot(a) ) {
+						builder.loadNumber( pc, b );
+						builder.storeNumber( pc, a );
+						break;
+					}
 					builder.loadLocal( pc, b );
 					builder.storeLocal( pc, a );
 					break;
 					
 				case Lua.OP_UNM: /*	A B	R(A):= -R(B)					*/
+					if ( pi.isNumericInput(pc, b) ) {
+						builder.loadNumber( pc, b );
+						builder.numericNegate();
+						builder.storeNumber( pc, a );
+						break;
+					}
 				case Lua.OP_NOT: /*	A B	R(A):= not R(B)				*/
 				case Lua.OP_LEN: /*	A B	R(A):= length of R(B)				*/
 					builder.loadLocal( pc, b );
@@ -120,6 +132,11 @@ public class JavaGen {
 					break;
 					
 				case Lua.OP_LOADK:/*	A Bx	R(A):= Kst(Bx)					*/
+					if ( pi.isNumericSlot(a) ) {
+						builder.loadNumber( p.k[bx].todouble() );
+						builder.storeNumber( pc, a );
+						break;
+					}
 					builder.loadConstant( p.k[bx] );
 					builder.storeLocal( pc, a );
 					break;
@@ -136,14 +153,14 @@ public class JavaGen {
 				case Lua.OP_GETTABUP: /*	A B C	R(A) := UpValue[B][RK(C)]			*/
 					builder.loadUpvalue( b );
 					loadLocalOrConstant( p, builder, pc, c );
-					builder.getTable();
+					getTable( p, builder, c );
 					builder.storeLocal( pc, a );
 					break;
 
 				case Lua.OP_GETTABLE: /*	A B C	R(A):= R(B)[RK(C)]				*/
 					builder.loadLocal( pc, b );
 					loadLocalOrConstant( p, builder, pc, c );
-					builder.getTable();
+					getTable( p, builder, c );
 					builder.storeLocal( pc, a );
 					break;
 					
@@ -151,14 +168,14 @@ public class JavaGen {
 					builder.loadUpvalue( a );
 					loadLocalOrConstant( p, builder, pc, b );
 					loadLocalOrConstant( p, builder, pc, c );
-					builder.setTable();
+					setTable( p, builder, b );
 					break;
 	
 				case Lua.OP_SETTABLE: /*	A B C	R(A)[RK(B)]:= RK(C)				*/
 					builder.loadLocal( pc, a );
 					loadLocalOrConstant( p, builder, pc, b );
 					loadLocalOrConstant( p, builder, pc, c );
-					builder.setTable();
+					setTable( p, builder, b );
 					break;
 					
 				case Lua.OP_ADD: /*	A B C	R(A):= RK(B) + RK(C)				*/
@@ -167,6 +184,13 @@ public class JavaGen {
 				case Lua.OP_DIV: /*	A B C	R(A):= RK(B) / RK(C)				*/
 				case Lua.OP_MOD: /*	A B C	R(A):= RK(B) % RK(C)				*/
 				case Lua.OP_POW: /*	A B C	R(A):= RK(B) ^ RK(C)				*/
+					if ( pi.isNumericRK(pc, b) && pi.isNumericRK(pc, c) ) {
+						loadNumber( p, builder, pc, b );
+						loadNumber( p, builder, pc, c );
+						builder.numericBinaryop( o );
+						builder.storeNumber( pc, a );
+						break;
+					}
 					loadLocalOrConstant( p, builder, pc, b );
 					loadLocalOrConstant( p, builder, pc, c );
 					builder.binaryop( o );
@@ -178,7 +202,7 @@ public class JavaGen {
 					builder.dup();
 					builder.storeLocal(pc, a+1);
 					loadLocalOrConstant( p, builder, pc, c );
-					builder.getTable();
+					getTable( p, builder, c );
 					builder.storeLocal(pc, a);
 					break;
 					
@@ -215,6 +239,13 @@ public class JavaGen {
 				case Lua.OP_EQ: /*	A B C	if ((RK(B) == RK(C)) ~= A) then pc++		*/
 				case Lua.OP_LT: /*	A B C	if ((RK(B) <  RK(C)) ~= A) then pc++  		*/
 				case Lua.OP_LE: /*	A B C	if ((RK(B) <= RK(C)) ~= A) then pc++  		*/
+					if ( pi.isNumericRK(pc, b) && pi.isNumericRK(pc, c) ) {
+						loadNumber( p, builder, pc, b );
+						loadNumber( p, builder, pc, c );
+						builder.numericCompareop(o);
+						builder.addBranch(pc, numericBranch(o, a!=0), pc+2);
+						break;
+					}
 					loadLocalOrConstant( p, builder, pc, b );
 					loadLocalOrConstant( p, builder, pc, c );
 					builder.compareop(o);
@@ -240,30 +271,55 @@ public class JavaGen {
 					// load function
 					builder.loadLocal(pc, a);
 					
-					// load args
-					int narg = b - 1;
-					switch ( narg ) {
-					case 0: case 1: case 2: case 3:
-						for ( int i=1; i<b; i++ )
-							builder.loadLocal(pc, a+i);
-						break;
-					default: // fixed arg count > 3
-						builder.newVarargs( pc, a+1, b-1 );
-						narg = -1;
-						break;
-					case -1: // prev vararg result
-						loadVarargResults( builder, pc, a+1, vresultbase );
-						narg = -1;
-						break;
+					// call a closure of known class directly, or call or invoke it as a LuaValue
+					boolean useinvoke;
+					ProtoInfo closure = pi.getClosureInput(pc, a);
+					int supertype = closure != null? JavaBuilder.getSuperclassType(closure.prototype): -1;
+					if ( supertype == JavaBuilder.SUPERTYPE_VARARGS ) {
+						builder.checkClosure( closure.name );
+						if ( b == 0 )
+							loadVarargResults( builder, pc, a+1, vresultbase );
+						else
+							builder.newVarargs( pc, a+1, b-1 );
+						builder.callClosure( closure.name, supertype );
+						useinvoke = true;
+					} else if ( supertype >= 0 && b > 0 ) {
+						builder.checkClosure( closure.name );
+						for ( int i=1; i<=supertype; i++ ) {
+							if ( i < b )
+								builder.loadLocal(pc, a+i);
+							else
+								builder.loadNil();
+						}
+						builder.callClosure( closure.name, supertype );
+						useinvoke = false;
+					} else {
+						
+						// load args
+						int narg = b - 1;
+						switch ( narg ) {
+						case 0: case 1: case 2: case 3:
+							for ( int i=1; i<b; i++ )
+								builder.loadLocal(pc, a+i);
+							break;
+						default: // fixed arg count > 3
+							builder.newVarargs( pc, a+1, b-1 );
+							narg = -1;
+							break;
+						case -1: // prev vararg result
+							loadVarargResults( builder, pc, a+1, vresultbase );
+							narg = -1;
+							break;
+						}
+						
+						// call or invoke
+						useinvoke = narg<0 || c<1 || c>2;
+						if ( useinvoke )
+							builder.invoke(narg);
+						else
+							builder.call(narg);
 					}
 					
-					// call or invoke
-					boolean useinvoke = narg<0 || c<1 || c>2;
-					if ( useinvoke )
-						builder.invoke(narg);
-					else
-						builder.call(narg);
-					
 					// handle results
 					switch ( c ) {
 					case 1: 
@@ -329,6 +385,18 @@ public class JavaGen {
 					break;
 					
 				case Lua.OP_FORPREP: /*	A sBx	R(A)-=R(A+2): pc+=sBx				*/
+					if ( pi.isNumericLoop(pc) ) {
+						builder.loadForValue(pc, a, "'for' initial value must be a number");
+						builder.loadForValue(pc, a+1, "'for' limit must be a number");
+						builder.storeForControl(a+1);
+						builder.loadForValue(pc, a+2, "'for' step must be a number");
+						builder.dup2();
+						builder.storeForControl(a+2);
+						builder.numericBinaryop( Lua.OP_SUB );
+						builder.storeForControl(a);
+						builder.addBranch(pc, JavaBuilder.BRANCH_GOTO, pc+1+sbx);
+						break;
+					}
 					builder.loadLocal(pc, a);
 					builder.loadLocal(pc, a+2);
 					builder.binaryop( Lua.OP_SUB );
@@ -337,6 +405,17 @@ public class JavaGen {
 					break;
 					
 				case Lua.OP_FORLOOP: /*	A sBx	R(A)+=R(A+2): if R(A) <?= R(A+1) then { pc+=sBx: R(A+3)=R(A) }*/
+					if ( pi.isNumericLoop(pc) ) {
+						builder.loadForControl(a);
+						builder.loadForControl(a+2);
+						builder.numericBinaryop( Lua.OP_ADD );
+						builder.dup2();
+						builder.storeForControl(a);
+						builder.storeNumber(pc, a+3);
+						builder.testNumericForLoop(a, forStepSign(pi, pc+sbx, a+2));
+						builder.addBranch(pc, JavaBuilder.BRANCH_IFLE, pc+1+sbx);
+						break;
+					}
 					builder.loadLocal(pc, a);
 					builder.loadLocal(pc, a+2);
 					builder.binaryop( Lua.OP_ADD );
@@ -438,10 +517,59 @@ public class JavaGen {
 		}
 	}
 
+	private void loadNumber(Prototype p, JavaBuilder builder, int pc, int borc) {
+		if ( borc<=0xff )
+			builder.loadNumber( pc, borc );
+		else
+			builder.loadNumber( p.k[borc&0xff].todouble() );
+	}
+
+	/** Branch to take when a numeric comparison made by JavaBuilder.numericCompareop() 
+	 * is false if skipfalse, or true otherwise */
+	private static int numericBranch(int o, boolean skipfalse) {
+		switch ( o ) {
+		case Lua.OP_EQ: return skipfalse? JavaBuilder.BRANCH_IFNE: JavaBuilder.BRANCH_IFEQ;
+		case Lua.OP_LT: return skipfalse? JavaBuilder.BRANCH_IFGE: JavaBuilder.BRANCH_IFLT;
+		default: return skipfalse? JavaBuilder.BRANCH_IFGT: JavaBuilder.BRANCH_IFLE;
+		}
+	}
+
+	/** Sign of the step of the numeric for loop prepared at pc when it is a constant, or 0 */
+	private static int forStepSign(ProtoInfo pi, int pc, int slot) {
+		VarInfo v = pi.vars[slot][pc];
+		if ( v == null || v.pc < 0 || v.isPhiVar() )
+			return 0;
+		int ins = pi.prototype.code[v.pc];
+		if ( Lua.GET_OPCODE(ins) != Lua.OP_LOADK )
+			return 0;
+		LuaValue step = pi.prototype.k[Lua.GETARG_Bx(ins)];
+		if ( step.type() != LuaValue.TNUMBER )
+			return 0;
+		return step.todouble() > 0? 1: -1;
+	}
+
 	private void loadLocalOrConstant(Prototype p, JavaBuilder builder, int pc, int borc) {
 		if ( borc<=0xff )
 			builder.loadLocal( pc, borc );
 		else
 			builder.loadConstant( p.k[borc&0xff] );
 	}
+
+	private static boolean isStringConstant(Prototype p, int borc) {
+		return borc > 0xff && p.k[borc&0xff].type() == LuaValue.TSTRING;
+	}
+
+	private void getTable(Prototype p, JavaBuilder builder, int key) {
+		if ( isStringConstant(p, key) )
+			builder.getField();
+		else
+			builder.getTable();
+	}
+
+	private void setTable(Prototype p, JavaBuilder builder, int key) {
+		if ( isStringConstant(p, key) )
+			builder.setField();
+		else
+			builder.setTable();
+	}
 }
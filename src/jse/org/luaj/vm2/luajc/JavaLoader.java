@@ -63,8 +63,13 @@ public class JavaLoader extends ClassLoader {
 			include( jg.inners[i] );
 	}
 
+	/** Include classes generated earlier, such as those from a {@link ClassCache} */
+	public void include( Map classes ) {
+		unloaded.putAll( classes );
+	}
+
 	public Class findClass(String classname) throws ClassNotFoundException {
-		byte[] bytes = (byte[]) unloaded.get(classname);
+		byte[] bytes = (byte[]) unloaded.remove(classname);
 		if ( bytes != null )
 			return defineClass(classname, bytes, 0, bytes.length);
 		return super.findClass(classname);
@@ -53,12 +53,22 @@ import org.luaj.vm2.compiler.LuaC;
  * chunk.call();
  * } </pre>
  * <p>
- * This requires the bcel library to be on the class path to work as expected.  
- * If the library is not found, the default {@link LuaC} lua-to-lua-bytecode 
- * compiler will be used.  
+ * Class files are written by {@link ClassWriter} with StackMapTable frames, 
+ * so no third party bytecode library is needed.  Each chunk is defined by its own 
+ * {@link JavaLoader}, so its classes can be unloaded once the chunk is unreachable.  
+ * <p>
+ * To reuse generated classes across runs of the JVM, install it with a 
+ * {@link ClassCache} using {@link #install(Globals, ClassCache)}. 
+ * Chunks loaded by {@code require} go through the same loader, so they are cached as well.  
+ * <p>
+ * Alternatively, {@link #installTiered(Globals)} keeps the interpreter and only 
+ * compiles prototypes to java bytecode once they are hot, 
+ * using a {@link TieredCompiler}.
  * 
  * @see Globals#compiler
  * @see #install(Globals)
+ * @see #installTiered(Globals)
+ * @see ClassCache
  * @see org.luaj.vm2.compiler.LuaC
  * @see LuaValue
  */
@@ -66,6 +76,14 @@ public class LuaJC implements Globals.Loader {
 	
 	public static final LuaJC instance = new LuaJC();
 	
+	/** 
+	 * Whether generated classes call functions, index tables and apply operators through 
+	 * invokedynamic call sites linked by {@link DynamicLinker}, rather than virtual calls. 
+	 * Such classes need java 7 or later.  
+	 * This can be changed by Java startup code if desired.
+	 */
+	public static boolean use_invokedynamic = false;
+	
 	/** 
 	 * Install the compiler as the main Globals.Loader to use in a set of globals. 
 	 * Will fall back to the LuaC prototype compiler.
@@ -74,7 +92,34 @@ public class LuaJC implements Globals.Loader {
 		G.loader = instance; 
 	}
 	
-	protected LuaJC() {}
+	/** 
+	 * Install tiered compiling in a set of globals, so that lua code is interpreted 
+	 * until it is hot, and then compiled to java bytecode in the background.
+	 * @see TieredCompiler
+	 */
+	public static final void installTiered(Globals G) {
+		G.promoter = TieredCompiler.instance;
+	}
+	
+	/** 
+	 * Install the compiler as the main Globals.Loader to use in a set of globals, 
+	 * looking up generated classes in a cache on disk before generating them.
+	 * @see ClassCache
+	 */
+	public static final void install(Globals G, ClassCache cache) {
+		G.loader = new LuaJC(cache);
+	}
+	
+	/** Cache of generated classes, or null to always generate them */
+	private final ClassCache cache;
+	
+	protected LuaJC() {
+		this(null);
+	}
+	
+	protected LuaJC(ClassCache cache) {
+		this.cache = cache;
+	}
 
 	public Hashtable compileAll(InputStream script, String chunkname, String filename, Globals globals, boolean genmain) throws IOException {
 		final String classname = toStandardJavaClassName( chunkname );
@@ -106,10 +151,21 @@ public class LuaJC implements Globals.Loader {
 		String luaname = toStandardLuaFileName( name );
 		String classname = toStandardJavaClassName( luaname );
 		JavaLoader loader = new JavaLoader();
-		return loader.load(p, classname, luaname, globals);
+		if ( cache == null )
+			return loader.load(p, classname, luaname, globals);
+		String key = ClassCache.key(p, classname, luaname);
+		Hashtable classes = cache.get(key);
+		if ( classes == null ) {
+			classes = new Hashtable();
+			insert(classes, new JavaGen(p, classname, luaname, false));
+			cache.put(key, classes);
+		}
+		loader.include(classes);
+		return loader.load(classname, globals);
 	}
 	
-	private static String toStandardJavaClassName( String luachunkname ) {
+	/** Get the name of the main class generated for a lua chunk name */
+	public static String toStandardJavaClassName( String luachunkname ) {
 		String stub = toStub( luachunkname );
 		StringBuffer classname = new StringBuffer();
 		for (int i = 0, n = stub.length(); i < n; ++i) {
@@ -0,0 +1,723 @@
+/*******************************************************************************
+* Copyright (c) 2015 Luaj.org. All rights reserved.
+*
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+*
+* The above copyright notice and this permission notice shall be included in
+* all copies or substantial portions of the Software.
+* 
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+* THE SOFTWARE.
+******************************************************************************/
+package org.luaj.vm2.luajc;
+
+import org.luaj.vm2.luajc.ClassWriter.ByteVector;
+
+/**
+ * Writer for the code of one method of a class being written by {@link ClassWriter}.
+ * <p>
+ * Instructions are appended with the methods named after the kind of instruction, 
+ * for example {@link #varInsn(int, int)} or {@link #methodInsn(int, String, String, String)}, 
+ * which keep track of the stack depth and of the locals used.  
+ * Branches are emitted by {@link #jumpInsn(int)} and resolved later with 
+ * {@link #setJumpTarget(int, int)} once the target offset is known.  
+ * <p>
+ * On {@link #complete()} the writer analyzes the control flow of the code 
+ * to compute a StackMapTable frame at the start of each basic block, holding 
+ * the locals that are assigned on every path into the block.  
+ * The operand stack must be empty at every branch and branch target, 
+ * which is always the case for code generated from lua instructions.  
+ * Code that can not be reached is replaced by nop ... athrow as its frame 
+ * could not be computed otherwise.  
+ * 
+ * @see ClassWriter
+ * @see JavaBuilder
+ */
+public class MethodWriter {
+
+	// opcodes
+	public static final int NOP         = 0x00;
+	public static final int ACONST_NULL = 0x01;
+	public static final int ICONST_0    = 0x03;
+	public static final int DCONST_0    = 0x0e;
+	public static final int DCONST_1    = 0x0f;
+	public static final int BIPUSH      = 0x10;
+	public static final int SIPUSH      = 0x11;
+	public static final int LDC         = 0x12;
+	public static final int LDC_W       = 0x13;
+	public static final int LDC2_W      = 0x14;
+	public static final int ILOAD       = 0x15;
+	public static final int DLOAD       = 0x18;
+	public static final int ALOAD       = 0x19;
+	public static final int AALOAD      = 0x32;
+	public static final int ISTORE      = 0x36;
+	public static final int DSTORE      = 0x39;
+	public static final int ASTORE      = 0x3a;
+	public static final int AASTORE     = 0x53;
+	public static final int POP         = 0x57;
+	public static final int DUP         = 0x59;
+	public static final int DUP_X1      = 0x5a;
+	public static final int DUP2        = 0x5c;
+	public static final int SWAP        = 0x5f;
+	public static final int IADD        = 0x60;
+	public static final int DADD        = 0x63;
+	public static final int ISUB        = 0x64;
+	public static final int DSUB        = 0x67;
+	public static final int IMUL        = 0x68;
+	public static final int DMUL        = 0x6b;
+	public static final int DNEG        = 0x77;
+	public static final int ISHR        = 0x7a;
+	public static final int DCMPL       = 0x97;
+	public static final int DCMPG       = 0x98;
+	public static final int IFEQ        = 0x99;
+	public static final int IFNE        = 0x9a;
+	public static final int IFLT        = 0x9b;
+	public static final int IFGE        = 0x9c;
+	public static final int IFGT        = 0x9d;
+	public static final int IFLE        = 0x9e;
+	public static final int GOTO        = 0xa7;
+	public static final int IRETURN     = 0xac;
+	public static final int DRETURN     = 0xaf;
+	public static final int ARETURN     = 0xb0;
+	public static final int RETURN      = 0xb1;
+	public static final int GETSTATIC   = 0xb2;
+	public static final int PUTSTATIC   = 0xb3;
+	public static final int GETFIELD    = 0xb4;
+	public static final int PUTFIELD    = 0xb5;
+	public static final int INVOKEVIRTUAL = 0xb6;
+	public static final int INVOKESPECIAL = 0xb7;
+	public static final int INVOKESTATIC  = 0xb8;
+	public static final int INVOKEDYNAMIC = 0xba;
+	public static final int NEW         = 0xbb;
+	public static final int ANEWARRAY   = 0xbd;
+	public static final int ATHROW      = 0xbf;
+	public static final int CHECKCAST   = 0xc0;
+	private static final int WIDE       = 0xc4;
+
+	// verification type tags of the StackMapTable
+	private static final int ITEM_TOP     = 0;
+	private static final int ITEM_INTEGER = 1;
+	private static final int ITEM_DOUBLE  = 3;
+	private static final int ITEM_OBJECT  = 7;
+	private static final int SAME_FRAME   = 0;
+	private static final int SAME_FRAME_EXTENDED = 251;
+	private static final int FULL_FRAME   = 255;
+	
+	private static final String THROWABLE = "java/lang/Throwable";
+
+	private final ClassWriter cw;
+	private final int access;
+	private final String name;
+	private final String desc;
+	
+	private final ByteVector code = new ByteVector(256);
+	private int stack;
+	private int maxStack;
+	
+	// descriptor and name of each local, indexed by local variable index
+	private String[] localTypes = new String[8];
+	private String[] localNames = new String[8];
+	private int[] localStart = new int[8];
+	private int[] localEnd = new int[8];
+	private int nparams;
+	private int nlocals;
+
+	// offsets of all instructions, and the local stored or branch target of each
+	private int[] insnOffset = new int[64];
+	private int[] insnStore = new int[64];
+	private int[] insnTarget = new int[64];
+	private int ninsns;
+
+	// line number table as pairs of offset and line
+	private int[] lines = new int[32];
+	private int nlines;
+
+	MethodWriter(ClassWriter cw, int access, String name, String desc, String[] argNames) {
+		this.cw = cw;
+		this.access = access;
+		this.name = name;
+		this.desc = desc;
+		if ( (access & ClassWriter.ACC_STATIC) == 0 )
+			newLocal("this", "L" + cw.name + ";");
+		String[] args = argTypes(desc);
+		for ( int i=0; i<args.length; i++ )
+			newLocal(argNames[i], args[i]);
+		nparams = nlocals;
+	}
+
+	/** Get the offset at which the next instruction will be written */
+	public int getOffset() {
+		return code.length;
+	}
+
+	/** Get the depth of the operand stack after the last instruction written */
+	public int getStackDepth() {
+		return stack;
+	}
+
+	/** 
+	 * Add a local variable to the method 
+	 * @param name name of the local for the local variable table
+	 * @param desc type descriptor of the local
+	 * @return index of the local 
+	 */
+	public int newLocal(String name, String desc) {
+		int index = nlocals;
+		int size = size(desc);
+		if ( index + size > localTypes.length ) {
+			int n = Math.max(localTypes.length * 2, index + size);
+			localTypes = grow(localTypes, n);
+			localNames = grow(localNames, n);
+			localStart = grow(localStart, n);
+			localEnd = grow(localEnd, n);
+		}
+		localTypes[index] = desc;
+		localNames[index] = name;
+		localStart[index] = 0;
+		localEnd[index] = -1;
+		nlocals += size;
+		return index;
+	}
+
+	/** 
+	 * Set the name and range of code of a local for the local variable table.
+	 * By default a local is described as live for the whole method.
+	 * @param index index of the local 
+	 * @param name name of the local 
+	 * @param start offset of the first instruction at which the local is live
+	 * @param end offset after the last instruction at which the local is live
+	 */
+	public void setLocalVariable(int index, String name, int start, int end) {
+		localNames[index] = name;
+		localStart[index] = start;
+		localEnd[index] = end;
+	}
+
+	/** Record the source line of code starting at an offset */
+	public void lineNumber(int offset, int line) {
+		if ( nlines + 2 > lines.length )
+			lines = grow(lines, lines.length * 2);
+		lines[nlines++] = offset;
+		lines[nlines++] = line;
+	}
+
+	// ------------------------ instructions ------------------------
+	
+	private void insn(int opcode, int store, int target) {
+		if ( ninsns == insnOffset.length ) {
+			int n = ninsns * 2;
+			insnOffset = grow(insnOffset, n);
+			insnStore = grow(insnStore, n);
+			insnTarget = grow(insnTarget, n);
+		}
+		insnOffset[ninsns] = code.length;
+		insnStore[ninsns] = store;
+		insnTarget[ninsns] = target;
+		++ninsns;
+		code.putByte(opcode);
+	}
+	
+	private void adjustStack(int delta) {
+		stack += delta;
+		if ( stack < 0 )
+			throw new IllegalStateException("stack underflow in "+cw.name+"."+name);
+		if ( stack > maxStack )
+			maxStack = stack;
+	}
+
+	/** 
+	 * Write an instruction without operands 
+	 * @param opcode one of NOP, ACONST_NULL, DCONST_0, DCONST_1, AALOAD, AASTORE, 
+	 * POP, DUP, DUP_X1, DUP2, SWAP, IADD, ISUB, IMUL, ISHR, DADD, DSUB, DMUL, DNEG, 
+	 * DCMPL, DCMPG, IRETURN, DRETURN, ARETURN, RETURN or ATHROW
+	 */
+	public void insn(int opcode) {
+		insn(opcode, -1, -1);
+		switch ( opcode ) {
+		case NOP: case SWAP: case DNEG: case RETURN: break;
+		case ACONST_NULL: case DUP: case DUP_X1: adjustStack(1); break;
+		case DCONST_0: case DCONST_1: case DUP2: adjustStack(2); break;
+		case AALOAD: case POP: case IADD: case ISUB: case IMUL: case ISHR: 
+		case IRETURN: case ARETURN: case ATHROW: adjustStack(-1); break;
+		case DADD: case DSUB: case DMUL: case DRETURN: adjustStack(-2); break;
+		case DCMPL: case DCMPG: adjustStack(-3); break;
+		case AASTORE: adjustStack(-3); break;
+		default: throw new IllegalArgumentException("not a plain instruction: "+opcode);
+		}
+	}
+
+	/** 
+	 * Write a load or store of a local 
+	 * @param opcode one of ALOAD, ASTORE, ILOAD, ISTORE, DLOAD or DSTORE
+	 * @param index index of the local
+	 */
+	public void varInsn(int opcode, int index) {
+		boolean store = opcode == ASTORE || opcode == ISTORE || opcode == DSTORE;
+		if ( index < 4 ) {
+			int base;
+			switch ( opcode ) {
+			case ILOAD:  base = 0x1a; break;
+			case DLOAD:  base = 0x26; break;
+			case ALOAD:  base = 0x2a; break;
+			case ISTORE: base = 0x3b; break;
+			case DSTORE: base = 0x47; break;
+			default:     base = 0x4b; break;
+			}
+			insn(base + index, store? index: -1, -1);
+		} else if ( index < 256 ) {
+			insn(opcode, store? index: -1, -1);
+			code.putByte(index);
+		} else {
+			insn(WIDE, store? index: -1, -1);
+			code.putByte(opcode);
+			code.putShort(index);
+		}
+		int size = (opcode == DLOAD || opcode == DSTORE)? 2: 1;
+		adjustStack(store? -size: size);
+	}
+
+	/** Write the instruction to push an int constant */
+	public void push(int value) {
+		if ( value >= -1 && value <= 5 ) {
+			insn(ICONST_0 + value, -1, -1);
+		} else if ( value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE ) {
+			insn(BIPUSH, -1, -1);
+			code.putByte(value);
+		} else if ( value >= Short.MIN_VALUE && value <= Short.MAX_VALUE ) {
+			insn(SIPUSH, -1, -1);
+			code.putShort(value);
+		} else {
+			ldc(cw.newInteger(value));
+		}
+		adjustStack(1);
+	}
+
+	/** Write the instruction to push a double constant */
+	public void push(double value) {
+		if ( value == 0.0 && 1/value > 0 ) {
+			insn(DCONST_0, -1, -1);
+		} else if ( value == 1.0 ) {
+			insn(DCONST_1, -1, -1);
+		} else {
+			insn(LDC2_W, -1, -1);
+			code.putShort(cw.newDouble(value));
+		}
+		adjustStack(2);
+	}
+
+	/** Write the instruction to push a String constant */
+	public void push(String value) {
+		ldc(cw.newString(value));
+		adjustStack(1);
+	}
+
+	private void ldc(int index) {
+		if ( index < 256 ) {
+			insn(LDC, -1, -1);
+			code.putByte(index);
+		} else {
+			insn(LDC_W, -1, -1);
+			code.putShort(index);
+		}
+	}
+
+	/** 
+	 * Write an instruction that takes a class as operand 
+	 * @param opcode NEW, ANEWARRAY or CHECKCAST
+	 * @param type internal name of the class
+	 */
+	public void typeInsn(int opcode, String type) {
+		insn(opcode, -1, -1);
+		code.putShort(cw.newClass(type));
+		if ( opcode == NEW )
+			adjustStack(1);
+	}
+
+	/** 
+	 * Write a field access 
+	 * @param opcode one of GETSTATIC, PUTSTATIC, GETFIELD or PUTFIELD
+	 * @param owner internal name of the class declaring the field
+	 * @param name name of the field
+	 * @param desc type descriptor of the field 
+	 */
+	public void fieldInsn(int opcode, String owner, String name, String desc) {
+		insn(opcode, -1, -1);
+		code.putShort(cw.newField(owner, name, desc));
+		int size = size(desc);
+		switch ( opcode ) {
+		case GETSTATIC: adjustStack(size); break;
+		case PUTSTATIC: adjustStack(-size); break;
+		case GETFIELD:  adjustStack(size-1); break;
+		default:        adjustStack(-size-1); break;
+		}
+	}
+
+	/** 
+	 * Write a method invocation 
+	 * @param opcode one of INVOKEVIRTUAL, INVOKESPECIAL or INVOKESTATIC
+	 * @param owner internal name of the class declaring the method
+	 * @param name name of the method
+	 * @param desc method descriptor 
+	 */
+	public void methodInsn(int opcode, String owner, String name, String desc) {
+		insn(opcode, -1, -1);
+		code.putShort(cw.newMethod(owner, name, desc));
+		String[] args = argTypes(desc);
+		int delta = size(desc.substring(desc.indexOf(')')+1));
+		for ( int i=0; i<args.length; i++ )
+			delta -= size(args[i]);
+		if ( opcode != INVOKESTATIC )
+			delta -= 1;
+		adjustStack(delta);
+	}
+
+	/** 
+	 * Write an invokedynamic instruction, which makes the class need java 7 or later 
+	 * @param name name of the call site
+	 * @param desc method descriptor of the call site
+	 * @param bsmOwner internal name of the class declaring the static bootstrap method
+	 * @param bsmName name of the bootstrap method
+	 * @param bsmDesc method descriptor of the bootstrap method
+	 */
+	public void invokeDynamicInsn(String name, String desc, String bsmOwner, String bsmName, String bsmDesc) {
+		insn(INVOKEDYNAMIC, -1, -1);
+		code.putShort(cw.newInvokeDynamic(name, desc, bsmOwner, bsmName, bsmDesc));
+		code.putShort(0);
+		String[] args = argTypes(desc);
+		int delta = size(desc.substring(desc.indexOf(')')+1));
+		for ( int i=0; i<args.length; i++ )
+			delta -= size(args[i]);
+		adjustStack(delta);
+	}
+
+	/** 
+	 * Write a branch whose target is set later by {@link #setJumpTarget(int, int)}.
+	 * @param opcode one of GOTO, IFEQ, IFNE, IFLT, IFGE, IFGT or IFLE
+	 * @return handle of the branch to pass to {@link #setJumpTarget(int, int)}
+	 */
+	public int jumpInsn(int opcode) {
+		int handle = ninsns;
+		insn(opcode, -1, -1);
+		code.putShort(0);
+		if ( opcode != GOTO )
+			adjustStack(-1);
+		if ( stack != 0 )
+			throw new IllegalStateException("stack not empty at branch in "+cw.name+"."+name);
+		return handle;
+	}
+
+	/** 
+	 * Set the target of a branch 
+	 * @param handle handle returned by {@link #jumpInsn(int)}
+	 * @param target offset of the instruction to branch to
+	 */
+	public void setJumpTarget(int handle, int target) {
+		int offset = insnOffset[handle];
+		int delta = target - offset;
+		if ( delta < Short.MIN_VALUE || delta > Short.MAX_VALUE )
+			throw new IllegalStateException("branch offset too large in "+cw.name+"."+name);
+		insnTarget[handle] = target;
+		code.setShort(offset+1, delta);
+	}
+
+	// ------------------------ completion ------------------------
+
+	/** Finish the method and add it to the class */
+	public void complete() {
+		int codeLength = code.length;
+		if ( codeLength == 0 || codeLength > 0xffff )
+			throw new IllegalStateException("bad code length "+codeLength+" in "+cw.name+"."+name);
+		ByteVector frames = computeFrames();
+		
+		ByteVector m = new ByteVector(codeLength + 128);
+		m.putShort(access);
+		m.putShort(cw.newUTF8(name));
+		m.putShort(cw.newUTF8(desc));
+		m.putShort(1);
+		
+		// Code attribute
+		m.putShort(cw.newUTF8("Code"));
+		int lengthAt = m.length;
+		m.putInt(0);
+		m.putShort(maxStack);
+		m.putShort(nlocals);
+		m.putInt(codeLength);
+		m.putBytes(code.data, 0, codeLength);
+		m.putShort(0); // exception table
+		int nattrs = (frames != null? 1: 0) + (nlines > 0? 1: 0) + (nlocals > 0? 1: 0);
+		m.putShort(nattrs);
+		if ( frames != null ) {
+			m.putShort(cw.newUTF8("StackMapTable"));
+			m.putInt(frames.length);
+			m.putBytes(frames.data, 0, frames.length);
+		}
+		if ( nlines > 0 ) {
+			m.putShort(cw.newUTF8("LineNumberTable"));
+			m.putInt(2 + nlines * 2);
+			m.putShort(nlines / 2);
+			for ( int i=0; i<nlines; i++ )
+				m.putShort(lines[i]);
+		}
+		if ( nlocals > 0 ) {
+			int at = m.length;
+			int n = 0;
+			m.putShort(cw.newUTF8("LocalVariableTable"));
+			m.putInt(0);
+			m.putShort(0);
+			for ( int i=0; i<nlocals; i++ ) {
+				if ( localTypes[i] == null )
+					continue;
+				int start = localStart[i];
+				int end = localEnd[i] < 0? codeLength: localEnd[i];
+				if ( start < 0 || start >= codeLength || end < start || end > codeLength )
+					continue;
+				m.putShort(start);
+				m.putShort(end - start);
+				m.putShort(cw.newUTF8(localNames[i]));
+				m.putShort(cw.newUTF8(localTypes[i]));
+				m.putShort(i);
+				++n;
+			}
+			m.setShort(at+2, ((m.length - at - 6) >> 16));
+			m.setShort(at+4, (m.length - at - 6));
+			m.setShort(at+6, n);
+		}
+		int length = m.length - lengthAt - 4;
+		m.setShort(lengthAt, length >>> 16);
+		m.setShort(lengthAt+2, length);
+		cw.addMethod(m);
+	}
+
+	/** 
+	 * Compute the frames at the start of basic blocks, and replace unreachable code. 
+	 * @return the contents of the StackMapTable attribute, or null if none is needed
+	 */
+	private ByteVector computeFrames() {
+		int codeLength = code.length;
+		
+		// find the start of basic blocks
+		boolean[] leader = new boolean[codeLength+1];
+		boolean[] target = new boolean[codeLength+1];
+		leader[0] = true;
+		for ( int i=0; i<ninsns; i++ ) {
+			int op = code.data[insnOffset[i]] & 0xff;
+			if ( insnTarget[i] >= 0 ) 
+				leader[insnTarget[i]] = target[insnTarget[i]] = true;
+			if ( isBranch(op) || isExit(op) ) {
+				int next = i+1<ninsns? insnOffset[i+1]: codeLength;
+				leader[next] = true;
+			}
+		}
+		int nblocks = 0;
+		int[] blockOf = new int[codeLength+1];
+		for ( int offset=0; offset<codeLength; offset++ ) {
+			if ( leader[offset] ) 
+				++nblocks;
+			blockOf[offset] = nblocks-1;
+		}
+		if ( nblocks == 1 && !target[0] )
+			return null;
+		int[] blockStart = new int[nblocks];
+		int[] blockLast = new int[nblocks]; // last instruction
+		boolean[][] stores = new boolean[nblocks][nlocals];
+		for ( int i=0; i<ninsns; i++ ) {
+			int b = blockOf[insnOffset[i]];
+			if ( i == 0 || blockOf[insnOffset[i-1]] != b )
+				blockStart[b] = insnOffset[i];
+			blockLast[b] = i;
+			if ( insnStore[i] >= 0 )
+				stores[b][insnStore[i]] = true;
+		}
+		
+		// propagate the locals assigned on all paths into each block
+		boolean[][] in = new boolean[nblocks][];
+		in[0] = new boolean[nlocals];
+		for ( int i=0; i<nparams; i++ )
+			in[0][i] = true;
+		boolean changed = true;
+		while ( changed ) {
+			changed = false;
+			for ( int b=0; b<nblocks; b++ ) {
+				if ( in[b] == null )
+					continue;
+				boolean[] out = new boolean[nlocals];
+				for ( int j=0; j<nlocals; j++ )
+					out[j] = in[b][j] || stores[b][j];
+				int last = blockLast[b];
+				int op = code.data[insnOffset[last]] & 0xff;
+				if ( insnTarget[last] >= 0 )
+					changed |= merge(in, blockOf[insnTarget[last]], out);
+				if ( op != GOTO && !isExit(op) && b+1 < nblocks )
+					changed |= merge(in, b+1, out);
+			}
+		}
+		
+		// write a frame at the start of each block but the first, 
+		// as a same frame when the locals are those of the previous frame
+		ByteVector frames = new ByteVector(nblocks * 16);
+		int nframes = 0;
+		int prev = -1;
+		boolean[] prevLocals = in[0];
+		frames.putShort(0);
+		for ( int b=0; b<nblocks; b++ ) {
+			int start = blockStart[b];
+			if ( start == 0 && !target[0] )
+				continue;
+			int end = b+1 < nblocks? blockStart[b+1]: codeLength;
+			boolean[] locals = in[b];
+			if ( locals == null ) {
+				for ( int i=start; i<end-1; i++ )
+					code.data[i] = NOP;
+				code.data[end-1] = (byte) ATHROW;
+				if ( maxStack < 1 )
+					maxStack = 1;
+				locals = new boolean[nlocals];
+				for ( int i=0; i<nparams; i++ )
+					locals[i] = true;
+			}
+			int delta = start - prev - 1;
+			if ( in[b] != null && sameLocals(locals, prevLocals) ) {
+				if ( delta < 64 ) {
+					frames.putByte(SAME_FRAME + delta);
+				} else {
+					frames.putByte(SAME_FRAME_EXTENDED);
+					frames.putShort(delta);
+				}
+			} else {
+				frames.putByte(FULL_FRAME);
+				frames.putShort(delta);
+				putLocals(frames, locals);
+				if ( in[b] == null ) {
+					frames.putShort(1);
+					frames.putByte(ITEM_OBJECT);
+					frames.putShort(cw.newClass(THROWABLE));
+				} else {
+					frames.putShort(0);
+				}
+			}
+			prev = start;
+			prevLocals = locals;
+			++nframes;
+		}
+		frames.setShort(0, nframes);
+		return frames;
+	}
+	
+	private static boolean merge(boolean[][] in, int b, boolean[] out) {
+		if ( in[b] == null ) {
+			in[b] = new boolean[out.length];
+			System.arraycopy(out, 0, in[b], 0, out.length);
+			return true;
+		}
+		boolean changed = false;
+		boolean[] x = in[b];
+		for ( int j=0; j<x.length; j++ ) {
+			if ( x[j] && !out[j] ) {
+				x[j] = false;
+				changed = true;
+			}
+		}
+		return changed;
+	}
+	
+	/** Check if two frames have the same locals, as verification types */
+	private static boolean sameLocals(boolean[] a, boolean[] b) {
+		for ( int i=0; i<a.length; i++ )
+			if ( a[i] != b[i] )
+				return false;
+		return true;
+	}
+
+	private void putLocals(ByteVector frames, boolean[] assigned) {
+		int n = 0, count = 0;
+		for ( int i=0; i<nlocals; i += assigned[i]? size(localTypes[i]): 1 ) {
+			++n;
+			if ( assigned[i] )
+				count = n;
+		}
+		frames.putShort(count);
+		for ( int i=0, k=0; k<count; ++k ) {
+			if ( !assigned[i] ) {
+				frames.putByte(ITEM_TOP);
+				++i;
+				continue;
+			}
+			String t = localTypes[i];
+			switch ( t.charAt(0) ) {
+			case 'Z': case 'B': case 'C': case 'S': case 'I':
+				frames.putByte(ITEM_INTEGER);
+				break;
+			case 'D':
+				frames.putByte(ITEM_DOUBLE);
+				break;
+			case 'L':
+				frames.putByte(ITEM_OBJECT);
+				frames.putShort(cw.newClass(t.substring(1, t.length()-1)));
+				break;
+			default:
+				frames.putByte(ITEM_OBJECT);
+				frames.putShort(cw.newClass(t));
+				break;
+			}
+			i += size(t);
+		}
+	}
+
+	private static boolean isBranch(int op) {
+		return op == GOTO || op >= IFEQ && op <= IFLE;
+	}
+
+	private static boolean isExit(int op) {
+		return op >= IRETURN && op <= RETURN || op == ATHROW;
+	}
+
+	// ------------------------ descriptors ------------------------
+
+	/** Size in local or stack slots of a type descriptor */
+	private static int size(String desc) {
+		char c = desc.charAt(0);
+		return c == 'V'? 0: (c == 'D' || c == 'J')? 2: 1;
+	}
+
+	/** Split the argument types of a method descriptor */
+	private static String[] argTypes(String desc) {
+		int n = 0;
+		for ( int i=1; desc.charAt(i) != ')'; n++ )
+			i = nextType(desc, i);
+		String[] args = new String[n];
+		for ( int i=1, k=0; k<n; k++ ) {
+			int j = nextType(desc, i);
+			args[k] = desc.substring(i, j);
+			i = j;
+		}
+		return args;
+	}
+
+	private static int nextType(String desc, int i) {
+		while ( desc.charAt(i) == '[' )
+			i++;
+		return desc.charAt(i) == 'L'? desc.indexOf(';', i) + 1: i + 1;
+	}
+
+	private static int[] grow(int[] a, int n) {
+		int[] b = new int[n];
+		System.arraycopy(a, 0, b, 0, a.length);
+		return b;
+	}
+
+	private static String[] grow(String[] a, int n) {
+		String[] b = new String[n];
+		System.arraycopy(a, 0, b, 0, a.length);
+		return b;
+	}
+}
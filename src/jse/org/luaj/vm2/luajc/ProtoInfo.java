@@ -2,10 +2,13 @@ package org.luaj.vm2.luajc;
 
 import java.io.ByteArrayOutputStream;
 import java.io.PrintStream;
+import java.util.Enumeration;
 import java.util.Hashtable;
+import java.util.Vector;
 
 import org.luaj.vm2.Lua;
 import org.luaj.vm2.LuaString;
+import org.luaj.vm2.LuaValue;
 import org.luaj.vm2.Print;
 import org.luaj.vm2.Prototype;
 import org.luaj.vm2.Upvaldesc;
@@ -24,6 +27,8 @@ public class ProtoInfo {
 	public final VarInfo[][] vars;        // Each variable
 	public final UpvalInfo[] upvals;      // from outer scope
 	public final UpvalInfo[][] openups;   // per slot, upvalues allocated by this prototype
+	public final boolean[] numericloops;  // per pc, true for FORPREP and FORLOOP of loops with double control variables
+	public final boolean[] numericslots;  // per slot, true if the slot only ever holds numbers
 	
 	// A main chunk proto info.
 	public ProtoInfo(Prototype p, String name) {
@@ -55,6 +60,10 @@ public class ProtoInfo {
 		// find upvalues, create sub-prototypes
 		this.openups = new UpvalInfo[p.maxstacksize][];
 		findUpvalues();
+		
+		// find loops and variables that can be kept as doubles
+		this.numericloops = findNumericLoops();
+		this.numericslots = findNumericVariables();
 	}
 
 	public String toString() {
@@ -446,6 +455,305 @@ public class ProtoInfo {
 		return u;
 	}
 
+	/** 
+	 * Find the numeric for loops whose control variables R(A), R(A+1) and R(A+2) 
+	 * are not touched by any instruction of the loop body, so can be held 
+	 * as doubles between the FORPREP and FORLOOP instructions.
+	 */
+	private boolean[] findNumericLoops() {
+		int[] code = prototype.code;
+		int n = code.length;
+		boolean[] loops = new boolean[n];
+		for ( int pc=0; pc<n; pc++ ) {
+			int ins = code[pc];
+			if ( Lua.GET_OPCODE(ins) != Lua.OP_FORPREP )
+				continue;
+			int a = Lua.GETARG_A(ins);
+			int end = pc + 1 + Lua.GETARG_sBx(ins);
+			if ( end < 0 || end >= n || a+3 >= prototype.maxstacksize || vars[a][pc] == null || vars[a][end] == null )
+				continue;
+			int loop = code[end];
+			if ( Lua.GET_OPCODE(loop) != Lua.OP_FORLOOP || Lua.GETARG_A(loop) != a || end + 1 + Lua.GETARG_sBx(loop) != pc + 1 )
+				continue;
+			if ( vars[a][pc].upvalue != null || vars[a][end].upvalue != null )
+				continue;
+			if ( isRegisterUsed(pc+1, end-1, a, a+2) )
+				continue;
+			loops[pc] = loops[end] = true;
+		}
+		return loops;
+	}
+
+	/** Check if any instruction from pc0 to pc1 may read or write a register from lo to hi */
+	private boolean isRegisterUsed(int pc0, int pc1, int lo, int hi) {
+		int[] code = prototype.code;
+		for ( int pc=pc0; pc<=pc1; pc++ ) {
+			int ins = code[pc];
+			int a = Lua.GETARG_A(ins);
+			int b = Lua.GETARG_B(ins);
+			int c = Lua.GETARG_C(ins);
+			boolean used;
+			switch ( Lua.GET_OPCODE(ins) ) {
+			case Lua.OP_LOADK:
+			case Lua.OP_LOADBOOL:
+			case Lua.OP_GETUPVAL:
+			case Lua.OP_NEWTABLE:
+			case Lua.OP_SETUPVAL:
+			case Lua.OP_TEST:
+				used = overlaps(a, a, lo, hi);
+				break;
+			case Lua.OP_MOVE:
+			case Lua.OP_UNM:
+			case Lua.OP_NOT:
+			case Lua.OP_LEN:
+			case Lua.OP_TESTSET:
+				used = overlaps(a, a, lo, hi) || overlaps(b, b, lo, hi);
+				break;
+			case Lua.OP_LOADNIL:
+				used = overlaps(a, a+b, lo, hi);
+				break;
+			case Lua.OP_GETTABUP:
+				used = overlaps(a, a, lo, hi) || isRK(c, lo, hi);
+				break;
+			case Lua.OP_GETTABLE:
+				used = overlaps(a, a, lo, hi) || overlaps(b, b, lo, hi) || isRK(c, lo, hi);
+				break;
+			case Lua.OP_SELF:
+				used = overlaps(a, a+1, lo, hi) || overlaps(b, b, lo, hi) || isRK(c, lo, hi);
+				break;
+			case Lua.OP_SETTABUP:
+			case Lua.OP_EQ:
+			case Lua.OP_LT:
+			case Lua.OP_LE:
+				used = isRK(b, lo, hi) || isRK(c, lo, hi);
+				break;
+			case Lua.OP_SETTABLE:
+			case Lua.OP_ADD:
+			case Lua.OP_SUB:
+			case Lua.OP_MUL:
+			case Lua.OP_DIV:
+			case Lua.OP_MOD:
+			case Lua.OP_POW:
+				used = overlaps(a, a, lo, hi) || isRK(b, lo, hi) || isRK(c, lo, hi);
+				break;
+			case Lua.OP_CONCAT:
+				used = overlaps(a, a, lo, hi) || overlaps(b, c, lo, hi);
+				break;
+			case Lua.OP_JMP:
+				used = a > 0 && overlaps(a-1, Integer.MAX_VALUE, lo, hi);
+				break;
+			case Lua.OP_CLOSURE: {
+				used = overlaps(a, a, lo, hi);
+				Upvaldesc[] upvalues = prototype.p[Lua.GETARG_Bx(ins)].upvalues;
+				for ( int k=0; k<upvalues.length; k++ )
+					used |= upvalues[k].instack && overlaps(upvalues[k].idx, upvalues[k].idx, lo, hi);
+				break;
+			}
+			case Lua.OP_CALL:
+			case Lua.OP_TAILCALL:
+			case Lua.OP_RETURN:
+			case Lua.OP_VARARG:
+			case Lua.OP_SETLIST:
+			case Lua.OP_FORPREP:
+			case Lua.OP_FORLOOP:
+			case Lua.OP_TFORCALL:
+			case Lua.OP_TFORLOOP:
+				used = overlaps(a, Integer.MAX_VALUE, lo, hi);
+				break;
+			default:
+				used = true;
+				break;
+			}
+			if ( used )
+				return true;
+		}
+		return false;
+	}
+
+	private static boolean isRK(int rk, int lo, int hi) {
+		return !Lua.ISK(rk) && overlaps(rk, rk, lo, hi);
+	}
+
+	private static boolean overlaps(int r0, int r1, int lo, int hi) {
+		return r0 <= hi && r1 >= lo;
+	}
+
+	/**
+	 * Mark the variables that always hold numbers, and find the slots whose 
+	 * variables all do so that they can be held in double locals.
+	 * <p>
+	 * Numbers come from numeric constants, control variables of numeric loops, 
+	 * and moves, negation and arithmetic of numbers, which can not invoke metamethods.
+	 * All candidates are assumed numeric at first, and the assumption is removed 
+	 * until no more variables change, so that variables of loops are found.
+	 */
+	private boolean[] findNumericVariables() {
+		int n = prototype.code.length;
+		int m = prototype.maxstacksize;
+		
+		// all variables that may be numeric
+		Hashtable candidates = new Hashtable();
+		for ( int slot=0; slot<m; slot++ ) {
+			for ( int pc=0; pc<n; pc++ ) {
+				VarInfo v = vars[slot][pc];
+				if ( v != null && v.pc >= 0 && !candidates.containsKey(v) ) {
+					candidates.put(v, v);
+					v.isnumeric = true;
+				}
+			}
+		}
+		for ( boolean changed = true; changed; ) {
+			changed = false;
+			for ( Enumeration e = candidates.elements(); e.hasMoreElements(); ) {
+				VarInfo v = (VarInfo) e.nextElement();
+				if ( v.isnumeric && !isNumericDefinition(v) ) {
+					v.isnumeric = false;
+					changed = true;
+				}
+			}
+		}
+		
+		// slots that are not upvalues and only assigned numbers
+		boolean[] slots = new boolean[m];
+		for ( int slot=prototype.numparams; slot<m; slot++ ) {
+			if ( isInitialValueUsed(slot) )
+				continue;
+			boolean numeric = true, assigned = false;
+			for ( int pc=0; numeric && pc<n; pc++ ) {
+				VarInfo v = vars[slot][pc];
+				if ( v == null || v == VarInfo.INVALID )
+					continue;
+				if ( v.upvalue != null )
+					numeric = false;
+				else if ( v.pc == pc && !v.isPhiVar() ) {
+					assigned = true;
+					numeric = v.isnumeric;
+				}
+			}
+			slots[slot] = numeric && assigned;
+		}
+		return slots;
+	}
+
+	private boolean isNumericDefinition(VarInfo v) {
+		if ( v.isPhiVar() ) {
+			VarInfo[] values = v.getPhiValues();
+			if ( values == null )
+				return false;
+			for ( int i=0; i<values.length; i++ )
+				if ( !values[i].isnumeric )
+					return false;
+			return true;
+		}
+		int ins = prototype.code[v.pc];
+		switch ( Lua.GET_OPCODE(ins) ) {
+		case Lua.OP_LOADK:
+			return prototype.k[Lua.GETARG_Bx(ins)].type() == LuaValue.TNUMBER;
+		case Lua.OP_MOVE:
+		case Lua.OP_UNM:
+			return isNumericInput(v.pc, Lua.GETARG_B(ins));
+		case Lua.OP_ADD:
+		case Lua.OP_SUB:
+		case Lua.OP_MUL:
+		case Lua.OP_DIV:
+		case Lua.OP_MOD:
+		case Lua.OP_POW:
+			return isNumericRK(v.pc, Lua.GETARG_B(ins)) && isNumericRK(v.pc, Lua.GETARG_C(ins));
+		case Lua.OP_FORPREP:
+		case Lua.OP_FORLOOP:
+			return numericloops[v.pc];
+		default:
+			return false;
+		}
+	}
+
+	/** Check if the value of a slot when the instruction at pc executes is always a number */
+	public boolean isNumericInput(int pc, int slot) {
+		VarInfo[] inputs = getInputs(pc, slot);
+		if ( inputs.length == 0 )
+			return false;
+		for ( int i=0; i<inputs.length; i++ )
+			if ( !inputs[i].isnumeric )
+				return false;
+		return true;
+	}
+
+	/** Get the variables a slot may hold when the instruction at pc executes */
+	private VarInfo[] getInputs(int pc, int slot) {
+		BasicBlock b = blocks[pc];
+		VarInfo v = vars[slot][pc-(pc > b.pc0? 1: 0)];
+		if ( pc > b.pc0 || (v != null && v != VarInfo.INVALID && (v.pc != pc || v.isPhiVar())) )
+			return v != null? new VarInfo[] { v }: new VarInfo[0];
+		
+		// replaced by the first instruction of a block, so use the outputs of the previous blocks
+		if ( pc == 0 || b.prev == null )
+			return new VarInfo[0];
+		Vector inputs = new Vector();
+		for ( int i=0; i<b.prev.length; i++ ) {
+			VarInfo p = vars[slot][b.prev[i].pc1];
+			if ( p != null && !inputs.contains(p) )
+				inputs.addElement(p);
+		}
+		VarInfo[] a = new VarInfo[inputs.size()];
+		inputs.copyInto(a);
+		return a;
+	}
+
+	/** Check if a register or constant operand of the instruction at pc is always a number */
+	public boolean isNumericRK(int pc, int rk) {
+		return Lua.ISK(rk)? 
+				prototype.k[rk&0x0ff].type() == LuaValue.TNUMBER: 
+				isNumericInput(pc, rk);
+	}
+
+	/** 
+	 * Find the prototype of the closure a slot holds when the instruction at pc executes, 
+	 * when it is always a closure created by this or an enclosing prototype, 
+	 * and then only moved or captured in upvalues that are never assigned.
+	 * @return info for the prototype of the closure, or null if it is not known
+	 */
+	public ProtoInfo getClosureInput(int pc, int slot) {
+		return findClosure(getInput(pc, slot), 0);
+	}
+
+	private static final int MAX_CLOSURE_SEARCH = 16;
+	
+	private ProtoInfo findClosure(VarInfo v, int depth) {
+		if ( v == null || v.pc < 0 || v.isPhiVar() || depth > MAX_CLOSURE_SEARCH )
+			return null;
+		int ins = prototype.code[v.pc];
+		switch ( Lua.GET_OPCODE(ins) ) {
+		case Lua.OP_CLOSURE:
+			return Lua.GETARG_A(ins) == v.slot? subprotos[Lua.GETARG_Bx(ins)]: null;
+		case Lua.OP_MOVE:
+			return findClosure(getInput(v.pc, Lua.GETARG_B(ins)), depth+1);
+		case Lua.OP_GETUPVAL: {
+			UpvalInfo u = upvals[Lua.GETARG_B(ins)];
+			if ( u.rw || u.nvars != 1 )
+				return null;
+			return u.pi.findClosure(u.var[0], depth+1);
+		}
+		default:
+			return null;
+		}
+	}
+
+	/** Get the variable a slot holds when the instruction at pc executes, or null if there may be several */
+	private VarInfo getInput(int pc, int slot) {
+		VarInfo[] inputs = getInputs(pc, slot);
+		return inputs.length == 1? inputs[0]: null;
+	}
+
+	/** Check if the control variables of the numeric for loop at pc are held as doubles */
+	public boolean isNumericLoop(int pc) {
+		return numericloops[pc];
+	}
+
+	/** Check if a slot is only ever assigned numbers, so can be held as a double */
+	public boolean isNumericSlot(int slot) {
+		return numericslots[slot];
+	}
+
 	public boolean isUpvalueAssign(int pc, int slot) {
 		VarInfo v = pc<0? params[slot]: vars[slot][pc];
 		return v != null && v.upvalue != null && v.upvalue.rw;
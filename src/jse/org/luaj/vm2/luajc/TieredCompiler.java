@@ -0,0 +1,174 @@
+/*******************************************************************************
+* Copyright (c) 2015 Luaj.org. All rights reserved.
+*
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+*
+* The above copyright notice and this permission notice shall be included in
+* all copies or substantial portions of the Software.
+* 
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+* THE SOFTWARE.
+******************************************************************************/
+package org.luaj.vm2.luajc;
+
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import org.luaj.vm2.Globals;
+import org.luaj.vm2.Lua;
+import org.luaj.vm2.LuaClosure;
+import org.luaj.vm2.LuaFunction;
+import org.luaj.vm2.LuaValue;
+import org.luaj.vm2.Prototype;
+import org.luaj.vm2.Upvaldesc;
+
+/**
+ * Implementation of {@link Globals.Promoter} which compiles hot prototypes 
+ * to java bytecode using {@link JavaGen} on a background thread.
+ * <p>
+ * Code is first loaded as {@link LuaClosure} and interpreted, so cold code 
+ * never pays for class generation.  Once a prototype has run for 
+ * {@link LuaClosure#promote_threshold} calls and backward jumps it is queued for 
+ * compiling, and when its class is ready all of its closures call the compiled 
+ * function instead.  A call that is already running stays in the interpreter. 
+ * <p>
+ * Only prototypes whose sole upvalue is the environment, which is not assigned, 
+ * can be promoted, since the generated classes keep upvalues in their own fields.
+ * This covers the main chunk and functions that only refer to globals and 
+ * their own locals.  Prototypes that fail to compile are left interpreted, 
+ * and counted in {@link #getFailures()}.
+ * <p>
+ * To use tiered compiling, install it into a set of globals: 
+ * <pre> {@code
+ * Globals globals = JsePlatform.standardGlobals();
+ * LuaJC.installTiered(globals);
+ * } </pre>
+ * 
+ * @see LuaJC#installTiered(Globals)
+ * @see Globals#promoter
+ * @see Prototype#promoted
+ */
+public class TieredCompiler implements Globals.Promoter {
+
+	public static final TieredCompiler instance = new TieredCompiler();
+	
+	private final LinkedList queue = new LinkedList();
+	private final Map seen = new WeakHashMap();
+	private Thread thread;
+	private int count;
+	private int failures;
+	private Throwable lastFailure;
+	
+	protected TieredCompiler() {}
+
+	public void promote(Prototype p) {
+		synchronized ( this ) {
+			if ( seen.containsKey(p) )
+				return;
+			seen.put(p, Boolean.TRUE);
+			if ( !promotable(p) )
+				return;
+			queue.addLast(p);
+			if ( thread == null ) {
+				thread = new Thread("luajc-tiered") {
+					public void run() {
+						compileQueued();
+					}
+				};
+				thread.setDaemon(true);
+				thread.start();
+			}
+			this.notify();
+		}
+	}
+
+	private void compileQueued() {
+		for (;;) {
+			Prototype p;
+			synchronized ( this ) {
+				while ( queue.isEmpty() ) {
+					try {
+						this.wait();
+					} catch ( InterruptedException e ) {
+						return;
+					}
+				}
+				p = (Prototype) queue.removeFirst();
+			}
+			compile(p);
+		}
+	}
+
+	/** Compile a prototype and set it as promoted, or leave it interpreted if it fails to compile.
+	 * @see #getFailures()
+	 */
+	protected void compile(Prototype p) {
+		final String classname;
+		synchronized ( this ) {
+			classname = "luajc_tiered" + (++count);
+		}
+		try {
+			JavaLoader loader = new JavaLoader();
+			loader.include(new JavaGen(p, classname, p.shortsource(), false));
+			p.promoted = (LuaFunction) loader.loadClass(classname).newInstance();
+		} catch ( Exception e ) {
+			failed(p, e);
+		} catch ( LinkageError e ) {
+			failed(p, e);
+		}
+	}
+
+	/** Record that a prototype failed to compile, leaving it interpreted.  
+	 * Subclasses may override this to report the failure. 
+	 * @param p the prototype that was not promoted
+	 * @param t the exception or linkage error raised while generating or loading its class
+	 */
+	protected synchronized void failed(Prototype p, Throwable t) {
+		++failures;
+		lastFailure = t;
+	}
+
+	/** Get the number of prototypes that failed to compile and were left interpreted. */
+	public synchronized int getFailures() {
+		return failures;
+	}
+
+	/** Get the exception or linkage error of the last prototype that failed to compile, or null if none has. */
+	public synchronized Throwable getLastFailure() {
+		return lastFailure;
+	}
+
+	/** Check that a prototype has no upvalues, or only the environment, which it never assigns. 
+	 * Other upvalues can not be promoted, since the compiled function only gets their value 
+	 * when it is created, and would not see them change during a call. */
+	protected static boolean promotable(Prototype p) {
+		final Upvaldesc[] u = p.upvalues;
+		return u.length == 0 || u.length == 1 && LuaValue.ENV.equals(u[0].name) && !assigns(p, 0);
+	}
+
+	/** Check if a prototype or any prototype nested in it assigns one of its upvalues. */
+	private static boolean assigns(Prototype p, int upvalue) {
+		final int[] code = p.code;
+		for ( int pc = 0; pc < code.length; ++pc )
+			if ( Lua.GET_OPCODE(code[pc]) == Lua.OP_SETUPVAL && Lua.GETARG_B(code[pc]) == upvalue )
+				return true;
+		for ( int i = 0; i < p.p.length; ++i ) {
+			final Upvaldesc[] u = p.p[i].upvalues;
+			for ( int j = 0; j < u.length; ++j )
+				if ( !u[j].instack && u[j].idx == upvalue && assigns(p.p[i], j) )
+					return true;
+		}
+		return false;
+	}
+}
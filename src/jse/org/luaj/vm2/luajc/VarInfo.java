@@ -31,6 +31,7 @@ public class VarInfo {
 									// storage
 	public boolean isreferenced; // true if this variable is refenced by some
 									// opcode
+	public boolean isnumeric; // true if this variable always holds a number
 
 	public VarInfo(int slot, int pc) {
 		this.slot = slot;
@@ -59,6 +60,13 @@ public class VarInfo {
 		return false;
 	}
 
+	/** Return the values a phi variable may take, or null if not a phi variable 
+	 * or if it has not been resolved.
+	 */
+	public VarInfo[] getPhiValues() {
+		return null;
+	}
+
 	private static final class ParamVarInfo extends VarInfo {
 		private ParamVarInfo(int slot, int pc) {
 			super(slot, pc);
@@ -92,6 +100,10 @@ public class VarInfo {
 			return true;
 		}
 
+		public VarInfo[] getPhiValues() {
+			return values;
+		}
+
 		public String toString() {
 			StringBuffer sb = new StringBuffer();
 			sb.append( super.toString() );
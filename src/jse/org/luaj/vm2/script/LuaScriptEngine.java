@@ -22,6 +22,8 @@
 package org.luaj.vm2.script;
 
 import java.io.*;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 import javax.script.*;
 
@@ -40,6 +42,20 @@ import org.luaj.vm2.lib.jse.CoerceJavaToLua;
  * ScriptEngine.createContext() which will return {@link LuajContext}, 
  * and for client bindings use the default engine scoped bindings or
  * construct a {@link LuajBindings} directly.
+ * 
+ * <p>
+ * By default the engine evaluates all scripts using the {@link Globals} of 
+ * the {@link LuajContext} and is not thread safe.  If the system property
+ * 'org.luaj.pool' is set to a positive number, or a pool size is supplied
+ * to the constructor, scripts are instead evaluated using {@link Globals} 
+ * leased from a bounded pool, one per evaluation, so the engine can be used 
+ * by several threads at once and reports its "THREADING" parameter as 
+ * "MULTITHREADED".  The context still supplies the bindings and the input
+ * and output streams. 
+ * 
+ * <p>
+ * Compiled scripts are cached by their source text, so evaluating 
+ * the same script again does not parse it again.
  */
 public class LuaScriptEngine extends AbstractScriptEngine implements ScriptEngine, Compilable {
     
@@ -51,11 +67,39 @@ public class LuaScriptEngine extends AbstractScriptEngine implements ScriptEngin
     private static final String __ARGV__             = "arg";
     private static final String __FILENAME__         = "?";
     
+    /** Maximum number of compiled scripts kept by each engine. */
+    private static final int COMPILED_CACHE_SIZE     = 64;
+    
     private static final ScriptEngineFactory myFactory = new LuaScriptEngineFactory();
     
     private LuajContext context;
 
+    /** Pool of globals to evaluate scripts with, or null to use the context globals. */
+    private final GlobalsPool pool;
+
+    /** Recently compiled scripts by source text, least recently used first. */
+    private final Map<String, CompiledScript> compiled = 
+    		new LinkedHashMap<String, CompiledScript>(16, 0.75f, true) {
+		protected boolean removeEldestEntry(Map.Entry<String, CompiledScript> eldest) {
+			return size() > COMPILED_CACHE_SIZE;
+		}
+	};
+
+    /** Construct an engine which uses a pool of globals if the
+     * system property 'org.luaj.pool' is set to a positive number,
+     * or the globals of its context otherwise.
+     */
     public LuaScriptEngine() {
+    	this(Integer.getInteger("org.luaj.pool", 0).intValue());
+    }
+
+    /** Construct an engine which may be used by multiple threads at once.
+     * @param poolsize the maximum number of scripts that may be evaluated 
+     * concurrently, or 0 to evaluate using the globals of the context, 
+     * which is not thread safe.
+     */
+    public LuaScriptEngine(int poolsize) {
+    	pool = poolsize > 0? new GlobalsPool(poolsize): null;
     	// set up context
     	context = new LuajContext();
     	context.setBindings(createBindings(), ScriptContext.ENGINE_SCOPE);
@@ -69,25 +113,37 @@ public class LuaScriptEngine extends AbstractScriptEngine implements ScriptEngin
         put(ARGV, __ARGV__);
         put(FILENAME, __FILENAME__);
         put(NAME, __SHORT_NAME__);
-        put("THREADING", null);
+        put("THREADING", pool != null? "MULTITHREADED": null);
     }
 
 	@Override
 	public CompiledScript compile(String script) throws ScriptException {
-		return compile(new StringReader(script));
+		CompiledScript cs;
+		synchronized ( compiled ) {
+			cs = compiled.get(script);
+		}
+		if ( cs == null ) {
+			cs = compile(new StringReader(script));
+			synchronized ( compiled ) {
+				compiled.put(script, cs);
+			}
+		}
+		return cs;
 	}
 
 	@Override
 	public CompiledScript compile(Reader script) throws ScriptException {
 		try {
 	    	InputStream is = new Utf8Encoder(script);
+	    	final Globals g = pool != null? pool.lease(): context.globals;
 	    	try {
-	    		final Globals g = context.globals;
 	    		final LuaFunction f = g.load(script, "script").checkfunction();
 	    		return new LuajCompiledScript(f, g);
 			} catch ( LuaError lee ) {
 				throw new ScriptException(lee.getMessage() );
 			} finally { 
+				if ( pool != null )
+					pool.release(g);
 				is.close();
 			}
 		} catch ( Exception e ) {
@@ -102,7 +158,7 @@ public class LuaScriptEngine extends AbstractScriptEngine implements ScriptEngin
 
 	@Override
 	public Object eval(String script, Bindings bindings) throws ScriptException {
-		return eval(new StringReader(script), bindings);
+		return ((LuajCompiledScript) compile(script)).eval(context.globals, bindings);
 	}
 
 	@Override
@@ -118,7 +174,7 @@ public class LuaScriptEngine extends AbstractScriptEngine implements ScriptEngin
 	@Override
 	public Object eval(String script, ScriptContext context)
 			throws ScriptException {
-		return eval(new StringReader(script), context);
+		return compile(script).eval(context);
 	}
 
 	@Override
@@ -158,6 +214,22 @@ public class LuaScriptEngine extends AbstractScriptEngine implements ScriptEngin
 		}
 	    
 	    Object eval(Globals g, Bindings b) throws ScriptException {
+	    	if ( pool == null )
+	    		return eval(g, g, b);
+	    	final Globals leased = pool.lease();
+	    	try {
+	    		return eval(leased, g, b);
+	    	} finally {
+	    		leased.setmetatable(null);
+	    		pool.release(leased);
+	    	}
+	    }
+
+	    /** Evaluate using globals {@code g} with the input and output streams of {@code io}. */
+	    private Object eval(Globals g, Globals io, Bindings b) throws ScriptException {
+	    	g.STDIN = io.STDIN;
+	    	g.STDOUT = io.STDOUT;
+	    	g.STDERR = io.STDERR;
 	    	g.setmetatable(new BindingsMetatable(b));
 			LuaFunction f = function;
 			if (f.isclosure())
@@ -174,6 +246,44 @@ public class LuaScriptEngine extends AbstractScriptEngine implements ScriptEngin
 		}
 	}
 
+	/** Bounded pool of globals, each of which is used by one thread at a time. */
+	static final class GlobalsPool {
+		private final Globals[] idle;
+		private int nidle;
+		private int ncreated;
+
+		GlobalsPool(int size) {
+			idle = new Globals[size];
+		}
+
+		/** Take globals from the pool, creating them if needed,
+		 * or waiting for another thread to release some. */
+		Globals lease() throws ScriptException {
+			synchronized ( this ) {
+				while ( nidle == 0 && ncreated >= idle.length ) {
+					try {
+						this.wait();
+					} catch ( InterruptedException e ) {
+						Thread.currentThread().interrupt();
+						throw new ScriptException(e);
+					}
+				}
+				if ( nidle > 0 ) {
+					final Globals g = idle[--nidle];
+					idle[nidle] = null;
+					return g;
+				}
+				++ncreated;
+			}
+			return new LuajContext().globals;
+		}
+
+		synchronized void release(Globals g) {
+			idle[nidle++] = g;
+			this.notify();
+		}
+	}
+
 	// ------ convert char stream to byte stream for lua compiler ----- 
 
 	private final class Utf8Encoder extends InputStream {
@@ -75,8 +75,7 @@ public class LuajContext extends SimpleScriptContext implements ScriptContext {
 	 * have negative impact on performance.
 	 * @param createDebugGlobals true to create debug globals, 
 	 * false for standard globals.
-	 * @param useLuaJCCompiler true to use the luajc compiler, 
-	 * reqwuires bcel to be on the class path.
+	 * @param useLuaJCCompiler true to use the luajc compiler.
 	 */
 	public LuajContext(boolean createDebugGlobals, boolean useLuaJCCompiler) {
 		globals = createDebugGlobals?
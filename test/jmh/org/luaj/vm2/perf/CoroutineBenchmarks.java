@@ -0,0 +1,73 @@
+/*******************************************************************************
+* Copyright (c) 2015 Luaj.org. All rights reserved.
+*
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+*
+* The above copyright notice and this permission notice shall be included in
+* all copies or substantial portions of the Software.
+* 
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+* THE SOFTWARE.
+******************************************************************************/
+package org.luaj.vm2.perf;
+
+import org.luaj.vm2.LuaValue;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Setup;
+
+/**
+ * Coroutine creation, resume and yield.
+ */
+public class CoroutineBenchmarks extends LuaBenchmark {
+
+	private LuaValue resume, create;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		setupGlobals();
+		resume = function(
+			"local co = coroutine.wrap(function()\n" +
+			"  local i = 0\n" +
+			"  while true do i = i + 1; coroutine.yield(i) end\n" +
+			"end)\n" +
+			"return function(n)\n" +
+			"  local s = 0\n" +
+			"  for i=1,n do s = s + co() end\n" +
+			"  return s\n" +
+			"end\n", "resume");
+		create = function(
+			"local create, resume = coroutine.create, coroutine.resume\n" +
+			"local function body(a) local b = coroutine.yield(a + 1) return b * 2 end\n" +
+			"return function(n)\n" +
+			"  local s = 0\n" +
+			"  for i=1,n do\n" +
+			"    local co = create(body)\n" +
+			"    local _, x = resume(co, i)\n" +
+			"    local _, y = resume(co, x)\n" +
+			"    s = s + y\n" +
+			"  end\n" +
+			"  return s\n" +
+			"end\n", "create");
+	}
+
+	@Benchmark
+	public LuaValue resumeYield() {
+		return resume.call(LuaValue.valueOf(1000));
+	}
+
+	@Benchmark
+	public LuaValue createResumeFinish() {
+		return create.call(LuaValue.valueOf(100));
+	}
+}
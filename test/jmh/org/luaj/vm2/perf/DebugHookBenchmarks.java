@@ -0,0 +1,68 @@
+/*******************************************************************************
+* Copyright (c) 2015 Luaj.org. All rights reserved.
+*
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+*
+* The above copyright notice and this permission notice shall be included in
+* all copies or substantial portions of the Software.
+*
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+* THE SOFTWARE.
+******************************************************************************/
+package org.luaj.vm2.perf;
+
+import org.luaj.vm2.LuaValue;
+import org.luaj.vm2.lib.DebugLib;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Setup;
+
+/**
+ * The interpreter loop with and without {@link DebugLib} loaded, and no hook set.  
+ * <p>
+ * Until a hook is set, closures only record their program counter for the debug 
+ * library on each instruction, so loops should run at about the same speed either way.  
+ * Each call still pushes a frame on the debug library's call stack, which is not measured here.
+ */
+public class DebugHookBenchmarks extends LuaBenchmark {
+
+	/** "standard" for the standard libraries, "debug" to also load {@link DebugLib}. */
+	@Param({"standard", "debug"})
+	public String libs;
+
+	private LuaValue loops;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		setupGlobals();
+		if ("debug".equals(libs))
+			globals.load(new DebugLib());
+		loops = function(
+			"return function(n)\n" +
+			"  local s, t = 0, { 1, 2, 3 }\n" +
+			"  for i=1,n do\n" +
+			"    s = s + t[i % 3 + 1] * 2\n" +
+			"    if s > 1000000 then s = s - 1000000 end\n" +
+			"  end\n" +
+			"  local j = 0\n" +
+			"  while j < n do j = j + 1 end\n" +
+			"  return s + j\n" +
+			"end\n", "loops");
+	}
+
+	@Benchmark
+	public LuaValue unhookedLoops() {
+		return loops.call(LuaValue.valueOf(10000));
+	}
+}
@@ -0,0 +1,116 @@
+/*******************************************************************************
+* Copyright (c) 2015 Luaj.org. All rights reserved.
+*
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+*
+* The above copyright notice and this permission notice shall be included in
+* all copies or substantial portions of the Software.
+* 
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+* THE SOFTWARE.
+******************************************************************************/
+package org.luaj.vm2.perf;
+
+import org.luaj.vm2.LuaValue;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Setup;
+
+/**
+ * Opcode mixes for the interpreter loop in {@link org.luaj.vm2.LuaClosure}, 
+ * and the equivalent code generated by luajc.
+ */
+public class InterpreterBenchmarks extends LuaBenchmark {
+
+	private LuaValue arith, calls, fields, upvalues, varargs;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		setupGlobals();
+		arith = function(
+			"return function(n)\n" +
+			"  local s, x = 0, 0.5\n" +
+			"  for i=1,n do\n" +
+			"    s = s + i % 7 * 3 - 1\n" +
+			"    x = x * 1.0000001 + 0.25 / i\n" +
+			"    if s < x then s = s + 1 end\n" +
+			"  end\n" +
+			"  return s + x\n" +
+			"end\n", "arith");
+		calls = function(
+			"local function add(a, b) return a + b end\n" +
+			"local function fib(n) if n < 2 then return n end return fib(n-1) + fib(n-2) end\n" +
+			"return function(n)\n" +
+			"  local s = 0\n" +
+			"  for i=1,n do s = add(s, i) end\n" +
+			"  return s + fib(15)\n" +
+			"end\n", "calls");
+		fields = function(
+			"local Point = {}\n" +
+			"Point.__index = Point\n" +
+			"function Point.new(x, y) return setmetatable({ x = x, y = y }, Point) end\n" +
+			"function Point:len2() return self.x * self.x + self.y * self.y end\n" +
+			"return function(n)\n" +
+			"  local s = 0\n" +
+			"  for i=1,n do\n" +
+			"    local p = Point.new(i, -i)\n" +
+			"    p.x = p.x + 1\n" +
+			"    s = s + p:len2()\n" +
+			"  end\n" +
+			"  return s\n" +
+			"end\n", "fields");
+		upvalues = function(
+			"return function(n)\n" +
+			"  local count = 0\n" +
+			"  local function inc(d) count = count + d end\n" +
+			"  for i=1,n do inc(1) end\n" +
+			"  return count\n" +
+			"end\n", "upvalues");
+		varargs = function(
+			"local function sum(...)\n" +
+			"  local s = 0\n" +
+			"  for i=1,select('#', ...) do s = s + (select(i, ...)) end\n" +
+			"  return s\n" +
+			"end\n" +
+			"return function(n)\n" +
+			"  local s = 0\n" +
+			"  for i=1,n do s = s + sum(i, 1, 2, 3) end\n" +
+			"  return s\n" +
+			"end\n", "varargs");
+	}
+
+	@Benchmark
+	public LuaValue arithmetic() {
+		return arith.call(LuaValue.valueOf(10000));
+	}
+
+	@Benchmark
+	public LuaValue functionCalls() {
+		return calls.call(LuaValue.valueOf(10000));
+	}
+
+	@Benchmark
+	public LuaValue fieldsAndMethods() {
+		return fields.call(LuaValue.valueOf(10000));
+	}
+
+	@Benchmark
+	public LuaValue upvalueAccess() {
+		return upvalues.call(LuaValue.valueOf(10000));
+	}
+
+	@Benchmark
+	public LuaValue varargCalls() {
+		return varargs.call(LuaValue.valueOf(10000));
+	}
+}
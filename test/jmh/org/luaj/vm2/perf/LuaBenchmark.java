@@ -0,0 +1,79 @@
+/*******************************************************************************
+* Copyright (c) 2015 Luaj.org. All rights reserved.
+*
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+*
+* The above copyright notice and this permission notice shall be included in
+* all copies or substantial portions of the Software.
+* 
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+* THE SOFTWARE.
+******************************************************************************/
+package org.luaj.vm2.perf;
+
+import java.util.concurrent.TimeUnit;
+
+import org.luaj.vm2.Globals;
+import org.luaj.vm2.LuaValue;
+import org.luaj.vm2.lib.jse.JsePlatform;
+import org.luaj.vm2.luajc.LuaJC;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Common state for the benchmarks that run lua code.
+ * <p>
+ * Each benchmark is run once with the scripts loaded as interpreted
+ * {@link org.luaj.vm2.LuaClosure}s, and once with them compiled to java
+ * bytecode by {@link LuaJC}.
+ * <p>
+ * The benchmarks are run from the {@code jmh} target in build-perf.xml,
+ * which turns on the gc profiler so allocation rates are reported alongside times.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public abstract class LuaBenchmark {
+
+	/** "interpreted" to run scripts with LuaClosure, "luajc" to compile them with LuaJC. */
+	@Param({"interpreted", "luajc"})
+	public String mode;
+
+	protected Globals globals;
+
+	/** Create the globals for the current mode. */
+	protected void setupGlobals() {
+		globals = JsePlatform.standardGlobals();
+		if ("luajc".equals(mode))
+			LuaJC.install(globals);
+	}
+
+	/** Load a chunk that returns the function to benchmark. 
+	 * @param script lua source whose main chunk returns a function
+	 * @param name the chunk name
+	 * @return the function returned by the chunk
+	 */
+	protected LuaValue function(String script, String name) {
+		return globals.load(script, name).call();
+	}
+}
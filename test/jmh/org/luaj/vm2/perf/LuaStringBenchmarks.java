@@ -0,0 +1,100 @@
+/*******************************************************************************
+* Copyright (c) 2015 Luaj.org. All rights reserved.
+*
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+*
+* The above copyright notice and this permission notice shall be included in
+* all copies or substantial portions of the Software.
+* 
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+* THE SOFTWARE.
+******************************************************************************/
+package org.luaj.vm2.perf;
+
+import java.util.concurrent.TimeUnit;
+
+import org.luaj.vm2.Buffer;
+import org.luaj.vm2.LuaString;
+import org.luaj.vm2.LuaValue;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * {@link LuaString} construction, hashing and concatenation from java.
+ * <p>
+ * These do not run lua code, so unlike the {@link LuaBenchmark}s they 
+ * are the same in interpreted and luajc modes and run only once.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LuaStringBenchmarks {
+
+	private final String[] strings = new String[64];
+	private final byte[][] bytes = new byte[64][];
+	private final LuaString[] values = new LuaString[64];
+	
+	public LuaStringBenchmarks() {
+		for (int i = 0; i < strings.length; ++i) {
+			strings[i] = (i % 2 == 0? "key": "a somewhat longer string value number ") + i;
+			values[i] = LuaString.valueOf(strings[i]);
+			bytes[i] = new byte[values[i].m_length];
+			values[i].copyInto(0, bytes[i], 0, bytes[i].length);
+		}
+	}
+
+	@Benchmark
+	public void valueOfString(Blackhole bh) {
+		for (int i = 0; i < strings.length; ++i)
+			bh.consume(LuaString.valueOf(strings[i]));
+	}
+
+	@Benchmark
+	public void valueOfBytes(Blackhole bh) {
+		for (int i = 0; i < bytes.length; ++i)
+			bh.consume(LuaString.valueOf(bytes[i]));
+	}
+
+	@Benchmark
+	public void hashCodeOfNew(Blackhole bh) {
+		for (int i = 0; i < bytes.length; ++i)
+			bh.consume(LuaString.valueOf(bytes[i]).hashCode());
+	}
+
+	@Benchmark
+	public LuaValue concat() {
+		LuaValue s = LuaValue.EMPTYSTRING;
+		for (int i = 0; i < values.length; ++i)
+			s = s.concat(values[i]);
+		return s;
+	}
+
+	@Benchmark
+	public LuaValue concatBuffer() {
+		Buffer b = new Buffer();
+		for (int i = 0; i < values.length; ++i)
+			b.append(values[i]);
+		return b.value();
+	}
+}
@@ -0,0 +1,97 @@
+/*******************************************************************************
+* Copyright (c) 2015 Luaj.org. All rights reserved.
+*
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+*
+* The above copyright notice and this permission notice shall be included in
+* all copies or substantial portions of the Software.
+* 
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+* THE SOFTWARE.
+******************************************************************************/
+package org.luaj.vm2.perf;
+
+import org.luaj.vm2.LuaValue;
+import org.luaj.vm2.compiler.BytecodeOptimizer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Setup;
+
+/**
+ * Code written with named constants and temporaries, run with and without 
+ * the {@link BytecodeOptimizer} installed.
+ */
+public class OptimizerBenchmarks extends LuaBenchmark {
+
+	/** "none" to run the bytecode as compiled, "optimized" to install the {@link BytecodeOptimizer}. */
+	@Param({"none", "optimized"})
+	public String bytecode;
+
+	private LuaValue constants, temporaries, branches;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		setupGlobals();
+		if ("optimized".equals(bytecode))
+			BytecodeOptimizer.install(globals);
+		constants = function(
+			"return function(n)\n" +
+			"  local WIDTH, HEIGHT, SCALE = 640, 480, 0.5\n" +
+			"  local area = WIDTH * HEIGHT\n" +
+			"  local s = 0\n" +
+			"  for i=1,n do\n" +
+			"    s = s + i % WIDTH * SCALE + area / (HEIGHT * 2)\n" +
+			"  end\n" +
+			"  return s\n" +
+			"end\n", "constants");
+		temporaries = function(
+			"return function(n)\n" +
+			"  local s = 0\n" +
+			"  for i=1,n do\n" +
+			"    local a = i\n" +
+			"    local b = a\n" +
+			"    local t = 0\n" +
+			"    t = b + 1\n" +
+			"    s = s + t\n" +
+			"  end\n" +
+			"  return s\n" +
+			"end\n", "temporaries");
+		branches = function(
+			"return function(n)\n" +
+			"  local DEBUG, LIMIT = 0, 100\n" +
+			"  local s = 0\n" +
+			"  for i=1,n do\n" +
+			"    if DEBUG > 0 then s = s - 1 end\n" +
+			"    if LIMIT >= 100 then s = s + 1 else s = s + 2 end\n" +
+			"    while false do s = 0 end\n" +
+			"  end\n" +
+			"  return s\n" +
+			"end\n", "branches");
+	}
+
+	@Benchmark
+	public LuaValue foldedConstants() {
+		return constants.call(LuaValue.valueOf(10000));
+	}
+
+	@Benchmark
+	public LuaValue deadStores() {
+		return temporaries.call(LuaValue.valueOf(10000));
+	}
+
+	@Benchmark
+	public LuaValue deadBranches() {
+		return branches.call(LuaValue.valueOf(10000));
+	}
+}
@@ -0,0 +1,154 @@
+/*******************************************************************************
+* Copyright (c) 2015 Luaj.org. All rights reserved.
+*
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+*
+* The above copyright notice and this permission notice shall be included in
+* all copies or substantial portions of the Software.
+* 
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+* THE SOFTWARE.
+******************************************************************************/
+package org.luaj.vm2.perf;
+
+import org.luaj.vm2.LuaValue;
+import org.luaj.vm2.lib.StringLib;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Setup;
+
+/**
+ * Pattern matching with string.find, string.match, string.gmatch and string.gsub 
+ * on log lines, plain string.find on a large payload, and string.format of metrics 
+ * lines, with patterns, search tables and format strings cached or parsed each time.
+ */
+public class PatternBenchmarks extends LuaBenchmark {
+
+	/** "compiled" to use the pattern cache of {@link StringLib}, "interpreted" to match and format without it. */
+	@Param({"compiled", "interpreted"})
+	public String patterns;
+
+	private LuaValue find, match, gmatch, gsub, plain, format;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		final int size = StringLib.pattern_cache_size;
+		StringLib.pattern_cache_size = "compiled".equals(patterns)? size: 0;
+		try {
+			setupGlobals();
+		} finally {
+			StringLib.pattern_cache_size = size;
+		}
+		String lines = 
+			"local lines = {}\n" +
+			"for i=1,100 do\n" +
+			"  lines[i] = '2015-06-' .. (10 + i % 20) .. ' 12:' .. (10 + i % 50) .. ':07 [worker-' .. i % 8 .. '] ' ..\n" +
+			"    (i % 5 == 0 and 'ERROR' or 'INFO') .. ' request /api/v1/items/' .. i .. ' took ' .. i * 3 .. 'ms status=200'\n" +
+			"end\n";
+		find = function(lines +
+			"local find = string.find\n" +
+			"return function(n)\n" +
+			"  local c = 0\n" +
+			"  for i=1,n do\n" +
+			"    local line = lines[i % #lines + 1]\n" +
+			"    if find(line, 'ERROR') then c = c + 1 end\n" +
+			"    if find(line, '%[worker%-%d+%]') then c = c + 1 end\n" +
+			"    if find(line, 'took %d+ms') then c = c + 1 end\n" +
+			"  end\n" +
+			"  return c\n" +
+			"end\n", "find");
+		match = function(lines +
+			"local match = string.match\n" +
+			"return function(n)\n" +
+			"  local c = 0\n" +
+			"  for i=1,n do\n" +
+			"    local d, t, w, level = match(lines[i % #lines + 1], '^(%d+%-%d+%-%d+) ([%d:]+) %[([%w%-]+)%] (%u+)')\n" +
+			"    if level == 'ERROR' then c = c + 1 end\n" +
+			"  end\n" +
+			"  return c\n" +
+			"end\n", "match");
+		gmatch = function(lines +
+			"local gmatch = string.gmatch\n" +
+			"return function(n)\n" +
+			"  local c = 0\n" +
+			"  for i=1,n do\n" +
+			"    for k, v in gmatch(lines[i % #lines + 1], '(%a+)=(%w+)') do c = c + #v end\n" +
+			"    for w in gmatch(lines[i % #lines + 1], '/(%w+)') do c = c + 1 end\n" +
+			"  end\n" +
+			"  return c\n" +
+			"end\n", "gmatch");
+		gsub = function(lines +
+			"local gsub = string.gsub\n" +
+			"return function(n)\n" +
+			"  local s\n" +
+			"  for i=1,n do\n" +
+			"    s = gsub(lines[i % #lines + 1], '%d+', '#')\n" +
+			"    s = gsub(s, 'status=', 'code:')\n" +
+			"  end\n" +
+			"  return s\n" +
+			"end\n", "gsub");
+		plain = function(
+			"local find = string.find\n" +
+			"local s = string.rep('id=42;name=value;payload=some longer text here\\n', 20000) .. 'END-OF-RECORD'\n" +
+			"return function()\n" +
+			"  local c, i = 0, 1\n" +
+			"  while true do\n" +
+			"    local j = find(s, ';', i, true)\n" +
+			"    if not j then break end\n" +
+			"    c, i = c + 1, j + 1\n" +
+			"  end\n" +
+			"  return c + find(s, 'END-OF-RECORD', 1, true) + find(s, 'payload=some longer text here\\nEND', 1, true)\n" +
+			"end\n", "plain");
+		format = function(
+			"local format = string.format\n" +
+			"return function(n)\n" +
+			"  local s\n" +
+			"  for i=1,n do\n" +
+			"    s = format('%s.%s:%d|c|#host:%s', 'app', 'requests', i, 'web-01')\n" +
+			"    s = format('%-12s %08x %5d %%', 'worker', i, -i)\n" +
+			"  end\n" +
+			"  return s\n" +
+			"end\n", "format");
+	}
+
+	@Benchmark
+	public LuaValue find() {
+		return find.call(LuaValue.valueOf(1000));
+	}
+
+	@Benchmark
+	public LuaValue match() {
+		return match.call(LuaValue.valueOf(1000));
+	}
+
+	@Benchmark
+	public LuaValue gmatch() {
+		return gmatch.call(LuaValue.valueOf(1000));
+	}
+
+	@Benchmark
+	public LuaValue gsub() {
+		return gsub.call(LuaValue.valueOf(1000));
+	}
+
+	@Benchmark
+	public LuaValue plainFind() {
+		return plain.call();
+	}
+
+	@Benchmark
+	public LuaValue format() {
+		return format.call(LuaValue.valueOf(1000));
+	}
+}
@@ -0,0 +1,132 @@
+/*******************************************************************************
+* Copyright (c) 2015 Luaj.org. All rights reserved.
+*
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+*
+* The above copyright notice and this permission notice shall be included in
+* all copies or substantial portions of the Software.
+* 
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+* THE SOFTWARE.
+******************************************************************************/
+package org.luaj.vm2.perf;
+
+import org.luaj.vm2.LuaValue;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Setup;
+
+/**
+ * string.find, string.gsub, string.format and concatenation as called from lua.
+ * <p>
+ * Run with the gc profiler, as the jmh target does, to see the bytes allocated per call. 
+ */
+public class StringLibBenchmarks extends LuaBenchmark {
+
+	private LuaValue find, gsub, replace, format, concat, append;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		setupGlobals();
+		String text = 
+			"local text = string.rep('the quick brown fox jumps over the lazy dog ', 20)\n";
+		find = function(text +
+			"local find = string.find\n" +
+			"return function(n)\n" +
+			"  local c = 0\n" +
+			"  for i=1,n do\n" +
+			"    if find(text, 'lazy', 1, true) then c = c + 1 end\n" +
+			"    if find(text, 'l%a+y') then c = c + 1 end\n" +
+			"    if find(text, '(%w+) dog$') then c = c + 1 end\n" +
+			"  end\n" +
+			"  return c\n" +
+			"end\n", "find");
+		gsub = function(text +
+			"local gsub = string.gsub\n" +
+			"return function(n)\n" +
+			"  local s\n" +
+			"  for i=1,n do\n" +
+			"    s = gsub(text, 'o', '0')\n" +
+			"    s = gsub(s, '(%w+)', '<%1>')\n" +
+			"  end\n" +
+			"  return s\n" +
+			"end\n", "gsub");
+		replace = function(text +
+			"local gsub, rep = string.gsub, string.rep\n" +
+			"local abbrev = { quick = 'qk', brown = 'brn' }\n" +
+			"local function keep(w) if #w > 4 then return w end end\n" +
+			"return function(n)\n" +
+			"  local s\n" +
+			"  for i=1,n do\n" +
+			"    s = gsub(text, '%a+', abbrev)\n" +
+			"    s = gsub(s, '(%a+) (%a+)', keep)\n" +
+			"    s = rep(s, 4)\n" +
+			"  end\n" +
+			"  return s\n" +
+			"end\n", "replace");
+		format = function(
+			"local format = string.format\n" +
+			"return function(n)\n" +
+			"  local s\n" +
+			"  for i=1,n do\n" +
+			"    s = format('%d: %s = %5.2f (%x)', i, 'value', i / 3, i)\n" +
+			"  end\n" +
+			"  return s\n" +
+			"end\n", "format");
+		concat = function(
+			"local concat = table.concat\n" +
+			"return function(n)\n" +
+			"  local s, t = '', {}\n" +
+			"  for i=1,n do s = s .. i .. ',' end\n" +
+			"  for i=1,n do t[i] = 'x' .. i end\n" +
+			"  return #s + #concat(t, ',')\n" +
+			"end\n", "concat");
+		append = function(
+			"return function(n)\n" +
+			"  local s, u = '', ''\n" +
+			"  for i=1,n do s = s .. 'line ' .. i .. '\\n' end\n" +
+			"  for i=1,n do u = u .. 'x' end\n" +
+			"  return #s + #u\n" +
+			"end\n", "append");
+	}
+
+	@Benchmark
+	public LuaValue find() {
+		return find.call(LuaValue.valueOf(1000));
+	}
+
+	@Benchmark
+	public LuaValue gsub() {
+		return gsub.call(LuaValue.valueOf(100));
+	}
+
+	@Benchmark
+	public LuaValue replace() {
+		return replace.call(LuaValue.valueOf(100));
+	}
+
+	@Benchmark
+	public LuaValue format() {
+		return format.call(LuaValue.valueOf(1000));
+	}
+
+	@Benchmark
+	public LuaValue concat() {
+		return concat.call(LuaValue.valueOf(1000));
+	}
+
+	@Benchmark
+	public LuaValue append() {
+		return append.call(LuaValue.valueOf(10000));
+	}
+}
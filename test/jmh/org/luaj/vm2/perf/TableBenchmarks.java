@@ -0,0 +1,117 @@
+/*******************************************************************************
+* Copyright (c) 2015 Luaj.org. All rights reserved.
+*
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+*
+* The above copyright notice and this permission notice shall be included in
+* all copies or substantial portions of the Software.
+* 
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+* THE SOFTWARE.
+******************************************************************************/
+package org.luaj.vm2.perf;
+
+import org.luaj.vm2.LuaValue;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Setup;
+
+/**
+ * Get, set, next, insert and sort on {@link org.luaj.vm2.LuaTable}.
+ */
+public class TableBenchmarks extends LuaBenchmark {
+
+	private LuaValue arrayset, hashset, get, next, insert, sort;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		setupGlobals();
+		arrayset = function(
+			"return function(n)\n" +
+			"  local t = {}\n" +
+			"  for i=1,n do t[i] = i end\n" +
+			"  return t\n" +
+			"end\n", "arrayset");
+		hashset = function(
+			"return function(n)\n" +
+			"  local t = {}\n" +
+			"  for i=1,n do t['k'..(i%256)] = i; t[i+0.5] = i end\n" +
+			"  return t\n" +
+			"end\n", "hashset");
+		get = function(
+			"local t = { a=1, b=2, c=3 }\n" +
+			"for i=1,1000 do t[i] = i end\n" +
+			"return function(n)\n" +
+			"  local s = 0\n" +
+			"  for i=1,n do s = s + t[i%1000+1] + t.a + t.c end\n" +
+			"  return s\n" +
+			"end\n", "get");
+		next = function(
+			"local t = {}\n" +
+			"for i=1,500 do t[i] = i; t['k'..i] = i end\n" +
+			"return function(n)\n" +
+			"  local s = 0\n" +
+			"  for j=1,n do for k,v in pairs(t) do s = s + v end end\n" +
+			"  return s\n" +
+			"end\n", "next");
+		insert = function(
+			"local insert, remove = table.insert, table.remove\n" +
+			"return function(n)\n" +
+			"  local t = {}\n" +
+			"  for i=1,n do insert(t, i) end\n" +
+			"  for i=1,n/10 do insert(t, 1, i) end\n" +
+			"  while #t > 0 do remove(t) end\n" +
+			"  return t\n" +
+			"end\n", "insert");
+		sort = function(
+			"local random, sort = math.random, table.sort\n" +
+			"return function(n)\n" +
+			"  math.randomseed(n)\n" +
+			"  local t = {}\n" +
+			"  for i=1,n do t[i] = random(n) end\n" +
+			"  sort(t)\n" +
+			"  sort(t, function(a, b) return a > b end)\n" +
+			"  return t\n" +
+			"end\n", "sort");
+	}
+
+	@Benchmark
+	public LuaValue arraySet() {
+		return arrayset.call(LuaValue.valueOf(10000));
+	}
+
+	@Benchmark
+	public LuaValue hashSet() {
+		return hashset.call(LuaValue.valueOf(10000));
+	}
+
+	@Benchmark
+	public LuaValue get() {
+		return get.call(LuaValue.valueOf(10000));
+	}
+
+	@Benchmark
+	public LuaValue next() {
+		return next.call(LuaValue.valueOf(10));
+	}
+
+	@Benchmark
+	public LuaValue insertRemove() {
+		return insert.call(LuaValue.valueOf(1000));
+	}
+
+	@Benchmark
+	public LuaValue sort() {
+		return sort.call(LuaValue.valueOf(1000));
+	}
+}
@@ -52,6 +52,7 @@ public class AllTests {
 		vm.addTestSuite(LuaOperationsTest.class);
 		vm.addTestSuite(StringTest.class);
 		vm.addTestSuite(OrphanedThreadTest.class);
+		vm.addTestSuite(DebugHookTest.class);
 		vm.addTestSuite(VarargsTest.class);
 		vm.addTestSuite(LoadOrderTest.class);
 		suite.addTest(vm);
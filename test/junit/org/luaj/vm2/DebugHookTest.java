@@ -0,0 +1,81 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Luaj.org. All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ ******************************************************************************/
+package org.luaj.vm2;
+
+import junit.framework.TestCase;
+
+import org.luaj.vm2.lib.ZeroArgFunction;
+import org.luaj.vm2.lib.jse.JsePlatform;
+
+/**
+ * Tests that interpreted closures that are already running see debug hooks
+ * once they are set.
+ */
+public class DebugHookTest extends TestCase {
+
+	Globals globals;
+
+	protected void setUp() throws Exception {
+		globals = JsePlatform.debugGlobals();
+	}
+
+	public void testHookSetByCalleeIsSeenByCaller() {
+		LuaValue chunk = globals.load(
+			"local lines = {}\n" +
+			"local function start() debug.sethook(function(e, l) lines[#lines+1] = l end, 'l') end\n" +
+			"start()\n" +
+			"local a = 1\n" +
+			"local b = 2\n" +
+			"debug.sethook()\n" +
+			"return table.concat(lines, ' ')\n");
+		assertEquals(LuaValue.valueOf("2 4 5 6"), chunk.call());
+	}
+
+	public void testHookSetFromAnotherThreadStopsLoop() throws Exception {
+		// bounded, so the test fails rather than hangs if the hook is never seen
+		LuaValue chunk = globals.load("local n = 0 while n < 1e9 do n = n + 1 end");
+		final LuaThread running = globals.running;
+		final LuaValue sethook = globals.get("debug").get("sethook");
+		final LuaValue hook = new ZeroArgFunction() {
+			public LuaValue call() {
+				return error("timeout");
+			}
+		};
+		Thread watchdog = new Thread() {
+			public void run() {
+				try {
+					Thread.sleep(50);
+				} catch (InterruptedException e) {
+				}
+				sethook.invoke(new LuaValue[] { running, hook, LuaValue.valueOf(""), LuaValue.valueOf(1) });
+			}
+		};
+		watchdog.start();
+		try {
+			chunk.call();
+			fail("loop was not stopped");
+		} catch (LuaError e) {
+			assertTrue(e.getMessage(), e.getMessage().indexOf("timeout") >= 0);
+		}
+		watchdog.join();
+	}
+}
@@ -21,14 +21,18 @@
  ******************************************************************************/
 package org.luaj.vm2;
 
+import java.io.File;
 import java.io.Reader;
 import java.io.StringReader;
 
 import junit.framework.TestCase;
 import junit.framework.TestSuite;
 
+import org.luaj.vm2.compiler.BytecodeOptimizer;
 import org.luaj.vm2.lib.jse.JsePlatform;
+import org.luaj.vm2.luajc.ClassCache;
 import org.luaj.vm2.luajc.LuaJC;
+import org.luaj.vm2.luajc.TieredCompiler;
 
 /** 
  * Test compilation of various fragments that have
@@ -39,6 +43,10 @@ public class FragmentsTest extends TestSuite {
 
 	static final int TEST_TYPE_LUAC     = 0;
 	static final int TEST_TYPE_LUAJC    = 1;
+	static final int TEST_TYPE_TIERED   = 2;
+	static final int TEST_TYPE_CACHED   = 3;
+	static final int TEST_TYPE_INDY     = 4;
+	static final int TEST_TYPE_OPTIMIZED = 5;
 
 	public static class JseFragmentsTest extends FragmentsTestCase {
 		public JseFragmentsTest() { super(  TEST_TYPE_LUAC ); }
@@ -46,10 +54,26 @@ public class FragmentsTest extends TestSuite {
 	public static class LuaJCFragmentsTest extends FragmentsTestCase {
 		public LuaJCFragmentsTest() { super(  TEST_TYPE_LUAJC ); }
 	}
+	public static class TieredFragmentsTest extends FragmentsTestCase {
+		public TieredFragmentsTest() { super(  TEST_TYPE_TIERED ); }
+	}
+	public static class CachedFragmentsTest extends FragmentsTestCase {
+		public CachedFragmentsTest() { super(  TEST_TYPE_CACHED ); }
+	}
+	public static class InvokeDynamicFragmentsTest extends FragmentsTestCase {
+		public InvokeDynamicFragmentsTest() { super(  TEST_TYPE_INDY ); }
+	}
+	public static class OptimizedFragmentsTest extends FragmentsTestCase {
+		public OptimizedFragmentsTest() { super(  TEST_TYPE_OPTIMIZED ); }
+	}
 	public static TestSuite suite() {
 		TestSuite suite = new TestSuite("Compiler Fragments Tests");
 		suite.addTest( new TestSuite( JseFragmentsTest.class,      "JSE Fragments Tests" ) );
 		suite.addTest( new TestSuite( LuaJCFragmentsTest.class,    "LuaJC Fragments Tests" ) );
+		suite.addTest( new TestSuite( TieredFragmentsTest.class,   "Tiered Fragments Tests" ) );
+		suite.addTest( new TestSuite( CachedFragmentsTest.class,   "Cached LuaJC Fragments Tests" ) );
+		suite.addTest( new TestSuite( InvokeDynamicFragmentsTest.class, "InvokeDynamic LuaJC Fragments Tests" ) );
+		suite.addTest( new TestSuite( OptimizedFragmentsTest.class, "Optimized Bytecode Fragments Tests" ) );
 		return suite;
 	}
 	
@@ -57,9 +81,27 @@ public class FragmentsTest extends TestSuite {
 	
 		final int TEST_TYPE;
 
+		/** Directory of the class cache of a cached test, removed after each test. */
+		private File cachedir;
+
 		protected FragmentsTestCase(int testType) {
 			this.TEST_TYPE = testType;
 		}
+		
+		protected void tearDown() throws Exception {
+			if ( cachedir != null )
+				delete(cachedir);
+			cachedir = null;
+			super.tearDown();
+		}
+		
+		private static void delete(File f) {
+			File[] files = f.listFiles();
+			if ( files != null )
+				for ( int i=0; i<files.length; i++ )
+					delete(files[i]);
+			f.delete();
+		}
 	
 		public void runFragment( Varargs expected, String script ) {
 			try {
@@ -72,6 +114,49 @@ public class FragmentsTest extends TestSuite {
 					LuaJC.install(globals);
 					chunk = globals.load(reader, name);
 					break;
+				case TEST_TYPE_TIERED:
+					// promote every function when first called, and compile it right away
+					TieredCompiler tiered = new TieredCompiler() {
+						public void promote(Prototype p) {
+							if ( promotable(p) )
+								compile(p);
+						}
+					};
+					globals.promoter = tiered;
+					chunk = new LuaClosure(globals.compilePrototype(reader, name), globals);
+					final int threshold = LuaClosure.promote_threshold;
+					LuaClosure.promote_threshold = 1;
+					try {
+						chunk.invoke();
+					} finally {
+						LuaClosure.promote_threshold = threshold;
+					}
+					assertNull( String.valueOf(tiered.getLastFailure()), tiered.getLastFailure() );
+					break;
+				case TEST_TYPE_CACHED:
+					// load once to fill an empty cache, then again from the cache
+					cachedir = File.createTempFile("luajc-cache-test", "");
+					cachedir.delete();
+					ClassCache cache = new ClassCache(cachedir, 1024*1024);
+					LuaJC.install(globals, cache);
+					globals.load(script, name);
+					assertEquals( 0, cache.getHits() );
+					chunk = globals.load(script, name);
+					assertEquals( 1, cache.getHits() );
+					break;
+				case TEST_TYPE_INDY:
+					LuaJC.install(globals);
+					LuaJC.use_invokedynamic = true;
+					try {
+						chunk = globals.load(reader, name);
+					} finally {
+						LuaJC.use_invokedynamic = false;
+					}
+					break;
+				case TEST_TYPE_OPTIMIZED:
+					BytecodeOptimizer.install(globals);
+					chunk = new LuaClosure(globals.compilePrototype(reader, name), globals);
+					break;
 				default:
 					Prototype p = globals.compilePrototype(reader, name);
 					chunk = new LuaClosure(p, globals);
@@ -79,6 +164,7 @@ public class FragmentsTest extends TestSuite {
 					break;
 				}
 				Varargs actual = chunk.invoke();
+				assertEquals( 0, globals.running.registers.depth() );
 				assertEquals( expected.narg(), actual.narg() );
 				for ( int i=1; i<=actual.narg(); i++ )
 					assertEquals( expected.arg(i), actual.arg(i) );
@@ -594,6 +680,240 @@ public class FragmentsTest extends TestSuite {
 		public void testBalancedMatchOnEmptyString() {
 			runFragment(LuaValue.NIL, "return (\"\"):match(\"%b''\")\n");
 		}
+		public void testFrontierPatternAtSubjectStart() {
+			runFragment(LuaValue.varargsOf(LuaValue.valueOf("Hello World From Lua"), LuaValue.valueOf(4)),
+					"return string.gsub('hello world from lua', '%f[%a]%a', string.upper)");
+		}
+
+		public void testGsubEscapedMagicCharacter() {
+			runFragment(LuaValue.varargsOf(LuaValue.valueOf("a/b/c"), LuaValue.valueOf(2)),
+					"return string.gsub('a.b.c', '%.', '/')");
+		}
+
+		public void testGsubPatternWithoutSpecials() {
+			runFragment(LuaValue.varargsOf(LuaValue.valueOf("xxab"), LuaValue.valueOf(2)),
+					"return string.gsub('abcabcab', 'abc', 'x')");
+		}
+
+		public void testFindReturnsCaptures() {
+			runFragment(LuaValue.varargsOf(new LuaValue[] { LuaValue.valueOf(1), LuaValue.valueOf(11), LuaValue.valueOf("key"), LuaValue.valueOf("value") }),
+					"return string.find('key = value', '(%w+)%s*=%s*(%w+)')");
+		}
+
+		public void testAnchoredMatchFailsPastStart() {
+			runFragment(LuaValue.NIL,
+					"return string.match('  x', '^x')");
+		}
+
+		public void testMatchReturnsAllCaptures() {
+			runFragment(LuaValue.varargsOf(new LuaValue[] { LuaValue.valueOf("2024"), LuaValue.valueOf("10"), LuaValue.valueOf("17") }),
+					"return string.match('2024-10-17', '(%d+)-(%d+)-(%d+)')");
+		}
+
+		public void testGmatchTreatsCaretAsLiteral() {
+			runFragment(LuaValue.valueOf("^a^b"),
+					"local t = {}\n"
+					+ "for k in string.gmatch('^a^b', '^%a') do t[#t+1] = k end\n"
+					+ "return table.concat(t)");
+		}
+
+		public void testBackReferenceToCapture() {
+			runFragment(LuaValue.varargsOf(new LuaValue[] { LuaValue.valueOf(3), LuaValue.valueOf(6), LuaValue.valueOf("ab") }),
+					"return string.find('xxabab', '(ab)%1')");
+		}
+
+		public void testBackReferenceToPositionCaptureNeverMatches() {
+			runFragment(LuaValue.NIL,
+					"return string.find('abab', '()%1')");
+		}
+
+		public void testBalancedMatchNested() {
+			runFragment(LuaValue.valueOf("(a(b)c)"),
+					"return string.match('f(a(b)c)d', '%b()')");
+		}
+
+		public void testFrontierPatternAfterInit() {
+			runFragment(LuaValue.varargsOf(LuaValue.valueOf(6), LuaValue.valueOf(10)),
+					"return string.find('THE (quick) fox', '%f[%a]%a+%f[%A]', 5)");
+		}
+
+		public void testPlainFindMagicCharacter() {
+			runFragment(LuaValue.varargsOf(LuaValue.valueOf(2), LuaValue.valueOf(2)),
+					"return string.find('a.b.c', '.', 1, true)");
+		}
+
+		public void testPlainFindAfterPartialMatch() {
+			runFragment(LuaValue.varargsOf(LuaValue.valueOf(7), LuaValue.valueOf(9)),
+					"return string.find('abcabcabd', 'abd', 1, true)");
+		}
+
+		public void testPlainFindInLongSubject() {
+			runFragment(LuaValue.varargsOf(LuaValue.valueOf(2001), LuaValue.valueOf(2003)),
+					"return string.find(string.rep('ab', 1000) .. 'abc', 'abc', 1, true)");
+		}
+
+		public void testPlainFindEmptyNeedle() {
+			runFragment(LuaValue.varargsOf(LuaValue.valueOf(3), LuaValue.valueOf(2)),
+					"return string.find('hello', '', 3, true)");
+		}
+
+		public void testPlainFindNegativeInit() {
+			runFragment(LuaValue.varargsOf(LuaValue.valueOf(4), LuaValue.valueOf(5)),
+					"return string.find('hello', 'lo', -2, true)");
+		}
+
+		public void testPlainFindMissingNeedle() {
+			runFragment(LuaValue.NIL,
+					"return string.find('hello', 'lol', 1, true)");
+		}
+
+		public void testFindPatternWithoutSpecials() {
+			runFragment(LuaValue.varargsOf(LuaValue.valueOf(3), LuaValue.valueOf(5)),
+					"return string.find('xaaay', 'aay')");
+		}
+
+		public void testGsubTwoBytePatternWithoutSpecials() {
+			runFragment(LuaValue.varargsOf(LuaValue.valueOf("a,b;c"), LuaValue.valueOf(1)),
+					"return string.gsub('a,b,,c', ',,', ';')");
+		}
+
+		public void testPlainFindSingleByteAfterInit() {
+			runFragment(LuaValue.varargsOf(LuaValue.valueOf(5), LuaValue.valueOf(5)),
+					"return string.find('abcab', 'b', 3, true)");
+		}
+
+		public void testPlainFindNeedleLongerThanRemainder() {
+			runFragment(LuaValue.NIL,
+					"return string.find('aab', 'aab', 2, true)");
+		}
+
+		public void testConcatOntoSameStringTwice() {
+			runFragment(LuaValue.varargsOf(new LuaValue[] { LuaValue.valueOf("aab"), LuaValue.valueOf("abc"), LuaValue.valueOf("abd") }),
+					"local s = string.rep('a', 70)\n"
+					+ "local t = s .. 'b'\n"
+					+ "local u = t .. 'c'\n"
+					+ "local v = t .. 'd'\n"
+					+ "return t:sub(-3), u:sub(-3), v:sub(-3)");
+		}
+
+		public void testConcatOntoAppendedStringTwice() {
+			runFragment(LuaValue.varargsOf(new LuaValue[] { LuaValue.valueOf("abc"), LuaValue.valueOf("bce"), LuaValue.valueOf("bcf") }),
+					"local s = string.rep('a', 70)\n"
+					+ "local t = s .. 'b'\n"
+					+ "local u = t .. 'c'\n"
+					+ "local w = u .. 'e'\n"
+					+ "local x = u .. 'f'\n"
+					+ "return u:sub(-3), w:sub(-3), x:sub(-3)");
+		}
+
+		public void testRepeatedAppendInLoop() {
+			runFragment(LuaValue.varargsOf(new LuaValue[] { LuaValue.valueOf(3893), LuaValue.valueOf("1,2,3,4,5,"), LuaValue.valueOf("999,1000,") }),
+					"local c = ''\n"
+					+ "for i = 1, 1000 do c = c .. i .. ',' end\n"
+					+ "return #c, c:sub(1, 10), c:sub(-9)");
+		}
+
+		public void testAppendedStringAsTableKey() {
+			runFragment(LuaValue.valueOf(1),
+					"local s = string.rep('a', 70)\n"
+					+ "local t = s .. 'b'\n"
+					+ "local u = t .. 'c'\n"
+					+ "local k = { [s .. 'bc'] = 1 }\n"
+					+ "return k[u]");
+		}
+
+		public void testAppendedStringEquality() {
+			runFragment(LuaValue.TRUE,
+					"local s = string.rep('a', 70)\n"
+					+ "local t = s .. 'b'\n"
+					+ "local u = t .. 'c'\n"
+					+ "return s .. 'b' == t");
+		}
+
+		public void testFormatStringsAndInteger() {
+			runFragment(LuaValue.valueOf("app.req:42|c"),
+					"return string.format('%s.%s:%d|c', 'app', 'req', 42)");
+		}
+
+		public void testFormatIntegerWidth() {
+			runFragment(LuaValue.valueOf("[   42]"),
+					"return string.format('[%5d]', 42)");
+		}
+
+		public void testFormatIntegerLeftAdjusted() {
+			runFragment(LuaValue.valueOf("[42   ]"),
+					"return string.format('[%-5d]', 42)");
+		}
+
+		public void testFormatZeroPaddedNegativeInteger() {
+			runFragment(LuaValue.valueOf("[-0042]"),
+					"return string.format('[%05d]', -42)");
+		}
+
+		public void testFormatExplicitPlusSign() {
+			runFragment(LuaValue.valueOf("[+3]"),
+					"return string.format('[%+d]', 3)");
+		}
+
+		public void testFormatIntegerPrecision() {
+			runFragment(LuaValue.valueOf("[005]"),
+					"return string.format('[%.3d]', 5)");
+		}
+
+		public void testFormatHexAndOctal() {
+			runFragment(LuaValue.valueOf("ff FF 10"),
+					"return string.format('%x %X %o', 255, 255, 8)");
+		}
+
+		public void testFormatEscapedPercent() {
+			runFragment(LuaValue.valueOf("5%x"),
+					"return string.format('%d%%%s', 5, 'x')");
+		}
+
+		public void testFormatCharacters() {
+			runFragment(LuaValue.valueOf("Lu"),
+					"return string.format('%c%c', 76, 117)");
+		}
+
+		public void testFormatReusedWithChangingArguments() {
+			runFragment(LuaValue.valueOf("<1><2><3>"),
+					"local t = {}\n"
+					+ "for i = 1, 3 do t[i] = string.format('<%d>', i) end\n"
+					+ "return table.concat(t)");
+		}
+
+		public void testFormatWidthTooLongIsError() {
+			runFragment(LuaValue.FALSE,
+					"return (pcall(string.format, '%d %123d', 1, 2))");
+		}
+
+		public void testCalleeAssignsCapturedLocal() {
+			runFragment( LuaValue.valueOf(60),
+				"_ENV = _ENV -- keep the main chunk interpreted, so F is promoted from its closure\n" +
+				"local x = 0\n" +
+				"local function setter() x = x + 1 end\n" +
+				"function F(g) local a = x; g(); return x - a end\n" +
+				"local r = 0\n" +
+				"for i=1,60 do r = r + F(setter) end\n" +
+				"return r\n" );
+		}
+		
+		public void testThrowingCallHookReturnsRegisterFrame() {
+			runFragment( LuaValue.valueOf("ok"),
+				"local function hook() debug.sethook() error('hook') end\n" +
+				"local function g() return 1 end\n" +
+				"local function f() debug.sethook(hook, 'c') local r = g() debug.sethook() return r end\n" +
+				"for i=1,5 do pcall(f) end\n" +
+				"debug.sethook()\n" +
+				"return 'ok'\n" );
+		}
+		
+		public void testPlainFindLongNeedleInLongSubject() {
+			runFragment( LuaValue.varargsOf(LuaValue.valueOf(1001), LuaValue.valueOf(1040)),
+				"local needle = string.rep('xy', 20)\n" +
+				"return string.find(string.rep('x', 1000) .. needle .. 'z', needle, 1, true)\n" );
+		}
+		
 		public void testReturnValueForTableRemove() {
 			runFragment(LuaValue.NONE, "return table.remove({ })");
 		}
@@ -608,5 +928,461 @@ public class FragmentsTest extends TestSuite {
 					+ "return v1, v2, v3");
 			
 		}
+	
+		
+		public void testTableConstructorKeepsResultsAfterLaterCall() {
+			runFragment(LuaValue.varargsOf(new LuaValue[] { LuaValue.valueOf(1), LuaValue.valueOf(2), LuaValue.valueOf(3) }),
+					"local function three() local a, b, c = 1, 2, 3 return a, b, c end\n"
+					+ "local function other() local x, y, z = 7, 8, 9 return x end\n"
+					+ "local t = { three() }\n"
+					+ "other()\n"
+					+ "return t[1], t[2], t[3]");
+		}
+
+		public void testTailCallResultsSurviveFrameReuse() {
+			runFragment(LuaValue.varargsOf(new LuaValue[] { LuaValue.valueOf(1), LuaValue.valueOf(2), LuaValue.valueOf(3), LuaValue.valueOf(4) }),
+					"local function tail(...) return ... end\n"
+					+ "local function four() local a, b, c, d = 1, 2, 3, 4 return tail(a, b, c, d) end\n"
+					+ "local a, b, c, d = four()\n"
+					+ "return a, b, c, d");
+		}
+
+		public void testCoroutineVarargsSurviveResumer() {
+			runFragment(LuaValue.valueOf("1 2 3"),
+					"local co = coroutine.wrap(function(...)\n"
+					+ "  coroutine.yield()\n"
+					+ "  return table.concat({...}, ' ')\n"
+					+ "end)\n"
+					+ "local function start(a, b, c) local x, y, z = a, b, c co(x, y, z) end\n"
+					+ "start(1, 2, 3)\n"
+					+ "local function clobber(a, b, c, d, e) return a end\n"
+					+ "clobber(4, 5, 6, 7, 8)\n"
+					+ "return co()");
+		}
+	
+		public void testGlobalLookupSeesReassignment() {
+			runFragment(LuaValue.varargsOf(new LuaValue[] { LuaValue.valueOf(1), LuaValue.valueOf(2), LuaValue.NIL }),
+					"local function g() return x end\n"
+					+ "x = 1 local a = g()\n"
+					+ "x = 2 local b = g()\n"
+					+ "x = nil\n"
+					+ "return a, b, g()");
+		}
+
+		public void testMethodLookupSeesReplacedIndexTable() {
+			runFragment(LuaValue.varargsOf(LuaValue.valueOf(3), LuaValue.valueOf(4)),
+					"local A = { f = function() return 3 end }\n"
+					+ "local B = { f = function() return 4 end }\n"
+					+ "local mt = { __index = A }\n"
+					+ "local o = setmetatable({}, mt)\n"
+					+ "local function m() return o:f() end\n"
+					+ "local a = m()\n"
+					+ "mt.__index = B\n"
+					+ "return a, m()");
+		}
+
+		public void testMethodLookupSeesReassignedField() {
+			runFragment(LuaValue.varargsOf(LuaValue.valueOf(4), LuaValue.valueOf(5)),
+					"local B = { f = function() return 4 end }\n"
+					+ "local o = setmetatable({}, { __index = B })\n"
+					+ "local function m() return o:f() end\n"
+					+ "local a = m()\n"
+					+ "B.f = function() return 5 end\n"
+					+ "return a, m()");
+		}
+
+		public void testMethodLookupSeesShadowingRawField() {
+			runFragment(LuaValue.varargsOf(LuaValue.valueOf(4), LuaValue.valueOf(6)),
+					"local B = { f = function() return 4 end }\n"
+					+ "local o = setmetatable({}, { __index = B })\n"
+					+ "local function m() return o:f() end\n"
+					+ "local a = m()\n"
+					+ "o.f = function() return 6 end\n"
+					+ "return a, m()");
+		}
+
+		public void testIntegerAddOverflowsToDouble() {
+			runFragment(LuaValue.valueOf(2147483648.0),
+					"local m = 2147483647\n"
+					+ "return m + 1");
+		}
+
+		public void testIntegerSubOverflowsToDouble() {
+			runFragment(LuaValue.valueOf(-2147483649.0),
+					"local m = 2147483647\n"
+					+ "return -m - 2");
+		}
+
+		public void testIntegerMulOverflowsToDouble() {
+			runFragment(LuaValue.valueOf(4294967296.0),
+					"local a = 65536\n"
+					+ "return a * a");
+		}
+
+		public void testIntegerModTakesSignOfDivisor() {
+			runFragment(LuaValue.valueOf(-2),
+					"local a, b = 7, -3\n"
+					+ "return a % b");
+		}
+
+		public void testIntegerMinusDouble() {
+			runFragment(LuaValue.valueOf(2.5),
+					"local a, b = 3, 0.5\n"
+					+ "return a - b");
+		}
+
+		public void testMixedIntegerDoubleComparisons() {
+			runFragment(LuaValue.varargsOf(new LuaValue[] { LuaValue.TRUE, LuaValue.TRUE, LuaValue.FALSE }),
+					"local a, b, n = 1, 2, 0/0\n"
+					+ "return a < 1.5, b <= 2, n < a");
+		}
+
+		public void testForLoopPastMaxIntegerContinuesInDouble() {
+			runFragment(LuaValue.varargsOf(new LuaValue[] { LuaValue.valueOf(2147483646), LuaValue.valueOf(2147483647), LuaValue.valueOf(2147483648.0), LuaValue.valueOf(3) }),
+					"local m, t = 2147483647, {}\n"
+					+ "for i = m - 1, m + 1 do t[#t+1] = i end\n"
+					+ "return t[1], t[2], t[3], #t");
+		}
+
+		public void testForLoopNegativeStep() {
+			runFragment(LuaValue.varargsOf(new LuaValue[] { LuaValue.valueOf(3), LuaValue.valueOf(2), LuaValue.valueOf(1), LuaValue.valueOf(3) }),
+					"local t = {}\n"
+					+ "for i = 3, 1, -1 do t[#t+1] = i end\n"
+					+ "return t[1], t[2], t[3], #t");
+		}
+
+		public void testIntegerForLoopStepOvershootsLimit() {
+			runFragment(LuaValue.valueOf("10 7 4 1"),
+					"local t = {}\n"
+					+ "for i = 10, 1, -3 do t[#t+1] = i end\n"
+					+ "return table.concat(t, ' ')");
+		}
+
+		public void testForLoopFractionalStep() {
+			runFragment(LuaValue.valueOf("1 1.5 2"),
+					"local t = {}\n"
+					+ "for i = 1, 2, 0.5 do t[#t+1] = i end\n"
+					+ "return table.concat(t, ' ')");
+		}
+
+		public void testIntegerZeroTimesNegativeInLoop() {
+			runFragment(LuaValue.valueOf(Double.POSITIVE_INFINITY),
+					"local z = 0\n"
+					+ "for i = 1, 3 do z = z * -1 end\n"
+					+ "return 1 / z");
+		}
+
+		public void testSumOfSquaresInLoop() {
+			runFragment(LuaValue.valueOf(385),
+					"local s = 0\n"
+					+ "for i = 1, 10 do s = s + i * i end\n"
+					+ "return s");
+		}
+
+		public void testNestedLoopStartsAtOuterVariable() {
+			runFragment(LuaValue.valueOf(14),
+					"local s = 0\n"
+					+ "for i = 1, 3 do for j = i, 3 do s = s + j end end\n"
+					+ "return s");
+		}
+
+		public void testNaNLocalComparisons() {
+			runFragment(LuaValue.varargsOf(LuaValue.TRUE, LuaValue.FALSE),
+					"local n = 0 / 0\n"
+					+ "return n ~= n, n < 1 or n >= 1");
+		}
+
+		public void testStringForLoopBoundsCapturedByClosures() {
+			runFragment(LuaValue.varargsOf(new LuaValue[] { LuaValue.valueOf(2), LuaValue.valueOf(3), LuaValue.valueOf(4) }),
+					"local f = {}\n"
+					+ "for i = '2', '4' do f[#f+1] = function() return i end end\n"
+					+ "return f[1](), f[2](), f[3]()");
+		}
+
+		public void testForLoopNonNumericStepIsError() {
+			runFragment(LuaValue.varargsOf(LuaValue.FALSE, LuaValue.TRUE),
+					"local ok, e = pcall(function() for i = 1, 2, {} do end end)\n"
+					+ "return ok, string.find(e, \"'for' step must be a number\", 1, true) ~= nil");
+		}
+
+		public void testRecursiveLocalCallsBuildAndWalkTree() {
+			runFragment(LuaValue.valueOf(31),
+					"local function tree(d) if d == 0 then return {} end d = d - 1 return { tree(d), tree(d) } end\n"
+					+ "local function count(t) if t[1] then return 1 + count(t[1]) + count(t[2]) end return 1 end\n"
+					+ "return count(tree(4))");
+		}
+
+		public void testLocalVarargCallReturnsAllValues() {
+			runFragment(LuaValue.varargsOf(new LuaValue[] { LuaValue.valueOf(3), LuaValue.valueOf(1), LuaValue.valueOf(2), LuaValue.valueOf(3) }),
+					"local function va(...) return select('#', ...), ... end\n"
+					+ "return va(1, 2, 3)");
+		}
+
+		public void testLocalCallPadsMissingArguments() {
+			runFragment(LuaValue.varargsOf(LuaValue.valueOf(1), LuaValue.NIL),
+					"local function two(a, b) return a, b end\n"
+					+ "local a, b = two(1)\n"
+					+ "return a, b");
+		}
+
+		public void testLocalCallDropsExtraArguments() {
+			runFragment(LuaValue.varargsOf(LuaValue.valueOf(1), LuaValue.valueOf(2)),
+					"local function two(a, b) return a, b end\n"
+					+ "return two(1, 2, 3)");
+		}
+
+		public void testLocalCallSeesReassignedUpvalue() {
+			runFragment(LuaValue.varargsOf(LuaValue.valueOf("g1"), LuaValue.valueOf("g2")),
+					"local g = function() return 'g1' end\n"
+					+ "local function useg() return (g()) end\n"
+					+ "local a = useg()\n"
+					+ "g = function() return 'g2' end\n"
+					+ "return a, useg()");
+		}
+
+		public void testLocalCallWithEmptyVarargResults() {
+			runFragment(LuaValue.valueOf(2),
+					"local function va(...) return select('#', ...), ... end\n"
+					+ "local function two(a, b) return a, b end\n"
+					+ "return select('#', two(va()))");
+		}
+
+		public void testRecursiveLocalFunction() {
+			runFragment(LuaValue.valueOf(6765),
+					"local function fib(n) if n < 2 then return n end return fib(n-1) + fib(n-2) end\n"
+					+ "return fib(20)");
+		}
+
+		public void testFieldGetAcrossManyTableShapes() {
+			runFragment(LuaValue.valueOf("1 3 nil 4 7 8"),
+					"local function getx(t) return t.x end\n"
+					+ "local mt = { __index = { z = 'z' } }\n"
+					+ "local ts = { {x=1}, {y=2, x=3}, setmetatable({}, mt), {x=4, y=5, w=6}, {a=1, b=2, x=7}, {x=8} }\n"
+					+ "local r = {}\n"
+					+ "for i = 1, #ts do r[i] = tostring(getx(ts[i])) end\n"
+					+ "return table.concat(r, ' ')");
+		}
+
+		public void testFieldGetAfterKeyRemoved() {
+			runFragment(LuaValue.NIL,
+					"local function getx(t) return t.x end\n"
+					+ "local t = {x=1}\n"
+					+ "getx(t)\n"
+					+ "t.x = nil\n"
+					+ "return getx(t)");
+		}
+
+		public void testFieldSetAcrossShapesAndNewindex() {
+			runFragment(LuaValue.valueOf("1 2 3! 4"),
+					"local mt = { __newindex = function(t, k, v) rawset(t, k, v .. '!') end }\n"
+					+ "local function setx(t, v) t.x = v end\n"
+					+ "local ts = { {x=0}, {y=2}, setmetatable({}, mt), {x=0, y=5, w=6} }\n"
+					+ "for i = 1, #ts do setx(ts[i], i) end\n"
+					+ "local r = {}\n"
+					+ "for i = 1, #ts do r[i] = ts[i].x end\n"
+					+ "return table.concat(r, ' ')");
+		}
+
+		public void testArithmeticAcrossOperandTypes() {
+			runFragment(LuaValue.valueOf("2 3.5 4 add"),
+					"local obj = setmetatable({}, { __add = function(a, b) return 'add' end })\n"
+					+ "local ops = { 1, 2.5, '3', obj }\n"
+					+ "local r = {}\n"
+					+ "for i = 1, #ops do r[i] = tostring(ops[i] + 1) end\n"
+					+ "return table.concat(r, ' ')");
+		}
+
+		public void testCallAcrossCalleeKinds() {
+			runFragment(LuaValue.valueOf("a fa calla A"),
+					"local obj = setmetatable({}, { __call = function(self, x) return 'call' .. x end })\n"
+					+ "local fs = { tostring, function(x) return 'f' .. x end, obj, string.upper }\n"
+					+ "local r = {}\n"
+					+ "for i = 1, #fs do r[i] = fs[i]('a') end\n"
+					+ "return table.concat(r, ' ')");
+		}
+
+		public void testFoldedLocalsInTakenBranch() {
+			runFragment(LuaValue.valueOf(8),
+					"local a, b = 2, 3\n"
+					+ "local c = a * b + 1\n"
+					+ "if a < b then c = c + 1 else c = 0 end\n"
+					+ "return c");
+		}
+
+		public void testFoldedDivisionByZero() {
+			runFragment(LuaValue.valueOf(Double.POSITIVE_INFINITY),
+					"local a, b = 2, 3\n"
+					+ "local c = a * b + 1\n"
+					+ "return c / 0");
+		}
+
+		public void testFoldedLocalInLoopBody() {
+			runFragment(LuaValue.valueOf(6),
+					"local a, s = 2, 0\n"
+					+ "for i = 1, 3 do s = s + a end\n"
+					+ "return s");
+		}
+
+		public void testLocalAssignedByClosureIsNotFolded() {
+			runFragment(LuaValue.valueOf(2),
+					"local x = 1\n"
+					+ "local function f() x = x + 1 return x end\n"
+					+ "f()\n"
+					+ "return x");
+		}
+
+		public void testLocalReassignedInWhileLoop() {
+			runFragment(LuaValue.valueOf(8),
+					"local n = 10\n"
+					+ "while n > 8 do n = n - 1 end\n"
+					+ "return n");
+		}
+
+		public void testFoldedNegatedZero() {
+			runFragment(LuaValue.valueOf("0"),
+					"local a = 2\n"
+					+ "local z = -(a - a)\n"
+					+ "return tostring(z)");
+		}
+
+		public void testOverwrittenDeadStore() {
+			runFragment(LuaValue.valueOf(5),
+					"local a, b = 2, 3\n"
+					+ "local unused = 4\n"
+					+ "unused = a + b\n"
+					+ "return unused");
+		}
+
+		public void testFoldedIndexAfterIncrement() {
+			runFragment(LuaValue.valueOf("b"),
+					"local t = { 'a', 'b' }\n"
+					+ "local k = 1 k = k + 1\n"
+					+ "return t[k]");
+		}
+
+		public void testForprepIntegerRange() {
+			runFragment(LuaValue.valueOf(6),
+					"local function sum(a, b, c)\n"
+					+ "  local s = 0\n"
+					+ "  for i = a, b, c do s = s + i end\n"
+					+ "  return s\n"
+					+ "end\n"
+					+ "return sum(1, 3, 1)");
+		}
+
+		public void testForprepFractionalLimit() {
+			runFragment(LuaValue.valueOf(3),
+					"local function sum(a, b, c)\n"
+					+ "  local s = 0\n"
+					+ "  for i = a, b, c do s = s + i end\n"
+					+ "  return s\n"
+					+ "end\n"
+					+ "return sum(1, 2.5, 1)");
+		}
+
+		public void testForprepFractionalStart() {
+			runFragment(LuaValue.valueOf(2),
+					"local function sum(a, b, c)\n"
+					+ "  local s = 0\n"
+					+ "  for i = a, b, c do s = s + i end\n"
+					+ "  return s\n"
+					+ "end\n"
+					+ "return sum(0.5, 2, 1)");
+		}
+
+		public void testForprepNegativeIntegerStep() {
+			runFragment(LuaValue.valueOf(4),
+					"local function sum(a, b, c)\n"
+					+ "  local s = 0\n"
+					+ "  for i = a, b, c do s = s + i end\n"
+					+ "  return s\n"
+					+ "end\n"
+					+ "return sum(3, 1, -2)");
+		}
+
+		public void testForloopIntOverflowPastMaxInteger() {
+			runFragment(LuaValue.valueOf("2147483648"),
+					"local n = 0\n"
+					+ "for i = 2147483646, 2147483648 do n = i end\n"
+					+ "return tostring(n)");
+		}
+
+		public void testEqKDoubleLocalAgainstIntegerConstant() {
+			runFragment(LuaValue.valueOf("y"),
+					"local one = 1.0\n"
+					+ "if one == 1 then return 'y' end\n"
+					+ "return 'n'");
+		}
+
+		public void testEqKWithSwappedConstant() {
+			runFragment(LuaValue.valueOf("y"),
+					"local s = 'a'\n"
+					+ "if 'a' == s then return 'y' end\n"
+					+ "return 'n'");
+		}
+
+		public void testEqKStringAgainstNumberConstant() {
+			runFragment(LuaValue.valueOf("n"),
+					"local s = 'a'\n"
+					+ "if s == 1 then return 'y' end\n"
+					+ "return 'n'");
+		}
+
+		public void testLtWithMixedNumberConstants() {
+			runFragment(LuaValue.valueOf("y"),
+					"local a = 1\n"
+					+ "if a < 2.5 then return 'y' end\n"
+					+ "return 'n'");
+		}
+
+		public void testGettableWithConstantKey() {
+			runFragment(LuaValue.valueOf(1),
+					"local t = { x = 1 }\n"
+					+ "return t.x");
+		}
+
+		public void testSelfWithConstantKey() {
+			runFragment(LuaValue.valueOf(2),
+					"local t = { x = 1, f = function(self, d) return self.x + d end }\n"
+					+ "return t:f(1)");
+		}
+
+		public void testTestJumpOnPresentAndMissingField() {
+			runFragment(LuaValue.valueOf("yn"),
+					"local t = { x = 1 }\n"
+					+ "local r = ''\n"
+					+ "if t.x then r = r .. 'y' end\n"
+					+ "if t.y then r = r .. 'x' else r = r .. 'n' end\n"
+					+ "return r");
+		}
+
+		public void testAddDoubleConstant() {
+			runFragment(LuaValue.valueOf(4.5),
+					"local h = 3.5\n"
+					+ "return h + 1");
+		}
+
+		public void testSubDoubleConstantFromInteger() {
+			runFragment(LuaValue.valueOf(-1.5),
+					"local one = 1\n"
+					+ "return one - 2.5");
+		}
+
+		public void testConcatParenthesizedConstant() {
+			runFragment(LuaValue.valueOf("ab"),
+					"return ('a') .. 'b'");
+		}
+
+		public void testGettabupWithConstantKey() {
+			runFragment(LuaValue.valueOf("x"),
+					"return type(x) == 'nil' and 'x' or 'z'");
+		}
+
+		public void testAddFallsBackToMetamethod() {
+			runFragment(LuaValue.valueOf(3),
+					"local mt = { __add = function(a, b) return 3 end }\n"
+					+ "return setmetatable({}, mt) + 1");
+		}
+
 	}
 }
@@ -104,6 +104,35 @@ public class OrphanedThreadTest extends TestCase {
 		doTest(LuaValue.TRUE, LuaValue.ONE);
 	}
 
+	public void testOrphanedThreadReclaimedWithoutPolling() throws Exception {
+		LuaThread.thread_orphan_check_interval = 60000;
+		int reclaimed = LuaThread.getReclaimedCount();
+		function = new NormalFunction(globals);
+		doTest(LuaValue.TRUE, LuaValue.ZERO);
+		for (int i=0; i<100 && LuaThread.getReclaimedCount() == reclaimed; i++) {
+			Runtime.getRuntime().gc();
+			Thread.sleep(5);
+		}
+		assertEquals(reclaimed + 1, LuaThread.getReclaimedCount());
+	}
+
+	public void testFinishedSelfReferencingCoroutineIsCollected() throws Exception {
+		String script =
+			"local co\n" +
+			"co = coroutine.create(function() local k = co return string.rep('x', 100000) end)\n" +
+			"assert(coroutine.resume(co))\n" +
+			"return co\n";
+		LuaValue co = globals.load(script, "script").call();
+		assertEquals("dead", ((LuaThread) co).getStatus());
+		luathr_ref = new WeakReference(co);
+		co = null;
+		for (int i=0; i<100 && luathr_ref.get() != null; i++) {
+			Runtime.getRuntime().gc();
+			Thread.sleep(5);
+		}
+		assertNull(luathr_ref.get());
+	}
+
 	private void doTest(LuaValue status2, LuaValue value2) throws Exception {
 		luathread = new LuaThread(globals, function);
 		luathr_ref = new WeakReference(luathread);
@@ -193,6 +193,26 @@ public class StringTest extends TestCase {
 		assertSame(xyz3, xyz4);  // because hashes do not collide
 	}
 	
+	public void testInternedStringsSurviveRecentCacheMiss() {
+		LuaString.intern_short_strings = true;
+		try {
+			final byte[] abc = {'a', 'b', 'c' };
+			final byte[] lyz = {'l', 'y', 'z' };  // chosen to have hash collision with 'abc'
+			final long hits = LuaString.getInternHits();
+			final LuaString abc1 = LuaString.valueOf(abc);
+			final LuaString lyz1 = LuaString.valueOf(lyz); // in cache: 'abc'
+			final LuaString abc2 = LuaString.valueOf(abc); // in cache: 'lyz'
+			final LuaString lyz2 = LuaString.valueOf(lyz); // in cache: 'abc'
+			assertSame(abc1, abc2);
+			assertSame(lyz1, lyz2);
+			assertFalse(abc1.raweq(lyz1));
+			assertTrue(LuaString.getInternHits() >= hits + 2);
+			assertSame(abc1, LuaString.valueOf("xabc").substring(1, 4));
+		} finally {
+			LuaString.intern_short_strings = false;
+		}
+	}
+
 	public void testLongSubstringGetsOldBacking() {
 		LuaString src = LuaString.valueOf("abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ");
 		LuaString sub1 = src.substring(10, 40);
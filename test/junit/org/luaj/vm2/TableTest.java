@@ -416,4 +416,84 @@ public class TableTest extends TestCase {
 		}
 		assertEquals(expected, actual);
 	}	
+
+	public void testShapedTablesShareShape() {
+		LuaTable a = LuaTable.shapedTable(0, 3);
+		LuaTable b = LuaTable.shapedTable(0, 3);
+		a.set("x", LuaValue.valueOf(1)); a.set("y", LuaValue.valueOf(2)); a.set("id", LuaValue.valueOf("a"));
+		b.set("x", LuaValue.valueOf(3)); b.set("y", LuaValue.valueOf(4)); b.set("id", LuaValue.valueOf("b"));
+		assertNotNull(a.shape);
+		assertSame(a.shape, b.shape);
+		assertEquals(0, a.hashEntries);
+		assertEquals(2, a.get("y").toint());
+		assertEquals(4, b.get("y").toint());
+		assertEquals("b", b.get(LuaValue.valueOf("id")).tojstring());
+		assertEquals(LuaValue.NIL, b.get("z"));
+		assertEquals(3, keyCount(b));
+	}
+
+	public void testShapedTableFallsBackToHash() {
+		LuaTable t = LuaTable.shapedTable(0, 2);
+		t.set("a", LuaValue.valueOf("aa"));
+		t.set("b", LuaValue.valueOf("bb"));
+		t.set(LuaValue.valueOf(1.5), LuaValue.valueOf("cc"));
+		assertNull(t.shape);
+		assertEquals("aa", t.get("a").tojstring());
+		assertEquals("bb", t.get("b").tojstring());
+		assertEquals("cc", t.get(LuaValue.valueOf(1.5)).tojstring());
+		assertEquals(3, keyCount(t));
+		
+		LuaTable u = LuaTable.shapedTable(0, 0);
+		for ( int i = 0; i < Shape.MAX_KEYS + 4; ++i )
+			u.set("key"+i, LuaValue.valueOf(i));
+		assertNull(u.shape);
+		for ( int i = 0; i < Shape.MAX_KEYS + 4; ++i )
+			assertEquals(i, u.get("key"+i).toint());
+	}
+
+	public void testShapedTableClearWhileIterating() {
+		LuaTable t = LuaTable.shapedTable(2, 4);
+		t.set(1, LuaValue.valueOf("one"));
+		t.set(2, LuaValue.valueOf("two"));
+		t.set("a", LuaValue.valueOf("aa"));
+		t.set("b", LuaValue.valueOf("bb"));
+		t.set("c", LuaValue.valueOf("cc"));
+		int n = 0;
+		for (Varargs e = t.next(LuaValue.NIL); !e.arg1().isnil(); e = t.next(e.arg1())) {
+			t.set(e.arg1(), LuaValue.NIL);
+			++n;
+		}
+		assertEquals(5, n);
+		assertEquals(0, keyCount(t));
+		assertEquals(LuaValue.NIL, t.get("b"));
+		t.set("b", LuaValue.valueOf("bbb"));
+		assertEquals("bbb", t.get("b").tojstring());
+		assertEquals(1, keyCount(t));
+	}
+
+	public void testNumericArrayPart() {
+		LuaTable t = new LuaTable();
+		for ( int i = 1; i <= 40; ++i )
+			t.set(i, LuaValue.valueOf(41-i));
+		assertEquals(40, t.length());
+		assertEquals(LuaValue.valueOf(1), t.get(40));
+		t.set(20, LuaValue.valueOf(0.5));
+		assertEquals(0.5, t.get(20).todouble(), 0);
+		assertEquals(LuaValue.valueOf(40), t.get(1));
+		t.sort(LuaValue.NIL);
+		assertEquals(0.5, t.get(1).todouble(), 0);
+		for ( int i = 2; i <= 40; ++i )
+			assertTrue(t.get(i-1).todouble() < t.get(i).todouble());
+		t.set(41, LuaValue.NIL);
+		t.set(40, LuaValue.NIL);
+		assertEquals(39, t.length());
+		t.set(5, LuaValue.valueOf("five"));
+		assertEquals("five", t.get(5).tojstring());
+		assertEquals(39, t.length());
+		assertEquals(39, keyCount(t));
+		int n = 0;
+		for (Varargs e = t.next(LuaValue.NIL); !e.arg1().isnil(); e = t.next(e.arg1()))
+			assertEquals(++n, e.arg1().toint());
+		assertEquals(39, n);
+	}
 }
@@ -23,6 +23,9 @@ package org.luaj.vm2;
 
 import junit.framework.TestCase;
 
+import org.luaj.vm2.lib.VarArgFunction;
+import org.luaj.vm2.lib.jse.JsePlatform;
+
 /**
  * Tests of basic unary and binary operators on main value types.
  */
@@ -212,6 +215,39 @@ public class VarargsTest extends TestCase {
 		standardTestsA_G(a_g);
 	}
 
+	public void testJavaFunctionKeepsArgumentsAfterCall() {
+		final Varargs[] saved = new Varargs[1];
+		Globals globals = JsePlatform.standardGlobals();
+		globals.set("save", new VarArgFunction() {
+			public Varargs invoke(Varargs args) {
+				saved[0] = args;
+				return NONE;
+			}
+		});
+		globals.load(
+			"local function f() local x, y = 'a', 'b' save(x, y, 'c', 'd') end\n" +
+			"local function g() local p, q, r, s = 1, 2, 3, 4 return p end\n" +
+			"f() g()\n").call();
+		expectEquals(LuaValue.varargsOf(new LuaValue[] { A, B, C, D }), saved[0]);
+	}
+
+	public void testJavaFunctionKeepsTailCallArguments() {
+		final Varargs[] saved = new Varargs[1];
+		Globals globals = JsePlatform.standardGlobals();
+		globals.set("save", new VarArgFunction() {
+			public Varargs invoke(Varargs args) {
+				saved[0] = args;
+				return NONE;
+			}
+		});
+		globals.load(
+			"local function h(...) return save(...) end\n" +
+			"local function f() local x, y, z, w = 'a', 'b', 'c', 'd' h(x, y, z, w) end\n" +
+			"local function g() local p, q, r, s, t = 1, 2, 3, 4, 5 return p end\n" +
+			"f() g()\n").call();
+		expectEquals(LuaValue.varargsOf(new LuaValue[] { A, B, C, D }), saved[0]);
+	}
+
 	static void expectNegSubargsError(Varargs v) {
 		String expected_msg = "bad argument #1: start must be > 0";
 		try {
@@ -3,6 +3,7 @@ package org.luaj.vm2.lib.jse;
 import junit.framework.TestCase;
 
 import org.luaj.vm2.Globals;
+import org.luaj.vm2.LuaThread;
 import org.luaj.vm2.LuaValue;
 import org.luaj.vm2.Varargs;
 
@@ -18,4 +19,27 @@ public class JsePlatformTest extends TestCase {
 		assertEquals(results.arg(3), LuaValue.valueOf("bbb"));
 		assertEquals(results.arg(4), LuaValue.valueOf("aaa"));
 	}
+
+	public void testCoroutinesRunOnPooledThreads() {
+		Globals globals = JsePlatform.standardGlobals();
+		assertTrue(LuaThread.coroutine_executor instanceof JseCoroutineExecutor);
+		LuaThread.Executor previous = LuaThread.coroutine_executor;
+		LuaThread.coroutine_executor = new JseCoroutineExecutor(false);
+		try {
+			LuaValue chunk = globals.load(
+				"local s, live = 0, {}\n" +
+				"for i=1,200 do\n" +
+				"  local co = coroutine.wrap(function(a) local b = coroutine.yield(a) return a + b end)\n" +
+				"  s = s + co(i)\n" +
+				"  if i % 2 == 0 then s = s + co(1) else live[#live+1] = co end\n" +
+				"end\n" +
+				"for i=1,#live do s = s + live[i](2) end\n" +
+				"return s, coroutine.status(coroutine.create(print))");
+			Varargs results = chunk.invoke();
+			assertEquals(LuaValue.valueOf(20100 + 10100 + 100 + 10000 + 200), results.arg1());
+			assertEquals(LuaValue.valueOf("suspended"), results.arg(2));
+		} finally {
+			LuaThread.coroutine_executor = previous;
+		}
+	}
 }
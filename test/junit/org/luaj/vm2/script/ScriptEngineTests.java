@@ -51,6 +51,7 @@ public class ScriptEngineTests extends TestSuite  {
 		suite.addTest( new TestSuite( SimpleBindingsTest.class, "Simple Bindings" ) );
 		suite.addTest( new TestSuite( CompileClosureTest.class, "Compile Closure" ) );
 		suite.addTest( new TestSuite( CompileNonClosureTest.class, "Compile NonClosure" ) );
+		suite.addTest( new TestSuite( PooledGlobalsTest.class, "Pooled Globals" ) );
 		suite.addTest( new TestSuite( UserContextTest.class, "User Context" ) );
 		suite.addTest( new TestSuite( WriterTest.class, "Writer" ) );
 		return suite;
@@ -118,6 +119,51 @@ public class ScriptEngineTests extends TestSuite  {
 		}
 	}
 
+	public static class PooledGlobalsTest extends SimpleBindingsTest {
+		protected void setUp() throws Exception {
+			System.setProperty("org.luaj.pool", "2");
+			super.setUp();
+		}
+		protected void tearDown() throws Exception {
+			System.getProperties().remove("org.luaj.pool");
+			super.tearDown();
+		}
+		public void testThreadingIsMultithreaded() {
+			assertEquals("MULTITHREADED", e.get("THREADING"));
+		}
+		public void testCompiledScriptIsReused() throws ScriptException {
+			final String script = "return 'foo'";
+			assertSame(((Compilable)e).compile(script), ((Compilable)e).compile(script));
+		}
+		public void testConcurrentEvaluation() throws Exception {
+			final CompiledScript cs = ((Compilable)e).compile("y = x * x; return math.sqrt(y)");
+			final Throwable[] failure = new Throwable[1];
+			Thread[] threads = new Thread[6];
+			for ( int i = 0; i < threads.length; ++i ) {
+				final int n = i;
+				threads[i] = new Thread() {
+					public void run() {
+						try {
+							for ( int j = 1; j <= 50; ++j ) {
+								Bindings b = new SimpleBindings();
+								b.put("x", n * 100 + j);
+								assertEquals(n * 100 + j, cs.eval(b));
+								assertEquals((n * 100 + j) * (n * 100 + j), b.get("y"));
+							}
+						} catch ( Throwable t ) {
+							failure[0] = t;
+						}
+					}
+				};
+				threads[i].start();
+			}
+			for ( int i = 0; i < threads.length; ++i )
+				threads[i].join();
+			if ( failure[0] != null )
+				throw new Exception(failure[0]);
+		}
+	}
+
 	abstract public static class EngineTestCase extends TestCase {	
 		protected ScriptEngine e;
 		protected Bindings b;